@@ -0,0 +1,333 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.util.Arrays.stream;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.utils.BackendConfigException;
+import com.example.backend.utils.BackendConfigUtils;
+import com.google.gson.Gson;
+import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
+import com.google.maps.fleetengine.delivery.v1.VehicleStop;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The changes needed to go from the live manifests to a re-uploaded backend config.
+ *
+ * <p>Manifests and tasks are matched by the IDs in the uploaded file, which the live ones carry
+ * followed by their manifest's {@code id_suffix}. A vehicle which is not live yet is added, and
+ * provisioned like in a full upload. A live vehicle which is not in the file is removed: its
+ * journey is cleared and it is dropped from the state. A live vehicle which is in the file keeps
+ * its ID, its assignment and the progress of its driver:
+ *
+ * <ul>
+ *   <li>its new tasks are created, and tasks which are no longer in the file are dropped from its
+ *       stops. Tasks which already exist are not updated, since Fleet Engine does not allow
+ *       changing most of their fields; a warning is logged if they changed.
+ *   <li>the stops it has completed, and the tasks it has completed, stay completed.
+ *   <li>unless the file sets {@code remaining_stop_id_list}, its remaining stops keep the order
+ *       the driver gave them, followed by its new stops.
+ * </ul>
+ *
+ * <p>Live vehicles are only updated in Fleet Engine if their tasks or remaining stops changed.
+ */
+final class BackendConfigDiff {
+  private static final Logger logger = Logger.getLogger(BackendConfigDiff.class.getName());
+
+  private final List<BackendConfig.Manifest> manifests;
+  private final List<BackendConfig.Manifest> addedManifests;
+  private final List<ManifestProvisioner.VehicleUpdate> updates;
+  private final List<String> removedVehicleIds;
+  private final Set<String> unchangedVehicleIds;
+
+  private BackendConfigDiff(
+      List<BackendConfig.Manifest> manifests,
+      List<BackendConfig.Manifest> addedManifests,
+      List<ManifestProvisioner.VehicleUpdate> updates,
+      List<String> removedVehicleIds,
+      Set<String> unchangedVehicleIds) {
+    this.manifests = manifests;
+    this.addedManifests = addedManifests;
+    this.updates = updates;
+    this.removedVehicleIds = removedVehicleIds;
+    this.unchangedVehicleIds = unchangedVehicleIds;
+  }
+
+  /**
+   * Compares the live manifests with the uploaded ones. Neither are modified, except for the added
+   * manifests, which are returned as they were uploaded.
+   *
+   * @throws BackendConfigException if an uploaded manifest which is live refers to an unknown task
+   *     or stop
+   */
+  static BackendConfigDiff compute(
+      List<BackendConfig.Manifest> liveManifests, List<BackendConfig.Manifest> uploadedManifests)
+      throws BackendConfigException {
+    Map<String, BackendConfig.Manifest> liveByUploadedId = new LinkedHashMap<>();
+    for (BackendConfig.Manifest live : liveManifests) {
+      liveByUploadedId.putIfAbsent(removeSuffix(live.vehicle.vehicleId, live.idSuffix), live);
+    }
+
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    List<BackendConfig.Manifest> addedManifests = new ArrayList<>();
+    List<ManifestProvisioner.VehicleUpdate> updates = new ArrayList<>();
+    Set<String> unchangedVehicleIds = new HashSet<>();
+    for (BackendConfig.Manifest uploaded : uploadedManifests) {
+      BackendConfig.Manifest live = liveByUploadedId.remove(uploaded.vehicle.vehicleId);
+      if (live == null) {
+        manifests.add(uploaded);
+        addedManifests.add(uploaded);
+        continue;
+      }
+      Merge merge = new Merge(live, uploaded);
+      if (merge.changed) {
+        manifests.add(merge.manifest);
+        updates.add(
+            new ManifestProvisioner.VehicleUpdate(
+                merge.manifest.vehicle.vehicleId, merge.newTasks, merge.segments()));
+      } else {
+        manifests.add(live);
+        unchangedVehicleIds.add(live.vehicle.vehicleId);
+      }
+    }
+
+    List<String> removedVehicleIds = new ArrayList<>();
+    for (BackendConfig.Manifest removed : liveByUploadedId.values()) {
+      removedVehicleIds.add(removed.vehicle.vehicleId);
+      updates.add(
+          new ManifestProvisioner.VehicleUpdate(
+              removed.vehicle.vehicleId, new BackendConfig.Task[0], new ArrayList<>()));
+    }
+    return new BackendConfigDiff(
+        manifests, addedManifests, updates, removedVehicleIds, unchangedVehicleIds);
+  }
+
+  /**
+   * Returns the manifests of the new config, in upload order: the added manifests, the merged
+   * manifests of the changed vehicles, and the live manifests of the unchanged ones.
+   */
+  List<BackendConfig.Manifest> manifests() {
+    return manifests;
+  }
+
+  /** Returns the uploaded manifests whose vehicles are not live, to be provisioned. */
+  List<BackendConfig.Manifest> addedManifests() {
+    return addedManifests;
+  }
+
+  /**
+   * Returns the live vehicles to update in Fleet Engine: the changed ones, then the removed ones,
+   * whose journeys are cleared.
+   */
+  List<ManifestProvisioner.VehicleUpdate> updates() {
+    return updates;
+  }
+
+  /** Returns the IDs of the live vehicles which are not in the new config. */
+  List<String> removedVehicleIds() {
+    return removedVehicleIds;
+  }
+
+  /** Returns the IDs of the live vehicles which are in the new config, with the same manifest. */
+  Set<String> unchangedVehicleIds() {
+    return unchangedVehicleIds;
+  }
+
+  private static String removeSuffix(String id, String suffix) {
+    if (suffix == null || !id.endsWith(suffix)) {
+      return id;
+    }
+    return id.substring(0, id.length() - suffix.length());
+  }
+
+  /** The merge of the live manifest of a vehicle with its uploaded manifest. */
+  private static final class Merge {
+    private final Gson gson = BackendConfigGsonProvider.get();
+    private final BackendConfig.Manifest manifest;
+    private final BackendConfig.Task[] newTasks;
+    private final BackendConfig.Stop[] remainingStops;
+    private final boolean changed;
+
+    Merge(BackendConfig.Manifest live, BackendConfig.Manifest uploaded)
+        throws BackendConfigException {
+      String suffix = live.idSuffix == null ? "" : live.idSuffix;
+      manifest = gson.fromJson(gson.toJson(uploaded), BackendConfig.Manifest.class);
+      manifest.vehicle = live.vehicle;
+      manifest.idSuffix = live.idSuffix;
+      manifest.clientId = live.clientId;
+
+      // Tasks which are no longer at any stop have been completed.
+      Set<String> openTaskIds = new HashSet<>();
+      for (BackendConfig.Stop stop : live.stops) {
+        openTaskIds.addAll(Arrays.asList(stop.tasks));
+      }
+      Set<String> completedTaskIds = new HashSet<>();
+      Map<String, BackendConfig.Task> liveTasks = new LinkedHashMap<>();
+      for (BackendConfig.Task task : live.tasks) {
+        liveTasks.putIfAbsent(task.taskId, task);
+        if (!openTaskIds.contains(task.taskId)) {
+          completedTaskIds.add(task.taskId);
+        }
+      }
+
+      List<BackendConfig.Task> tasks = new ArrayList<>();
+      List<BackendConfig.Task> created = new ArrayList<>();
+      for (BackendConfig.Task task : manifest.tasks) {
+        task.taskId = task.taskId + suffix;
+        task.trackingId = task.trackingId + suffix;
+        BackendConfig.Task liveTask = liveTasks.remove(task.taskId);
+        if (liveTask == null) {
+          created.add(task);
+          tasks.add(task);
+          continue;
+        }
+        if (!gson.toJson(liveTask).equals(gson.toJson(task))) {
+          logger.log(
+              Level.WARNING,
+              String.format(
+                  "Task %s changed, but existing tasks are not updated; the change is ignored",
+                  task.taskId));
+        }
+        tasks.add(liveTask);
+      }
+      // Completed tasks are kept, so they can still be looked up, even if they are no longer in
+      // the upload.
+      for (BackendConfig.Task liveTask : liveTasks.values()) {
+        if (completedTaskIds.contains(liveTask.taskId)) {
+          tasks.add(liveTask);
+        }
+      }
+      manifest.tasks = tasks.toArray(new BackendConfig.Task[0]);
+      newTasks = created.toArray(new BackendConfig.Task[0]);
+
+      Set<String> completedStopIds = new HashSet<>();
+      List<BackendConfig.Stop> completedStops = new ArrayList<>();
+      Set<String> liveRemaining =
+          live.remainingStopIdList == null
+              ? new HashSet<>()
+              : new HashSet<>(Arrays.asList(live.remainingStopIdList));
+      for (BackendConfig.Stop stop : live.stops) {
+        if (live.remainingStopIdList != null && !liveRemaining.contains(stop.stopId)) {
+          completedStopIds.add(stop.stopId);
+          completedStops.add(stop);
+        }
+      }
+
+      Map<String, BackendConfig.Stop> uploadedStops = new HashMap<>();
+      for (BackendConfig.Stop stop : manifest.stops) {
+        stop.tasks =
+            stream(stop.tasks)
+                .map(id -> id + suffix)
+                .filter(id -> !completedTaskIds.contains(id))
+                .toArray(String[]::new);
+        uploadedStops.putIfAbsent(stop.stopId, stop);
+      }
+
+      LinkedHashSet<String> remaining = new LinkedHashSet<>();
+      if (uploaded.remainingStopIdList != null) {
+        remaining.addAll(Arrays.asList(uploaded.remainingStopIdList));
+      } else {
+        if (live.remainingStopIdList != null) {
+          for (String stopId : live.remainingStopIdList) {
+            if (uploadedStops.containsKey(stopId)) {
+              remaining.add(stopId);
+            }
+          }
+        }
+        for (BackendConfig.Stop stop : manifest.stops) {
+          remaining.add(stop.stopId);
+        }
+      }
+      remaining.removeAll(completedStopIds);
+      for (String stopId : remaining) {
+        if (!uploadedStops.containsKey(stopId)) {
+          throw new BackendConfigException(
+              String.format("Stop ID %s cannot be found in the list of stops.", stopId));
+        }
+      }
+      manifest.remainingStopIdList = remaining.toArray(new String[0]);
+      remainingStops =
+          remaining.stream().map(uploadedStops::get).toArray(BackendConfig.Stop[]::new);
+      List<BackendConfig.Stop> stops = new ArrayList<>(completedStops);
+      stops.addAll(Arrays.asList(remainingStops));
+      manifest.stops = stops.toArray(new BackendConfig.Stop[0]);
+
+      // The driver's current stop keeps its state, as long as it is still the next stop.
+      String next = remaining.isEmpty() ? null : remaining.iterator().next();
+      String liveNext =
+          live.remainingStopIdList == null || live.remainingStopIdList.length == 0
+              ? null
+              : live.remainingStopIdList[0];
+      manifest.currentStopState =
+          Objects.equals(next, liveNext) ? live.currentStopState : BackendConfig.StopState.NEW;
+
+      // Check the stops now, rather than when the vehicle is updated.
+      BackendConfigUtils.createVehicleJourneySegments(manifest.tasks, remainingStops);
+
+      changed =
+          newTasks.length > 0
+              || !taskIds(manifest).equals(taskIds(live))
+              || !gson.toJson(remainingStops).equals(gson.toJson(liveRemainingStops(live)));
+    }
+
+    /** Returns the journey segments of the remaining stops, the first one in its current state. */
+    List<VehicleJourneySegment> segments() throws BackendConfigException {
+      List<VehicleJourneySegment> segments =
+          new ArrayList<>(
+              BackendConfigUtils.createVehicleJourneySegments(manifest.tasks, remainingStops));
+      if (!segments.isEmpty() && manifest.currentStopState != null) {
+        VehicleJourneySegment.Builder first = segments.get(0).toBuilder();
+        first
+            .getStopBuilder()
+            .setState(VehicleStop.State.valueOf(manifest.currentStopState.getValue()));
+        segments.set(0, first.build());
+      }
+      return segments;
+    }
+
+    private static Set<String> taskIds(BackendConfig.Manifest manifest) {
+      Set<String> taskIds = new HashSet<>();
+      for (BackendConfig.Task task : manifest.tasks) {
+        taskIds.add(task.taskId);
+      }
+      return taskIds;
+    }
+
+    private static BackendConfig.Stop[] liveRemainingStops(BackendConfig.Manifest live) {
+      Map<String, BackendConfig.Stop> stops = new HashMap<>();
+      for (BackendConfig.Stop stop : live.stops) {
+        stops.putIfAbsent(stop.stopId, stop);
+      }
+      String[] remaining =
+          live.remainingStopIdList == null
+              ? stream(live.stops).map(stop -> stop.stopId).toArray(String[]::new)
+              : live.remainingStopIdList;
+      return stream(remaining).map(stops::get).toArray(BackendConfig.Stop[]::new);
+    }
+  }
+}
@@ -15,32 +15,43 @@
 package com.example.backend;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Arrays.stream;
 
 import com.example.backend.auth.grpcservice.AuthenticatedGrpcServiceProvider;
 import com.example.backend.json.BackendConfig;
 import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.json.BackendConfigProto;
+import com.example.backend.json.BackendConfigProtoReader;
+import com.example.backend.json.BackendConfigReader;
+import com.example.backend.json.BackendConfigStreamReader;
 import com.example.backend.utils.BackendConfigException;
-import com.example.backend.utils.BackendConfigUtils;
 import com.example.backend.utils.SampleBackendUtils;
 import com.example.backend.utils.ServletUtils;
-import com.google.gson.Gson;
-import com.google.maps.fleetengine.delivery.v1.CreateDeliveryVehicleRequest;
-import com.google.maps.fleetengine.delivery.v1.CreateTaskRequest;
-import com.google.maps.fleetengine.delivery.v1.DeliveryServiceGrpc;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
-import com.google.maps.fleetengine.delivery.v1.DeliveryVehicleLocation;
 import com.google.maps.fleetengine.delivery.v1.Task;
-import com.google.maps.fleetengine.delivery.v1.UpdateDeliveryVehicleRequest;
-import com.google.protobuf.FieldMask;
-import com.google.type.LatLng;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipException;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.servlet.MultipartConfigElement;
@@ -54,7 +65,21 @@ import javax.servlet.http.Part;
 /**
  * Servlet for uploading backend config files.
  *
- * <p>POST /backend_config
+ * <p>POST /backend_config[?mode=incremental]
+ *
+ * <p>POST /backend_config?resume=JOB_ID
+ *
+ * <p>Either can add {@code response=summary} or {@code response=ndjson}, or {@code Accept:
+ * application/x-ndjson}, to wait for the upload; see {@link ResponseFormat}.
+ *
+ * <p>By default, an upload replaces the delivery state: every vehicle and task is created again.
+ * In incremental mode, the upload is compared with the live manifests, and only the vehicles and
+ * tasks which were added or changed are created or updated; see {@link BackendConfigDiff}.
+ *
+ * <p>The upload runs in the background: the response is 202 Accepted, with the ID of the upload
+ * job and the URL of its status; see {@link UploadJobServlet}. Uploads run one at a time, in the
+ * order they were received. An upload which failed can be resumed with its job ID; see {@link
+ * UploadCheckpoint}.
  */
 @Singleton
 @MultipartConfig(
@@ -64,152 +89,905 @@ import javax.servlet.http.Part;
     maxFileSize = 100 * 1024 * 1024)
 public final class BackendConfigServlet extends HttpServlet {
 
-  private final ServletState servletState;
+  private final DeliveryStateStore servletState;
   private static final Logger logger = Logger.getLogger(BackendConfigServlet.class.getName());
 
+  private static final String FULL_MODE = "full";
+  private static final String INCREMENTAL_MODE = "incremental";
+  private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+  /** How often the progress of an upload is written in an NDJSON response. */
+  static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+  /**
+   * How long a request waits for its upload by default, before it is answered like a request which
+   * does not wait. App Engine ends requests after 60 seconds with automatic scaling.
+   */
+  static final long DEFAULT_MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(50);
+
+  /** How long an incremental upload waits at first, and at most, to claim a live manifest again. */
+  private static final long MANIFEST_CLAIM_BACKOFF_MILLIS = 50;
+
+  private static final long MAX_MANIFEST_CLAIM_BACKOFF_MILLIS = 1000;
+
+  /** How the result of an upload is written, if the client waits for it. */
+  public enum ResponseFormat {
+    /** Every created task and vehicle, as JSON under a plain text heading. */
+    TEXT,
+    /** One JSON object with the counts, timings and vehicle IDs of the upload. */
+    SUMMARY,
+    /**
+     * One JSON line with the progress of the upload every {@link #PROGRESS_INTERVAL_MILLIS}, then
+     * one with its summary.
+     */
+    NDJSON
+  }
+
   private final AuthenticatedGrpcServiceProvider grpcServiceProvider;
+  private final UploadJobs uploadJobs;
+  private final long maxWaitMillis;
 
-  @Inject
   public BackendConfigServlet(
-      ServletState servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
+      DeliveryStateStore servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
+    this(servletState, grpcServiceProvider, new UploadJobs());
+  }
+
+  @Inject
+  BackendConfigServlet(
+      DeliveryStateStore servletState,
+      AuthenticatedGrpcServiceProvider grpcServiceProvider,
+      UploadJobs uploadJobs) {
+    this(servletState, grpcServiceProvider, uploadJobs, DEFAULT_MAX_WAIT_MILLIS);
+  }
+
+  /** Creates the servlet, whose requests wait up to {@code maxWaitMillis} for their uploads. */
+  BackendConfigServlet(
+      DeliveryStateStore servletState,
+      AuthenticatedGrpcServiceProvider grpcServiceProvider,
+      UploadJobs uploadJobs,
+      long maxWaitMillis) {
     this.servletState = servletState;
     this.grpcServiceProvider = grpcServiceProvider;
+    this.uploadJobs = uploadJobs;
+    this.maxWaitMillis = maxWaitMillis;
   }
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
-    if (request.getContentType() != null
-        && request.getContentType().startsWith("multipart/form-data")) {
+    String contentType = request.getContentType();
+    boolean multipart = contentType != null && contentType.startsWith("multipart/form-data");
+    if (multipart) {
       request.setAttribute(
           "org.eclipse.jetty.multipartConfig",
           new MultipartConfigElement(
               "/tmp", 100 * 1024 * 1024, 100 * 1024 * 1024, 1 * 1024 * 1024));
     }
-    Part filePart = request.getPart("file");
-    if (filePart == null) {
+    ResponseFormat format;
+    try {
+      format = responseFormat(request);
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.WARNING, e.getMessage());
+      ServletUtils.setErrorResponse(response, "The response format is invalid.", 400);
+      return;
+    }
+    String resumedJobId = request.getParameter("resume");
+    if (resumedJobId != null) {
+      resume(resumedJobId, format, response);
+      return;
+    }
+    InputStream fileContent;
+    boolean protobuf;
+    if (!multipart && isConfigBody(contentType)) {
+      String contentEncoding = request.getHeader("Content-Encoding");
+      if (contentEncoding != null
+          && !contentEncoding.equalsIgnoreCase("gzip")
+          && !contentEncoding.equalsIgnoreCase("identity")) {
+        logger.log(
+            Level.WARNING,
+            String.format("The client used an unsupported content encoding (%s)", contentEncoding));
+        ServletUtils.setErrorResponse(response, "Only gzip content encoding is supported.", 415);
+        return;
+      }
+      fileContent = request.getInputStream();
+      protobuf = contentType.startsWith(BackendConfigProto.CONTENT_TYPE);
+    } else {
+      Part filePart = request.getPart("file");
+      if (filePart == null) {
+        logger.log(
+            Level.WARNING,
+            "The client's backend config update request did not include a backend config");
+        ServletUtils.setErrorResponse(response, "The backend config was not attached.", 400);
+        return;
+      }
+      fileContent = filePart.getInputStream();
+      protobuf = isProtobufPart(filePart);
+    }
+    String mode = request.getParameter("mode");
+    if (mode != null && !mode.equals(INCREMENTAL_MODE)) {
       logger.log(
-          Level.WARNING,
-          "The client's backend config update request did not include a backend config");
-      ServletUtils.setErrorResponse(response, "The backend config was not attached.", 400);
+          Level.WARNING, String.format("The client requested an unknown upload mode (%s)", mode));
+      ServletUtils.setErrorResponse(response, "The upload mode is invalid.", 400);
       return;
     }
-    InputStream fileContent = filePart.getInputStream();
-    serveUpload(fileContent, response);
+
+    // The upload only lives as long as the request, so the job reads a copy of it, which is kept
+    // until the upload has completed. A compressed upload is kept compressed, and decompressed as
+    // it is read.
+    String jobId = UploadJobs.newJobId();
+    UploadCheckpoint checkpoint;
+    try {
+      checkpoint =
+          UploadCheckpoint.create(
+              uploadJobs.checkpointDirectory(jobId),
+              mode != null ? INCREMENTAL_MODE : FULL_MODE,
+              protobuf,
+              fileContent);
+    } catch (UploadCheckpoint.ConfigTooLargeException e) {
+      logger.log(Level.WARNING, e.getMessage());
+      ServletUtils.setErrorResponse(response, e.getMessage(), 413);
+      return;
+    }
+    submit(jobId, checkpoint, false, format, response);
   }
 
+  /**
+   * Resumes an upload which failed, or was stopped by a restart, from its checkpoint. The manifests
+   * it provisioned are not provisioned again, and keep their IDs.
+   */
+  private void resume(String jobId, ResponseFormat format, HttpServletResponse response)
+      throws IOException {
+    try {
+      UUID.fromString(jobId);
+    } catch (IllegalArgumentException e) {
+      ServletUtils.setErrorResponse(response, "The upload job ID is invalid.", 400);
+      return;
+    }
+    if (uploadJobs.isActive(jobId)) {
+      ServletUtils.setErrorResponse(response, "The upload job is still in progress.", 409);
+      return;
+    }
+    UploadCheckpoint checkpoint;
+    try {
+      checkpoint = UploadCheckpoint.open(uploadJobs.checkpointDirectory(jobId));
+    } catch (NoSuchFileException e) {
+      logger.log(
+          Level.WARNING, String.format("The client resumed an unknown upload job (%s)", jobId));
+      ServletUtils.setErrorResponse(
+          response, "The upload job has completed, or cannot be found.", 404);
+      return;
+    }
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Resuming upload job %s; %d manifests were provisioned",
+            jobId, checkpoint.provisionedCount()));
+    submit(jobId, checkpoint, true, format, response);
+  }
+
+  /**
+   * Checks the config of an upload, and runs the upload in the background. The whole config is
+   * checked first, so that an invalid one is rejected with all of its errors, before any Fleet
+   * Engine call is made. The checkpoint is deleted once the upload has completed; it is kept if
+   * the upload fails, so that it can be resumed.
+   *
+   * <p>Without a {@code format}, the response is written at once, with the URL of the job's
+   * status. Otherwise the request waits for the job, and the response is written in that format.
+   */
+  private void submit(
+      String jobId,
+      UploadCheckpoint checkpoint,
+      boolean resumed,
+      ResponseFormat format,
+      HttpServletResponse response)
+      throws IOException {
+    int manifestCount;
+    try {
+      manifestCount = validate(checkpoint);
+    } catch (BackendConfigException e) {
+      abandon(checkpoint, resumed);
+      logger.log(Level.WARNING, e.getMessage());
+      ServletUtils.setErrorResponse(response, e.getMessage(), 400);
+      return;
+    }
+    UploadJob job;
+    try {
+      job =
+          uploadJobs.submit(
+              jobId,
+              checkpoint.mode(),
+              uploadJob -> {
+                boolean completed = false;
+                try {
+                  uploadJob.onVehicleCount(manifestCount);
+                  upload(checkpoint, uploadJob);
+                  completed = true;
+                } finally {
+                  release(checkpoint, completed);
+                }
+              });
+    } catch (RejectedExecutionException e) {
+      abandon(checkpoint, resumed);
+      logger.log(Level.WARNING, "Too many backend config uploads are waiting; rejecting one");
+      ServletUtils.setErrorResponse(
+          response, "Too many backend config uploads are in progress; try again later.", 503);
+      return;
+    } catch (IllegalStateException e) {
+      checkpoint.close();
+      ServletUtils.setErrorResponse(response, "The upload job is still in progress.", 409);
+      return;
+    }
+    if (format != null) {
+      writeWhenDone(job, format, response);
+      return;
+    }
+    writeAccepted(job, response);
+  }
+
+  /** Writes that an upload job runs in the background, with the URL of its status. */
+  private static void writeAccepted(UploadJob job, HttpServletResponse response)
+      throws IOException {
+    String statusUrl = UploadJobServlet.PATH + job.id();
+    JsonObject accepted = new JsonObject();
+    accepted.addProperty("job_id", job.id());
+    accepted.addProperty("status_url", statusUrl);
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setHeader("Location", statusUrl);
+    ServletUtils.setStandardResponseHeaders(response);
+    response.getWriter().print(BackendConfigGsonProvider.get().toJson(accepted));
+    response.getWriter().flush();
+  }
+
+  /** Drops a new upload which was not started; a resumed one keeps its checkpoint. */
+  private static void abandon(UploadCheckpoint checkpoint, boolean resumed) throws IOException {
+    if (resumed) {
+      checkpoint.close();
+    } else {
+      checkpoint.delete();
+    }
+  }
+
+  /** Deletes the checkpoint of an upload which has completed, or else keeps it to be resumed. */
+  private static void release(UploadCheckpoint checkpoint, boolean completed) {
+    try {
+      if (completed) {
+        checkpoint.delete();
+      } else {
+        checkpoint.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not release an upload checkpoint", e);
+    }
+  }
+
+  /**
+   * Returns whether a request which is not multipart carries the backend config as its body: JSON
+   * or protobuf, or gzip-compressed JSON.
+   */
+  private static boolean isConfigBody(String contentType) {
+    return contentType != null
+        && (contentType.startsWith("application/json")
+            || contentType.startsWith(BackendConfigProto.CONTENT_TYPE)
+            || contentType.startsWith("application/gzip")
+            || contentType.startsWith("application/x-gzip"));
+  }
+
+  /**
+   * Returns whether an attached backend config is in the protobuf format, by its content type or
+   * its file name ({@code .pb}, or {@code .pb.gz} if it is compressed).
+   */
+  private static boolean isProtobufPart(Part filePart) {
+    String contentType = filePart.getContentType();
+    if (contentType != null && contentType.startsWith(BackendConfigProto.CONTENT_TYPE)) {
+      return true;
+    }
+    String fileName = filePart.getSubmittedFileName();
+    return fileName != null && (fileName.endsWith(".pb") || fileName.endsWith(".pb.gz"));
+  }
+
+  /** Opens the config of an upload for reading, in the format it was uploaded in. */
+  private static BackendConfigReader openConfigReader(UploadCheckpoint checkpoint)
+      throws IOException {
+    InputStream fileContent = checkpoint.openConfig();
+    if (checkpoint.isProtobuf()) {
+      return new BackendConfigProtoReader(fileContent);
+    }
+    return new BackendConfigStreamReader(new InputStreamReader(fileContent, UTF_8));
+  }
+
+  /**
+   * Checks every manifest of a backend config, and returns how many there are. Only the IDs of the
+   * manifests are kept while the file is read.
+   *
+   * @throws BackendConfigException listing the errors of the config, if it is invalid
+   */
+  private static int validate(UploadCheckpoint checkpoint)
+      throws BackendConfigException, IOException {
+    BackendConfigValidator validator = new BackendConfigValidator();
+    try (BackendConfigReader configReader = openConfigReader(checkpoint)) {
+      while (configReader.hasNextManifest()) {
+        validator.add(configReader.nextManifest());
+      }
+      configReader.finish();
+    } catch (JsonParseException | InvalidProtocolBufferException e) {
+      throw new BackendConfigException("The backend config is not valid: " + e.getMessage());
+    } catch (UploadCheckpoint.ConfigTooLargeException e) {
+      throw new BackendConfigException(e.getMessage());
+    } catch (EOFException | ZipException e) {
+      throw new BackendConfigException(
+          "The backend config is truncated or corrupt: " + e.getMessage());
+    }
+    validator.check();
+    return validator.manifestCount();
+  }
+
+  /**
+   * Receives the progress of an upload. The entities are passed on the upload thread, in the order
+   * of the manifests.
+   */
+  interface UploadListener {
+    /** Called with the number of manifests of the upload, if it is known beforehand. */
+    void onVehicleCount(int vehicleCount);
+
+    void onTaskCreated(Task task) throws IOException;
+
+    /**
+     * Called once a vehicle has been given its journey segments. {@code created} is false if the
+     * vehicle already existed.
+     */
+    void onVehicleProvisioned(DeliveryVehicle deliveryVehicle, boolean created) throws IOException;
+
+    /** Called once every Fleet Engine call has succeeded, before the delivery state is changed. */
+    void onPublishing();
+  }
+
+  /**
+   * Returns the response format that the client asked for, with the {@code response} parameter or
+   * the {@code Accept} header, or null if it did not ask for one. The text format is not offered,
+   * since it is as large as the upload.
+   *
+   * @throws IllegalArgumentException if the {@code response} parameter is unknown
+   */
+  static ResponseFormat responseFormat(HttpServletRequest request) {
+    String format = request.getParameter("response");
+    if (format != null) {
+      if (format.equals("summary")) {
+        return ResponseFormat.SUMMARY;
+      } else if (format.equals("ndjson")) {
+        return ResponseFormat.NDJSON;
+      }
+      throw new IllegalArgumentException(
+          String.format("The client requested an unknown response format (%s)", format));
+    }
+    String accept = request.getHeader("Accept");
+    return accept != null && accept.contains(NDJSON_CONTENT_TYPE) ? ResponseFormat.NDJSON : null;
+  }
+
+  /** Replaces the delivery state with the uploaded backend config, and writes what it created. */
   public void serveUpload(InputStream fileContent, HttpServletResponse response)
       throws IOException {
-    InputStreamReader reader = new InputStreamReader(fileContent, UTF_8);
-    BackendConfig backendConfig;
+    serve(fileContent, false, ResponseFormat.TEXT, response);
+  }
+
+  /** Replaces the delivery state with the uploaded backend config, in the given format. */
+  public void serveUpload(
+      InputStream fileContent, ResponseFormat format, HttpServletResponse response)
+      throws IOException {
+    serve(fileContent, false, format, response);
+  }
+
+  /**
+   * Applies the uploaded backend config as a change to the live manifests, and writes what it
+   * created and updated. See {@link #uploadIncrementally}.
+   */
+  public void serveIncrementalUpload(InputStream fileContent, HttpServletResponse response)
+      throws IOException {
+    serve(fileContent, true, ResponseFormat.TEXT, response);
+  }
+
+  /** Applies the uploaded backend config to the live manifests, in the given format. */
+  public void serveIncrementalUpload(
+      InputStream fileContent, ResponseFormat format, HttpServletResponse response)
+      throws IOException {
+    serve(fileContent, true, format, response);
+  }
 
-    Gson gson = BackendConfigGsonProvider.get();
+  /** Checks, then runs an upload on the calling thread, and writes what it did. */
+  private void serve(
+      InputStream fileContent,
+      boolean incremental,
+      ResponseFormat format,
+      HttpServletResponse response)
+      throws IOException {
+    String jobId = UploadJobs.newJobId();
+    UploadCheckpoint checkpoint =
+        UploadCheckpoint.create(
+            uploadJobs.checkpointDirectory(jobId),
+            incremental ? INCREMENTAL_MODE : FULL_MODE,
+            fileContent);
     try {
-      backendConfig = gson.fromJson(reader, BackendConfig.class);
+      int manifestCount = validate(checkpoint);
+      if (format == ResponseFormat.TEXT) {
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter responseWriter = response.getWriter();
+        upload(checkpoint, new ResponseWriterListener(responseWriter));
+        logger.info(response.toString());
+        responseWriter.flush();
+        return;
+      }
+      UploadJob job = new UploadJob(jobId, checkpoint.mode(), System::currentTimeMillis);
+      job.onVehicleCount(manifestCount);
+      UploadListener listener = job;
+      if (format == ResponseFormat.NDJSON) {
+        setNdjsonResponseHeaders(response);
+        listener = new ProgressWriterListener(job, response);
+      }
+      job.started();
+      try {
+        upload(checkpoint, listener);
+        job.succeeded();
+      } catch (BackendConfigException e) {
+        logger.log(Level.WARNING, "The backend config upload failed", e);
+        job.failed(e.getMessage(), true);
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "The backend config upload failed", e);
+        job.failed(e.getMessage() == null ? e.toString() : e.getMessage());
+      }
+      writeResult(job, format, response);
+    } catch (BackendConfigException e) {
+      logger.log(Level.WARNING, e.getMessage());
+      ServletUtils.setErrorResponse(response, e.getMessage(), 400);
     } finally {
-      reader.close();
+      checkpoint.delete();
     }
+  }
 
-    BackendConfigUtils.setTimestamp(System.currentTimeMillis());
-    this.servletState.clearDeliveryState();
+  /**
+   * Waits for an upload job, and writes its summary. In NDJSON, the progress of the job is written
+   * every {@link #PROGRESS_INTERVAL_MILLIS} while it runs.
+   *
+   * <p>The request waits up to {@code maxWaitMillis}, so that it is answered before its deadline.
+   * If the job is still running then, the response is the one of a request which does not wait: a
+   * 202 with the URL of the job's status, or, in NDJSON, a last line with that URL.
+   */
+  private void writeWhenDone(UploadJob job, ResponseFormat format, HttpServletResponse response)
+      throws IOException {
+    long deadline = System.currentTimeMillis() + maxWaitMillis;
+    boolean done;
+    try {
+      if (format == ResponseFormat.NDJSON) {
+        setNdjsonResponseHeaders(response);
+        done = job.awaitDone(waitMillis(deadline, PROGRESS_INTERVAL_MILLIS));
+        while (!done && System.currentTimeMillis() < deadline) {
+          writeLine(job.toJson(), response);
+          done = job.awaitDone(waitMillis(deadline, PROGRESS_INTERVAL_MILLIS));
+        }
+      } else {
+        done = job.awaitDone(waitMillis(deadline, maxWaitMillis));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for upload job " + job.id());
+    }
+    if (done) {
+      writeResult(job, format, response);
+    } else if (format == ResponseFormat.NDJSON) {
+      JsonObject accepted = new JsonObject();
+      accepted.addProperty("job_id", job.id());
+      accepted.addProperty("status_url", UploadJobServlet.PATH + job.id());
+      writeLine(accepted, response);
+    } else {
+      writeAccepted(job, response);
+    }
+  }
+
+  /** Returns how long to wait next: at most {@code intervalMillis}, and not past the deadline. */
+  private static long waitMillis(long deadline, long intervalMillis) {
+    return Math.max(0, Math.min(intervalMillis, deadline - System.currentTimeMillis()));
+  }
+
+  /**
+   * Writes the summary of a finished upload: as the last line of an NDJSON response, or else as a
+   * JSON object, with status 400 if the upload failed because its config is invalid, and 500 if it
+   * failed otherwise.
+   */
+  static void writeResult(
+      UploadJob job, ResponseFormat format, HttpServletResponse response) throws IOException {
+    if (format == ResponseFormat.NDJSON) {
+      writeLine(job.toSummaryJson(), response);
+      return;
+    }
+    if (job.failedOnInvalidConfig()) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    } else if (job.phase() != UploadJob.Phase.SUCCEEDED) {
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    ServletUtils.setStandardResponseHeaders(response);
+    response.getWriter().print(BackendConfigGsonProvider.get().toJson(job.toSummaryJson()));
+    response.getWriter().flush();
+  }
 
-    DeliveryServiceGrpc.DeliveryServiceBlockingStub authenticatedDeliveryService =
-        grpcServiceProvider.getAuthenticatedDeliveryService();
+  private static void setNdjsonResponseHeaders(HttpServletResponse response) {
+    response.setContentType(NDJSON_CONTENT_TYPE);
+    response.setCharacterEncoding(UTF_8.name());
+  }
 
-    response.setCharacterEncoding("UTF-8");
+  /** Writes a line of an NDJSON response, and sends it to the client. */
+  private static void writeLine(JsonObject line, HttpServletResponse response) throws IOException {
     PrintWriter responseWriter = response.getWriter();
+    responseWriter.print(BackendConfigGsonProvider.get().toJson(line));
+    responseWriter.print('\n');
+    responseWriter.flush();
+    response.flushBuffer();
+  }
 
-    // At this point, the backend config has been read into memory. Loop through its
-    // contents and invoke the corresponding Fleet Engine APIs.
-    for (BackendConfig.Manifest m : backendConfig.manifests) {
-      m.vehicle.vehicleId = BackendConfigUtils.getTimestampedId(m.vehicle.vehicleId);
-
-      LatLng.Builder startLocation =
-          LatLng.newBuilder().setLatitude(37.42311).setLongitude(-122.09259);
-      if (m.vehicle.startLocation != null) {
-        startLocation
-            .setLatitude(m.vehicle.startLocation.lat)
-            .setLongitude(m.vehicle.startLocation.lng);
-      }
-
-      // Create the vehicle. Note: most of the fields in the DeliveryVehicle
-      // passed to CreateDeliveryVehicleRequest are ignored; instantiating a
-      // blank proto is good enough.
-      CreateDeliveryVehicleRequest deliveryVehicleRequest =
-          CreateDeliveryVehicleRequest.newBuilder()
-              .setParent(BackendConfigUtils.PARENT)
-              .setDeliveryVehicleId(m.vehicle.vehicleId)
-              .setDeliveryVehicle(
-                  DeliveryVehicle.newBuilder()
-                      .setLastLocation(
-                          DeliveryVehicleLocation.newBuilder().setLocation(startLocation)))
-              .build();
-
-      DeliveryVehicle responseDeliveryVehicle =
-          authenticatedDeliveryService.createDeliveryVehicle(deliveryVehicleRequest);
-      logger.info(responseDeliveryVehicle.toString());
-
-      // Create the tasks for the vehicle.
-      for (BackendConfig.Task t : m.tasks) {
-        t.taskId = BackendConfigUtils.getTimestampedId(t.taskId);
-        t.trackingId = BackendConfigUtils.getTimestampedId(t.trackingId);
-        CreateTaskRequest taskRequest =
-            CreateTaskRequest.newBuilder()
-                .setParent(BackendConfigUtils.PARENT)
-                .setTaskId(t.taskId)
-                .setTask(BackendConfigUtils.createTask(t))
-                .build();
-
-        Task responseTask = authenticatedDeliveryService.createTask(taskRequest);
-        responseWriter.print("\nTask created:\n");
-        ServletUtils.writeProtoJson(responseWriter, responseTask);
-        logger.info(responseTask.toString());
-        this.servletState.addTask(responseTask);
-      }
-
-      // Update the created delivery vehicle to include the VehicleJourneySegments.
-      DeliveryVehicle.Builder vehicleBuilder = responseDeliveryVehicle.toBuilder();
-
-      // Create the stops in the order specified in m.remainingStopIdList. If that field doesn't
-      // exist, use the order in m.stops.
-      if (m.remainingStopIdList == null) {
-        m.remainingStopIdList = stream(m.stops).map(s -> s.stopId).toArray(String[]::new);
-      }
-
-      HashMap<String, BackendConfig.Stop> stopsMap = new HashMap<>();
-      for (BackendConfig.Stop s : m.stops) {
-        stopsMap.put(s.stopId, s);
-        s.tasks = stream(s.tasks).map(BackendConfigUtils::getTimestampedId).toArray(String[]::new);
-      }
-      m.stops = stream(m.remainingStopIdList).map(stopsMap::get).toArray(BackendConfig.Stop[]::new);
-      try {
-        vehicleBuilder.addAllRemainingVehicleJourneySegments(
-            BackendConfigUtils.createVehicleJourneySegments(m));
-      } catch (BackendConfigException e) {
-        logger.log(Level.WARNING, e.getMessage());
-        ServletUtils.setErrorResponse(response, e.getMessage(), 400);
-        return;
+  /**
+   * Runs a full or incremental upload of a backend config which has been checked. The IDs of the
+   * upload are timestamped with the time the upload first started, so that a resumed upload gives
+   * its manifests the IDs they had.
+   */
+  private void upload(UploadCheckpoint checkpoint, UploadListener listener)
+      throws BackendConfigException, IOException {
+    ManifestProvisioner provisioner =
+        newProvisioner(checkpoint.startTimestamp(System.currentTimeMillis()));
+    try (BackendConfigReader configReader = openConfigReader(checkpoint)) {
+      if (checkpoint.mode().equals(INCREMENTAL_MODE)) {
+        uploadIncrementally(configReader, provisioner, listener);
+      } else {
+        uploadFull(configReader, provisioner, checkpoint, listener);
       }
-      UpdateDeliveryVehicleRequest updateRequest =
-          UpdateDeliveryVehicleRequest.newBuilder()
-              .setDeliveryVehicle(vehicleBuilder)
-              .setUpdateMask(FieldMask.newBuilder().addPaths("remaining_vehicle_journey_segments"))
-              .build();
-      DeliveryVehicle updatedResponseDeliveryVehicle =
-          authenticatedDeliveryService.updateDeliveryVehicle(updateRequest);
-      responseWriter.print("\nVehicle created and assigned:\n");
-      ServletUtils.writeProtoJson(responseWriter, updatedResponseDeliveryVehicle);
-      servletState.addDeliveryVehicle(updatedResponseDeliveryVehicle);
     }
+  }
+
+  /**
+   * Replaces the delivery state with the uploaded backend config. The new state is published at
+   * once, and only if every manifest was provisioned. Each provisioned manifest is recorded in
+   * {@code checkpoint}, and the manifests it already holds are not provisioned again.
+   *
+   * @throws BackendConfigException if a manifest is invalid
+   * @throws JsonParseException if the backend config is not valid JSON
+   * @throws InvalidProtocolBufferException if the backend config is not valid protobuf
+   */
+  private void uploadFull(
+      BackendConfigReader configReader,
+      ManifestProvisioner provisioner,
+      UploadCheckpoint checkpoint,
+      UploadListener listener)
+      throws BackendConfigException, IOException {
+    // The new delivery state is built off to the side; the current one stays readable until the
+    // upload has completed.
+    DeliveryStateStore.GenerationBuilder nextGeneration = servletState.newGeneration();
+
+    // Read the backend config one manifest at a time, and invoke the corresponding Fleet Engine
+    // APIs as the manifests are read, for several manifests and batches of tasks at a time; the
+    // results come back in manifest order.
+    BackendConfig backendConfig;
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    int[] provisionedCount = {0};
+    provisioner.provision(
+        () -> {
+          if (!configReader.hasNextManifest()) {
+            return null;
+          }
+          BackendConfig.Manifest manifest = configReader.nextManifest();
+          manifests.add(manifest);
+          return manifest;
+        },
+        checkpoint,
+        (tasks, deliveryVehicle) -> {
+          int index = provisionedCount[0]++;
+          if (checkpoint.get(index) == null) {
+            checkpoint.record(index, tasks, deliveryVehicle);
+          }
+          for (Task task : tasks) {
+            listener.onTaskCreated(task);
+            nextGeneration.addTask(task);
+          }
+          listener.onVehicleProvisioned(deliveryVehicle, true);
+          nextGeneration.addDeliveryVehicle(deliveryVehicle);
+        });
+    backendConfig = configReader.finish();
+    backendConfig.manifests = manifests.toArray(new BackendConfig.Manifest[0]);
 
     // Set the backend ID for each manifest.
     for (BackendConfig.Manifest manifest : backendConfig.manifests) {
       manifest.vehicle.providerId = SampleBackendUtils.backendProperties.providerId();
     }
 
-    // Everything worked fine; add the backend config and exit.
-    servletState.setBackendConfig(backendConfig);
-    logger.info(response.toString());
-    responseWriter.flush();
+    // Everything worked fine; publish the new state.
+    listener.onPublishing();
+    servletState.publish(nextGeneration.setBackendConfig(backendConfig));
+  }
+
+  /**
+   * Applies the differences between the uploaded backend config and the live manifests to Fleet
+   * Engine and to the delivery state. Assignments and the progress of the drivers are kept. The
+   * delivery state is only changed once every Fleet Engine call has succeeded.
+   *
+   * <p>Drivers can update their manifests while Fleet Engine is updated. The new config is then
+   * published with every live manifest claimed with {@link DeliveryStateStore#beginManifestUpdate}:
+   * the manifests which drivers updated since they were compared with the upload are compared
+   * again, and their vehicles updated again, and every manifest is published as it is then, so no
+   * update of a driver is lost. Once Fleet Engine has been changed, the upload waits for the
+   * updates in progress rather than failing.
+   *
+   * @throws BackendConfigException if a manifest is invalid
+   * @throws JsonParseException if the backend config is not valid JSON
+   * @throws InvalidProtocolBufferException if the backend config is not valid protobuf
+   */
+  private void uploadIncrementally(
+      BackendConfigReader configReader, ManifestProvisioner provisioner, UploadListener listener)
+      throws BackendConfigException, IOException {
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    while (configReader.hasNextManifest()) {
+      manifests.add(configReader.nextManifest());
+    }
+    BackendConfig backendConfig = configReader.finish();
+
+    Map<String, String> versions = new HashMap<>();
+    List<String> liveVehicleIds = new ArrayList<>();
+    for (BackendConfig.Manifest manifest : servletState.getManifests()) {
+      liveVehicleIds.add(manifest.vehicle.vehicleId);
+    }
+    BackendConfigDiff diff =
+        BackendConfigDiff.compute(readLiveManifests(liveVehicleIds, versions), manifests);
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Incremental upload: %d vehicles added, %d updated, %d removed",
+            diff.addedManifests().size(),
+            diff.updates().size() - diff.removedVehicleIds().size(),
+            diff.removedVehicleIds().size()));
+    listener.onVehicleCount(diff.addedManifests().size() + diff.updates().size());
+
+    // Added vehicles get IDs of their own, like in a full upload. The upload is not checkpointed:
+    // the state is only changed at the end, so a resumed upload computes the same differences, and
+    // the entities it had already created are read back. New vehicles are added to the state
+    // last, so they cannot be claimed before their manifests are there.
+    Map<String, Task> tasks = new LinkedHashMap<>();
+    Map<String, DeliveryVehicle> updatedVehicles = new LinkedHashMap<>();
+    List<DeliveryVehicle> addedVehicles = new ArrayList<>();
+    provisioner.provision(
+        diff.addedManifests().toArray(new BackendConfig.Manifest[0]),
+        (createdTasks, deliveryVehicle) -> {
+          for (Task task : createdTasks) {
+            listener.onTaskCreated(task);
+            tasks.put(task.getName(), task);
+          }
+          listener.onVehicleProvisioned(deliveryVehicle, true);
+          addedVehicles.add(deliveryVehicle);
+        });
+    provisioner.update(diff.updates(), collectUpdates(tasks, updatedVehicles, listener));
+    for (BackendConfig.Manifest manifest : diff.addedManifests()) {
+      manifest.vehicle.providerId = SampleBackendUtils.backendProperties.providerId();
+    }
+
+    // The manifests are claimed in the order of their vehicle IDs, so that concurrent uploads
+    // never wait for each other's claims.
+    Collections.sort(liveVehicleIds);
+    List<DeliveryStateStore.ManifestUpdate> claims = new ArrayList<>();
+    try {
+      for (String vehicleId : liveVehicleIds) {
+        claims.add(claimManifest(vehicleId));
+      }
+      Map<String, String> currentVersions = new HashMap<>();
+      List<BackendConfig.Manifest> currentManifests =
+          readLiveManifests(liveVehicleIds, currentVersions);
+      Set<String> updatedVehicleIds = new HashSet<>();
+      for (Map.Entry<String, String> version : currentVersions.entrySet()) {
+        if (!version.getValue().equals(versions.get(version.getKey()))) {
+          updatedVehicleIds.add(version.getKey());
+        }
+      }
+      if (!updatedVehicleIds.isEmpty()) {
+        logger.log(
+            Level.INFO,
+            String.format(
+                "Incremental upload: %d manifests were updated by their drivers meanwhile",
+                updatedVehicleIds.size()));
+        diff = BackendConfigDiff.compute(currentManifests, manifests);
+        List<ManifestProvisioner.VehicleUpdate> updates = new ArrayList<>();
+        for (ManifestProvisioner.VehicleUpdate update : diff.updates()) {
+          if (updatedVehicleIds.contains(update.vehicleId())) {
+            updates.add(update);
+          }
+        }
+        provisioner.update(updates, collectUpdates(tasks, updatedVehicles, listener));
+      }
+
+      listener.onPublishing();
+      backendConfig.manifests = currentManifests(diff).toArray(new BackendConfig.Manifest[0]);
+      for (Task task : tasks.values()) {
+        servletState.addTask(task);
+      }
+      for (DeliveryVehicle deliveryVehicle : updatedVehicles.values()) {
+        if (!diff.removedVehicleIds().contains(ServletState.getId(deliveryVehicle.getName()))) {
+          servletState.addDeliveryVehicle(deliveryVehicle);
+        }
+      }
+      servletState.setBackendConfig(backendConfig);
+      for (String vehicleId : diff.removedVehicleIds()) {
+        servletState.removeDeliveryVehicle(vehicleId);
+      }
+    } finally {
+      for (DeliveryStateStore.ManifestUpdate claim : claims) {
+        claim.close();
+      }
+    }
+    for (DeliveryVehicle deliveryVehicle : addedVehicles) {
+      servletState.addDeliveryVehicle(deliveryVehicle);
+    }
+  }
+
+  /**
+   * Reads the live manifests of vehicles, and puts the version each was read at in {@code
+   * versions}. Each version is read before its manifest, so a manifest is never older than its
+   * version. Vehicles without a manifest are left out.
+   */
+  private List<BackendConfig.Manifest> readLiveManifests(
+      List<String> vehicleIds, Map<String, String> versions) {
+    List<BackendConfig.Manifest> liveManifests = new ArrayList<>();
+    for (String vehicleId : vehicleIds) {
+      String version = servletState.getManifestVersion(vehicleId);
+      BackendConfig.Manifest live = servletState.getManifest(vehicleId);
+      if (version != null && live != null && versions.putIfAbsent(vehicleId, version) == null) {
+        liveManifests.add(live);
+      }
+    }
+    return liveManifests;
+  }
+
+  /**
+   * Returns a listener which keeps the tasks created and the vehicles updated by {@link
+   * ManifestProvisioner#update}, by name, and reports each of them once.
+   */
+  private static ManifestProvisioner.Listener collectUpdates(
+      Map<String, Task> tasks,
+      Map<String, DeliveryVehicle> updatedVehicles,
+      UploadListener listener) {
+    return (createdTasks, deliveryVehicle) -> {
+      for (Task task : createdTasks) {
+        if (tasks.put(task.getName(), task) == null) {
+          listener.onTaskCreated(task);
+        }
+      }
+      if (updatedVehicles.put(deliveryVehicle.getName(), deliveryVehicle) == null) {
+        listener.onVehicleProvisioned(deliveryVehicle, false);
+      }
+    };
+  }
+
+  /**
+   * Claims a live manifest, waiting for the update of it in progress, if any. Drivers hold their
+   * claims only while their updates are sent to Fleet Engine, and shared claims expire after
+   * {@link SharedDeliveryStateStore#MANIFEST_UPDATE_TIMEOUT_MILLIS}.
+   */
+  private DeliveryStateStore.ManifestUpdate claimManifest(String vehicleId)
+      throws InterruptedIOException {
+    for (int attempt = 1; ; attempt++) {
+      DeliveryStateStore.ManifestUpdate claim = servletState.beginManifestUpdate(vehicleId, null);
+      if (claim != null) {
+        return claim;
+      }
+      try {
+        Thread.sleep(
+            Math.min(MANIFEST_CLAIM_BACKOFF_MILLIS * attempt, MAX_MANIFEST_CLAIM_BACKOFF_MILLIS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while claiming the live manifests");
+      }
+    }
+  }
+
+  /**
+   * Returns the manifests of the new config: those of {@code diff}, with the unchanged ones as they
+   * are now, and the changed ones assigned as they are now. Manifests evicted since the upload
+   * started are left out. The manifests must have been claimed.
+   */
+  private List<BackendConfig.Manifest> currentManifests(BackendConfigDiff diff) {
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    for (BackendConfig.Manifest manifest : diff.manifests()) {
+      String vehicleId = manifest.vehicle.vehicleId;
+      if (diff.unchangedVehicleIds().contains(vehicleId)) {
+        manifest = servletState.getManifest(vehicleId);
+        if (manifest == null) {
+          continue;
+        }
+      } else {
+        // Assignments are not claimed; the driver assigned last is kept.
+        BackendConfig.Manifest live = servletState.getManifest(vehicleId);
+        if (live != null) {
+          manifest.clientId = live.clientId;
+        }
+      }
+      manifests.add(manifest);
+    }
+    return manifests;
+  }
+
+  /** Returns a provisioner for an upload, which timestamps its IDs with {@code timestamp}. */
+  private ManifestProvisioner newProvisioner(long timestamp) {
+    return new ManifestProvisioner(
+        grpcServiceProvider.getAuthenticatedDeliveryService(),
+        SampleBackendUtils.backendProperties.provisioningConcurrency(),
+        SampleBackendUtils.backendProperties.taskBatchSize(),
+        ManifestProvisioner.DEFAULT_MAX_PENDING_MANIFESTS,
+        ManifestProvisioner.RetryPolicy.withMaxAttempts(
+            SampleBackendUtils.backendProperties.provisioningMaxAttempts()),
+        timestamp);
+  }
+
+  /**
+   * Passes the progress of an upload to its job, and writes the status of the job as an NDJSON line
+   * at most every {@link #PROGRESS_INTERVAL_MILLIS}.
+   */
+  private static final class ProgressWriterListener implements UploadListener {
+    private final UploadJob job;
+    private final HttpServletResponse response;
+    private long lastWrittenMillis = System.currentTimeMillis();
+
+    ProgressWriterListener(UploadJob job, HttpServletResponse response) {
+      this.job = job;
+      this.response = response;
+    }
+
+    @Override
+    public void onVehicleCount(int vehicleCount) {
+      job.onVehicleCount(vehicleCount);
+    }
+
+    @Override
+    public void onTaskCreated(Task task) throws IOException {
+      job.onTaskCreated(task);
+      writeProgress();
+    }
+
+    @Override
+    public void onVehicleProvisioned(DeliveryVehicle deliveryVehicle, boolean created)
+        throws IOException {
+      job.onVehicleProvisioned(deliveryVehicle, created);
+      writeProgress();
+    }
+
+    @Override
+    public void onPublishing() {
+      job.onPublishing();
+    }
+
+    private void writeProgress() throws IOException {
+      long now = System.currentTimeMillis();
+      if (now - lastWrittenMillis >= PROGRESS_INTERVAL_MILLIS) {
+        lastWrittenMillis = now;
+        writeLine(job.toJson(), response);
+      }
+    }
+  }
+
+  /** Writes the created and updated entities of an upload as plain text. */
+  private static final class ResponseWriterListener implements UploadListener {
+    private final PrintWriter responseWriter;
+
+    ResponseWriterListener(PrintWriter responseWriter) {
+      this.responseWriter = responseWriter;
+    }
+
+    @Override
+    public void onVehicleCount(int vehicleCount) {}
+
+    @Override
+    public void onTaskCreated(Task task) throws IOException {
+      responseWriter.print("\nTask created:\n");
+      ServletUtils.writeProtoJson(responseWriter, task);
+    }
+
+    @Override
+    public void onVehicleProvisioned(DeliveryVehicle deliveryVehicle, boolean created)
+        throws IOException {
+      responseWriter.print(created ? "\nVehicle created and assigned:\n" : "\nVehicle updated:\n");
+      ServletUtils.writeProtoJson(responseWriter, deliveryVehicle);
+    }
+
+    @Override
+    public void onPublishing() {}
   }
 }
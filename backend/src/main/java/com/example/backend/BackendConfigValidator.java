@@ -0,0 +1,209 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.utils.BackendConfigException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks the manifests of a backend config before any of them is provisioned, so that an invalid
+ * config is rejected before any Fleet Engine call is made, with all of its errors at once.
+ *
+ * <p>Manifests are checked one at a time as they are read, and only their IDs are kept, so the
+ * config does not need to be held in memory.
+ */
+final class BackendConfigValidator {
+
+  /** The most errors listed in the exception; the others are only counted. */
+  static final int MAX_REPORTED_ERRORS = 100;
+
+  private final Set<String> vehicleIds = new HashSet<>();
+  private final Set<String> taskIds = new HashSet<>();
+  private final List<String> errors = new ArrayList<>();
+  private int errorCount;
+  private int manifestCount;
+
+  /** Checks a manifest, and the IDs it shares with the manifests checked before it. */
+  void add(BackendConfig.Manifest manifest) {
+    String where = String.format("Manifest %d", manifestCount++);
+    if (manifest == null) {
+      error("%s: the manifest is null.", where);
+      return;
+    }
+    if (manifest.vehicle == null || isEmpty(manifest.vehicle.vehicleId)) {
+      error("%s: the vehicle ID is missing.", where);
+    } else {
+      where = String.format("%s (%s)", where, manifest.vehicle.vehicleId);
+      if (!vehicleIds.add(manifest.vehicle.vehicleId)) {
+        error("%s: vehicle ID %s is used by another manifest.", where, manifest.vehicle.vehicleId);
+      }
+      if (manifest.vehicle.startLocation != null) {
+        checkWaypoint(manifest.vehicle.startLocation, where, "vehicle", "start location");
+      }
+    }
+
+    // Task IDs are unique across the config; the tasks of a stop must be in the same manifest.
+    Map<String, BackendConfig.Task> tasks = new HashMap<>();
+    if (manifest.tasks == null) {
+      error("%s: the list of tasks is missing.", where);
+    } else {
+      for (BackendConfig.Task task : manifest.tasks) {
+        checkTask(task, where, tasks);
+      }
+    }
+
+    Set<String> stopIds = new HashSet<>();
+    Set<String> stopTaskIds = new HashSet<>();
+    if (manifest.stops == null) {
+      error("%s: the list of stops is missing.", where);
+    } else {
+      for (BackendConfig.Stop stop : manifest.stops) {
+        checkStop(stop, where, tasks, stopIds, stopTaskIds);
+      }
+    }
+
+    if (manifest.remainingStopIdList != null) {
+      Set<String> remaining = new HashSet<>();
+      for (String stopId : manifest.remainingStopIdList) {
+        if (!stopIds.contains(stopId)) {
+          error("%s: stop ID %s cannot be found in the list of stops.", where, stopId);
+        } else if (!remaining.add(stopId)) {
+          error("%s: stop ID %s is listed twice in remaining_stop_id_list.", where, stopId);
+        }
+      }
+    }
+  }
+
+  /** Returns the number of manifests checked so far. */
+  int manifestCount() {
+    return manifestCount;
+  }
+
+  /**
+   * Throws if any of the manifests checked so far was invalid.
+   *
+   * @throws BackendConfigException listing the errors found
+   */
+  void check() throws BackendConfigException {
+    if (errorCount == 0) {
+      return;
+    }
+    StringBuilder message =
+        new StringBuilder(String.format("The backend config has %d error(s):", errorCount));
+    for (String error : errors) {
+      message.append('\n').append(error);
+    }
+    if (errorCount > errors.size()) {
+      message.append(String.format("\n... and %d more.", errorCount - errors.size()));
+    }
+    throw new BackendConfigException(message.toString());
+  }
+
+  private void checkTask(
+      BackendConfig.Task task, String where, Map<String, BackendConfig.Task> tasks) {
+    if (task == null || isEmpty(task.taskId)) {
+      error("%s: a task ID is missing.", where);
+      return;
+    }
+    String taskId = task.taskId;
+    if (!taskIds.add(taskId)) {
+      error("%s, task %s: the task ID is used by another task.", where, taskId);
+    }
+    tasks.put(taskId, task);
+    if (isEmpty(task.trackingId)) {
+      error("%s, task %s: the tracking ID is missing.", where, taskId);
+    }
+    if (task.type == null) {
+      error("%s, task %s: the task type is missing or unknown.", where, taskId);
+    }
+    if (task.plannedWaypoint == null) {
+      error("%s, task %s: the planned waypoint is missing.", where, taskId);
+    } else {
+      checkWaypoint(task.plannedWaypoint, where, "task", taskId);
+    }
+    if (task.duration == null) {
+      error("%s, task %s: duration_seconds is missing.", where, taskId);
+    } else if (task.duration.isNegative()) {
+      error("%s, task %s: duration_seconds must not be negative.", where, taskId);
+    }
+    if (task.plannedCompletionTimeRangeSeconds != null
+        && task.plannedCompletionTimeRangeSeconds.isNegative()) {
+      error(
+          "%s, task %s: planned_completion_time_range_seconds must not be negative.",
+          where, taskId);
+    }
+  }
+
+  private void checkStop(
+      BackendConfig.Stop stop,
+      String where,
+      Map<String, BackendConfig.Task> tasks,
+      Set<String> stopIds,
+      Set<String> stopTaskIds) {
+    if (stop == null || isEmpty(stop.stopId)) {
+      error("%s: a stop ID is missing.", where);
+      return;
+    }
+    String stopId = stop.stopId;
+    if (!stopIds.add(stopId)) {
+      error("%s, stop %s: the stop ID is used by another stop of the manifest.", where, stopId);
+    }
+    if (stop.plannedWaypoint == null) {
+      error("%s, stop %s: the planned waypoint is missing.", where, stopId);
+    } else {
+      checkWaypoint(stop.plannedWaypoint, where, "stop", stopId);
+    }
+    if (stop.tasks == null) {
+      error("%s, stop %s: the list of tasks is missing.", where, stopId);
+      return;
+    }
+    for (String taskId : stop.tasks) {
+      if (!tasks.containsKey(taskId)) {
+        error(
+            "%s, stop %s: task ID %s cannot be found in the list of tasks.", where, stopId, taskId);
+      } else if (!stopTaskIds.add(taskId)) {
+        error("%s, stop %s: task ID %s is already in another stop.", where, stopId, taskId);
+      }
+    }
+  }
+
+  /** Checks that a waypoint is on the globe. {@code kind} and {@code id} name its owner. */
+  private void checkWaypoint(
+      BackendConfig.Waypoint waypoint, String where, String kind, String id) {
+    if (!(waypoint.lat >= -90 && waypoint.lat <= 90)) {
+      error("%s, %s %s: latitude %s is not between -90 and 90.", where, kind, id, waypoint.lat);
+    }
+    if (!(waypoint.lng >= -180 && waypoint.lng <= 180)) {
+      error("%s, %s %s: longitude %s is not between -180 and 180.", where, kind, id, waypoint.lng);
+    }
+  }
+
+  private void error(String format, Object... args) {
+    errorCount++;
+    if (errors.size() < MAX_REPORTED_ERRORS) {
+      errors.add(String.format(format, args));
+    }
+  }
+
+  private static boolean isEmpty(String id) {
+    return id == null || id.isEmpty();
+  }
+}
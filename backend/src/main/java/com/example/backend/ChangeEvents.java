@@ -0,0 +1,263 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Pushes changes to manifests and tasks to the clients subscribed to them, as server-sent events,
+ * so that clients do not have to poll for them.
+ *
+ * <p>Clients subscribe by vehicle ID, to the changes to the vehicle's manifest and tasks, or by
+ * tracking ID, to the changes to the tasks with that tracking ID. The servlets publish an event
+ * once they have applied a change.
+ *
+ * <p>Each event is encoded once, and the same bytes are queued for every subscriber, so publishing
+ * costs little more per subscriber than a queue insertion. Subscribers which fall more than {@link
+ * #MAX_PENDING_EVENTS} events behind are dropped, and are expected to reconnect and fetch the
+ * current state. A comment is sent to every subscriber every {@link #HEARTBEAT_SECONDS} seconds,
+ * so that idle connections stay open and closed ones are noticed, until the change events are
+ * closed.
+ *
+ * <p>Events only reach the subscribers of the backend instance which applied the change.
+ */
+@Singleton
+final class ChangeEvents implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(ChangeEvents.class.getName());
+
+  /** The number of events queued for a subscriber, after which it is dropped. */
+  static final int MAX_PENDING_EVENTS = 256;
+
+  /** The number of subscribers, after which subscriptions are rejected. */
+  static final int MAX_SUBSCRIBERS = 20000;
+
+  static final long HEARTBEAT_SECONDS = 20;
+
+  private static final String VEHICLE = "vehicle/";
+  private static final String TRACKING_ID = "tracking_id/";
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF_8);
+
+  private final DeliveryStateStore servletState;
+  private final ConcurrentHashMap<String, Set<Subscriber>> subscribersByTopic =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger subscriberCount = new AtomicInteger();
+  private final AtomicLong eventIds = new AtomicLong();
+  private final ScheduledExecutorService heartbeat;
+
+  @Inject
+  ChangeEvents(DeliveryStateStore servletState) {
+    this.servletState = servletState;
+    this.heartbeat =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "change-events-heartbeat");
+              thread.setDaemon(true);
+              return thread;
+            });
+    heartbeat.scheduleWithFixedDelay(
+        this::sendHeartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops sending heartbeats, and ends the thread which sends them. Events can still be published.
+   */
+  @Override
+  public void close() {
+    heartbeat.shutdownNow();
+  }
+
+  /** Where the events of one subscription are sent. */
+  interface Subscriber {
+    /**
+     * Queues an encoded event for the subscriber, without blocking.
+     *
+     * @return false if the subscriber is closed, or too far behind and has closed itself; it is
+     *     then unsubscribed.
+     */
+    boolean offer(byte[] event);
+  }
+
+  /**
+   * Subscribes to the changes to a vehicle's manifest and tasks, and to the tasks with a tracking
+   * ID. Either ID may be null.
+   *
+   * @return false if there are already {@link #MAX_SUBSCRIBERS} subscribers
+   */
+  boolean subscribe(String vehicleId, String trackingId, Subscriber subscriber) {
+    if (subscriberCount.incrementAndGet() > MAX_SUBSCRIBERS) {
+      subscriberCount.decrementAndGet();
+      return false;
+    }
+    if (vehicleId != null) {
+      subscribe(VEHICLE + vehicleId, subscriber);
+    }
+    if (trackingId != null) {
+      subscribe(TRACKING_ID + trackingId, subscriber);
+    }
+    return true;
+  }
+
+  private void subscribe(String topic, Subscriber subscriber) {
+    // Added under the lock of the map entry, so the topic is not concurrently removed as empty.
+    subscribersByTopic.compute(
+        topic,
+        (key, subscribers) -> {
+          if (subscribers == null) {
+            subscribers = ConcurrentHashMap.newKeySet();
+          }
+          subscribers.add(subscriber);
+          return subscribers;
+        });
+  }
+
+  /** Removes a subscriber added with the same IDs. Does nothing if it was already removed. */
+  void unsubscribe(String vehicleId, String trackingId, Subscriber subscriber) {
+    boolean removed = false;
+    if (vehicleId != null) {
+      removed |= unsubscribe(VEHICLE + vehicleId, subscriber);
+    }
+    if (trackingId != null) {
+      removed |= unsubscribe(TRACKING_ID + trackingId, subscriber);
+    }
+    if (removed) {
+      subscriberCount.decrementAndGet();
+    }
+  }
+
+  private boolean unsubscribe(String topic, Subscriber subscriber) {
+    boolean[] removed = new boolean[1];
+    // Empty topics are removed, under the lock of their map entry, so they do not accumulate.
+    subscribersByTopic.computeIfPresent(
+        topic,
+        (key, subscribers) -> {
+          removed[0] = subscribers.remove(subscriber);
+          return subscribers.isEmpty() ? null : subscribers;
+        });
+    return removed[0];
+  }
+
+  /** Returns the number of subscribers. */
+  int getSubscriberCount() {
+    return subscriberCount.get();
+  }
+
+  /**
+   * Publishes a change to a vehicle's manifest, with the changes since {@code previousVersion} if
+   * they are known. The event has the {@code vehicle_id} and current {@code version} of the
+   * manifest, and the same {@code changes} as {@code GET /manifest/:vehicleId?since=}.
+   */
+  void publishManifestChange(String vehicleId, String previousVersion) {
+    Set<Subscriber> subscribers = subscribersByTopic.get(VEHICLE + vehicleId);
+    if (subscribers == null) {
+      return;
+    }
+    JsonObject data = new JsonObject();
+    data.addProperty("vehicle_id", vehicleId);
+    ManifestChanges changes =
+        previousVersion == null
+            ? null
+            : servletState.getManifestChanges(vehicleId, previousVersion);
+    BackendConfig.Manifest manifest = changes == null ? null : servletState.getManifest(vehicleId);
+    if (manifest != null) {
+      data.addProperty("version", changes.version());
+      data.add("changes", changes.toJson(manifest, BackendConfigGsonProvider.get()));
+    } else {
+      data.addProperty("version", servletState.getManifestVersion(vehicleId));
+    }
+    send(subscribers, encode("manifest", data));
+  }
+
+  /**
+   * Publishes a change to a task, to the subscribers of its vehicle and of its tracking ID. The
+   * event has the task's ID, tracking ID, vehicle ID, state and outcome. The vehicle is the one
+   * whose manifest holds the task if Fleet Engine has not set one yet.
+   */
+  void publishTaskChange(Task task) {
+    String vehicleId = task.getDeliveryVehicleId();
+    if (vehicleId.isEmpty()) {
+      String manifestVehicleId =
+          servletState.getManifestVehicleIdByTaskId(ServletState.getId(task.getName()));
+      vehicleId = manifestVehicleId == null ? "" : manifestVehicleId;
+    }
+    String trackingId = task.getTrackingId();
+    Set<Subscriber> vehicleSubscribers =
+        vehicleId.isEmpty() ? null : subscribersByTopic.get(VEHICLE + vehicleId);
+    Set<Subscriber> trackingIdSubscribers =
+        trackingId.isEmpty() ? null : subscribersByTopic.get(TRACKING_ID + trackingId);
+    if (vehicleSubscribers == null && trackingIdSubscribers == null) {
+      return;
+    }
+    JsonObject data = new JsonObject();
+    data.addProperty("task_id", ServletState.getId(task.getName()));
+    data.addProperty("tracking_id", trackingId);
+    data.addProperty("vehicle_id", vehicleId);
+    data.addProperty("state", task.getState().name());
+    data.addProperty("task_outcome", task.getTaskOutcome().name());
+    byte[] event = encode("task", data);
+    if (vehicleSubscribers != null) {
+      send(vehicleSubscribers, event);
+    }
+    if (trackingIdSubscribers != null) {
+      for (Subscriber subscriber : trackingIdSubscribers) {
+        // Subscribers of both the vehicle and the tracking ID get the event once.
+        if (vehicleSubscribers == null || !vehicleSubscribers.contains(subscriber)) {
+          subscriber.offer(event);
+        }
+      }
+    }
+  }
+
+  private void send(Set<Subscriber> subscribers, byte[] event) {
+    for (Subscriber subscriber : subscribers) {
+      // Subscribers which fail to take the event unsubscribe themselves as they close.
+      subscriber.offer(event);
+    }
+  }
+
+  private void sendHeartbeat() {
+    try {
+      for (Set<Subscriber> subscribers : subscribersByTopic.values()) {
+        send(subscribers, HEARTBEAT);
+      }
+    } catch (RuntimeException e) {
+      // Keeps the heartbeat scheduled.
+      logger.log(Level.WARNING, "Failed to send the change event heartbeat", e);
+    }
+  }
+
+  /** Encodes an event in the server-sent events format. */
+  private byte[] encode(String type, JsonObject data) {
+    return String.format(
+            "id: %d\nevent: %s\ndata: %s\n\n",
+            eventIds.incrementAndGet(), type, BackendConfigGsonProvider.get().toJson(data))
+        .getBytes(UTF_8);
+  }
+}
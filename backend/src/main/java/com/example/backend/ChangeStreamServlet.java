@@ -0,0 +1,213 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.utils.ServletUtils;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet streaming the changes to a manifest or task as server-sent events.
+ *
+ * <p>GET /events?vehicleId=:vehicleId
+ *
+ * <p>GET /events?trackingId=:trackingId
+ *
+ * <p>The response is kept open, and written with non-blocking I/O, so an idle subscriber holds no
+ * container thread. See {@link ChangeEvents} for the events sent.
+ */
+@Singleton
+public final class ChangeStreamServlet extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(ChangeStreamServlet.class.getName());
+
+  /** How long clients wait before reconnecting, sent at the start of the stream. */
+  private static final byte[] RETRY = "retry: 3000\n\n".getBytes(UTF_8);
+
+  private final DeliveryStateStore servletState;
+  private final ChangeEvents changeEvents;
+
+  @Inject
+  ChangeStreamServlet(DeliveryStateStore servletState, ChangeEvents changeEvents) {
+    this.servletState = servletState;
+    this.changeEvents = changeEvents;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String vehicleId = request.getParameter("vehicleId");
+    String trackingId = request.getParameter("trackingId");
+    if ((vehicleId == null) == (trackingId == null)) {
+      ServletUtils.setStandardResponseHeaders(response);
+      logger.log(
+          Level.WARNING,
+          "The client subscribed to changes without a vehicle ID or a tracking ID, or with both");
+      ServletUtils.setErrorResponse(
+          response, "Exactly one of vehicleId and trackingId must be specified.", 400);
+      return;
+    }
+    if (vehicleId != null
+        ? servletState.getManifest(vehicleId) == null
+        : servletState.getBackendConfigTaskByTrackingId(trackingId) == null) {
+      ServletUtils.setStandardResponseHeaders(response);
+      logger.log(Level.WARNING, "The client subscribed to changes to an unknown manifest or task");
+      ServletUtils.setErrorResponse(response, "The requested manifest or task doesn't exist.", 404);
+      return;
+    }
+
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding(UTF_8.name());
+    response.setHeader("Cache-Control", "no-store");
+    AsyncContext asyncContext = request.startAsync();
+    // The stream stays open until the client or the backend closes it.
+    asyncContext.setTimeout(0);
+    ServletOutputStream output = response.getOutputStream();
+    EventStream stream = new EventStream(asyncContext, output, vehicleId, trackingId);
+    asyncContext.addListener(stream);
+    if (!changeEvents.subscribe(vehicleId, trackingId, stream)) {
+      logger.log(Level.WARNING, "The client subscribed to changes, but there are too many");
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      asyncContext.complete();
+      return;
+    }
+    stream.offer(RETRY);
+    output.setWriteListener(stream);
+  }
+
+  /**
+   * The events pending for one subscriber, written to its response whenever it can take them
+   * without blocking.
+   */
+  private final class EventStream
+      implements ChangeEvents.Subscriber, WriteListener, AsyncListener {
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream output;
+    private final String vehicleId;
+    private final String trackingId;
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    // Events are only queued until the container first calls onWritePossible.
+    private boolean writable;
+    private boolean closed;
+
+    EventStream(
+        AsyncContext asyncContext,
+        ServletOutputStream output,
+        String vehicleId,
+        String trackingId) {
+      this.asyncContext = asyncContext;
+      this.output = output;
+      this.vehicleId = vehicleId;
+      this.trackingId = trackingId;
+    }
+
+    @Override
+    public synchronized boolean offer(byte[] event) {
+      if (closed) {
+        return false;
+      }
+      if (pending.size() >= ChangeEvents.MAX_PENDING_EVENTS) {
+        logger.log(Level.INFO, "Dropping a subscriber which is too far behind");
+        close();
+        return false;
+      }
+      pending.addLast(event);
+      if (writable) {
+        write();
+      }
+      return !closed;
+    }
+
+    /**
+     * Called by the container once the stream can be written, first when the write listener is
+     * set, and again whenever a write which could not complete at once has.
+     */
+    @Override
+    public synchronized void onWritePossible() {
+      if (!closed) {
+        writable = true;
+        write();
+      }
+    }
+
+    /**
+     * Writes the pending events for as long as the stream is ready. Once it is not, the container
+     * calls {@link #onWritePossible} when it is again.
+     */
+    private void write() {
+      try {
+        while (!pending.isEmpty() && output.isReady()) {
+          output.write(pending.removeFirst());
+        }
+        if (pending.isEmpty() && output.isReady()) {
+          output.flush();
+        }
+      } catch (IOException | IllegalStateException e) {
+        logger.log(Level.FINE, "Failed to write to a subscriber", e);
+        close();
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      logger.log(Level.FINE, "The change stream of a subscriber failed", t);
+      close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+
+    private synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pending.clear();
+      changeEvents.unsubscribe(vehicleId, trackingId, this);
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException e) {
+        // The response was already completed, by the container or the client going away.
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.google.inject.ImplementedBy;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.util.List;
+
+/**
+ * The delivery state shared among the servlets: the uploaded tasks, vehicles and backend config,
+ * the assignment of vehicles to clients, and the progress of each manifest.
+ *
+ * <p>{@link ServletState} keeps the state in the memory of one backend instance. {@link
+ * SharedDeliveryStateStore} keeps it in a {@link KeyValueStore}, so several backend instances can
+ * serve the same drivers. The implementation is chosen by the {@code state-store} backend property;
+ * {@link ServletState} is the default.
+ */
+@ImplementedBy(ServletState.class)
+interface DeliveryStateStore {
+
+  /**
+   * Returns a builder for a new generation of the delivery state. The current generation stays
+   * readable and writable until the new one is passed to {@link #publish}.
+   */
+  GenerationBuilder newGeneration();
+
+  /**
+   * Replaces the current generation (tasks, vehicles, assignments and backend config) with the
+   * given one, which must have been created by {@link #newGeneration} on this store.
+   */
+  void publish(GenerationBuilder builder);
+
+  /**
+   * Replaces the backend config of the current generation. Its tasks, vehicles and assignments are
+   * kept; to replace them too, use {@link #newGeneration}.
+   */
+  void setBackendConfig(BackendConfig backendConfig);
+
+  /** Adds a delivery vehicle, or replaces the vehicle with the same ID. */
+  void addDeliveryVehicle(DeliveryVehicle deliveryVehicle);
+
+  /** Removes a delivery vehicle, and its assignment to a client, if any. */
+  void removeDeliveryVehicle(String vehicleId);
+
+  /** Retrieves a delivery vehicle by ID. Null if vehicle ID doesn't match any vehicle. */
+  DeliveryVehicle getDeliveryVehicleById(String vehicleId);
+
+  /** Returns true if there is a vehicle with the given ID. */
+  boolean hasDeliveryVehicle(String vehicleId);
+
+  /** Adds a task, or replaces the task with the same ID. */
+  void addTask(Task task);
+
+  /**
+   * Replaces the task with the same ID, only if the store holds it. A task which was evicted, even
+   * concurrently, is not stored again.
+   *
+   * @return true if the task was replaced
+   */
+  boolean replaceTask(Task task);
+
+  /** Retrieves a task by ID. Null if task ID doesn't match any task. */
+  Task getTaskById(String taskId);
+
+  /**
+   * Returns true if the store evicted a task with the given ID, so that callers can look for it
+   * elsewhere, such as in Fleet Engine. False for IDs the store never held.
+   */
+  boolean wasTaskEvicted(String taskId);
+
+  /** Returns true if there is a task with the given ID. */
+  boolean hasTask(String taskId);
+
+  /** Returns the outcome of the task with the given ID. Null if the ID doesn't match any task. */
+  Task.TaskOutcome getTaskOutcome(String taskId);
+
+  /**
+   * Assigns a vehicle to a client. A vehicle is assigned to at most one client, and a client to at
+   * most one vehicle.
+   *
+   * @return true if the vehicle is now assigned to the client, false if either the vehicle or the
+   *     client already had another assignment.
+   */
+  boolean addClientToDeliveryVehicleMap(String clientId, String vehicleId);
+
+  /** Retrieves the ID of the vehicle assigned to a client. Null if there is none. */
+  String getDeliveryVehicleMapByClient(String clientIdentifier);
+
+  /**
+   * Assigns any available (unassigned) vehicle to the client, and returns it. If all vehicles are
+   * assigned, returns null.
+   */
+  DeliveryVehicle claimAnyAvailableDeliveryVehicle(String clientId);
+
+  /**
+   * Assigns the available vehicle whose manifest starts nearest to a location, in degrees, to the
+   * client, and returns it. A manifest starts at its vehicle's start location, or else at its
+   * first remaining stop. If no vehicle with a manifest is available, returns null.
+   */
+  DeliveryVehicle claimNearestAvailableDeliveryVehicle(String clientId, double lat, double lng);
+
+  /** Returns the manifest of a vehicle. Null if there is none. Callers must not modify it. */
+  BackendConfig.Manifest getManifest(String vehicleId);
+
+  /**
+   * Returns every manifest currently held, in no particular order. Callers must not modify them.
+   */
+  List<BackendConfig.Manifest> getManifests();
+
+  /**
+   * Returns the version of a vehicle's manifest, which changes whenever the manifest does, or null
+   * if there is no manifest. Two manifests with the same version are the same, including across
+   * restarts and the backend instances sharing the state.
+   *
+   * <p>A manifest read after its version is at least as recent as that version, so the version
+   * can label it: a client holding a manifest labeled with the current version is up to date.
+   */
+  String getManifestVersion(String vehicleId);
+
+  /**
+   * Returns what changed in a vehicle's manifest since the given version (see {@link
+   * #getManifestVersion}), or null if that is not known, for instance because the version is too
+   * old, or the manifest does not exist. Callers must then fall back to the whole manifest.
+   *
+   * <p>The returned changes lead up to a version at least as recent as the given one; the manifest
+   * read after them is at least as recent as that version.
+   */
+  ManifestChanges getManifestChanges(String vehicleId, String sinceVersion);
+
+  /**
+   * Starts an update of a vehicle's manifest which is computed from the current state and applied
+   * in several steps, such as an update sent to Fleet Engine before it is stored, so that it is
+   * not interleaved with another such update and neither is lost.
+   *
+   * <p>The update is started if no other one is in progress for the vehicle and, unless {@code
+   * expectedVersion} is null, the manifest has that version (see {@link #getManifestVersion}), or
+   * merely exists if it is {@link #ANY_VERSION}. Nothing waits: a conflicting update fails at
+   * once. Reads are not affected by updates in progress, and see the state as of the last step
+   * applied.
+   *
+   * @return the update, to close once it has been applied or abandoned, or null if it conflicts
+   */
+  ManifestUpdate beginManifestUpdate(String vehicleId, String expectedVersion);
+
+  /** The expected version of {@link #beginManifestUpdate} which any existing manifest has. */
+  String ANY_VERSION = "*";
+
+  /** Returns the backend config task with the given ID. Null if there is none. */
+  BackendConfig.Task getBackendConfigTask(String taskId);
+
+  /** Returns the backend config task with the given tracking ID. Null if there is none. */
+  BackendConfig.Task getBackendConfigTaskByTrackingId(String trackingId);
+
+  /**
+   * Returns the ID of the vehicle whose manifest has a stop holding the task, or held it until the
+   * task was completed. Null if there is none. Unlike the {@code delivery_vehicle_id} of the Fleet
+   * Engine task, which is output only, it is known as soon as the backend config is uploaded.
+   */
+  String getManifestVehicleIdByTaskId(String taskId);
+
+  /** Sets the state of the current stop of the vehicle's manifest. */
+  void updateManifestStopState(String vehicleId, BackendConfig.StopState stopState);
+
+  /** Replaces the list of remaining stop IDs of the vehicle's manifest. */
+  void updateManifestRemainingStopIdList(String vehicleId, String[] remainingStopIdList);
+
+  /**
+   * Removes a task from the stop that holds it. The task itself stays in its manifest's task list,
+   * so it can still be looked up by task ID or tracking ID after it has been completed.
+   */
+  void removeBackendConfigTask(String taskId);
+
+  /** Returns the number of tasks currently held, closed or not. */
+  int getTaskCount();
+
+  /** Returns the number of closed tasks currently held. */
+  int getClosedTaskCount();
+
+  /** Returns the number of manifests currently held. */
+  int getManifestCount();
+
+  /** Returns the number of manifests currently held which have no remaining stops. */
+  int getFinishedManifestCount();
+
+  /** Returns the number of closed tasks evicted since the backend started. */
+  long getEvictedTaskCount();
+
+  /** Returns the number of finished manifests evicted since the backend started. */
+  long getEvictedManifestCount();
+
+  /** An update of a manifest in progress; see {@link #beginManifestUpdate}. */
+  interface ManifestUpdate extends AutoCloseable {
+    /** Ends the update, so that other updates of the manifest can start. */
+    @Override
+    void close();
+  }
+
+  /**
+   * Builds a new generation of the delivery state, without affecting the current one. A builder is
+   * meant to be filled by a single thread, then passed to {@link DeliveryStateStore#publish}. It
+   * must not be used once it has been published.
+   */
+  interface GenerationBuilder {
+    GenerationBuilder addTask(Task task);
+
+    GenerationBuilder addDeliveryVehicle(DeliveryVehicle deliveryVehicle);
+
+    /** Sets the backend config of the generation. */
+    GenerationBuilder setBackendConfig(BackendConfig backendConfig);
+  }
+}
@@ -37,14 +37,14 @@ import javax.servlet.http.HttpServletResponse;
 @Singleton
 public final class DeliveryVehicleServlet extends HttpServlet {
 
-  private final ServletState servletState;
+  private final DeliveryStateStore servletState;
   private static final Logger logger = Logger.getLogger(DeliveryVehicleServlet.class.getName());
 
   private final AuthenticatedGrpcServiceProvider grpcServiceProvider;
 
   @Inject
   public DeliveryVehicleServlet(
-      ServletState servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
+      DeliveryStateStore servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
     this.servletState = servletState;
     this.grpcServiceProvider = grpcServiceProvider;
   }
@@ -161,17 +161,15 @@ public final class DeliveryVehicleServlet extends HttpServlet {
     String clientIdentifier = request.getRemoteAddr();
 
     String vehicleId = request.getPathInfo().substring(1);
-    DeliveryVehicle vehicle =
-        servletState.getDeliveryVehicleById(
-            servletState.getDeliveryVehicleMapByClient(clientIdentifier));
+    String assignedVehicleId = servletState.getDeliveryVehicleMapByClient(clientIdentifier);
 
-    if (vehicle == null) {
+    if (assignedVehicleId == null || !servletState.hasDeliveryVehicle(assignedVehicleId)) {
       logger.log(Level.WARNING, "The client is not assigned to any vehicle");
       ServletUtils.setErrorResponse(response, "The requested vehicle doesn't exist.", 404);
       return;
     }
 
-    if (!servletState.getId(vehicle.getName()).equals(vehicleId)) {
+    if (!assignedVehicleId.equals(vehicleId)) {
       logger.log(Level.WARNING, "The client attempted to request a non-existent vehicle");
       ServletUtils.setErrorResponse(response, "The requested vehicle doesn't exist.", 404);
       return;
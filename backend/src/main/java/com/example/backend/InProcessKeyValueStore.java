@@ -0,0 +1,115 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import javax.inject.Singleton;
+
+/**
+ * A {@link KeyValueStore} held in the memory of this process. It stands in for a key-value
+ * service, so that several {@link SharedDeliveryStateStore} instances can be run against one store
+ * without any external dependency, for instance to test horizontal scaling offline.
+ *
+ * <p>Listeners are called synchronously by the thread which made the change.
+ */
+@Singleton
+final class InProcessKeyValueStore implements KeyValueStore {
+  private final ConcurrentHashMap<String, byte[]> values = new ConcurrentHashMap<>();
+  private final CopyOnWriteArrayList<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+  @Override
+  public byte[] get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public void put(String key, byte[] value) {
+    values.put(key, value);
+    changed(key);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, byte[] value) {
+    if (values.putIfAbsent(key, value) != null) {
+      return false;
+    }
+    changed(key);
+    return true;
+  }
+
+  @Override
+  public boolean replace(String key, byte[] expected, byte[] value) {
+    boolean[] replaced = new boolean[1];
+    values.computeIfPresent(
+        key,
+        (k, current) -> {
+          replaced[0] = Arrays.equals(current, expected);
+          return replaced[0] ? value : current;
+        });
+    if (replaced[0]) {
+      changed(key);
+    }
+    return replaced[0];
+  }
+
+  @Override
+  public void remove(String key) {
+    if (values.remove(key) != null) {
+      changed(key);
+    }
+  }
+
+  @Override
+  public boolean remove(String key, byte[] expected) {
+    boolean[] removed = new boolean[1];
+    values.computeIfPresent(
+        key,
+        (k, current) -> {
+          removed[0] = Arrays.equals(current, expected);
+          return removed[0] ? null : current;
+        });
+    if (removed[0]) {
+      changed(key);
+    }
+    return removed[0];
+  }
+
+  @Override
+  public List<String> keys(String prefix) {
+    List<String> keys = new ArrayList<>();
+    for (String key : values.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public void addListener(Consumer<String> listener) {
+    listeners.add(listener);
+  }
+
+  private void changed(String key) {
+    for (Consumer<String> listener : listeners) {
+      listener.accept(key);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A key-value service shared by the backend instances, such as Redis or Memorystore. Values are
+ * opaque byte arrays.
+ *
+ * <p>Conditional writes compare values by content, so they can be implemented with the
+ * compare-and-set or transaction primitives of the service.
+ */
+interface KeyValueStore {
+
+  /** Returns the value of a key. Null if there is none. */
+  byte[] get(String key);
+
+  /** Sets the value of a key. */
+  void put(String key, byte[] value);
+
+  /** Sets the value of a key, unless it already has one. Returns true if the value was set. */
+  boolean putIfAbsent(String key, byte[] value);
+
+  /**
+   * Sets the value of a key, only if its current value equals {@code expected}. Returns true if
+   * the value was set.
+   */
+  boolean replace(String key, byte[] expected, byte[] value);
+
+  /** Removes a key. */
+  void remove(String key);
+
+  /** Removes a key, only if its value equals {@code expected}. Returns true if it was removed. */
+  boolean remove(String key, byte[] expected);
+
+  /** Returns the keys which start with {@code prefix}. */
+  List<String> keys(String prefix);
+
+  /**
+   * Registers a listener which is called with the key, after any backend instance has changed or
+   * removed it.
+   */
+  void addListener(Consumer<String> listener);
+}
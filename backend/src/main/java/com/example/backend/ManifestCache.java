@@ -0,0 +1,122 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The JSON of the manifests served by the manifest endpoint, kept for as long as the manifests do
+ * not change, so that drivers polling an unchanged manifest do not cost a serialization each.
+ *
+ * <p>Each manifest is cached along with the version it was serialized at (see {@link
+ * DeliveryStateStore#getManifestVersion}), and serialized again once its version has changed. The
+ * version also makes the manifest's ETag, so clients which already hold the current version can be
+ * answered with {@code 304 Not Modified}.
+ *
+ * <p>The cache is bounded by the total size of the JSON it holds.
+ */
+final class ManifestCache {
+
+  /** The default bound on the size of the cached JSON. */
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  private final DeliveryStateStore servletState;
+  private final Cache<String, SerializedManifest> manifests;
+
+  ManifestCache(DeliveryStateStore servletState) {
+    this(servletState, DEFAULT_MAX_BYTES);
+  }
+
+  ManifestCache(DeliveryStateStore servletState, long maxBytes) {
+    this.servletState = servletState;
+    this.manifests =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .<String, SerializedManifest>weigher(
+                (vehicleId, manifest) -> manifest.json.length)
+            .build();
+  }
+
+  /**
+   * Returns the current version of the vehicle's manifest, serialized, or null if the vehicle has
+   * no manifest.
+   */
+  SerializedManifest get(String vehicleId) {
+    // The version is read before the manifest, so the manifest is not older than its label.
+    String version = servletState.getManifestVersion(vehicleId);
+    if (version == null) {
+      return null;
+    }
+    SerializedManifest cached = manifests.getIfPresent(vehicleId);
+    if (cached != null && cached.version.equals(version)) {
+      return cached;
+    }
+    BackendConfig.Manifest manifest = servletState.getManifest(vehicleId);
+    if (manifest == null) {
+      return null;
+    }
+    SerializedManifest serialized =
+        new SerializedManifest(
+            version, manifest, BackendConfigGsonProvider.get().toJson(manifest).getBytes(UTF_8));
+    manifests.put(vehicleId, serialized);
+    return serialized;
+  }
+
+  /** A manifest, and its JSON, at one version. */
+  static final class SerializedManifest {
+    private final String version;
+    private final BackendConfig.Manifest manifest;
+    private final byte[] json;
+
+    private SerializedManifest(String version, BackendConfig.Manifest manifest, byte[] json) {
+      this.version = version;
+      this.manifest = manifest;
+      this.json = json;
+    }
+
+    /** Returns the version of the manifest. */
+    String version() {
+      return version;
+    }
+
+    /** Returns the strong ETag of the JSON of the manifest. */
+    String etag() {
+      return "\"" + version + "\"";
+    }
+
+    /** Returns the strong ETag of the protobuf form of the manifest. */
+    String protobufEtag() {
+      return "\"" + version + ".pb\"";
+    }
+
+    /**
+     * Returns the manifest, which may have changed since it was serialized if its version has.
+     * Callers must not modify it.
+     */
+    BackendConfig.Manifest manifest() {
+      return manifest;
+    }
+
+    /** Returns the JSON of the manifest, in UTF-8. Callers must not modify it. */
+    byte[] json() {
+      return json;
+    }
+  }
+}
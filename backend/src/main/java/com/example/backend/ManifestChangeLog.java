@@ -0,0 +1,157 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The recent changes to one manifest, each with the manifest version it led to, so clients holding
+ * a recent version can be sent {@link ManifestChanges} rather than the whole manifest.
+ *
+ * <p>The log starts at the version the manifest was uploaded with, and keeps the last {@link
+ * #MAX_CHANGES} changes; older ones are compacted away, after which the changes since an older
+ * version are no longer known.
+ *
+ * <p>Changes are appended by the writers of the manifest, under its lock, once the manifest has
+ * been changed. The latest version can be read without locking.
+ */
+final class ManifestChangeLog {
+
+  /** The number of changes kept per manifest. */
+  static final int MAX_CHANGES = 64;
+
+  private enum Field {
+    CLIENT_ID,
+    CURRENT_STOP_STATE,
+    REMAINING_STOP_ID_LIST,
+    STOP_TASKS,
+  }
+
+  private final int maxChanges;
+  private final ArrayDeque<Change> changes = new ArrayDeque<>();
+  // The version before the oldest change kept.
+  private long baseVersion;
+  private volatile long latestVersion;
+
+  ManifestChangeLog(long baseVersion) {
+    this(baseVersion, MAX_CHANGES);
+  }
+
+  ManifestChangeLog(long baseVersion, int maxChanges) {
+    this.baseVersion = baseVersion;
+    this.latestVersion = baseVersion;
+    this.maxChanges = maxChanges;
+  }
+
+  /** Returns the version of the last change, or the base version if there was none. */
+  long latestVersion() {
+    return latestVersion;
+  }
+
+  void clientIdChanged(long version) {
+    append(new Change(version, Field.CLIENT_ID, null, null));
+  }
+
+  void currentStopStateChanged(long version) {
+    append(new Change(version, Field.CURRENT_STOP_STATE, null, null));
+  }
+
+  void remainingStopIdListChanged(long version) {
+    append(new Change(version, Field.REMAINING_STOP_ID_LIST, null, null));
+  }
+
+  /** Records that a task was removed from a stop. */
+  void stopTaskRemoved(long version, BackendConfig.Stop stop, String taskId) {
+    append(new Change(version, Field.STOP_TASKS, stop, taskId));
+  }
+
+  private synchronized void append(Change change) {
+    if (changes.size() == maxChanges) {
+      baseVersion = changes.removeFirst().version;
+    }
+    changes.addLast(change);
+    latestVersion = change.version;
+  }
+
+  /**
+   * Returns the changes made after {@code sinceVersion}, up to the latest version, or null if they
+   * are not known: if {@code sinceVersion} is older than the changes kept, or newer than the
+   * latest version. Costs time in the number of changes returned.
+   *
+   * @param versionPrefix the prefix of the version strings, prepended to the returned version
+   */
+  synchronized ManifestChanges since(long sinceVersion, String versionPrefix) {
+    if (sinceVersion < baseVersion || sinceVersion > latestVersion) {
+      return null;
+    }
+    boolean clientIdChanged = false;
+    boolean currentStopStateChanged = false;
+    boolean remainingStopIdListChanged = false;
+    LinkedHashSet<BackendConfig.Stop> changedStops = new LinkedHashSet<>();
+    List<String> closedTaskIds = new ArrayList<>();
+    // The changes are walked newest first, and only as far back as needed.
+    Iterator<Change> newestFirst = changes.descendingIterator();
+    while (newestFirst.hasNext()) {
+      Change change = newestFirst.next();
+      if (change.version <= sinceVersion) {
+        break;
+      }
+      switch (change.field) {
+        case CLIENT_ID:
+          clientIdChanged = true;
+          break;
+        case CURRENT_STOP_STATE:
+          currentStopStateChanged = true;
+          break;
+        case REMAINING_STOP_ID_LIST:
+          remainingStopIdListChanged = true;
+          break;
+        case STOP_TASKS:
+          changedStops.add(change.stop);
+          closedTaskIds.add(change.taskId);
+          break;
+      }
+    }
+    Collections.reverse(closedTaskIds);
+    return new ManifestChanges(
+        versionPrefix + latestVersion,
+        clientIdChanged,
+        currentStopStateChanged,
+        remainingStopIdListChanged,
+        new ArrayList<>(changedStops),
+        closedTaskIds);
+  }
+
+  /** A change to one field of the manifest, or to the tasks of one of its stops. */
+  private static final class Change {
+    private final long version;
+    private final Field field;
+    private final BackendConfig.Stop stop;
+    private final String taskId;
+
+    Change(long version, Field field, BackendConfig.Stop stop, String taskId) {
+      this.version = version;
+      this.field = field;
+      this.stop = stop;
+      this.taskId = taskId;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed in a manifest since one of its versions: which of its fields were replaced, which
+ * of its stops lost tasks, and which tasks those were.
+ *
+ * <p>The changes only name what changed; the values are read from the manifest when the changes
+ * are written with {@link #toJson}, so they are at least as recent as {@link #version}.
+ */
+final class ManifestChanges {
+  private final String version;
+  private final boolean clientIdChanged;
+  private final boolean currentStopStateChanged;
+  private final boolean remainingStopIdListChanged;
+  private final List<BackendConfig.Stop> changedStops;
+  private final List<String> closedTaskIds;
+
+  ManifestChanges(
+      String version,
+      boolean clientIdChanged,
+      boolean currentStopStateChanged,
+      boolean remainingStopIdListChanged,
+      List<BackendConfig.Stop> changedStops,
+      List<String> closedTaskIds) {
+    this.version = version;
+    this.clientIdChanged = clientIdChanged;
+    this.currentStopStateChanged = currentStopStateChanged;
+    this.remainingStopIdListChanged = remainingStopIdListChanged;
+    this.changedStops = changedStops;
+    this.closedTaskIds = closedTaskIds;
+  }
+
+  /** Returns changes which contain nothing, up to the given version. */
+  static ManifestChanges none(String version) {
+    return new ManifestChanges(
+        version, false, false, false, Collections.emptyList(), Collections.emptyList());
+  }
+
+  /** Returns the version of the manifest these changes lead up to. */
+  String version() {
+    return version;
+  }
+
+  /** Returns true if nothing changed. */
+  boolean isEmpty() {
+    return !clientIdChanged
+        && !currentStopStateChanged
+        && !remainingStopIdListChanged
+        && changedStops.isEmpty();
+  }
+
+  /** Returns the IDs of the tasks removed from their stops, in the order they were removed. */
+  List<String> closedTaskIds() {
+    return closedTaskIds;
+  }
+
+  /**
+   * Returns the changes as a partial manifest: only the fields that changed are set, to their
+   * values in {@code manifest}, and {@code stops} only has the stops that changed. The IDs of the
+   * tasks removed from their stops are listed in {@code closed_task_ids}.
+   */
+  JsonObject toJson(BackendConfig.Manifest manifest, Gson gson) {
+    JsonObject changes = new JsonObject();
+    if (clientIdChanged) {
+      changes.add("client_id", gson.toJsonTree(manifest.clientId));
+    }
+    if (currentStopStateChanged) {
+      changes.add("current_stop_state", gson.toJsonTree(manifest.currentStopState));
+    }
+    if (remainingStopIdListChanged) {
+      changes.add("remaining_stop_id_list", gson.toJsonTree(manifest.remainingStopIdList));
+    }
+    if (!changedStops.isEmpty()) {
+      JsonArray stops = new JsonArray();
+      for (BackendConfig.Stop stop : changedStops) {
+        stops.add(gson.toJsonTree(stop));
+      }
+      changes.add("stops", stops);
+    }
+    if (!closedTaskIds.isEmpty()) {
+      changes.add("closed_task_ids", gson.toJsonTree(new ArrayList<>(closedTaskIds)));
+    }
+    return changes;
+  }
+}
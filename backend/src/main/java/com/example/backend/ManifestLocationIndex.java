@@ -0,0 +1,199 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of where the manifests of a backend config start, to find the available manifest
+ * nearest to a driver.
+ *
+ * <p>Each manifest is placed at its vehicle's {@code start_location}, or, if it has none, at the
+ * waypoint of its first remaining stop. Locations are mapped to points on the unit sphere, and kept
+ * in a k-d tree over those points, so distances are great-circle distances, without special cases
+ * at the poles or the antimeridian.
+ *
+ * <p>The tree is built once, balanced, for the manifests of the config. Manifests are then removed
+ * and restored as their vehicles are assigned and released. Each node counts the manifests left in
+ * its subtree, so searches skip the subtrees with none, and finding the nearest manifest takes
+ * O(log n) time on average, however many manifests have been removed.
+ *
+ * <p>The index is a hint: callers must still claim the manifest found, and remove it and search
+ * again if it was claimed concurrently.
+ */
+final class ManifestLocationIndex {
+
+  private final Node root;
+  private final Map<String, Node> nodesByVehicleId = new HashMap<>();
+
+  /** Builds the index over the manifests which have a location. */
+  ManifestLocationIndex(Iterable<BackendConfig.Manifest> manifests) {
+    List<Node> nodes = new ArrayList<>();
+    for (BackendConfig.Manifest manifest : manifests) {
+      BackendConfig.Waypoint location = locationOf(manifest);
+      if (location != null && !nodesByVehicleId.containsKey(manifest.vehicle.vehicleId)) {
+        Node node = new Node(manifest.vehicle.vehicleId, toPoint(location.lat, location.lng));
+        nodesByVehicleId.put(node.vehicleId, node);
+        nodes.add(node);
+      }
+    }
+    root = build(nodes, 0, nodes.size(), 0, null);
+  }
+
+  /**
+   * Returns where a manifest starts: its vehicle's start location, or else the waypoint of its
+   * first remaining stop. Null if it has neither.
+   */
+  static BackendConfig.Waypoint locationOf(BackendConfig.Manifest manifest) {
+    if (manifest.vehicle.startLocation != null) {
+      return manifest.vehicle.startLocation;
+    }
+    if (manifest.stops == null || manifest.stops.length == 0) {
+      return null;
+    }
+    if (manifest.remainingStopIdList != null && manifest.remainingStopIdList.length > 0) {
+      for (BackendConfig.Stop stop : manifest.stops) {
+        if (stop.stopId.equals(manifest.remainingStopIdList[0])) {
+          return stop.plannedWaypoint;
+        }
+      }
+    }
+    return manifest.stops[0].plannedWaypoint;
+  }
+
+  /** Returns the point on the unit sphere of a latitude and longitude, in degrees. */
+  static double[] toPoint(double lat, double lng) {
+    double phi = Math.toRadians(lat);
+    double lambda = Math.toRadians(lng);
+    return new double[] {
+      Math.cos(phi) * Math.cos(lambda), Math.cos(phi) * Math.sin(lambda), Math.sin(phi)
+    };
+  }
+
+  /** Builds a balanced subtree over {@code nodes[from, to)}, split along {@code axis}. */
+  private static Node build(List<Node> nodes, int from, int to, int axis, Node parent) {
+    if (from >= to) {
+      return null;
+    }
+    nodes.subList(from, to).sort(Comparator.comparingDouble(node -> node.point[axis]));
+    int median = (from + to) >>> 1;
+    Node node = nodes.get(median);
+    node.axis = axis;
+    node.parent = parent;
+    node.available = to - from;
+    node.left = build(nodes, from, median, (axis + 1) % 3, node);
+    node.right = build(nodes, median + 1, to, (axis + 1) % 3, node);
+    return node;
+  }
+
+  /**
+   * Returns the vehicle ID of the available manifest nearest to a latitude and longitude, in
+   * degrees, or null if there is none. The manifest stays available until it is removed.
+   */
+  synchronized String nearest(double lat, double lng) {
+    Search search = new Search(toPoint(lat, lng));
+    search.visit(root);
+    return search.best == null ? null : search.best.vehicleId;
+  }
+
+  /** Makes a manifest unavailable. Does nothing if it is not indexed, or already unavailable. */
+  synchronized void remove(String vehicleId) {
+    Node node = nodesByVehicleId.get(vehicleId);
+    if (node != null && !node.removed) {
+      node.removed = true;
+      for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+        ancestor.available--;
+      }
+    }
+  }
+
+  /** Makes a removed manifest available again. Does nothing if it is not indexed, or available. */
+  synchronized void restore(String vehicleId) {
+    Node node = nodesByVehicleId.get(vehicleId);
+    if (node != null && node.removed) {
+      node.removed = false;
+      for (Node ancestor = node; ancestor != null; ancestor = ancestor.parent) {
+        ancestor.available++;
+      }
+    }
+  }
+
+  /** Returns the number of available manifests. */
+  synchronized int size() {
+    return root == null ? 0 : root.available;
+  }
+
+  /** A nearest neighbor search, keeping the nearest available node found so far. */
+  private static final class Search {
+    private final double[] target;
+    private Node best;
+    private double bestDistance = Double.POSITIVE_INFINITY;
+
+    Search(double[] target) {
+      this.target = target;
+    }
+
+    void visit(Node node) {
+      if (node == null || node.available == 0) {
+        return;
+      }
+      if (!node.removed) {
+        double distance = squaredDistance(node.point, target);
+        if (distance < bestDistance) {
+          best = node;
+          bestDistance = distance;
+        }
+      }
+      double offset = target[node.axis] - node.point[node.axis];
+      Node near = offset < 0 ? node.left : node.right;
+      Node far = offset < 0 ? node.right : node.left;
+      visit(near);
+      // The far side is only searched if the splitting plane is nearer than the best so far.
+      if (offset * offset < bestDistance) {
+        visit(far);
+      }
+    }
+
+    private static double squaredDistance(double[] a, double[] b) {
+      double dx = a[0] - b[0];
+      double dy = a[1] - b[1];
+      double dz = a[2] - b[2];
+      return dx * dx + dy * dy + dz * dz;
+    }
+  }
+
+  /** A manifest, and the subtree of the manifests split by its point. */
+  private static final class Node {
+    private final String vehicleId;
+    private final double[] point;
+    private int axis;
+    private Node parent;
+    private Node left;
+    private Node right;
+    // The number of manifests in the subtree which are not removed, including this one.
+    private int available;
+    private boolean removed;
+
+    Node(String vehicleId, double[] point) {
+      this.vehicleId = vehicleId;
+      this.point = point;
+    }
+  }
+}
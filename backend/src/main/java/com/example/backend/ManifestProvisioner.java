@@ -0,0 +1,751 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.util.Arrays.stream;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.utils.BackendConfigException;
+import com.example.backend.utils.BackendConfigUtils;
+import com.example.backend.utils.BackendProperties;
+import com.google.common.collect.ImmutableSet;
+import com.google.maps.fleetengine.delivery.v1.BatchCreateTasksRequest;
+import com.google.maps.fleetengine.delivery.v1.CreateDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.CreateTaskRequest;
+import com.google.maps.fleetengine.delivery.v1.DeliveryServiceGrpc;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicleLocation;
+import com.google.maps.fleetengine.delivery.v1.GetDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.GetTaskRequest;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.maps.fleetengine.delivery.v1.UpdateDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
+import com.google.protobuf.FieldMask;
+import com.google.type.LatLng;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the vehicles and tasks of a backend config in Fleet Engine.
+ *
+ * <p>The tasks of consecutive manifests are grouped into {@code BatchCreateTasks} calls of up to
+ * {@code taskBatchSize} tasks. A vehicle is updated with its journey segments once the vehicle and
+ * all its tasks have been created. The calls run on up to {@code concurrency} threads, so an upload
+ * takes two calls per vehicle and one per batch, spread over the threads, rather than one call per
+ * task as well.
+ *
+ * <p>Manifests are provisioned as they are read, so the first vehicles are ready before the whole
+ * config has been read, and at most {@code maxPendingManifests} manifests are read ahead of the
+ * ones that have been provisioned.
+ *
+ * <p>Calls which fail with a transient error, such as UNAVAILABLE, are retried with a growing
+ * delay. Creating a vehicle or task which already exists, because an earlier attempt succeeded
+ * without its response arriving or because an interrupted upload is being resumed, counts as
+ * success: the existing entity is read back instead.
+ *
+ * <p>The manifests and their IDs are updated in place, as they were when the upload was serial.
+ */
+final class ManifestProvisioner {
+  private static final Logger logger = Logger.getLogger(ManifestProvisioner.class.getName());
+
+  /** The default number of manifests read ahead of the ones that have been provisioned. */
+  static final int DEFAULT_MAX_PENDING_MANIFESTS = 256;
+
+  /**
+   * Failures which no single task of a batch causes, so splitting the batch would only fail again.
+   */
+  private static final ImmutableSet<Status.Code> BATCH_WIDE_FAILURES =
+      ImmutableSet.of(
+          Status.Code.UNAUTHENTICATED, Status.Code.PERMISSION_DENIED, Status.Code.CANCELLED);
+
+  /** Failures which may not happen again if the same call is made later. */
+  private static final ImmutableSet<Status.Code> TRANSIENT_FAILURES =
+      ImmutableSet.of(
+          Status.Code.UNAVAILABLE,
+          Status.Code.DEADLINE_EXCEEDED,
+          Status.Code.RESOURCE_EXHAUSTED,
+          Status.Code.ABORTED);
+
+  private final DeliveryServiceGrpc.DeliveryServiceBlockingStub deliveryService;
+  private final int concurrency;
+  private final int taskBatchSize;
+  private final int maxPendingManifests;
+  private final RetryPolicy retryPolicy;
+  private final long timestamp;
+
+  /**
+   * Creates a provisioner which makes its calls through {@code deliveryService}, on up to {@code
+   * concurrency} threads, and creates up to {@code taskBatchSize} tasks per call. A concurrency of
+   * 1 makes the calls one after the other.
+   *
+   * @throws IllegalArgumentException if {@code taskBatchSize} is not between 1 and {@link
+   *     BackendProperties#MAX_TASK_BATCH_SIZE}
+   */
+  ManifestProvisioner(
+      DeliveryServiceGrpc.DeliveryServiceBlockingStub deliveryService,
+      int concurrency,
+      int taskBatchSize) {
+    this(deliveryService, concurrency, taskBatchSize, DEFAULT_MAX_PENDING_MANIFESTS);
+  }
+
+  /**
+   * Creates a provisioner which also reads at most {@code maxPendingManifests} manifests ahead of
+   * the ones that have been provisioned.
+   */
+  ManifestProvisioner(
+      DeliveryServiceGrpc.DeliveryServiceBlockingStub deliveryService,
+      int concurrency,
+      int taskBatchSize,
+      int maxPendingManifests) {
+    this(
+        deliveryService,
+        concurrency,
+        taskBatchSize,
+        maxPendingManifests,
+        RetryPolicy.withMaxAttempts(BackendProperties.DEFAULT_PROVISIONING_MAX_ATTEMPTS));
+  }
+
+  /** Creates a provisioner which also retries the calls that fail as {@code retryPolicy} says. */
+  ManifestProvisioner(
+      DeliveryServiceGrpc.DeliveryServiceBlockingStub deliveryService,
+      int concurrency,
+      int taskBatchSize,
+      int maxPendingManifests,
+      RetryPolicy retryPolicy) {
+    this(deliveryService, concurrency, taskBatchSize, maxPendingManifests, retryPolicy, 0);
+  }
+
+  /**
+   * Creates a provisioner which also timestamps the IDs of the manifests it provisions with {@code
+   * timestamp}, unless it is 0. Each upload has its own provisioner, so concurrent uploads do not
+   * share a timestamp.
+   */
+  ManifestProvisioner(
+      DeliveryServiceGrpc.DeliveryServiceBlockingStub deliveryService,
+      int concurrency,
+      int taskBatchSize,
+      int maxPendingManifests,
+      RetryPolicy retryPolicy,
+      long timestamp) {
+    if (taskBatchSize < 1 || taskBatchSize > BackendProperties.MAX_TASK_BATCH_SIZE) {
+      throw new IllegalArgumentException(
+          String.format(
+              "The task batch size must be between 1 and %d, not %d",
+              BackendProperties.MAX_TASK_BATCH_SIZE, taskBatchSize));
+    }
+    this.deliveryService = deliveryService;
+    this.concurrency = Math.max(concurrency, 1);
+    this.taskBatchSize = taskBatchSize;
+    this.maxPendingManifests = Math.max(maxPendingManifests, 1);
+    this.retryPolicy = retryPolicy;
+    this.timestamp = timestamp;
+  }
+
+  /** Supplies the manifests to provision, one at a time. */
+  interface ManifestSource {
+    /** Returns the next manifest, or null if there are no more. */
+    BackendConfig.Manifest next() throws IOException;
+  }
+
+  /** The manifests which an earlier, interrupted run of the same upload has provisioned. */
+  interface Checkpoint {
+    /**
+     * Returns the entities provisioned for the manifest at {@code index} in the source, or null if
+     * it still has to be provisioned.
+     */
+    ProvisionedManifest get(int index);
+  }
+
+  /** Receives the Fleet Engine entities of each provisioned manifest. */
+  interface Listener {
+    void onManifestProvisioned(List<Task> tasks, DeliveryVehicle deliveryVehicle)
+        throws IOException;
+  }
+
+  /** Provisions every manifest of an array. See {@link #provision(ManifestSource, Listener)}. */
+  void provision(BackendConfig.Manifest[] manifests, Listener listener)
+      throws BackendConfigException, IOException {
+    Iterator<BackendConfig.Manifest> iterator = Arrays.asList(manifests).iterator();
+    provision(() -> iterator.hasNext() ? iterator.next() : null, listener);
+  }
+
+  /**
+   * Provisions every manifest of {@code source}, and passes the created entities of each one to
+   * {@code listener}, on the calling thread and in the order of {@code source}.
+   *
+   * <p>The stops of a manifest are checked before any call is made for it. If a call fails, the
+   * calls which have not started yet are skipped, and the failure is thrown once the manifests
+   * before the failed one have been passed to {@code listener}. A task which cannot be created only
+   * fails its own manifest, even if it was batched with the tasks of other manifests.
+   *
+   * @throws BackendConfigException if a manifest is invalid
+   * @throws IOException if thrown by {@code source} or {@code listener}
+   */
+  void provision(ManifestSource source, Listener listener)
+      throws BackendConfigException, IOException {
+    provision(source, index -> null, listener);
+  }
+
+  /**
+   * Provisions every manifest of {@code source} like {@link #provision(ManifestSource, Listener)},
+   * except the ones found in {@code checkpoint}, whose entities are passed to {@code listener}
+   * without any call. The IDs of every manifest are updated in place as usual, so the
+   * checkpointed manifests get the IDs they were provisioned with as long as the provisioner has
+   * the same timestamp.
+   */
+  void provision(ManifestSource source, Checkpoint checkpoint, Listener listener)
+      throws BackendConfigException, IOException {
+    Run run = new Run(listener);
+    try {
+      int index = 0;
+      for (BackendConfig.Manifest m = source.next(); m != null; m = source.next(), index++) {
+        BackendConfig.Manifest manifest = m;
+        List<VehicleJourneySegment> segments = prepare(manifest);
+        ProvisionedManifest provisioned = checkpoint.get(index);
+        if (provisioned != null) {
+          run.addProvisioned(provisioned);
+          continue;
+        }
+        run.add(
+            CompletableFuture.supplyAsync(() -> createVehicle(manifest), run.executor),
+            manifest.tasks,
+            segments);
+      }
+      run.finish();
+    } finally {
+      run.close();
+    }
+  }
+
+  /**
+   * Creates the new tasks of vehicles which already exist, then gives each vehicle its new journey
+   * segments, and passes the created tasks and updated vehicle of each one to {@code listener}, in
+   * the order of {@code updates}. Failures are handled as in {@link #provision(ManifestSource,
+   * Listener)}.
+   *
+   * @throws IOException if thrown by {@code listener}
+   */
+  void update(List<VehicleUpdate> updates, Listener listener) throws IOException {
+    Run run = new Run(listener);
+    try {
+      for (VehicleUpdate update : updates) {
+        run.add(
+            CompletableFuture.completedFuture(
+                DeliveryVehicle.newBuilder()
+                    .setName(BackendConfigUtils.getDeliveryVehicleName(update.vehicleId))
+                    .build()),
+            update.newTasks,
+            update.segments);
+      }
+      run.finish();
+    } finally {
+      run.close();
+    }
+  }
+
+  /** Assigns a vehicle its journey segments once it and all its tasks have been created. */
+  private CompletableFuture<ProvisionedManifest> assignWhenCreated(
+      CompletableFuture<DeliveryVehicle> vehicle,
+      List<TaskSlice> slices,
+      List<VehicleJourneySegment> segments,
+      ExecutorService executor) {
+    CompletableFuture<?>[] dependencies = new CompletableFuture<?>[slices.size() + 1];
+    dependencies[0] = vehicle;
+    for (int s = 0; s < slices.size(); s++) {
+      dependencies[s + 1] = slices.get(s).batch.result;
+    }
+    return CompletableFuture.allOf(dependencies)
+        .thenApplyAsync(
+            unused -> {
+              List<Task> tasks = new ArrayList<>();
+              for (TaskSlice slice : slices) {
+                slice.addTasksTo(tasks);
+              }
+              return new ProvisionedManifest(
+                  tasks, assignJourneySegments(vehicle.join(), segments));
+            },
+            executor);
+  }
+
+  /**
+   * Timestamps the IDs of a manifest, orders its stops, and returns its journey segments.
+   *
+   * @throws BackendConfigException if a stop refers to a task that is not in the manifest
+   */
+  private List<VehicleJourneySegment> prepare(BackendConfig.Manifest m)
+      throws BackendConfigException {
+    m.idSuffix = BackendConfigUtils.getTimestampedId("", timestamp);
+    m.vehicle.vehicleId = m.vehicle.vehicleId + m.idSuffix;
+    for (BackendConfig.Task t : m.tasks) {
+      t.taskId = t.taskId + m.idSuffix;
+      t.trackingId = t.trackingId + m.idSuffix;
+    }
+
+    // Create the stops in the order specified in m.remainingStopIdList. If that field doesn't
+    // exist, use the order in m.stops.
+    if (m.remainingStopIdList == null) {
+      m.remainingStopIdList = stream(m.stops).map(s -> s.stopId).toArray(String[]::new);
+    }
+
+    HashMap<String, BackendConfig.Stop> stopsMap = new HashMap<>();
+    for (BackendConfig.Stop s : m.stops) {
+      stopsMap.put(s.stopId, s);
+      s.tasks = stream(s.tasks).map(id -> id + m.idSuffix).toArray(String[]::new);
+    }
+    m.stops = stream(m.remainingStopIdList).map(stopsMap::get).toArray(BackendConfig.Stop[]::new);
+    return BackendConfigUtils.createVehicleJourneySegments(m);
+  }
+
+  private DeliveryVehicle createVehicle(BackendConfig.Manifest m) {
+    LatLng.Builder startLocation =
+        LatLng.newBuilder().setLatitude(37.42311).setLongitude(-122.09259);
+    if (m.vehicle.startLocation != null) {
+      startLocation
+          .setLatitude(m.vehicle.startLocation.lat)
+          .setLongitude(m.vehicle.startLocation.lng);
+    }
+
+    // Create the vehicle. Note: most of the fields in the DeliveryVehicle
+    // passed to CreateDeliveryVehicleRequest are ignored; instantiating a
+    // blank proto is good enough.
+    CreateDeliveryVehicleRequest deliveryVehicleRequest =
+        CreateDeliveryVehicleRequest.newBuilder()
+            .setParent(BackendConfigUtils.PARENT)
+            .setDeliveryVehicleId(m.vehicle.vehicleId)
+            .setDeliveryVehicle(
+                DeliveryVehicle.newBuilder()
+                    .setLastLocation(
+                        DeliveryVehicleLocation.newBuilder().setLocation(startLocation)))
+            .build();
+
+    DeliveryVehicle responseDeliveryVehicle;
+    try {
+      responseDeliveryVehicle =
+          call(() -> deliveryService.createDeliveryVehicle(deliveryVehicleRequest));
+    } catch (StatusRuntimeException e) {
+      if (e.getStatus().getCode() != Status.Code.ALREADY_EXISTS) {
+        throw e;
+      }
+      logger.log(
+          Level.INFO,
+          String.format("Vehicle %s already exists; reading it back", m.vehicle.vehicleId));
+      GetDeliveryVehicleRequest getRequest =
+          GetDeliveryVehicleRequest.newBuilder()
+              .setName(BackendConfigUtils.getDeliveryVehicleName(m.vehicle.vehicleId))
+              .build();
+      responseDeliveryVehicle = call(() -> deliveryService.getDeliveryVehicle(getRequest));
+    }
+    logger.info(responseDeliveryVehicle.toString());
+    return responseDeliveryVehicle;
+  }
+
+  private static CreateTaskRequest createTaskRequest(BackendConfig.Task t) {
+    return CreateTaskRequest.newBuilder()
+        .setParent(BackendConfigUtils.PARENT)
+        .setTaskId(t.taskId)
+        .setTask(BackendConfigUtils.createTask(t))
+        .build();
+  }
+
+  /**
+   * Creates a batch of tasks, and stores them in {@code created} from {@code offset} on. If the
+   * batch fails, it is split in two halves which are retried on their own, until the failure is
+   * narrowed down to single tasks; a task which already exists is read back, and a task which
+   * still fails has its failure stored in {@code errors} instead.
+   */
+  private void createTasks(
+      List<CreateTaskRequest> requests,
+      int offset,
+      Task[] created,
+      StatusRuntimeException[] errors) {
+    try {
+      BatchCreateTasksRequest batchRequest =
+          BatchCreateTasksRequest.newBuilder()
+              .setParent(BackendConfigUtils.PARENT)
+              .addAllRequests(requests)
+              .build();
+      List<Task> tasks = call(() -> deliveryService.batchCreateTasks(batchRequest)).getTasksList();
+      for (int i = 0; i < tasks.size(); i++) {
+        logger.info(tasks.get(i).toString());
+        created[offset + i] = tasks.get(i);
+      }
+    } catch (StatusRuntimeException e) {
+      Status.Code code = e.getStatus().getCode();
+      if (requests.size() == 1 && code == Status.Code.ALREADY_EXISTS) {
+        created[offset] = readTask(requests.get(0), offset, errors);
+        return;
+      }
+      // A transient failure which outlasted the retries would only fail the halves again.
+      if (requests.size() == 1
+          || BATCH_WIDE_FAILURES.contains(code)
+          || TRANSIENT_FAILURES.contains(code)) {
+        logger.log(
+            Level.WARNING,
+            String.format("Creating %d task(s) failed: %s", requests.size(), e.getStatus()));
+        for (int i = 0; i < requests.size(); i++) {
+          errors[offset + i] = e;
+        }
+        return;
+      }
+      logger.log(
+          Level.INFO,
+          String.format(
+              "Creating a batch of %d tasks failed (%s); retrying it in two halves",
+              requests.size(), e.getStatus()));
+      int half = requests.size() / 2;
+      createTasks(requests.subList(0, half), offset, created, errors);
+      createTasks(requests.subList(half, requests.size()), offset + half, created, errors);
+    }
+  }
+
+  /**
+   * Reads back a task which already exists. Returns null, and stores the failure in {@code errors},
+   * if it cannot be read.
+   */
+  private Task readTask(CreateTaskRequest request, int offset, StatusRuntimeException[] errors) {
+    logger.log(
+        Level.INFO, String.format("Task %s already exists; reading it back", request.getTaskId()));
+    GetTaskRequest getRequest =
+        GetTaskRequest.newBuilder()
+            .setName(BackendConfigUtils.getTaskName(request.getTaskId()))
+            .build();
+    try {
+      return call(() -> deliveryService.getTask(getRequest));
+    } catch (StatusRuntimeException e) {
+      logger.log(
+          Level.WARNING,
+          String.format("Reading task %s back failed: %s", request.getTaskId(), e.getStatus()));
+      errors[offset] = e;
+      return null;
+    }
+  }
+
+  /**
+   * Makes a call, and makes it again, after a growing and randomized delay, as long as it fails
+   * with a transient error and {@link RetryPolicy#maxAttempts} is not reached.
+   *
+   * @throws StatusRuntimeException the last failure, if the call did not succeed, or if the thread
+   *     was interrupted while waiting to retry
+   */
+  private <T> T call(Supplier<T> rpc) {
+    long backoffMillis = retryPolicy.initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return rpc.get();
+      } catch (StatusRuntimeException e) {
+        if (attempt >= retryPolicy.maxAttempts
+            || !TRANSIENT_FAILURES.contains(e.getStatus().getCode())) {
+          throw e;
+        }
+        long delayMillis =
+            backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        logger.log(
+            Level.INFO,
+            String.format(
+                "A Fleet Engine call failed (%s); retrying in %d ms, attempt %d of %d",
+                e.getStatus(), delayMillis, attempt + 1, retryPolicy.maxAttempts));
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+        backoffMillis = Math.min(backoffMillis * 2, retryPolicy.maxBackoffMillis);
+      }
+    }
+  }
+
+  /** Replaces the VehicleJourneySegments of a created delivery vehicle. */
+  private DeliveryVehicle assignJourneySegments(
+      DeliveryVehicle deliveryVehicle, List<VehicleJourneySegment> journeySegments) {
+    UpdateDeliveryVehicleRequest updateRequest =
+        UpdateDeliveryVehicleRequest.newBuilder()
+            .setDeliveryVehicle(
+                deliveryVehicle.toBuilder()
+                    .clearRemainingVehicleJourneySegments()
+                    .addAllRemainingVehicleJourneySegments(journeySegments))
+            .setUpdateMask(FieldMask.newBuilder().addPaths("remaining_vehicle_journey_segments"))
+            .build();
+    return call(() -> deliveryService.updateDeliveryVehicle(updateRequest));
+  }
+
+  /**
+   * Waits for a manifest to be provisioned, and rethrows its failure, if any. On failure, or if the
+   * calling thread is interrupted, the calls that have not started yet are cancelled.
+   */
+  private static ProvisionedManifest await(
+      CompletableFuture<ProvisionedManifest> result, ExecutorService executor) {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while provisioning the backend config", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      logger.log(Level.WARNING, "Provisioning a manifest failed", e.getCause());
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * The calls of one {@link #provision} or {@link #update}: the manifests whose calls have been
+   * started, and the batch of tasks being filled.
+   */
+  private final class Run {
+    private final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    private final ArrayDeque<PendingManifest> pending = new ArrayDeque<>();
+    private final Listener listener;
+    private TaskBatch batch = new TaskBatch();
+
+    Run(Listener listener) {
+      this.listener = listener;
+    }
+
+    /**
+     * Creates {@code tasks}, then gives {@code vehicle} the journey {@code segments}, once it has
+     * been created. Delivers the oldest manifests if too many are pending.
+     */
+    void add(
+        CompletableFuture<DeliveryVehicle> vehicle,
+        BackendConfig.Task[] tasks,
+        List<VehicleJourneySegment> segments)
+        throws IOException {
+      // Add the tasks to the current batch, and note where they ended up. Send the batch as soon
+      // as it is full.
+      List<TaskSlice> slices = new ArrayList<>();
+      int next = 0;
+      while (next < tasks.length) {
+        int count = Math.min(tasks.length - next, taskBatchSize - batch.requests.size());
+        slices.add(new TaskSlice(batch, batch.requests.size(), count));
+        for (int i = next; i < next + count; i++) {
+          batch.requests.add(createTaskRequest(tasks[i]));
+        }
+        next += count;
+        if (batch.requests.size() == taskBatchSize) {
+          batch.submit(executor);
+          batch = new TaskBatch();
+        }
+      }
+      pending.add(
+          new PendingManifest(slices, assignWhenCreated(vehicle, slices, segments, executor)));
+      deliverOverflow();
+    }
+
+    /** Adds a manifest which was provisioned by an earlier run, to be delivered in its turn. */
+    void addProvisioned(ProvisionedManifest provisioned) throws IOException {
+      pending.add(
+          new PendingManifest(new ArrayList<>(), CompletableFuture.completedFuture(provisioned)));
+      deliverOverflow();
+    }
+
+    /**
+     * Waits for the oldest manifests before reading more of them. If the oldest one's tasks are in
+     * the batch still being filled, sends that batch now.
+     */
+    private void deliverOverflow() throws IOException {
+      while (pending.size() > maxPendingManifests) {
+        if (pending.peek().isWaitingFor(batch)) {
+          batch.submit(executor);
+          batch = new TaskBatch();
+        }
+        deliver(pending.poll());
+      }
+    }
+
+    /** Sends the last batch, and delivers the remaining manifests. */
+    void finish() throws IOException {
+      if (!batch.requests.isEmpty()) {
+        batch.submit(executor);
+      }
+      while (!pending.isEmpty()) {
+        deliver(pending.poll());
+      }
+    }
+
+    /** Nothing is left running after a success; after a failure, skips the remaining calls. */
+    void close() {
+      executor.shutdownNow();
+    }
+
+    private void deliver(PendingManifest manifest) throws IOException {
+      ProvisionedManifest provisioned = await(manifest.result, executor);
+      listener.onManifestProvisioned(provisioned.tasks, provisioned.deliveryVehicle);
+    }
+  }
+
+  /** The create requests of one {@code BatchCreateTasks} call, and their outcome. */
+  private final class TaskBatch {
+    private final List<CreateTaskRequest> requests = new ArrayList<>();
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private boolean submitted;
+    private Task[] created;
+    private StatusRuntimeException[] errors;
+
+    void submit(ExecutorService executor) {
+      submitted = true;
+      created = new Task[requests.size()];
+      errors = new StatusRuntimeException[requests.size()];
+      executor.execute(
+          () -> {
+            try {
+              createTasks(requests, 0, created, errors);
+              result.complete(null);
+            } catch (RuntimeException | Error e) {
+              result.completeExceptionally(e);
+            }
+          });
+    }
+  }
+
+  /** A manifest whose calls have been started, and the entities they will create. */
+  private static final class PendingManifest {
+    private final List<TaskSlice> slices;
+    private final CompletableFuture<ProvisionedManifest> result;
+
+    PendingManifest(List<TaskSlice> slices, CompletableFuture<ProvisionedManifest> result) {
+      this.slices = slices;
+      this.result = result;
+    }
+
+    /** Returns true if some of the manifest's tasks are in the given batch, which is not sent. */
+    boolean isWaitingFor(TaskBatch batch) {
+      return !batch.submitted && slices.stream().anyMatch(slice -> slice.batch == batch);
+    }
+  }
+
+  /** The tasks of one manifest which were sent in a given batch. */
+  private static final class TaskSlice {
+    private final TaskBatch batch;
+    private final int offset;
+    private final int count;
+
+    TaskSlice(TaskBatch batch, int offset, int count) {
+      this.batch = batch;
+      this.offset = offset;
+      this.count = count;
+    }
+
+    /**
+     * Adds the created tasks of this slice to {@code tasks}. Must only be called once the batch has
+     * completed.
+     *
+     * @throws StatusRuntimeException if a task of this slice could not be created
+     */
+    void addTasksTo(List<Task> tasks) {
+      for (int i = offset; i < offset + count; i++) {
+        if (batch.errors[i] != null) {
+          throw batch.errors[i];
+        }
+        tasks.add(batch.created[i]);
+      }
+    }
+  }
+
+  /**
+   * An existing vehicle which is given new journey segments, once the tasks it is given are
+   * created.
+   */
+  static final class VehicleUpdate {
+    private final String vehicleId;
+    private final BackendConfig.Task[] newTasks;
+    private final List<VehicleJourneySegment> segments;
+
+    VehicleUpdate(
+        String vehicleId, BackendConfig.Task[] newTasks, List<VehicleJourneySegment> segments) {
+      this.vehicleId = vehicleId;
+      this.newTasks = newTasks;
+      this.segments = segments;
+    }
+
+    String vehicleId() {
+      return vehicleId;
+    }
+
+    BackendConfig.Task[] newTasks() {
+      return newTasks;
+    }
+
+    List<VehicleJourneySegment> segments() {
+      return segments;
+    }
+  }
+
+  /** How the calls which fail with a transient error are retried. */
+  static final class RetryPolicy {
+    static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = 10_000;
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * Makes each call up to {@code maxAttempts} times, waiting between half and all of {@code
+     * initialBackoffMillis} before the first retry, twice as long before the next one, and so on,
+     * up to {@code maxBackoffMillis}.
+     */
+    RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+      this.maxAttempts = Math.max(maxAttempts, 1);
+      this.initialBackoffMillis = Math.max(initialBackoffMillis, 1);
+      this.maxBackoffMillis = Math.max(maxBackoffMillis, this.initialBackoffMillis);
+    }
+
+    static RetryPolicy withMaxAttempts(int maxAttempts) {
+      return new RetryPolicy(
+          maxAttempts, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  /** The Fleet Engine entities created for one manifest. */
+  static final class ProvisionedManifest {
+    private final List<Task> tasks;
+    private final DeliveryVehicle deliveryVehicle;
+
+    ProvisionedManifest(List<Task> tasks, DeliveryVehicle deliveryVehicle) {
+      this.tasks = tasks;
+      this.deliveryVehicle = deliveryVehicle;
+    }
+
+    List<Task> tasks() {
+      return tasks;
+    }
+
+    DeliveryVehicle deliveryVehicle() {
+      return deliveryVehicle;
+    }
+  }
+}
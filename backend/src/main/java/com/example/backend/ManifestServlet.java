@@ -14,9 +14,13 @@
  */
 package com.example.backend;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.example.backend.auth.grpcservice.AuthenticatedGrpcServiceProvider;
 import com.example.backend.json.BackendConfig;
 import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.json.BackendConfigProto;
+import com.example.backend.utils.ResourceNames;
 import com.example.backend.utils.ServletUtils;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -26,11 +30,14 @@ import com.google.maps.fleetengine.delivery.v1.UpdateDeliveryVehicleRequest;
 import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
 import com.google.maps.fleetengine.delivery.v1.VehicleStop;
 import com.google.protobuf.FieldMask;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Inject;
@@ -43,28 +50,47 @@ import javax.servlet.http.HttpServletResponse;
 @Singleton
 public final class ManifestServlet extends HttpServlet {
 
-  private final ServletState servletState;
+  private final DeliveryStateStore servletState;
   private static final Logger logger = Logger.getLogger(ManifestServlet.class.getName());
 
   private final AuthenticatedGrpcServiceProvider grpcServiceProvider;
+  private final ManifestCache manifestCache;
+  private final ChangeEvents changeEvents;
 
   @Inject
   public ManifestServlet(
-      ServletState servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
+      DeliveryStateStore servletState,
+      AuthenticatedGrpcServiceProvider grpcServiceProvider,
+      ChangeEvents changeEvents) {
     this.servletState = servletState;
     this.grpcServiceProvider = grpcServiceProvider;
+    this.manifestCache = new ManifestCache(servletState);
+    this.changeEvents = changeEvents;
   }
 
   /**
    * Fetches a manifest.
    *
    * <p>GET /manifest/:vehicleId
+   *
+   * <p>The manifest is in JSON, or in the protobuf format of {@code backend_config.proto} if the
+   * {@code Accept} header asks for {@code application/x-protobuf}. Errors are always in JSON.
+   *
+   * <p>The response has an ETag, which changes whenever the manifest does. If the request's {@code
+   * If-None-Match} header has the current ETag, the response is {@code 304 Not Modified}, without
+   * a body. Unchanged manifests are served without being serialized again; see {@link
+   * ManifestCache}.
+   *
+   * <p>GET /manifest/:vehicleId?since=:version
+   *
+   * <p>Returns only what changed since the given version of the manifest (the value of an ETag it
+   * was served with), so that clients holding a recent version download the changes rather than
+   * the whole manifest. See {@link #writeManifestChanges}.
    */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
-    PrintWriter responseWriter = response.getWriter();
 
     if (request.getPathInfo() == null) {
       logger.log(Level.WARNING, "The client attempted to get a vehicle without specifying its ID");
@@ -72,16 +98,26 @@ public final class ManifestServlet extends HttpServlet {
       return;
     }
     String vehicleId = request.getPathInfo().substring(1);
-    BackendConfig.Manifest manifest = servletState.getManifest(vehicleId);
-    if (manifest != null) {
-      responseWriter.print(BackendConfigGsonProvider.get().toJson(manifest));
-      responseWriter.flush();
-    } else {
+    String since = request.getParameter("since");
+    if (since != null) {
+      writeManifestChanges(vehicleId, since, response);
+      return;
+    }
+    ManifestCache.SerializedManifest manifest = manifestCache.get(vehicleId);
+    if (manifest == null) {
       logger.log(
           Level.WARNING,
           "The client attempted to retrieve the manifest for a non-existent vehicle");
       ServletUtils.setErrorResponse(response, "The requested manifest doesn't exist.", 404);
+      return;
     }
+    String etag = acceptsProtobuf(request) ? manifest.protobufEtag() : manifest.etag();
+    if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+      setCacheHeaders(response, etag);
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    writeManifest(manifest, request, response);
   }
 
   /**
@@ -94,9 +130,10 @@ public final class ManifestServlet extends HttpServlet {
    * <ul>
    *   <li>assignment of a manifest to a client, by setting client_id in the body. For this update,
    *       vehicleId is optional; when it is not supplied, the backend attempts to assign any
-   *       available vehicle to the client. All other updates require vehicleId to be set.
-   *       Assignment is an exclusive operation, and cannot be done in the same request as any of
-   *       the other updates.
+   *       available vehicle to the client, or, if the body also sets the driver's location, the
+   *       available vehicle whose manifest starts nearest to it. All other updates require
+   *       vehicleId to be set. Assignment is an exclusive operation, and cannot be done in the same
+   *       request as any of the other updates.
    *   <li>update of the vehicle's stop state, by setting current_stop_state in the body.
    *   <li>marking the vehicle's current stop as complete, by setting remaining_stop_id_list to a
    *       new list which is shorter than the previous version. This updates the state of all tasks
@@ -110,12 +147,17 @@ public final class ManifestServlet extends HttpServlet {
    * sample backend is implemented with Java's HttpServlet
    * (https://javaee.github.io/javaee-spec/javadocs/javax/servlet/http/HttpServlet.html) which does
    * not support PATCH. As such, for this operation, updates are supported via POST.
+   *
+   * <p>The body may also be a manifest in the protobuf format, with the {@code
+   * application/x-protobuf} content type, in which the fields above are set. The response is in
+   * the format asked for by the {@code Accept} header, like for GET.
+   *
+   * <p>Changes are published to the subscribers of the manifest; see {@link ChangeStreamServlet}.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
-    PrintWriter responseWriter = response.getWriter();
     DeliveryVehicle vehicle;
     String vehicleId;
     if (request.getPathInfo() == null || request.getPathInfo().equals("")) {
@@ -127,9 +169,24 @@ public final class ManifestServlet extends HttpServlet {
     logger.log(Level.INFO, String.format("manifest post with vehicleId (%s)", vehicleId));
 
     // Read the post body to figure out what to update. Right now, we only support assignment, or
-    // updating the vehicle status. The post body should just be a json object with keys.
-    JsonObject updates =
-        BackendConfigGsonProvider.get().fromJson(request.getReader(), JsonObject.class);
+    // updating the vehicle status. The post body should just be a json object with keys, or a
+    // protobuf manifest, whose set fields are turned into the same keys.
+    JsonObject updates;
+    String contentType = request.getContentType();
+    if (contentType != null && contentType.startsWith(BackendConfigProto.CONTENT_TYPE)) {
+      try {
+        updates =
+            BackendConfigGsonProvider.get()
+                .toJsonTree(BackendConfigProto.readManifest(request.getInputStream()))
+                .getAsJsonObject();
+      } catch (InvalidProtocolBufferException e) {
+        logger.log(Level.WARNING, "The client sent an invalid protobuf manifest update", e);
+        ServletUtils.setErrorResponse(response, "The update is not a valid manifest.", 400);
+        return;
+      }
+    } else {
+      updates = BackendConfigGsonProvider.get().fromJson(request.getReader(), JsonObject.class);
+    }
     if (updates == null) {
       updates = new JsonObject();
     }
@@ -171,16 +228,31 @@ public final class ManifestServlet extends HttpServlet {
         return;
       }
       logger.log(Level.INFO, String.format("clientId is %s", clientId));
+      BackendConfig.Waypoint location = null;
+      if (updates.has("location")) {
+        location = parseLocation(updates.get("location"));
+        if (location == null) {
+          logger.log(
+              Level.WARNING,
+              "The client requested a manifest assignment, but the location is invalid");
+          ServletUtils.setErrorResponse(
+              response, "The location must have a valid lat and lng.", 400);
+          return;
+        }
+      }
+      boolean wasAssigned = servletState.getDeliveryVehicleMapByClient(clientId) != null;
+      String assignedVehicleId;
       try {
-        vehicle = assignVehicleToClient(clientId, vehicleId);
+        assignedVehicleId = assignVehicleToClient(clientId, vehicleId, location);
       } catch (ManifestException e) {
         logger.log(Level.WARNING, e.getLogMessage());
         ServletUtils.setErrorResponse(response, e.getErrorMessage(), e.getErrorCode());
         return;
       }
-      BackendConfig.Manifest manifest =
-          servletState.getManifest(ServletState.getId(vehicle.getName()));
-      responseWriter.print(BackendConfigGsonProvider.get().toJson(manifest));
+      if (!wasAssigned) {
+        changeEvents.publishManifestChange(assignedVehicleId, null);
+      }
+      writeManifest(manifestCache.get(assignedVehicleId), request, response);
       return;
     }
 
@@ -197,45 +269,243 @@ public final class ManifestServlet extends HttpServlet {
       return;
     }
 
-    // The following operations can be specified in the same update message, but currently they
-    // are not implemented in an atomic manner. If both remaining_stop_id_list and
-    // current_stop_state are specified, the remaining_stop_id_list update must go first, and the
-    // current_stop_state update will manipulate the state of the first stop AFTER the
-    // remaining_stop_id_list update is complete.
-
-    // Update the list of remaining stop IDs. The request body must have the
-    // "remaining_stop_id_list" field and its value must be a list of stop IDs.
-    if (hasStopIdListUpdate) {
-      ArrayList<String> stopIdList = new ArrayList<>();
-      for (JsonElement e : updates.get("remaining_stop_id_list").getAsJsonArray()) {
-        stopIdList.add(e.getAsString());
+    // Updates are computed from the vehicle and sent to Fleet Engine before they are stored, so
+    // they are applied under a claim of the manifest, and concurrent updates do not overwrite each
+    // other. A conflicting update fails at once, without calling Fleet Engine: with 412 if it has
+    // an If-Match header, which lacks the current ETag or raced another update, and 409 otherwise.
+    // Reads never wait for updates.
+    String expectedVersion =
+        expectedVersion(request.getHeader("If-Match"), servletState.getManifestVersion(vehicleId));
+    try (DeliveryStateStore.ManifestUpdate update =
+        servletState.beginManifestUpdate(vehicleId, expectedVersion)) {
+      if (update == null) {
+        logger.log(
+            Level.WARNING,
+            String.format("The client sent a conflicting update of the manifest of %s", vehicleId));
+        if (expectedVersion != null) {
+          ServletUtils.setErrorResponse(
+              response, "The manifest has changed, or is being updated.", 412);
+        } else {
+          ServletUtils.setErrorResponse(response, "The manifest is being updated.", 409);
+        }
+        return;
       }
-      try {
-        vehicle = updateVehicleStopList(vehicle, stopIdList);
-      } catch (ManifestException e) {
-        logger.log(Level.WARNING, e.getLogMessage());
-        ServletUtils.setErrorResponse(response, e.getErrorMessage(), e.getErrorCode());
+
+      // Subscribers to the manifest's changes are sent what changed since this version. The
+      // vehicle is read again, as no other update can change it from now on.
+      String previousVersion = servletState.getManifestVersion(vehicleId);
+      vehicle = servletState.getDeliveryVehicleById(vehicleId);
+      if (vehicle == null) {
+        ServletUtils.setErrorResponse(response, "The vehicle ID matched no vehicles.", 404);
         return;
       }
+
+      // The following operations can be specified in the same update message. They are applied
+      // one after the other, and each is visible to readers once applied. If both
+      // remaining_stop_id_list and current_stop_state are specified, the remaining_stop_id_list
+      // update must go first, and the current_stop_state update will manipulate the state of the
+      // first stop AFTER the remaining_stop_id_list update is complete.
+
+      // Update the list of remaining stop IDs. The request body must have the
+      // "remaining_stop_id_list" field and its value must be a list of stop IDs.
+      if (hasStopIdListUpdate) {
+        ArrayList<String> stopIdList = new ArrayList<>();
+        for (JsonElement e : updates.get("remaining_stop_id_list").getAsJsonArray()) {
+          stopIdList.add(e.getAsString());
+        }
+        try {
+          vehicle = updateVehicleStopList(vehicleId, vehicle, stopIdList);
+        } catch (ManifestException e) {
+          logger.log(Level.WARNING, e.getLogMessage());
+          ServletUtils.setErrorResponse(response, e.getErrorMessage(), e.getErrorCode());
+          return;
+        }
+      }
+
+      // Update the current stop state. The request body must have the "current_stop_state" field
+      // and its value must be one of the enum values in VehicleStop.State.
+      if (hasStopStateUpdate) {
+        String stopStateName = updates.get("current_stop_state").getAsString();
+        try {
+          vehicle = updateVehicleStopState(vehicleId, vehicle, stopStateName);
+        } catch (ManifestException e) {
+          logger.log(Level.WARNING, e.getLogMessage());
+          ServletUtils.setErrorResponse(response, e.getErrorMessage(), e.getErrorCode());
+          // The stop list may have been updated already.
+          publishManifestChange(vehicleId, previousVersion);
+          return;
+        }
+      }
+
+      publishManifestChange(vehicleId, previousVersion);
     }
 
-    // Update the current stop state. The request body must have the "current_stop_state" field
-    // and its value must be one of the enum values in VehicleStop.State.
-    if (hasStopStateUpdate) {
-      String stopStateName = updates.get("current_stop_state").getAsString();
-      try {
-        vehicle = updateVehicleStopState(vehicle, stopStateName);
-      } catch (ManifestException e) {
-        logger.log(Level.WARNING, e.getLogMessage());
-        ServletUtils.setErrorResponse(response, e.getErrorMessage(), e.getErrorCode());
+    // After all non-mutually-exclusive updates are processed, return the most up to date manifest.
+    writeManifest(manifestCache.get(vehicleId), request, response);
+  }
+
+  /** Publishes a change to the vehicle's manifest, if it changed since the given version. */
+  private void publishManifestChange(String vehicleId, String previousVersion) {
+    if (!Objects.equals(servletState.getManifestVersion(vehicleId), previousVersion)) {
+      changeEvents.publishManifestChange(vehicleId, previousVersion);
+    }
+  }
+
+  /**
+   * Writes the changes to a manifest since a version, as a JSON object with the current {@code
+   * version} of the manifest, and either:
+   *
+   * <ul>
+   *   <li>{@code changes}: the fields of the manifest that changed, with their current values. Of
+   *       its stops, only those that changed are included, and the IDs of the tasks removed from
+   *       them are listed in {@code closed_task_ids}.
+   *   <li>{@code manifest}: the whole manifest, if the changes since the version are not known,
+   *       because it is too old or comes from another backend instance or upload.
+   * </ul>
+   *
+   * <p>If the manifest has not changed since the version, the response is {@code 304 Not
+   * Modified}, without a body. The response is always in JSON.
+   */
+  private void writeManifestChanges(
+      String vehicleId, String sinceVersion, HttpServletResponse response) throws IOException {
+    response.setHeader("Cache-Control", "no-cache");
+    ManifestChanges changes = servletState.getManifestChanges(vehicleId, versionOf(sinceVersion));
+    // The manifest is read after its changes, so it is at least as recent as their version.
+    BackendConfig.Manifest manifest =
+        changes == null ? null : servletState.getManifest(vehicleId);
+    if (manifest != null) {
+      if (changes.isEmpty()) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
         return;
       }
+      JsonObject body = new JsonObject();
+      body.addProperty("version", changes.version());
+      body.add("changes", changes.toJson(manifest, BackendConfigGsonProvider.get()));
+      PrintWriter responseWriter = response.getWriter();
+      responseWriter.print(BackendConfigGsonProvider.get().toJson(body));
+      responseWriter.flush();
+      return;
     }
 
-    // After all non-mutually-exclusive updates are processed, return the most up to date manifest.
-    BackendConfig.Manifest manifest = servletState.getManifest(vehicleId);
-    responseWriter.print(BackendConfigGsonProvider.get().toJson(manifest));
-    responseWriter.flush();
+    ManifestCache.SerializedManifest serialized = manifestCache.get(vehicleId);
+    if (serialized == null) {
+      logger.log(
+          Level.WARNING,
+          "The client attempted to retrieve changes to the manifest for a non-existent vehicle");
+      ServletUtils.setErrorResponse(response, "The requested manifest doesn't exist.", 404);
+      return;
+    }
+    // The cached JSON of the manifest is written as is, rather than parsed into the response.
+    ByteArrayOutputStream body = new ByteArrayOutputStream(serialized.json().length + 64);
+    String version = BackendConfigGsonProvider.get().toJson(serialized.version());
+    body.write(("{\"version\":" + version + ",\"manifest\":").getBytes(UTF_8));
+    body.write(serialized.json());
+    body.write('}');
+    response.setContentLength(body.size());
+    body.writeTo(response.getOutputStream());
+  }
+
+  /**
+   * Returns the manifest version of a {@code since} parameter, which may also be one of the ETags
+   * of the manifest.
+   */
+  static String versionOf(String since) {
+    String version = since.trim();
+    if (version.startsWith("W/")) {
+      version = version.substring(2);
+    }
+    if (version.length() >= 2 && version.startsWith("\"") && version.endsWith("\"")) {
+      version = version.substring(1, version.length() - 1);
+    }
+    if (version.endsWith(".pb")) {
+      version = version.substring(0, version.length() - ".pb".length());
+    }
+    return version;
+  }
+
+  /**
+   * Writes a manifest, with its ETag, in JSON, or in the protobuf format if the {@code Accept}
+   * header of the request asks for it. A missing manifest is written as JSON {@code null}.
+   */
+  private static void writeManifest(
+      ManifestCache.SerializedManifest manifest,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
+    if (manifest == null) {
+      PrintWriter responseWriter = response.getWriter();
+      responseWriter.print(BackendConfigGsonProvider.get().toJson(null));
+      responseWriter.flush();
+      return;
+    }
+    byte[] body;
+    if (acceptsProtobuf(request)) {
+      body = BackendConfigProto.toByteArray(manifest.manifest());
+      response.setContentType(BackendConfigProto.CONTENT_TYPE);
+      setCacheHeaders(response, manifest.protobufEtag());
+    } else {
+      body = manifest.json();
+      setCacheHeaders(response, manifest.etag());
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+
+  private static boolean acceptsProtobuf(HttpServletRequest request) {
+    String accept = request.getHeader("Accept");
+    return accept != null && accept.contains(BackendConfigProto.CONTENT_TYPE);
+  }
+
+  /**
+   * Sets the ETag of a manifest response. Caches must check with the backend before reusing the
+   * response, and keep the JSON and protobuf forms apart.
+   */
+  private static void setCacheHeaders(HttpServletResponse response, String etag) {
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", "no-cache");
+    response.setHeader("Vary", "Accept");
+  }
+
+  /**
+   * Returns whether an {@code If-None-Match} header matches an ETag: whether it is {@code *}, or
+   * lists the ETag. ETags are compared weakly, as the header requires.
+   */
+  static boolean matchesEtag(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the manifest version an {@code If-Match} header requires: null if there is no header;
+   * {@link DeliveryStateStore#ANY_VERSION} if it is {@code *}; the current version if the header
+   * lists one of its ETags; and otherwise an empty version, which no manifest has. Weak ETags never
+   * match, as the header requires.
+   */
+  static String expectedVersion(String ifMatch, String currentVersion) {
+    if (ifMatch == null) {
+      return null;
+    }
+    if (ifMatch.trim().equals("*")) {
+      return DeliveryStateStore.ANY_VERSION;
+    }
+    for (String candidate : ifMatch.split(",")) {
+      candidate = candidate.trim();
+      if (!candidate.startsWith("W/") && versionOf(candidate).equals(currentVersion)) {
+        return currentVersion;
+      }
+    }
+    return "";
   }
 
   /**
@@ -243,14 +513,16 @@ public final class ManifestServlet extends HttpServlet {
    *
    * @param clientId The ID of the client.
    * @param vehicleId The ID of the vehicle.
-   * @return The assigned vehicle.
+   * @param location Where the driver is, to assign the nearest vehicle when no vehicle ID is
+   *     given. Null if not known.
+   * @return The ID of the assigned vehicle.
    * @throws ManifestException if the vehicle could not be assigned to the client.
    */
-  private DeliveryVehicle assignVehicleToClient(String clientId, String vehicleId)
+  private String assignVehicleToClient(
+      String clientId, String vehicleId, BackendConfig.Waypoint location)
       throws ManifestException {
     // Assignment does not require a vehicleId; but if a vehicleId is supplied, attempt to use it.
     String existingVehicleId = servletState.getDeliveryVehicleMapByClient(clientId);
-    DeliveryVehicle vehicle;
 
     if (existingVehicleId != null) {
       // If the client is already assigned another vehicle...
@@ -261,42 +533,73 @@ public final class ManifestServlet extends HttpServlet {
             403);
       }
 
-      vehicle = servletState.getDeliveryVehicleById(existingVehicleId);
-      if (vehicle == null) {
+      if (!servletState.hasDeliveryVehicle(existingVehicleId)) {
         throw new ManifestException(
             "The client\'s assigned vehicle doesn't exist.",
             "The requested vehicle doesn't exist.",
             404);
       }
+      return existingVehicleId;
     } else if (vehicleId.equals("")) {
-      // If vehicleId is null, assign the next available vehicle
-      vehicle = servletState.getAnyAvailableDeliveryVehicle();
+      // If vehicleId is null, assign the available vehicle nearest to the driver, if the driver's
+      // location is known and there is a vehicle whose manifest has a location; otherwise, assign
+      // the next available vehicle.
+      DeliveryVehicle vehicle = null;
+      if (location != null) {
+        vehicle =
+            servletState.claimNearestAvailableDeliveryVehicle(clientId, location.lat, location.lng);
+      }
+      if (vehicle == null) {
+        vehicle = servletState.claimAnyAvailableDeliveryVehicle(clientId);
+      }
       if (vehicle == null) {
         throw new ManifestException(
             "The client requested a vehicle for assignment, but none were available.",
             "There are no available vehicles for assignment.",
             404);
       }
+      return ResourceNames.getId(vehicle.getName());
     } else {
       // If vehicleId is not null, attempt to assign that vehicle
-      vehicle = servletState.getDeliveryVehicleById(vehicleId);
-      if (vehicle == null) {
+      if (!servletState.hasDeliveryVehicle(vehicleId)) {
         throw new ManifestException(
             "The client attempted to request a non-existent vehicle",
             "The requested vehicle doesn't exist.",
             404);
       }
-      if (servletState.isDeliveryVehicleAssigned(vehicleId)) {
+      if (!servletState.addClientToDeliveryVehicleMap(clientId, vehicleId)) {
         throw new ManifestException(
             "The client attempted to request a vehicle that is currently assigned",
             "The requested vehicle is currently assigned.",
             403);
       }
+      // The vehicle is now assigned to the client, or was already assigned to the same client.
+      return vehicleId;
     }
+  }
 
-    // We have a vehicle available for assignment, or is already assigned to the same vehicle.
-    servletState.addClientToDeliveryVehicleMap(clientId, vehicle);
-    return vehicle;
+  /**
+   * Returns the location of an assignment request, a JSON object with numeric {@code lat} and
+   * {@code lng} fields in degrees, or null if it is not valid.
+   */
+  static BackendConfig.Waypoint parseLocation(JsonElement json) {
+    if (!json.isJsonObject()) {
+      return null;
+    }
+    JsonObject object = json.getAsJsonObject();
+    for (String field : new String[] {"lat", "lng"}) {
+      if (!object.has(field)
+          || !object.get(field).isJsonPrimitive()
+          || !object.getAsJsonPrimitive(field).isNumber()) {
+        return null;
+      }
+    }
+    BackendConfig.Waypoint location =
+        BackendConfigGsonProvider.get().fromJson(object, BackendConfig.Waypoint.class);
+    if (!(Math.abs(location.lat) <= 90 && Math.abs(location.lng) <= 180)) {
+      return null;
+    }
+    return location;
   }
 
   /**
@@ -304,8 +607,8 @@ public final class ManifestServlet extends HttpServlet {
    *
    * @throws ManifestException If the update fails.
    */
-  private DeliveryVehicle updateVehicleStopState(DeliveryVehicle vehicle, String stopStateName)
-      throws ManifestException {
+  private DeliveryVehicle updateVehicleStopState(
+      String vehicleId, DeliveryVehicle vehicle, String stopStateName) throws ManifestException {
     VehicleStop.State state;
     switch (stopStateName) {
       case "STATE_UNSPECIFIED":
@@ -339,22 +642,20 @@ public final class ManifestServlet extends HttpServlet {
         grpcServiceProvider.getAuthenticatedDeliveryService();
     DeliveryVehicle responseVehicle = authenticatedDeliveryService.updateDeliveryVehicle(updateReq);
     servletState.addDeliveryVehicle(responseVehicle);
-    String vehicleId = ServletState.getId(vehicle.getName());
     BackendConfig.StopState backendConfigStopState = BackendConfig.StopState.of(stopStateName);
     logger.log(
         Level.INFO,
         String.format(
             "updating manifest with vehicle ID %s and stop state %s",
             vehicleId, backendConfigStopState.getValue()));
-    servletState.getManifest(vehicleId).currentStopState = backendConfigStopState;
+    servletState.updateManifestStopState(vehicleId, backendConfigStopState);
 
     return responseVehicle;
   }
 
-  private DeliveryVehicle updateVehicleStopList(DeliveryVehicle vehicle, List<String> stopIds)
-      throws ManifestException {
+  private DeliveryVehicle updateVehicleStopList(
+      String vehicleId, DeliveryVehicle vehicle, List<String> stopIds) throws ManifestException {
 
-    String vehicleId = ServletState.getId(vehicle.getName());
     BackendConfig.Manifest manifest = servletState.getManifest(vehicleId);
 
     // stopIds must be a subset of the existing set of remaining stopIds. To check this, create a
@@ -398,7 +699,7 @@ public final class ManifestServlet extends HttpServlet {
     DeliveryVehicle responseVehicle = authenticatedDeliveryService.updateDeliveryVehicle(updateReq);
     servletState.addDeliveryVehicle(responseVehicle);
 
-    manifest.remainingStopIdList = stopIds.toArray(new String[0]);
+    servletState.updateManifestRemainingStopIdList(vehicleId, stopIds.toArray(new String[0]));
     return responseVehicle;
   }
 
@@ -17,11 +17,26 @@ package com.example.backend;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
+import javax.servlet.ServletContextEvent;
 
-/** ContextListener for sample backend. This is where injection starts. */
+/**
+ * ContextListener for sample backend. This is where injection starts, and where the background
+ * threads of the injected singletons are stopped once the backend is shut down.
+ */
 public final class SampleBackendGuiceServletContextListener extends GuiceServletContextListener {
 
+  private Injector injector;
+
   @Override protected Injector getInjector() {
-    return Guice.createInjector(new SampleServletModule());
+    injector = Guice.createInjector(new SampleServletModule());
+    return injector;
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    if (injector != null) {
+      injector.getInstance(ChangeEvents.class).close();
+    }
+    super.contextDestroyed(servletContextEvent);
   }
 }
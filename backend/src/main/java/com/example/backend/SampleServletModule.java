@@ -24,11 +24,15 @@ public final class SampleServletModule extends ServletModule {
   protected void configureServlets() {
     super.configureServlets();
     install(new GrpcServiceModule());
+    install(new StateStoreModule());
     serve("/token/*").with(TokenServlet.class);
     serve("/tasks", "/task/*", "/taskInfoByTrackingId/*").with(TaskServlet.class);
     serve("/delivery_vehicle/*").with(DeliveryVehicleServlet.class);
     serve("/backend_config").with(BackendConfigServlet.class);
+    serve("/backend_config/jobs/*").with(UploadJobServlet.class);
     serve("/manifest", "/manifest/*").with(ManifestServlet.class);
     serve("/config.js").with(JavaScriptConfigServlet.class);
+    serve("/state_stats").with(StateStatsServlet.class);
+    serve("/events").with(ChangeStreamServlet.class);
   }
 }
@@ -15,154 +15,733 @@
 package com.example.backend;
 
 import com.example.backend.json.BackendConfig;
+import com.example.backend.utils.BackendProperties;
+import com.example.backend.utils.ResourceNames;
+import com.example.backend.utils.SampleBackendUtils;
+import com.google.common.util.concurrent.Striped;
 import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
 import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Singleton;
 
 /**
- * Shared state among the servlets.
+ * Shared state among the servlets, held in the memory of this backend instance.
  *
  * <p>Stores data related to the most recently uploaded manifest.
  *
+ * <p>The tasks, vehicles, assignments and backend config of an upload form a {@link Generation}.
+ * A new upload is built off to the side with a {@link GenerationBuilder}, and replaces the current
+ * generation with a single atomic reference swap, so readers see either the old generation or the
+ * new one in full, never a mix or an empty state.
+ *
+ * <p>Tasks and vehicles are kept in their serialized form, and parsed when they are read. Task IDs
+ * are interned by the generation's {@link TaskTable}, and shared with the backend config indexes.
+ *
+ * <p>Reads do not take any lock: they dereference the current generation once, and then read its
+ * concurrent maps and immutable indexes. Writes that touch a manifest are serialized per vehicle,
+ * so updates to unrelated vehicles do not contend with each other.
+ *
+ * <p>If a state journal directory is configured, every mutation is also written to a {@link
+ * StateJournal}, and the state is rebuilt from it when the backend restarts.
+ *
+ * <p>Closed tasks, and manifests with no remaining stops, are evicted according to a {@link
+ * Retention} policy, so a long-running backend does not grow without bound. Evictions are not
+ * journaled: after a restart, the replayed tasks and manifests are retained for another full
+ * period. Callers should treat a task missing from the state as possibly evicted, and fall back to
+ * Fleet Engine.
+ *
  * <p>This class demonstrates the kind of data stored in a backend used for LMFS, and should not be
  * taken as a reference of a production environment.
  */
 @Singleton
-class ServletState {
+class ServletState implements DeliveryStateStore {
+  private static final int VEHICLE_LOCK_STRIPES = 64;
+  private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
   private final Logger logger = Logger.getLogger(ServletState.class.getName());
-  private BackendConfig backendConfig;
-  private HashMap<String, Task> tasks;
-  private HashMap<String, DeliveryVehicle> deliveryVehicles;
-  private HashMap<String, String> clientToDeliveryVehicleMapping;
+  private final LongSupplier clock;
+  private final Retention retention;
+  private final AtomicReference<Generation> generation;
+  private final Striped<Lock> vehicleLocks;
+
+  // Manifest versions are taken from a counter which starts over with each instance, so they are
+  // prefixed with when the instance was created.
+  private final String manifestVersionPrefix =
+      Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + ".";
+  private final AtomicLong manifestVersions = new AtomicLong();
+
+  // The claims of the manifest updates in progress, by vehicle ID. They are not journaled.
+  private final ConcurrentHashMap<String, Object> manifestUpdates = new ConcurrentHashMap<>();
+
+  // Held by the thread sweeping for evictions; other writers skip the sweep rather than wait.
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private volatile long nextEvictionMillis;
+  private final AtomicLong evictedTaskCount = new AtomicLong();
+  private final AtomicLong evictedManifestCount = new AtomicLong();
+
+  // Null unless persistence is enabled in the backend properties.
+  private final StateJournal journal;
 
   public ServletState() {
-    this.tasks = new HashMap<>();
-    this.deliveryVehicles = new HashMap<>();
-    this.clientToDeliveryVehicleMapping = new HashMap<>();
+    this(
+        SampleBackendUtils.backendProperties.stateJournalDirectory(),
+        SampleBackendUtils.backendProperties.stateSnapshotIntervalEntries(),
+        Retention.fromProperties(SampleBackendUtils.backendProperties),
+        System::currentTimeMillis);
+  }
+
+  /**
+   * Creates the servlet state. If {@code journalDirectory} is not empty, every mutation is
+   * journaled there, and the state is first rebuilt from the snapshot and journals it holds.
+   * Nothing is evicted.
+   */
+  ServletState(String journalDirectory, int snapshotIntervalEntries) {
+    this(journalDirectory, snapshotIntervalEntries, Retention.UNLIMITED, System::currentTimeMillis);
+  }
+
+  /**
+   * Creates the servlet state, which evicts closed tasks and finished manifests according to
+   * {@code retention}, measuring their age with {@code clock} (in milliseconds).
+   */
+  ServletState(
+      String journalDirectory,
+      int snapshotIntervalEntries,
+      Retention retention,
+      LongSupplier clock) {
+    this.clock = clock;
+    this.retention = retention;
+    this.generation =
+        new AtomicReference<>(new GenerationBuilder(clock, manifestVersions).build());
+    this.vehicleLocks = Striped.lock(VEHICLE_LOCK_STRIPES);
+    this.journal =
+        StateJournal.open(
+            journalDirectory, snapshotIntervalEntries, this::apply, this::snapshotEntries);
+  }
+
+  /**
+   * Returns a builder for a new generation of the delivery state. The current generation stays
+   * readable and writable until the new one is passed to {@link #publish}.
+   */
+  @Override
+  public GenerationBuilder newGeneration() {
+    return new GenerationBuilder(clock, manifestVersions);
+  }
+
+  /**
+   * Replaces the current generation (tasks, vehicles, assignments and backend config) with the
+   * given one. Readers see the new generation as a whole as soon as this returns.
+   */
+  @Override
+  public void publish(DeliveryStateStore.GenerationBuilder builder) {
+    if (!(builder instanceof GenerationBuilder)) {
+      throw new IllegalArgumentException("The generation was not built by this servlet state");
+    }
+    Generation next = ((GenerationBuilder) builder).build();
+    write(StateJournal.Entry.generation(next.entries()), entry -> publish(next));
+    evictIfDue();
+  }
+
+  private boolean publish(Generation next) {
+    generation.set(next);
+    return true;
+  }
+
+  /**
+   * Adds a delivery vehicle into the servlet state. A vehicle that is added for the first time and
+   * is not assigned becomes available for assignment.
+   */
+  @Override
+  public void addDeliveryVehicle(DeliveryVehicle deliveryVehicle) {
+    write(StateJournal.Entry.deliveryVehicle(deliveryVehicle));
   }
 
-  /** Adds a delivery vehicle into the servlet state. */
-  public synchronized void addDeliveryVehicle(DeliveryVehicle deliveryVehicle) {
-    this.deliveryVehicles.put(getId(deliveryVehicle.getName()), deliveryVehicle);
+  /**
+   * Removes a delivery vehicle, and its assignment to a client, if any. The vehicle can no longer
+   * be claimed.
+   */
+  @Override
+  public void removeDeliveryVehicle(String vehicleId) {
+    write(StateJournal.Entry.removeDeliveryVehicle(vehicleId));
+  }
+
+  private void applyRemoveDeliveryVehicle(String vehicleId) {
+    Lock lock = vehicleLocks.get(vehicleId);
+    lock.lock();
+    try {
+      Generation current = generation.get();
+      // The vehicle is left in the queue of unassigned vehicles; claims skip missing vehicles.
+      current.deliveryVehicles.remove(vehicleId);
+      current.backendConfigIndex.locations.remove(vehicleId);
+      String clientId = current.deliveryVehicleToClientMapping.remove(vehicleId);
+      if (clientId != null) {
+        current.clientToDeliveryVehicleMapping.remove(clientId, vehicleId);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   /** Retrieves a delivery vehicle by ID. Null if vehicle ID doesn't match any vehicle. */
-  public synchronized DeliveryVehicle getDeliveryVehicleById(String vehicleId) {
-    return deliveryVehicles.get(vehicleId);
+  @Override
+  public DeliveryVehicle getDeliveryVehicleById(String vehicleId) {
+    return parseDeliveryVehicle(generation.get().deliveryVehicles.get(vehicleId));
+  }
+
+  /** Returns true if there is a vehicle with the given ID. Cheaper than getDeliveryVehicleById. */
+  @Override
+  public boolean hasDeliveryVehicle(String vehicleId) {
+    return generation.get().deliveryVehicles.containsKey(vehicleId);
   }
 
   /**
    * Adds a task into the servlet state. If a task with the ID is already present, it is
    * overwritten.
    */
-  public synchronized void addTask(Task task) {
-    this.tasks.put(getId(task.getName()), task);
+  @Override
+  public void addTask(Task task) {
+    write(StateJournal.Entry.task(task));
+  }
+
+  /**
+   * Replaces a task held in the servlet state. The check and the replacement are done together by
+   * the task table, so a task evicted in between is not stored again.
+   */
+  @Override
+  public boolean replaceTask(Task task) {
+    boolean replaced =
+        write(StateJournal.Entry.task(task), entry -> generation.get().tasks.replace(entry.task()));
+    evictIfDue();
+    return replaced;
   }
 
   /** Retrieves a task by ID. Null if task ID doesn't match any task. */
-  public synchronized Task getTaskById(String taskId) {
-    return tasks.get(taskId);
+  @Override
+  public Task getTaskById(String taskId) {
+    return generation.get().tasks.get(taskId);
+  }
+
+  /** Returns true if the task was evicted recently; see {@link TaskTable#wasEvicted}. */
+  @Override
+  public boolean wasTaskEvicted(String taskId) {
+    return generation.get().tasks.wasEvicted(taskId);
+  }
+
+  /** Returns true if there is a task with the given ID. Cheaper than {@link #getTaskById}. */
+  @Override
+  public boolean hasTask(String taskId) {
+    return generation.get().tasks.contains(taskId);
+  }
+
+  /** Returns the outcome of the task with the given ID. Null if the ID doesn't match any task. */
+  @Override
+  public Task.TaskOutcome getTaskOutcome(String taskId) {
+    return generation.get().tasks.getOutcome(taskId);
+  }
+
+  /** Returns the number of tasks currently held, closed or not. */
+  @Override
+  public int getTaskCount() {
+    return generation.get().tasks.size();
+  }
+
+  /** Returns the number of closed tasks currently held. */
+  @Override
+  public int getClosedTaskCount() {
+    return generation.get().tasks.closedSize();
+  }
+
+  /** Returns the number of manifests currently held. */
+  @Override
+  public int getManifestCount() {
+    return generation.get().backendConfigIndex.manifestsByVehicleId.size();
+  }
+
+  /** Returns the number of manifests currently held which have no remaining stops. */
+  @Override
+  public int getFinishedManifestCount() {
+    return generation.get().backendConfigIndex.finishedManifestCount();
+  }
+
+  /** Returns the number of closed tasks evicted since the backend started. */
+  @Override
+  public long getEvictedTaskCount() {
+    return evictedTaskCount.get();
+  }
+
+  /** Returns the number of finished manifests evicted since the backend started. */
+  @Override
+  public long getEvictedManifestCount() {
+    return evictedManifestCount.get();
   }
 
   /**
    * Adds a client into the assignment list. The client is the courier servicing this set of tasks.
+   *
+   * <p>Assignment is atomic: a vehicle is assigned to at most one client, and a client to at most
+   * one vehicle.
+   *
+   * @return true if the vehicle is now assigned to the client, false if either the vehicle or the
+   *     client already had another assignment.
    */
-  public synchronized void addClientToDeliveryVehicleMap(String clientId, DeliveryVehicle vehicle) {
-    String vehicleId = getId(vehicle.getName());
-    if (!isDeliveryVehicleAssigned(vehicleId)) {
-      clientToDeliveryVehicleMapping.put(clientId, vehicleId);
-      getManifest(vehicleId).clientId = clientId;
-    }
+  public boolean addClientToDeliveryVehicleMap(String clientId, DeliveryVehicle vehicle) {
+    return addClientToDeliveryVehicleMap(clientId, getId(vehicle.getName()));
+  }
+
+  /** Same as {@link #addClientToDeliveryVehicleMap(String, DeliveryVehicle)}, by vehicle ID. */
+  @Override
+  public boolean addClientToDeliveryVehicleMap(String clientId, String vehicleId) {
+    return write(StateJournal.Entry.assignment(clientId, vehicleId));
   }
 
   /** Retrieves the vehicle mapped to a client. */
-  public synchronized String getDeliveryVehicleMapByClient(String clientIdentifier) {
-    return clientToDeliveryVehicleMapping.get(clientIdentifier);
+  @Override
+  public String getDeliveryVehicleMapByClient(String clientIdentifier) {
+    return generation.get().clientToDeliveryVehicleMapping.get(clientIdentifier);
   }
 
   /** Returns true if the vehicle is mapped to a client. */
-  public synchronized boolean isDeliveryVehicleAssigned(String vehicleId) {
-    return clientToDeliveryVehicleMapping.containsValue(vehicleId);
+  public boolean isDeliveryVehicleAssigned(String vehicleId) {
+    return generation.get().deliveryVehicleToClientMapping.containsKey(vehicleId);
   }
 
-  /** Retrieves any available (unassigned) vehicle. If all vehicles are assigned, returns null. */
-  public synchronized DeliveryVehicle getAnyAvailableDeliveryVehicle() {
-    for (DeliveryVehicle vehicle : deliveryVehicles.values()) {
-      if (!isDeliveryVehicleAssigned(getId(vehicle.getName()))) {
-        return vehicle;
+  /**
+   * Assigns any available (unassigned) vehicle to the client, and returns it. If all vehicles are
+   * assigned, returns null.
+   */
+  @Override
+  public DeliveryVehicle claimAnyAvailableDeliveryVehicle(String clientId) {
+    Generation current = generation.get();
+    // Vehicles that were assigned by ID after being queued are still in the queue; they are
+    // skipped here rather than searched for when they are assigned.
+    String vehicleId;
+    while ((vehicleId = current.unassignedDeliveryVehicleIds.poll()) != null) {
+      byte[] vehicle = current.deliveryVehicles.get(vehicleId);
+      if (vehicle != null && write(StateJournal.Entry.assignment(clientId, vehicleId))) {
+        return parseDeliveryVehicle(vehicle);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Assigns the available vehicle whose manifest starts nearest to a location to the client, and
+   * returns it. The manifest is found in the {@link ManifestLocationIndex} of the backend config;
+   * vehicles without a located manifest are not considered. If none is available, returns null.
+   */
+  @Override
+  public DeliveryVehicle claimNearestAvailableDeliveryVehicle(
+      String clientId, double lat, double lng) {
+    Generation current = generation.get();
+    ManifestLocationIndex locations = current.backendConfigIndex.locations;
+    String vehicleId;
+    while ((vehicleId = locations.nearest(lat, lng)) != null) {
+      byte[] vehicle = current.deliveryVehicles.get(vehicleId);
+      if (vehicle == null || current.deliveryVehicleToClientMapping.containsKey(vehicleId)) {
+        // The vehicle was removed, or assigned while the backend config was being replaced.
+        locations.remove(vehicleId);
+        continue;
       }
+      if (write(StateJournal.Entry.assignment(clientId, vehicleId))) {
+        return parseDeliveryVehicle(vehicle);
+      }
+      if (current.clientToDeliveryVehicleMapping.containsKey(clientId)) {
+        // The client was concurrently assigned another vehicle.
+        return null;
+      }
+      // Otherwise the vehicle was claimed concurrently, and is no longer in the index.
     }
     return null;
   }
 
-  public synchronized void setBackendConfig(BackendConfig backendConfig) {
-    this.backendConfig = backendConfig;
+  private boolean assign(String clientId, String vehicleId) {
+    Lock lock = vehicleLocks.get(vehicleId);
+    lock.lock();
+    try {
+      Generation current = generation.get();
+      if (current.deliveryVehicleToClientMapping.putIfAbsent(vehicleId, clientId) != null) {
+        return clientId.equals(current.deliveryVehicleToClientMapping.get(vehicleId));
+      }
+      if (current.clientToDeliveryVehicleMapping.putIfAbsent(clientId, vehicleId) != null) {
+        // The client was concurrently assigned another vehicle; release this one.
+        current.deliveryVehicleToClientMapping.remove(vehicleId, clientId);
+        current.unassignedDeliveryVehicleIds.add(vehicleId);
+        return false;
+      }
+      current.backendConfigIndex.locations.remove(vehicleId);
+      BackendConfig.Manifest manifest =
+          current.backendConfigIndex.manifestsByVehicleId.get(vehicleId);
+      if (manifest != null) {
+        manifest.clientId = clientId;
+        current
+            .backendConfigIndex
+            .changeLog(vehicleId)
+            .clientIdChanged(manifestVersions.incrementAndGet());
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the backend config of the current generation, and rebuilds the vehicle, task and
+   * tracking ID indexes over its manifests. If an ID appears more than once, the first occurrence
+   * wins. Tasks, vehicles and assignments are kept; to replace them too, use {@link
+   * #newGeneration}.
+   *
+   * <p>The config and its indexes are published together, so readers never see a config with the
+   * indexes of another one.
+   */
+  @Override
+  public void setBackendConfig(BackendConfig backendConfig) {
+    write(StateJournal.Entry.backendConfig(backendConfig));
+  }
+
+  @Override
+  public BackendConfig.Manifest getManifest(String vehicleId) {
+    logger.log(Level.FINE, "getting manifest for {0}", vehicleId);
+    return generation.get().backendConfigIndex.manifestsByVehicleId.get(vehicleId);
+  }
+
+  @Override
+  public List<BackendConfig.Manifest> getManifests() {
+    BackendConfig backendConfig = generation.get().backendConfigIndex.backendConfig;
+    if (backendConfig == null || backendConfig.manifests == null) {
+      return new ArrayList<>();
+    }
+    return new ArrayList<>(Arrays.asList(backendConfig.manifests));
+  }
+
+  @Override
+  public String getManifestVersion(String vehicleId) {
+    long version = generation.get().backendConfigIndex.manifestVersion(vehicleId);
+    return version < 0 ? null : manifestVersionPrefix + version;
   }
 
-  public synchronized BackendConfig.Manifest getManifest(String vehicleId) {
-    logger.log(Level.INFO, String.format("getting manifest for %s", vehicleId));
-    if (backendConfig == null) {
+  /**
+   * Returns the changes to the vehicle's manifest since the given version, from the manifest's
+   * {@link ManifestChangeLog}. Versions of another instance, of a replaced backend config, or older
+   * than the changes kept are not known.
+   */
+  @Override
+  public ManifestChanges getManifestChanges(String vehicleId, String sinceVersion) {
+    if (sinceVersion == null || !sinceVersion.startsWith(manifestVersionPrefix)) {
       return null;
     }
-    for (BackendConfig.Manifest manifest : backendConfig.manifests) {
-      if (manifest.vehicle.vehicleId.equals(vehicleId)) {
-        return manifest;
-      }
+    long since;
+    try {
+      since = Long.parseLong(sinceVersion.substring(manifestVersionPrefix.length()));
+    } catch (NumberFormatException e) {
+      return null;
     }
-    return null;
+    return generation
+        .get()
+        .backendConfigIndex
+        .changesSince(vehicleId, since, manifestVersionPrefix);
   }
 
-  public synchronized BackendConfig.Task getBackendConfigTask(String taskId) {
-    if (backendConfig == null) {
+  /**
+   * Starts an update of the vehicle's manifest, by claiming it in a map. The version is checked
+   * once the manifest is claimed, so it cannot be changed by another claimed update in between.
+   */
+  @Override
+  public ManifestUpdate beginManifestUpdate(String vehicleId, String expectedVersion) {
+    Object claim = new Object();
+    if (manifestUpdates.putIfAbsent(vehicleId, claim) != null) {
       return null;
     }
-    for (BackendConfig.Manifest manifest : backendConfig.manifests) {
-      for (BackendConfig.Task task : manifest.tasks) {
-        if (task.taskId.equals(taskId)) {
-          return task;
-        }
+    if (expectedVersion != null) {
+      String version = getManifestVersion(vehicleId);
+      if (version == null
+          || !(expectedVersion.equals(ANY_VERSION) || expectedVersion.equals(version))) {
+        manifestUpdates.remove(vehicleId, claim);
+        return null;
       }
     }
-    return null;
+    return () -> manifestUpdates.remove(vehicleId, claim);
   }
 
-  public synchronized BackendConfig.Task getBackendConfigTaskByTrackingId(String trackingId) {
-    if (backendConfig == null) {
-      return null;
+  @Override
+  public BackendConfig.Task getBackendConfigTask(String taskId) {
+    return generation.get().backendConfigIndex.tasksById.get(taskId);
+  }
+
+  @Override
+  public BackendConfig.Task getBackendConfigTaskByTrackingId(String trackingId) {
+    return generation.get().backendConfigIndex.tasksByTrackingId.get(trackingId);
+  }
+
+  @Override
+  public String getManifestVehicleIdByTaskId(String taskId) {
+    StopLocation location = generation.get().backendConfigIndex.stopsByTaskId.get(taskId);
+    return location == null ? null : location.vehicleId;
+  }
+
+  /** Sets the state of the current stop of the vehicle's manifest. */
+  @Override
+  public void updateManifestStopState(String vehicleId, BackendConfig.StopState stopState) {
+    write(StateJournal.Entry.manifestStopState(vehicleId, stopState));
+  }
+
+  private void applyManifestStopState(String vehicleId, BackendConfig.StopState stopState) {
+    Lock lock = vehicleLocks.get(vehicleId);
+    lock.lock();
+    try {
+      BackendConfigIndex index = generation.get().backendConfigIndex;
+      BackendConfig.Manifest manifest = index.manifestsByVehicleId.get(vehicleId);
+      if (manifest != null) {
+        manifest.currentStopState = stopState;
+        index.changeLog(vehicleId).currentStopStateChanged(manifestVersions.incrementAndGet());
+      }
+    } finally {
+      lock.unlock();
     }
-    for (BackendConfig.Manifest manifest : backendConfig.manifests) {
-      for (BackendConfig.Task task : manifest.tasks) {
-        if (task.trackingId.equals(trackingId)) {
-          return task;
+  }
+
+  /** Replaces the list of remaining stop IDs of the vehicle's manifest. */
+  @Override
+  public void updateManifestRemainingStopIdList(String vehicleId, String[] remainingStopIdList) {
+    write(StateJournal.Entry.manifestRemainingStopIdList(vehicleId, remainingStopIdList));
+  }
+
+  private void applyManifestRemainingStopIdList(String vehicleId, String[] remainingStopIdList) {
+    Lock lock = vehicleLocks.get(vehicleId);
+    lock.lock();
+    try {
+      BackendConfigIndex index = generation.get().backendConfigIndex;
+      BackendConfig.Manifest manifest = index.manifestsByVehicleId.get(vehicleId);
+      if (manifest != null) {
+        manifest.remainingStopIdList = remainingStopIdList;
+        if (remainingStopIdList == null || remainingStopIdList.length == 0) {
+          index.finished(vehicleId, clock.getAsLong());
+        } else {
+          index.unfinished(vehicleId);
         }
+        index.changeLog(vehicleId).remainingStopIdListChanged(manifestVersions.incrementAndGet());
       }
+    } finally {
+      lock.unlock();
     }
-    return null;
   }
 
-  public synchronized void removeBackendConfigTask(String taskId) {
-    for (BackendConfig.Manifest manifest : backendConfig.manifests) {
-      for (BackendConfig.Stop stop : manifest.stops) {
-        ArrayList<String> tasksList = new ArrayList<>(Arrays.asList(stop.tasks));
-        tasksList.remove(taskId);
-        stop.tasks = tasksList.toArray(new String[tasksList.size()]);
+  /**
+   * Removes a task from the stop that holds it. The task itself stays in its manifest's task list,
+   * so it can still be looked up by task ID or tracking ID after it has been completed.
+   *
+   * <p>Only the stop holding the task is touched. Its task list is replaced rather than modified
+   * in place, so a manifest that is being serialized concurrently never sees a partial update.
+   */
+  @Override
+  public void removeBackendConfigTask(String taskId) {
+    write(StateJournal.Entry.removeStopTask(taskId));
+  }
+
+  private void applyRemoveStopTask(String taskId) {
+    BackendConfigIndex backendConfigIndex = generation.get().backendConfigIndex;
+    StopLocation location = backendConfigIndex.stopsByTaskId.get(taskId);
+    if (location == null) {
+      return;
+    }
+    Lock lock = vehicleLocks.get(location.vehicleId);
+    lock.lock();
+    try {
+      String[] stopTasks = location.stop.tasks;
+      int index = Arrays.asList(stopTasks).indexOf(taskId);
+      if (index < 0) {
+        return;
       }
+      String[] remainingTasks = new String[stopTasks.length - 1];
+      System.arraycopy(stopTasks, 0, remainingTasks, 0, index);
+      System.arraycopy(stopTasks, index + 1, remainingTasks, index, remainingTasks.length - index);
+      location.stop.tasks = remainingTasks;
+      backendConfigIndex
+          .changeLog(location.vehicleId)
+          .stopTaskRemoved(manifestVersions.incrementAndGet(), location.stop, taskId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Resets the delivery state (tasks, vehicles, assignments), and keeps the backend config. The
+   * reset is atomic. To replace the delivery state with a new upload, use {@link #newGeneration}
+   * instead, so readers never see the empty state.
+   */
+  public void clearDeliveryState() {
+    write(StateJournal.Entry.clearDeliveryState());
+  }
+
+  /** Forces the journal, if any, to disk and closes it. The state must not be modified after. */
+  void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+  }
+
+  /** Applies a mutation, and journals it if persistence is enabled. */
+  private boolean write(StateJournal.Entry entry) {
+    boolean applied = write(entry, this::apply);
+    evictIfDue();
+    return applied;
+  }
+
+  private boolean write(StateJournal.Entry entry, Predicate<StateJournal.Entry> mutation) {
+    return journal == null ? mutation.test(entry) : journal.apply(entry, mutation);
+  }
+
+  /**
+   * Applies a mutation to the in-memory state. This is also how the journal is replayed on startup.
+   *
+   * @return false if the mutation was rejected, in which case it is not journaled.
+   */
+  private boolean apply(StateJournal.Entry entry) {
+    switch (entry.type()) {
+      case BACKEND_CONFIG:
+        BackendConfigIndex index =
+            new BackendConfigIndex(
+                entry.backendConfig(),
+                generation.get().tasks,
+                manifestVersions.incrementAndGet());
+        index.finishedNow(clock.getAsLong());
+        Generation replaced =
+            generation.updateAndGet(current -> current.withBackendConfigIndex(index));
+        // Assignments are kept, so their manifests are not available, and name their clients.
+        // Those made concurrently with the replacement are skipped by claims instead.
+        replaced.deliveryVehicleToClientMapping.forEach(
+            (assignedVehicleId, clientId) -> {
+              index.locations.remove(assignedVehicleId);
+              BackendConfig.Manifest manifest = index.manifestsByVehicleId.get(assignedVehicleId);
+              if (manifest != null) {
+                manifest.clientId = clientId;
+              }
+            });
+        return true;
+      case TASK:
+        generation.get().tasks.put(entry.task());
+        return true;
+      case DELIVERY_VEHICLE:
+        Generation current = generation.get();
+        String vehicleId = getId(entry.deliveryVehicle().getName());
+        if (current.deliveryVehicles.put(vehicleId, entry.deliveryVehicle().toByteArray()) == null
+            && !current.deliveryVehicleToClientMapping.containsKey(vehicleId)) {
+          current.unassignedDeliveryVehicleIds.add(vehicleId);
+          current.backendConfigIndex.locations.restore(vehicleId);
+        }
+        return true;
+      case ASSIGNMENT:
+        return assign(entry.id(0), entry.id(1));
+      case MANIFEST_STOP_STATE:
+        applyManifestStopState(entry.id(0), entry.stopState());
+        return true;
+      case MANIFEST_REMAINING_STOP_ID_LIST:
+        applyManifestRemainingStopIdList(entry.id(0), entry.remainingStopIdList());
+        return true;
+      case REMOVE_STOP_TASK:
+        applyRemoveStopTask(entry.id(0));
+        return true;
+      case CLEAR_DELIVERY_STATE:
+        Generation cleared = new GenerationBuilder(clock, manifestVersions).build();
+        generation.updateAndGet(
+            previous -> cleared.withBackendConfigIndex(previous.backendConfigIndex));
+        return true;
+      case REMOVE_DELIVERY_VEHICLE:
+        applyRemoveDeliveryVehicle(entry.id(0));
+        return true;
+      case GENERATION:
+        GenerationBuilder builder = new GenerationBuilder(clock, manifestVersions);
+        for (StateJournal.Entry generationEntry : entry.entries()) {
+          builder.add(generationEntry);
+        }
+        return publish(builder.build());
+      default:
+        throw new IllegalArgumentException("Unknown state journal entry " + entry.type());
     }
   }
 
   /**
-   * Resets the delivery state (tasks, vehicles, assignments). Use this when uploading a new
-   * backendConfig.
+   * Evicts closed tasks and finished manifests which are past their retention period or over
+   * their limit. Runs at most once per {@link #EVICTION_INTERVAL_MILLIS}, unless a limit is
+   * exceeded, and never blocks a writer on another writer's sweep.
    */
-  public synchronized void clearDeliveryState() {
-    this.tasks.clear();
-    this.deliveryVehicles.clear();
-    this.clientToDeliveryVehicleMapping.clear();
+  private void evictIfDue() {
+    Generation current = generation.get();
+    long now = clock.getAsLong();
+    boolean overLimit =
+        (retention.maxClosedTasks > 0 && current.tasks.closedSize() > retention.maxClosedTasks)
+            || (retention.maxFinishedManifests > 0
+                && current.backendConfigIndex.finishedManifestCount()
+                    > retention.maxFinishedManifests);
+    if ((now < nextEvictionMillis && !overLimit) || !evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      nextEvictionMillis = now + EVICTION_INTERVAL_MILLIS;
+      int evictedManifests =
+          current.backendConfigIndex.evictFinished(
+              retention.finishedManifestRetentionMillis > 0
+                  ? now - retention.finishedManifestRetentionMillis
+                  : Long.MIN_VALUE,
+              retention.maxFinishedManifests,
+              vehicleLocks,
+              current.tasks);
+      int evictedTasks =
+          current.tasks.evictClosed(
+              retention.closedTaskRetentionMillis > 0
+                  ? now - retention.closedTaskRetentionMillis
+                  : Long.MIN_VALUE,
+              retention.maxClosedTasks);
+      if (evictedTasks > 0 || evictedManifests > 0) {
+        evictedTaskCount.addAndGet(evictedTasks);
+        evictedManifestCount.addAndGet(evictedManifests);
+        logger.log(
+            Level.FINE,
+            "Evicted {0} closed tasks and {1} finished manifests",
+            new Object[] {evictedTasks, evictedManifests});
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  /** Returns the entries which rebuild the current state, for a journal snapshot. */
+  private List<StateJournal.Entry> snapshotEntries() {
+    Generation current = generation.get();
+    List<StateJournal.Entry> entries = new ArrayList<>();
+    entries.add(StateJournal.Entry.generation(current.entries()));
+    current.deliveryVehicleToClientMapping.forEach(
+        (vehicleId, clientId) -> entries.add(StateJournal.Entry.assignment(clientId, vehicleId)));
+    return entries;
+  }
+
+  private static DeliveryVehicle parseDeliveryVehicle(byte[] deliveryVehicle) {
+    if (deliveryVehicle == null) {
+      return null;
+    }
+    try {
+      return DeliveryVehicle.parseFrom(deliveryVehicle);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Stored delivery vehicle cannot be parsed", e);
+    }
   }
 
   /**
@@ -170,7 +749,369 @@ class ServletState {
    * elements.
    */
   public static String getId(String name) {
-    String[] nameParts = name.split("/");
-    return nameParts[nameParts.length - 1];
+    return ResourceNames.getId(name);
+  }
+
+  /**
+   * Builds a new generation of the delivery state, without affecting the current one. A builder is
+   * meant to be filled by a single thread, then passed to {@link ServletState#publish}. It must not
+   * be used once it has been published.
+   */
+  static final class GenerationBuilder implements DeliveryStateStore.GenerationBuilder {
+    private final TaskTable tasks;
+    private final ConcurrentHashMap<String, byte[]> deliveryVehicles = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> unassignedDeliveryVehicleIds =
+        new ConcurrentLinkedQueue<>();
+    private final AtomicLong manifestVersions;
+    private BackendConfig backendConfig;
+
+    private GenerationBuilder(LongSupplier clock, AtomicLong manifestVersions) {
+      this.tasks = new TaskTable(clock);
+      this.manifestVersions = manifestVersions;
+    }
+
+    @Override
+    public GenerationBuilder addTask(Task task) {
+      tasks.put(task);
+      return this;
+    }
+
+    @Override
+    public GenerationBuilder addDeliveryVehicle(DeliveryVehicle deliveryVehicle) {
+      String vehicleId = getId(deliveryVehicle.getName());
+      if (deliveryVehicles.put(vehicleId, deliveryVehicle.toByteArray()) == null) {
+        unassignedDeliveryVehicleIds.add(vehicleId);
+      }
+      return this;
+    }
+
+    /** Sets the backend config of the generation. Its indexes are built when it is published. */
+    @Override
+    public GenerationBuilder setBackendConfig(BackendConfig backendConfig) {
+      this.backendConfig = backendConfig;
+      return this;
+    }
+
+    private void add(StateJournal.Entry entry) {
+      switch (entry.type()) {
+        case BACKEND_CONFIG:
+          setBackendConfig(entry.backendConfig());
+          break;
+        case TASK:
+          addTask(entry.task());
+          break;
+        case DELIVERY_VEHICLE:
+          addDeliveryVehicle(entry.deliveryVehicle());
+          break;
+        default:
+          throw new IllegalArgumentException("Unexpected generation entry " + entry.type());
+      }
+    }
+
+    private Generation build() {
+      return new Generation(
+          tasks,
+          deliveryVehicles,
+          new ConcurrentHashMap<>(),
+          new ConcurrentHashMap<>(),
+          unassignedDeliveryVehicleIds,
+          new BackendConfigIndex(backendConfig, tasks, manifestVersions.incrementAndGet()));
+    }
+  }
+
+  /**
+   * The tasks, vehicles, assignments and backend config of one upload. Its maps are modified in
+   * place as the servlets update the state; the backend config index is replaced as a whole.
+   */
+  private static final class Generation {
+    private final TaskTable tasks;
+    private final ConcurrentHashMap<String, byte[]> deliveryVehicles;
+    private final ConcurrentHashMap<String, String> clientToDeliveryVehicleMapping;
+    private final ConcurrentHashMap<String, String> deliveryVehicleToClientMapping;
+    private final ConcurrentLinkedQueue<String> unassignedDeliveryVehicleIds;
+    private final BackendConfigIndex backendConfigIndex;
+
+    Generation(
+        TaskTable tasks,
+        ConcurrentHashMap<String, byte[]> deliveryVehicles,
+        ConcurrentHashMap<String, String> clientToDeliveryVehicleMapping,
+        ConcurrentHashMap<String, String> deliveryVehicleToClientMapping,
+        ConcurrentLinkedQueue<String> unassignedDeliveryVehicleIds,
+        BackendConfigIndex backendConfigIndex) {
+      this.tasks = tasks;
+      this.deliveryVehicles = deliveryVehicles;
+      this.clientToDeliveryVehicleMapping = clientToDeliveryVehicleMapping;
+      this.deliveryVehicleToClientMapping = deliveryVehicleToClientMapping;
+      this.unassignedDeliveryVehicleIds = unassignedDeliveryVehicleIds;
+      this.backendConfigIndex = backendConfigIndex;
+    }
+
+    /** Returns the same delivery state, with another backend config. */
+    Generation withBackendConfigIndex(BackendConfigIndex index) {
+      return new Generation(
+          tasks,
+          deliveryVehicles,
+          clientToDeliveryVehicleMapping,
+          deliveryVehicleToClientMapping,
+          unassignedDeliveryVehicleIds,
+          index);
+    }
+
+    /** Returns the entries which rebuild this generation, except for its assignments. */
+    List<StateJournal.Entry> entries() {
+      List<StateJournal.Entry> entries = new ArrayList<>();
+      // Manifests are modified in place, so the config is serialized now rather than later.
+      entries.add(StateJournal.Entry.backendConfigSnapshot(backendConfigIndex.backendConfig));
+      tasks.forEach(task -> entries.add(StateJournal.Entry.task(task)));
+      for (byte[] deliveryVehicle : deliveryVehicles.values()) {
+        entries.add(StateJournal.Entry.deliveryVehicle(parseDeliveryVehicle(deliveryVehicle)));
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * A backend config together with its lookup indexes. Only modified to evict finished manifests.
+   *
+   * <p>The task and stop IDs of the config are replaced by their interned instances, so the
+   * indexes, the manifests and the task table all share one copy of each ID.
+   *
+   * <p>The manifests have the version of the index until they change; a changed manifest is given
+   * a new version after it has been changed, under the lock of its vehicle, by appending the change
+   * to the manifest's {@link ManifestChangeLog}.
+   */
+  private static final class BackendConfigIndex {
+    private final BackendConfig backendConfig;
+    private final ConcurrentHashMap<String, BackendConfig.Manifest> manifestsByVehicleId =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BackendConfig.Task> tasksById =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BackendConfig.Task> tasksByTrackingId =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StopLocation> stopsByTaskId =
+        new ConcurrentHashMap<>();
+    private final long version;
+    private final ConcurrentHashMap<String, ManifestChangeLog> changeLogs =
+        new ConcurrentHashMap<>();
+    // Where the manifests start, for the ones not assigned yet.
+    private final ManifestLocationIndex locations;
+
+    // Vehicle IDs of the manifests with no remaining stops, mapped to when they finished, in the
+    // order they finished.
+    private final LinkedHashMap<String, Long> finishedAtMillis = new LinkedHashMap<>();
+
+    BackendConfigIndex(BackendConfig backendConfig, TaskTable taskIds, long version) {
+      this.backendConfig = backendConfig;
+      this.version = version;
+      if (backendConfig == null || backendConfig.manifests == null) {
+        this.locations = new ManifestLocationIndex(new ArrayList<>());
+        return;
+      }
+      HashMap<String, String> stopIds = new HashMap<>();
+      for (BackendConfig.Manifest manifest : backendConfig.manifests) {
+        manifestsByVehicleId.putIfAbsent(manifest.vehicle.vehicleId, manifest);
+        for (BackendConfig.Task task : manifest.tasks) {
+          task.taskId = taskIds.intern(task.taskId);
+          tasksById.putIfAbsent(task.taskId, task);
+          if (task.trackingId != null) {
+            tasksByTrackingId.putIfAbsent(task.trackingId, task);
+          }
+        }
+        for (BackendConfig.Stop stop : manifest.stops) {
+          stop.stopId = stopIds.computeIfAbsent(stop.stopId, id -> id);
+          StopLocation location = new StopLocation(manifest.vehicle.vehicleId, stop);
+          for (int i = 0; i < stop.tasks.length; i++) {
+            stop.tasks[i] = taskIds.intern(stop.tasks[i]);
+            stopsByTaskId.putIfAbsent(stop.tasks[i], location);
+          }
+        }
+        if (manifest.remainingStopIdList != null) {
+          for (int i = 0; i < manifest.remainingStopIdList.length; i++) {
+            manifest.remainingStopIdList[i] =
+                stopIds.computeIfAbsent(manifest.remainingStopIdList[i], id -> id);
+          }
+        }
+      }
+      this.locations = new ManifestLocationIndex(manifestsByVehicleId.values());
+    }
+
+    /** Returns the version of the vehicle's manifest, or -1 if there is none. */
+    long manifestVersion(String vehicleId) {
+      // The version is read first, so the manifest is not older than the version returned.
+      ManifestChangeLog changeLog = changeLogs.get(vehicleId);
+      if (!manifestsByVehicleId.containsKey(vehicleId)) {
+        return -1;
+      }
+      return changeLog != null ? changeLog.latestVersion() : version;
+    }
+
+    /**
+     * Returns the change log of the vehicle's manifest, which gives it a new version for each
+     * change appended. Must be called under the lock of the vehicle.
+     */
+    ManifestChangeLog changeLog(String vehicleId) {
+      return changeLogs.computeIfAbsent(vehicleId, id -> new ManifestChangeLog(version));
+    }
+
+    /** Returns the changes to the vehicle's manifest since a version, or null if not known. */
+    ManifestChanges changesSince(String vehicleId, long sinceVersion, String versionPrefix) {
+      ManifestChangeLog changeLog = changeLogs.get(vehicleId);
+      if (!manifestsByVehicleId.containsKey(vehicleId)) {
+        return null;
+      }
+      if (changeLog == null) {
+        // The manifest has not changed since it was uploaded.
+        return sinceVersion == version ? ManifestChanges.none(versionPrefix + version) : null;
+      }
+      return changeLog.since(sinceVersion, versionPrefix);
+    }
+
+    /**
+     * Records the manifests which already have no remaining stops as finished now, so a config
+     * which replaces another one does not keep its finished manifests forever.
+     */
+    void finishedNow(long nowMillis) {
+      for (BackendConfig.Manifest manifest : manifestsByVehicleId.values()) {
+        if (manifest.remainingStopIdList != null && manifest.remainingStopIdList.length == 0) {
+          finished(manifest.vehicle.vehicleId, nowMillis);
+        }
+      }
+    }
+
+    /** Records that the vehicle's manifest has no remaining stops, unless already recorded. */
+    synchronized void finished(String vehicleId, long nowMillis) {
+      finishedAtMillis.putIfAbsent(vehicleId, nowMillis);
+    }
+
+    /** Records that the vehicle's manifest has remaining stops again. */
+    synchronized void unfinished(String vehicleId) {
+      finishedAtMillis.remove(vehicleId);
+    }
+
+    synchronized int finishedManifestCount() {
+      return finishedAtMillis.size();
+    }
+
+    /**
+     * Evicts finished manifests, oldest first, while they finished before {@code
+     * finishedBeforeMillis} or there are more than {@code maxFinishedManifests} of them. A {@code
+     * maxFinishedManifests} of 0 means no limit. Task IDs reserved for the evicted manifests are
+     * released from {@code taskIds}; their tasks are evicted from it once they are closed.
+     *
+     * <p>Must not be called concurrently with itself.
+     *
+     * @return the number of evicted manifests
+     */
+    int evictFinished(
+        long finishedBeforeMillis,
+        int maxFinishedManifests,
+        Striped<Lock> vehicleLocks,
+        TaskTable taskIds) {
+      HashSet<BackendConfig.Manifest> evicted = new HashSet<>();
+      for (String vehicleId : pollFinished(finishedBeforeMillis, maxFinishedManifests)) {
+        Lock lock = vehicleLocks.get(vehicleId);
+        lock.lock();
+        try {
+          BackendConfig.Manifest manifest = manifestsByVehicleId.get(vehicleId);
+          // The manifest may have been given new stops since it finished.
+          if (manifest != null
+              && (manifest.remainingStopIdList == null
+                  || manifest.remainingStopIdList.length == 0)) {
+            evict(manifest, taskIds);
+            evicted.add(manifest);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      if (!evicted.isEmpty()) {
+        // Keeps evicted manifests out of the journal snapshots.
+        backendConfig.manifests =
+            Arrays.stream(backendConfig.manifests)
+                .filter(manifest -> !evicted.contains(manifest))
+                .toArray(BackendConfig.Manifest[]::new);
+      }
+      return evicted.size();
+    }
+
+    /** Removes and returns the vehicle IDs of the finished manifests which are due for eviction. */
+    private synchronized List<String> pollFinished(
+        long finishedBeforeMillis, int maxFinishedManifests) {
+      List<String> vehicleIds = new ArrayList<>();
+      Iterator<Map.Entry<String, Long>> oldestFirst = finishedAtMillis.entrySet().iterator();
+      while (oldestFirst.hasNext()) {
+        Map.Entry<String, Long> finished = oldestFirst.next();
+        boolean overLimit =
+            maxFinishedManifests > 0 && finishedAtMillis.size() > maxFinishedManifests;
+        if (finished.getValue() >= finishedBeforeMillis && !overLimit) {
+          break;
+        }
+        vehicleIds.add(finished.getKey());
+        oldestFirst.remove();
+      }
+      return vehicleIds;
+    }
+
+    private void evict(BackendConfig.Manifest manifest, TaskTable taskIds) {
+      manifestsByVehicleId.remove(manifest.vehicle.vehicleId, manifest);
+      changeLogs.remove(manifest.vehicle.vehicleId);
+      for (BackendConfig.Task task : manifest.tasks) {
+        tasksById.remove(task.taskId, task);
+        if (task.trackingId != null) {
+          tasksByTrackingId.remove(task.trackingId, task);
+        }
+        taskIds.release(task.taskId);
+      }
+      for (BackendConfig.Stop stop : manifest.stops) {
+        for (String taskId : stop.tasks) {
+          stopsByTaskId.remove(taskId);
+        }
+      }
+    }
+  }
+
+  /** How long closed tasks and finished manifests are kept, and how many of them at most. */
+  static final class Retention {
+    /** Keeps everything. */
+    static final Retention UNLIMITED = new Retention(0, 0, 0, 0);
+
+    private final long closedTaskRetentionMillis;
+    private final int maxClosedTasks;
+    private final long finishedManifestRetentionMillis;
+    private final int maxFinishedManifests;
+
+    /**
+     * Creates a retention policy. A retention period or maximum of 0 means that limit does not
+     * apply.
+     */
+    Retention(
+        long closedTaskRetentionMillis,
+        int maxClosedTasks,
+        long finishedManifestRetentionMillis,
+        int maxFinishedManifests) {
+      this.closedTaskRetentionMillis = closedTaskRetentionMillis;
+      this.maxClosedTasks = maxClosedTasks;
+      this.finishedManifestRetentionMillis = finishedManifestRetentionMillis;
+      this.maxFinishedManifests = maxFinishedManifests;
+    }
+
+    static Retention fromProperties(BackendProperties properties) {
+      return new Retention(
+          TimeUnit.SECONDS.toMillis(properties.closedTaskRetentionSeconds()),
+          properties.maxClosedTasks(),
+          TimeUnit.SECONDS.toMillis(properties.finishedManifestRetentionSeconds()),
+          properties.maxFinishedManifests());
+    }
+  }
+
+  /** The stop holding a task, and the vehicle whose manifest contains that stop. */
+  private static final class StopLocation {
+    private final String vehicleId;
+    private final BackendConfig.Stop stop;
+
+    StopLocation(String vehicleId, BackendConfig.Stop stop) {
+      this.vehicleId = vehicleId;
+      this.stop = stop;
+    }
   }
 }
@@ -0,0 +1,805 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Delivery state kept in a {@link KeyValueStore}, so that every backend instance serves the same
+ * assignments and manifests.
+ *
+ * <p>Each upload is written under a new generation ID, which is then made current by replacing a
+ * single key with a conditional write, so instances switch from one upload to the next atomically.
+ * The key also names the previous generation, which is kept until the next upload, for the
+ * requests that are still reading it; the generation before it is deleted by the upload which
+ * replaced it.
+ *
+ * <p>The version of a manifest is a fingerprint of its stored value, so every instance gives a
+ * manifest the same version. No log of the changes to a manifest is kept, so clients asking for
+ * the changes since a version are sent the whole manifest instead.
+ *
+ * <p>Values read from the store are decoded once and kept in a bounded near-cache. The store
+ * notifies every instance of changed keys, which are then dropped from the near-cache. Updates to
+ * a manifest are compare-and-set loops on its key, and assignments rely on conditional writes, so
+ * concurrent updates from different instances are not lost. Updates spanning a Fleet Engine call
+ * claim the manifest with a conditional write, which expires in case its instance stops.
+ *
+ * <p>Like in {@link ServletState}, the unassigned vehicles wait in a queue, so that claiming any of
+ * them takes a few requests to the store, however many vehicles there are. The queue is a run of
+ * numbered keys between a head and a tail counter. The number of tasks and manifests are counters
+ * too, kept up to date as they are written, rather than counted by reading every one of them.
+ * Counters are updated after the values they count, so they can be off while an update is in
+ * progress, or if an instance stops in the middle of one.
+ *
+ * <p>Unlike {@link ServletState}, this store does not journal or evict anything; durability and
+ * expiry are left to the key-value service.
+ */
+@Singleton
+final class SharedDeliveryStateStore implements DeliveryStateStore {
+  private static final int NEAR_CACHE_SIZE = 100000;
+
+  // The ID of the current generation, followed by the ID of the previous one, if any.
+  private static final String GENERATION_KEY = "generation";
+  private static final String TASK = "task/";
+  private static final String VEHICLE = "vehicle/";
+  private static final String MANIFEST = "manifest/";
+  private static final String CONFIG_TASK = "config_task/";
+  private static final String TRACKING_ID = "tracking_id/";
+  private static final String STOP_TASK = "stop_task/";
+  private static final String CLIENT = "client/";
+  private static final String ASSIGNMENT = "assignment/";
+  private static final String MANIFEST_UPDATE = "manifest_update/";
+  private static final String UNASSIGNED = "unassigned/";
+  private static final String UNASSIGNED_HEAD = "unassigned_head";
+  private static final String UNASSIGNED_TAIL = "unassigned_tail";
+  private static final String TASK_COUNT = "count/tasks";
+  private static final String CLOSED_TASK_COUNT = "count/closed_tasks";
+  private static final String MANIFEST_COUNT = "count/manifests";
+  private static final String FINISHED_MANIFEST_COUNT = "count/finished_manifests";
+
+  // Written in place of a queued vehicle which was never written, so that it is skipped.
+  private static final byte[] SKIPPED = new byte[0];
+
+  // Claims of manifest updates expire after this long, in case their instance stopped mid-update.
+  static final long MANIFEST_UPDATE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  // Cached in place of a key which has no value.
+  private static final Object ABSENT = new Object();
+
+  private final Logger logger = Logger.getLogger(SharedDeliveryStateStore.class.getName());
+  private final KeyValueStore store;
+  private final Cache<String, Object> nearCache =
+      CacheBuilder.newBuilder().maximumSize(NEAR_CACHE_SIZE).build();
+
+  // Incremented on every invalidation, so a read that raced with one is not left in the cache.
+  private final AtomicLong invalidations = new AtomicLong();
+
+  @Inject
+  SharedDeliveryStateStore(KeyValueStore store) {
+    this.store = store;
+    store.addListener(this::invalidate);
+  }
+
+  @Override
+  public GenerationBuilder newGeneration() {
+    return new GenerationBuilder(UUID.randomUUID().toString());
+  }
+
+  @Override
+  public void publish(DeliveryStateStore.GenerationBuilder builder) {
+    if (!(builder instanceof GenerationBuilder)) {
+      throw new IllegalArgumentException("The generation was not built by this state store");
+    }
+    GenerationBuilder next = (GenerationBuilder) builder;
+    next.writeBackendConfig();
+
+    // Concurrent publishes are ordered by the conditional write; each one deletes the generation
+    // which the one it replaced had kept.
+    String[] replaced;
+    boolean swapped;
+    do {
+      byte[] current = store.get(GENERATION_KEY);
+      replaced = generationIds(current);
+      byte[] value =
+          (replaced.length == 0 ? next.generationId : next.generationId + " " + replaced[0])
+              .getBytes(UTF_8);
+      swapped =
+          current == null
+              ? store.putIfAbsent(GENERATION_KEY, value)
+              : store.replace(GENERATION_KEY, current, value);
+    } while (!swapped);
+    String beforePrevious = replaced.length < 2 ? null : replaced[1];
+    if (beforePrevious != null && !beforePrevious.equals(next.generationId)) {
+      for (String key : store.keys(beforePrevious + "/")) {
+        store.remove(key);
+      }
+    }
+    logger.log(Level.INFO, "Published generation {0}", next.generationId);
+  }
+
+  /**
+   * Rewrites the manifests of the current generation and their indexes, and deletes the ones
+   * which are not in {@code backendConfig}. Updates made to a manifest while it is rewritten are
+   * lost.
+   */
+  @Override
+  public void setBackendConfig(BackendConfig backendConfig) {
+    String prefix = prefix();
+    Set<String> written = writeBackendConfig(prefix, backendConfig);
+    for (String index : Arrays.asList(MANIFEST, CONFIG_TASK, TRACKING_ID, STOP_TASK)) {
+      for (String key : store.keys(prefix + index)) {
+        if (!written.contains(key)) {
+          store.remove(key);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a delivery vehicle. A vehicle that is added for the first time and is not assigned is
+   * queued for assignment.
+   */
+  @Override
+  public void addDeliveryVehicle(DeliveryVehicle deliveryVehicle) {
+    String prefix = prefix();
+    String vehicleId = ServletState.getId(deliveryVehicle.getName());
+    byte[] value = deliveryVehicle.toByteArray();
+    if (!store.putIfAbsent(prefix + VEHICLE + vehicleId, value)) {
+      store.put(prefix + VEHICLE + vehicleId, value);
+    } else if (store.get(prefix + ASSIGNMENT + vehicleId) == null) {
+      enqueueUnassigned(prefix, vehicleId);
+    }
+  }
+
+  @Override
+  public void removeDeliveryVehicle(String vehicleId) {
+    String prefix = prefix();
+    store.remove(prefix + VEHICLE + vehicleId);
+    byte[] client = store.get(prefix + ASSIGNMENT + vehicleId);
+    if (client != null && store.remove(prefix + ASSIGNMENT + vehicleId, client)) {
+      store.remove(prefix + CLIENT + new String(client, UTF_8), vehicleId.getBytes(UTF_8));
+    }
+  }
+
+  @Override
+  public DeliveryVehicle getDeliveryVehicleById(String vehicleId) {
+    return read(prefix() + VEHICLE + vehicleId, SharedDeliveryStateStore::parseDeliveryVehicle);
+  }
+
+  @Override
+  public boolean hasDeliveryVehicle(String vehicleId) {
+    return getDeliveryVehicleById(vehicleId) != null;
+  }
+
+  @Override
+  public void addTask(Task task) {
+    writeTask(prefix(), task, false);
+  }
+
+  @Override
+  public boolean replaceTask(Task task) {
+    return writeTask(prefix(), task, true);
+  }
+
+  /**
+   * Writes a task, and updates the task counters by what changed. If {@code replaceOnly}, the task
+   * is only written if it is there already.
+   *
+   * @return true if the task was written
+   */
+  private boolean writeTask(String prefix, Task task, boolean replaceOnly) {
+    String key = prefix + TASK + ServletState.getId(task.getName());
+    byte[] value = task.toByteArray();
+    while (true) {
+      byte[] current = store.get(key);
+      if (current == null) {
+        if (replaceOnly) {
+          return false;
+        }
+        if (store.putIfAbsent(key, value)) {
+          addToCounter(prefix + TASK_COUNT, 1);
+          addToCounter(prefix + CLOSED_TASK_COUNT, isClosed(task) ? 1 : 0);
+          return true;
+        }
+      } else if (store.replace(key, current, value)) {
+        addToCounter(
+            prefix + CLOSED_TASK_COUNT,
+            (isClosed(task) ? 1 : 0) - (isClosed(parseTask(current)) ? 1 : 0));
+        return true;
+      }
+    }
+  }
+
+  private static boolean isClosed(Task task) {
+    return task.getState() == Task.State.CLOSED
+        || task.getTaskOutcome() != Task.TaskOutcome.TASK_OUTCOME_UNSPECIFIED;
+  }
+
+  @Override
+  public Task getTaskById(String taskId) {
+    return read(prefix() + TASK + taskId, SharedDeliveryStateStore::parseTask);
+  }
+
+  /** Returns false: this store does not evict anything. */
+  @Override
+  public boolean wasTaskEvicted(String taskId) {
+    return false;
+  }
+
+  @Override
+  public boolean hasTask(String taskId) {
+    return getTaskById(taskId) != null;
+  }
+
+  @Override
+  public Task.TaskOutcome getTaskOutcome(String taskId) {
+    Task task = getTaskById(taskId);
+    return task == null ? null : task.getTaskOutcome();
+  }
+
+  @Override
+  public boolean addClientToDeliveryVehicleMap(String clientId, String vehicleId) {
+    return assign(prefix(), clientId, vehicleId);
+  }
+
+  @Override
+  public String getDeliveryVehicleMapByClient(String clientIdentifier) {
+    return readString(prefix() + CLIENT + clientIdentifier);
+  }
+
+  /**
+   * Assigns the vehicle at the head of the queue of unassigned vehicles. Vehicles that were
+   * assigned by ID or removed after being queued are still in the queue; they are skipped here.
+   */
+  @Override
+  public DeliveryVehicle claimAnyAvailableDeliveryVehicle(String clientId) {
+    String prefix = prefix();
+    String vehicleId;
+    while ((vehicleId = pollUnassigned(prefix)) != null) {
+      DeliveryVehicle vehicle =
+          read(prefix + VEHICLE + vehicleId, SharedDeliveryStateStore::parseDeliveryVehicle);
+      if (vehicle != null
+          && store.get(prefix + ASSIGNMENT + vehicleId) == null
+          && assign(prefix, clientId, vehicleId)) {
+        return vehicle;
+      }
+      if (store.get(prefix + CLIENT + clientId) != null) {
+        // The client was concurrently assigned another vehicle.
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Appends a vehicle to the queue of unassigned vehicles: reserves the slot at the tail, and
+   * writes the vehicle there, unless a claim gave up on the slot in between.
+   */
+  private void enqueueUnassigned(String prefix, String vehicleId) {
+    byte[] value = vehicleId.getBytes(UTF_8);
+    long slot;
+    do {
+      slot = addToCounter(prefix + UNASSIGNED_TAIL, 1) - 1;
+    } while (!store.putIfAbsent(prefix + UNASSIGNED + slot, value));
+  }
+
+  /**
+   * Takes the vehicle at the head of the queue of unassigned vehicles. Null if the queue is empty.
+   */
+  private String pollUnassigned(String prefix) {
+    while (true) {
+      long head = readCounter(prefix + UNASSIGNED_HEAD);
+      if (head >= readCounter(prefix + UNASSIGNED_TAIL)) {
+        return null;
+      }
+      String slot = prefix + UNASSIGNED + head;
+      byte[] vehicleId = store.get(slot);
+      if (vehicleId == null && store.putIfAbsent(slot, SKIPPED)) {
+        // The slot is reserved but its vehicle is not written yet; it is written further on. The
+        // skipped slot is kept, so that the vehicle cannot be written behind the head.
+        vehicleId = SKIPPED;
+      } else if (vehicleId == null) {
+        vehicleId = store.get(slot);
+      }
+      if (vehicleId != null
+          && replaceCounter(prefix + UNASSIGNED_HEAD, head, head + 1)
+          && vehicleId.length > 0) {
+        store.remove(slot);
+        return new String(vehicleId, UTF_8);
+      }
+    }
+  }
+
+  /**
+   * Assigns the nearest available vehicle, trying the unassigned manifests in order of distance.
+   * The store has no spatial index, so this reads every manifest, and takes linear time.
+   */
+  @Override
+  public DeliveryVehicle claimNearestAvailableDeliveryVehicle(
+      String clientId, double lat, double lng) {
+    String prefix = prefix();
+    double[] target = ManifestLocationIndex.toPoint(lat, lng);
+    List<BackendConfig.Manifest> candidates = new ArrayList<>();
+    for (BackendConfig.Manifest manifest : getManifests()) {
+      if (manifest.clientId == null && ManifestLocationIndex.locationOf(manifest) != null) {
+        candidates.add(manifest);
+      }
+    }
+    candidates.sort(Comparator.comparingDouble(manifest -> distance(manifest, target)));
+    for (BackendConfig.Manifest manifest : candidates) {
+      String vehicleId = manifest.vehicle.vehicleId;
+      if (!hasDeliveryVehicle(vehicleId) || readString(prefix + ASSIGNMENT + vehicleId) != null) {
+        continue;
+      }
+      if (assign(prefix, clientId, vehicleId)) {
+        return read(prefix + VEHICLE + vehicleId, SharedDeliveryStateStore::parseDeliveryVehicle);
+      }
+      if (store.get(prefix + CLIENT + clientId) != null) {
+        // The client was concurrently assigned another vehicle.
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private static double distance(BackendConfig.Manifest manifest, double[] target) {
+    BackendConfig.Waypoint location = ManifestLocationIndex.locationOf(manifest);
+    double[] point = ManifestLocationIndex.toPoint(location.lat, location.lng);
+    double dx = point[0] - target[0];
+    double dy = point[1] - target[1];
+    double dz = point[2] - target[2];
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private boolean assign(String prefix, String clientId, String vehicleId) {
+    byte[] client = clientId.getBytes(UTF_8);
+    if (!store.putIfAbsent(prefix + ASSIGNMENT + vehicleId, client)) {
+      return Arrays.equals(client, store.get(prefix + ASSIGNMENT + vehicleId));
+    }
+    if (!store.putIfAbsent(prefix + CLIENT + clientId, vehicleId.getBytes(UTF_8))) {
+      // The client was concurrently assigned another vehicle; release this one.
+      store.remove(prefix + ASSIGNMENT + vehicleId, client);
+      enqueueUnassigned(prefix, vehicleId);
+      return false;
+    }
+    updateManifest(prefix, vehicleId, manifest -> manifest.clientId = clientId);
+    return true;
+  }
+
+  @Override
+  public BackendConfig.Manifest getManifest(String vehicleId) {
+    StoredManifest stored = read(prefix() + MANIFEST + vehicleId, StoredManifest::decode);
+    return stored == null ? null : stored.manifest;
+  }
+
+  @Override
+  public List<BackendConfig.Manifest> getManifests() {
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    for (String key : store.keys(prefix() + MANIFEST)) {
+      StoredManifest stored = read(key, StoredManifest::decode);
+      if (stored != null) {
+        manifests.add(stored.manifest);
+      }
+    }
+    return manifests;
+  }
+
+  @Override
+  public String getManifestVersion(String vehicleId) {
+    StoredManifest stored = read(prefix() + MANIFEST + vehicleId, StoredManifest::decode);
+    return stored == null ? null : stored.version;
+  }
+
+  /**
+   * Returns null, apart from the changes since the current version, which are none: manifests are
+   * stored whole, without a log of their changes, so clients are sent the whole manifest.
+   */
+  @Override
+  public ManifestChanges getManifestChanges(String vehicleId, String sinceVersion) {
+    String version = getManifestVersion(vehicleId);
+    return version != null && version.equals(sinceVersion) ? ManifestChanges.none(version) : null;
+  }
+
+  /**
+   * Starts an update of the vehicle's manifest by claiming it with a conditional write, so updates
+   * from different instances exclude each other too. The version is read from the store rather
+   * than the near-cache, which may lag behind.
+   */
+  @Override
+  public ManifestUpdate beginManifestUpdate(String vehicleId, String expectedVersion) {
+    String prefix = prefix();
+    String key = prefix + MANIFEST_UPDATE + vehicleId;
+    // The claim holds when it expires, and is unique so that only its owner removes it.
+    long now = System.currentTimeMillis();
+    byte[] claim =
+        ((now + MANIFEST_UPDATE_TIMEOUT_MILLIS) + "/" + UUID.randomUUID()).getBytes(UTF_8);
+    if (!store.putIfAbsent(key, claim)) {
+      byte[] existing = store.get(key);
+      if (existing == null || claimExpiry(existing) > now || !store.replace(key, existing, claim)) {
+        return null;
+      }
+      logger.log(Level.WARNING, "Took over an expired update of the manifest of {0}", vehicleId);
+    }
+    if (expectedVersion != null) {
+      byte[] manifest = store.get(prefix + MANIFEST + vehicleId);
+      if (manifest == null
+          || !(expectedVersion.equals(ANY_VERSION)
+              || expectedVersion.equals(StoredManifest.decode(manifest).version))) {
+        store.remove(key, claim);
+        return null;
+      }
+    }
+    return () -> store.remove(key, claim);
+  }
+
+  private static long claimExpiry(byte[] claim) {
+    String value = new String(claim, UTF_8);
+    return Long.parseLong(value.substring(0, value.indexOf('/')));
+  }
+
+  @Override
+  public BackendConfig.Task getBackendConfigTask(String taskId) {
+    return read(prefix() + CONFIG_TASK + taskId, SharedDeliveryStateStore::decodeTask);
+  }
+
+  @Override
+  public BackendConfig.Task getBackendConfigTaskByTrackingId(String trackingId) {
+    String taskId = readString(prefix() + TRACKING_ID + trackingId);
+    return taskId == null ? null : getBackendConfigTask(taskId);
+  }
+
+  @Override
+  public String getManifestVehicleIdByTaskId(String taskId) {
+    return readString(prefix() + STOP_TASK + taskId);
+  }
+
+  @Override
+  public void updateManifestStopState(String vehicleId, BackendConfig.StopState stopState) {
+    updateManifest(prefix(), vehicleId, manifest -> manifest.currentStopState = stopState);
+  }
+
+  @Override
+  public void updateManifestRemainingStopIdList(String vehicleId, String[] remainingStopIdList) {
+    updateManifest(
+        prefix(), vehicleId, manifest -> manifest.remainingStopIdList = remainingStopIdList);
+  }
+
+  @Override
+  public void removeBackendConfigTask(String taskId) {
+    String prefix = prefix();
+    String vehicleId = readString(prefix + STOP_TASK + taskId);
+    if (vehicleId == null) {
+      return;
+    }
+    updateManifest(
+        prefix,
+        vehicleId,
+        manifest -> {
+          for (BackendConfig.Stop stop : manifest.stops) {
+            if (Arrays.asList(stop.tasks).contains(taskId)) {
+              stop.tasks =
+                  Arrays.stream(stop.tasks).filter(id -> !id.equals(taskId)).toArray(String[]::new);
+              return;
+            }
+          }
+        });
+  }
+
+  @Override
+  public int getTaskCount() {
+    return (int) readCounter(prefix() + TASK_COUNT);
+  }
+
+  @Override
+  public int getClosedTaskCount() {
+    return (int) readCounter(prefix() + CLOSED_TASK_COUNT);
+  }
+
+  @Override
+  public int getManifestCount() {
+    return (int) readCounter(prefix() + MANIFEST_COUNT);
+  }
+
+  @Override
+  public int getFinishedManifestCount() {
+    return (int) readCounter(prefix() + FINISHED_MANIFEST_COUNT);
+  }
+
+  @Override
+  public long getEvictedTaskCount() {
+    return 0;
+  }
+
+  @Override
+  public long getEvictedManifestCount() {
+    return 0;
+  }
+
+  /**
+   * Applies {@code update} to a fresh copy of the vehicle's manifest, and writes it back if the
+   * manifest has not been changed in the meantime. Retries otherwise.
+   */
+  private void updateManifest(
+      String prefix, String vehicleId, Consumer<BackendConfig.Manifest> update) {
+    String key = prefix + MANIFEST + vehicleId;
+    while (true) {
+      byte[] current = store.get(key);
+      if (current == null) {
+        return;
+      }
+      BackendConfig.Manifest manifest = decodeManifest(current);
+      boolean wasFinished = isFinished(manifest);
+      update.accept(manifest);
+      if (store.replace(key, current, encode(manifest))) {
+        if (isFinished(manifest) != wasFinished) {
+          addToCounter(prefix + FINISHED_MANIFEST_COUNT, wasFinished ? -1 : 1);
+        }
+        return;
+      }
+    }
+  }
+
+  // A manifest uploaded without a list of remaining stops has not been started.
+  private static boolean isFinished(BackendConfig.Manifest manifest) {
+    return manifest.remainingStopIdList != null && manifest.remainingStopIdList.length == 0;
+  }
+
+  /**
+   * Writes each manifest of a config under {@code prefix}, the task, tracking ID and stop indexes
+   * over them, and the manifest counters. If an ID appears more than once, the first occurrence
+   * wins.
+   *
+   * @return the keys written, apart from the counters
+   */
+  private Set<String> writeBackendConfig(String prefix, BackendConfig backendConfig) {
+    Set<String> written = new HashSet<>();
+    long manifests = 0;
+    long finishedManifests = 0;
+    BackendConfig.Manifest[] configManifests =
+        backendConfig == null || backendConfig.manifests == null
+            ? new BackendConfig.Manifest[0]
+            : backendConfig.manifests;
+    for (BackendConfig.Manifest manifest : configManifests) {
+      String vehicleId = manifest.vehicle.vehicleId;
+      if (written.add(prefix + MANIFEST + vehicleId)) {
+        store.put(prefix + MANIFEST + vehicleId, encode(manifest));
+        manifests++;
+        finishedManifests += isFinished(manifest) ? 1 : 0;
+      }
+      for (BackendConfig.Task task : manifest.tasks) {
+        if (written.add(prefix + CONFIG_TASK + task.taskId)) {
+          store.put(prefix + CONFIG_TASK + task.taskId, encode(task));
+        }
+        if (task.trackingId != null && written.add(prefix + TRACKING_ID + task.trackingId)) {
+          store.put(prefix + TRACKING_ID + task.trackingId, task.taskId.getBytes(UTF_8));
+        }
+      }
+      for (BackendConfig.Stop stop : manifest.stops) {
+        for (String taskId : stop.tasks) {
+          if (written.add(prefix + STOP_TASK + taskId)) {
+            store.put(prefix + STOP_TASK + taskId, vehicleId.getBytes(UTF_8));
+          }
+        }
+      }
+    }
+    store.put(prefix + MANIFEST_COUNT, encodeCounter(manifests));
+    store.put(prefix + FINISHED_MANIFEST_COUNT, encodeCounter(finishedManifests));
+    return written;
+  }
+
+  /** Returns the key prefix of the current generation. */
+  private String prefix() {
+    String[] generationIds = read(GENERATION_KEY, SharedDeliveryStateStore::generationIds);
+    return (generationIds == null ? "" : generationIds[0]) + "/";
+  }
+
+  /** Returns the generation IDs of a value of {@link #GENERATION_KEY}: current, then previous. */
+  private static String[] generationIds(byte[] value) {
+    return value == null ? new String[0] : new String(value, UTF_8).split(" ");
+  }
+
+  /** Returns the value of a counter, read from the store rather than the near-cache. */
+  private long readCounter(String key) {
+    byte[] value = store.get(key);
+    return value == null ? 0 : Long.parseLong(new String(value, UTF_8));
+  }
+
+  /** Adds {@code delta} to a counter with a compare-and-set loop, and returns its new value. */
+  private long addToCounter(String key, long delta) {
+    while (true) {
+      byte[] current = store.get(key);
+      long value = (current == null ? 0 : Long.parseLong(new String(current, UTF_8))) + delta;
+      if (delta == 0) {
+        return value;
+      }
+      boolean written =
+          current == null
+              ? store.putIfAbsent(key, encodeCounter(value))
+              : store.replace(key, current, encodeCounter(value));
+      if (written) {
+        return value;
+      }
+    }
+  }
+
+  /** Sets a counter to {@code value} if it still holds {@code expected}. */
+  private boolean replaceCounter(String key, long expected, long value) {
+    byte[] current = store.get(key);
+    if (current == null) {
+      return expected == 0 && store.putIfAbsent(key, encodeCounter(value));
+    }
+    return Long.parseLong(new String(current, UTF_8)) == expected
+        && store.replace(key, current, encodeCounter(value));
+  }
+
+  private static byte[] encodeCounter(long value) {
+    return Long.toString(value).getBytes(UTF_8);
+  }
+
+  private String readString(String key) {
+    return read(key, value -> new String(value, UTF_8));
+  }
+
+  /** Returns the decoded value of a key, from the near-cache if possible. Null if there is none. */
+  @SuppressWarnings("unchecked")
+  private <T> T read(String key, Function<byte[], T> decode) {
+    Object cached = nearCache.getIfPresent(key);
+    if (cached == null) {
+      long invalidationsBeforeRead = invalidations.get();
+      byte[] value = store.get(key);
+      cached = value == null ? ABSENT : decode.apply(value);
+      nearCache.put(key, cached);
+      if (invalidations.get() != invalidationsBeforeRead) {
+        // The value may have changed after it was read; do not keep it.
+        nearCache.invalidate(key);
+      }
+    }
+    return cached == ABSENT ? null : (T) cached;
+  }
+
+  private void invalidate(String key) {
+    invalidations.incrementAndGet();
+    nearCache.invalidate(key);
+  }
+
+  private static byte[] encode(Object json) {
+    return BackendConfigGsonProvider.get().toJson(json).getBytes(UTF_8);
+  }
+
+  private static BackendConfig.Manifest decodeManifest(byte[] value) {
+    return BackendConfigGsonProvider.get()
+        .fromJson(new String(value, UTF_8), BackendConfig.Manifest.class);
+  }
+
+  /** A manifest decoded from the store, with the fingerprint of its value as its version. */
+  private static final class StoredManifest {
+    private final BackendConfig.Manifest manifest;
+    private final String version;
+
+    private StoredManifest(BackendConfig.Manifest manifest, String version) {
+      this.manifest = manifest;
+      this.version = version;
+    }
+
+    static StoredManifest decode(byte[] value) {
+      return new StoredManifest(
+          decodeManifest(value), Hashing.farmHashFingerprint64().hashBytes(value).toString());
+    }
+  }
+
+  private static BackendConfig.Task decodeTask(byte[] value) {
+    return BackendConfigGsonProvider.get()
+        .fromJson(new String(value, UTF_8), BackendConfig.Task.class);
+  }
+
+  private static Task parseTask(byte[] value) {
+    try {
+      return Task.parseFrom(value);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Stored task cannot be parsed", e);
+    }
+  }
+
+  private static DeliveryVehicle parseDeliveryVehicle(byte[] value) {
+    try {
+      return DeliveryVehicle.parseFrom(value);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Stored delivery vehicle cannot be parsed", e);
+    }
+  }
+
+  /**
+   * Writes a new generation under its own key prefix. Nothing written here is visible to readers
+   * until the generation is published.
+   */
+  final class GenerationBuilder implements DeliveryStateStore.GenerationBuilder {
+    private final String generationId;
+    // Whether each task added is closed; counted when the generation is published.
+    private final Map<String, Boolean> closedByTaskId = new HashMap<>();
+    private BackendConfig backendConfig;
+
+    private GenerationBuilder(String generationId) {
+      this.generationId = generationId;
+    }
+
+    @Override
+    public GenerationBuilder addTask(Task task) {
+      String taskId = ServletState.getId(task.getName());
+      store.put(generationId + "/" + TASK + taskId, task.toByteArray());
+      closedByTaskId.put(taskId, isClosed(task));
+      return this;
+    }
+
+    /**
+     * Adds a delivery vehicle. Nothing is assigned in a new generation, so a vehicle added for the
+     * first time is queued for assignment.
+     */
+    @Override
+    public GenerationBuilder addDeliveryVehicle(DeliveryVehicle deliveryVehicle) {
+      String prefix = generationId + "/";
+      String vehicleId = ServletState.getId(deliveryVehicle.getName());
+      byte[] value = deliveryVehicle.toByteArray();
+      if (store.putIfAbsent(prefix + VEHICLE + vehicleId, value)) {
+        enqueueUnassigned(prefix, vehicleId);
+      } else {
+        store.put(prefix + VEHICLE + vehicleId, value);
+      }
+      return this;
+    }
+
+    /** Sets the backend config of the generation. It is written when it is published. */
+    @Override
+    public GenerationBuilder setBackendConfig(BackendConfig backendConfig) {
+      this.backendConfig = backendConfig;
+      return this;
+    }
+
+    /** Writes the backend config of the generation, its indexes, and the counters. */
+    private void writeBackendConfig() {
+      String prefix = generationId + "/";
+      SharedDeliveryStateStore.this.writeBackendConfig(prefix, backendConfig);
+      store.put(prefix + TASK_COUNT, encodeCounter(closedByTaskId.size()));
+      store.put(
+          prefix + CLOSED_TASK_COUNT,
+          encodeCounter(closedByTaskId.values().stream().filter(closed -> closed).count()));
+    }
+  }
+}
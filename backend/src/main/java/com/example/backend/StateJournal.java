@@ -0,0 +1,641 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.protobuf.MessageLite;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of ServletState mutations, compacted into periodic snapshots.
+ *
+ * <p>The journal directory holds numbered generations. {@code snapshot-N.bin} is the full state
+ * at the start of generation N, and {@code journal-N.log} holds every mutation applied after it.
+ * Both files use the same record format: a length, a CRC32 of the body, and the body, which is an
+ * encoded {@link Entry}. A snapshot is therefore just a compacted journal.
+ *
+ * <p>The journal is written through a memory-mapped region, so a record survives a crash of the
+ * process as soon as it has been appended. It is only forced to the device when a snapshot is
+ * taken and when the journal is closed.
+ */
+final class StateJournal {
+  private static final Logger logger = Logger.getLogger(StateJournal.class.getName());
+
+  private static final int MAPPED_REGION_BYTES = 16 * 1024 * 1024;
+  private static final Pattern FILE_NAME_PATTERN =
+      Pattern.compile("(journal|snapshot)-(\\d+)\\.(log|bin)");
+
+  private final Path directory;
+  private final int snapshotIntervalEntries;
+  private final SnapshotSource snapshotSource;
+  private final ExecutorService compactionExecutor;
+
+  private long generation;
+  private FileChannel journalChannel;
+  private MappedByteBuffer journalBuffer;
+  private long journalBufferStart;
+  private int entriesSinceSnapshot;
+  private boolean compactionPending;
+
+  // End offset of the last valid record seen by readRecords().
+  private long lastRecordEnd;
+
+  private StateJournal(
+      Path directory, int snapshotIntervalEntries, SnapshotSource snapshotSource) {
+    this.directory = directory;
+    this.snapshotIntervalEntries = snapshotIntervalEntries;
+    this.snapshotSource = snapshotSource;
+    this.compactionExecutor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "state-journal-compaction");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Opens the journal in the given directory, and replays the latest snapshot and every journal
+   * written since into {@code replay}. Returns null if {@code directory} is empty, which disables
+   * persistence.
+   *
+   * <p>Once {@code snapshotIntervalEntries} entries have been appended, a new generation is started
+   * from the entries returned by {@code snapshotSource}.
+   *
+   * @throws UncheckedIOException if the journal cannot be read or opened for writing.
+   */
+  static StateJournal open(
+      String directory,
+      int snapshotIntervalEntries,
+      Consumer<Entry> replay,
+      SnapshotSource snapshotSource) {
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+    StateJournal journal =
+        new StateJournal(Paths.get(directory), snapshotIntervalEntries, snapshotSource);
+    try {
+      journal.recover(replay);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open the state journal in " + directory, e);
+    }
+    return journal;
+  }
+
+  /**
+   * Applies a mutation and, if it changed the state, appends it to the journal. Mutations are
+   * applied one at a time, so the journal order always matches the order they were applied in.
+   *
+   * @return the result of {@code mutation}.
+   */
+  synchronized boolean apply(Entry entry, Predicate<Entry> mutation) {
+    boolean changed = mutation.test(entry);
+    if (changed) {
+      append(entry);
+    }
+    return changed;
+  }
+
+  /**
+   * Forces the journal to the device and closes it. A snapshot that is already due is written
+   * first.
+   */
+  void close() throws IOException {
+    compactionExecutor.shutdown();
+    try {
+      compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (journalChannel != null) {
+        journalBuffer.force();
+        journalChannel.close();
+        journalChannel = null;
+      }
+    }
+  }
+
+  private void append(Entry entry) {
+    byte[] body = entry.encode();
+    int recordBytes = 8 + body.length;
+    // Keep room for an empty length field after the record, which marks the end of the journal.
+    if (journalBuffer.remaining() < recordBytes + 4) {
+      try {
+        mapJournalRegion(journalBufferStart + journalBuffer.position(), recordBytes + 4);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to extend the state journal", e);
+      }
+    }
+    journalBuffer.putInt(body.length);
+    journalBuffer.putInt(checksum(body));
+    journalBuffer.put(body);
+    entriesSinceSnapshot++;
+    if (entriesSinceSnapshot >= snapshotIntervalEntries
+        && !compactionPending
+        && !compactionExecutor.isShutdown()) {
+      compactionPending = true;
+      compactionExecutor.execute(this::compact);
+    }
+  }
+
+  /**
+   * Starts a new journal generation, and writes a snapshot of the state for it. The snapshot
+   * source is called while no mutation can be applied, but the snapshot is written without
+   * blocking them.
+   */
+  private void compact() {
+    long snapshotGeneration;
+    List<Entry> entries;
+    synchronized (this) {
+      compactionPending = false;
+      if (journalChannel == null) {
+        return;
+      }
+      try {
+        startGeneration(generation + 1);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Failed to start a new state journal generation", e);
+        return;
+      }
+      snapshotGeneration = generation;
+      entries = snapshotSource.capture();
+    }
+    writeSnapshot(snapshotGeneration, entries);
+  }
+
+  private void recover(Consumer<Entry> replay) throws IOException {
+    Files.createDirectories(directory);
+    long snapshotGeneration = -1;
+    List<Long> journalGenerations = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (file.getFileName().toString().endsWith(".tmp")) {
+          // An unfinished snapshot; the journals it would have replaced are still there.
+          Files.delete(file);
+          continue;
+        }
+        Matcher matcher = FILE_NAME_PATTERN.matcher(file.getFileName().toString());
+        if (!matcher.matches()) {
+          continue;
+        }
+        long fileGeneration = Long.parseLong(matcher.group(2));
+        if (matcher.group(1).equals("snapshot")) {
+          snapshotGeneration = Math.max(snapshotGeneration, fileGeneration);
+        } else {
+          journalGenerations.add(fileGeneration);
+        }
+      }
+    }
+    journalGenerations.sort(null);
+
+    long startNanos = System.nanoTime();
+    int replayed = 0;
+    if (snapshotGeneration >= 0) {
+      replayed += readRecords(snapshotPath(snapshotGeneration), replay);
+    }
+    long lastGeneration = Math.max(snapshotGeneration, 0);
+    long journalEnd = 0;
+    for (long journalGeneration : journalGenerations) {
+      if (journalGeneration < snapshotGeneration) {
+        continue;
+      }
+      Path journalPath = journalPath(journalGeneration);
+      int records = readRecords(journalPath, replay);
+      replayed += records;
+      entriesSinceSnapshot += records;
+      lastGeneration = journalGeneration;
+      journalEnd = lastRecordEnd;
+    }
+    logger.log(
+        Level.INFO,
+        String.format(
+            "Recovered %d state journal entries from %s in %d ms",
+            replayed, directory, (System.nanoTime() - startNanos) / 1_000_000));
+
+    generation = lastGeneration;
+    journalChannel =
+        FileChannel.open(
+            journalPath(generation),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    // Drop the zero-filled tail of the last mapped region, and any record torn by a crash.
+    journalChannel.truncate(journalEnd);
+    mapJournalRegion(journalEnd, 0);
+  }
+
+  /**
+   * Reads records from a journal or snapshot until its end, or until a torn or corrupt record.
+   * Returns the number of records read, and sets {@link #lastRecordEnd}.
+   */
+  private int readRecords(Path path, Consumer<Entry> replay) throws IOException {
+    int records = 0;
+    long position = 0;
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      while (true) {
+        int length;
+        int expectedChecksum;
+        byte[] body;
+        try {
+          length = input.readInt();
+          if (length <= 0) {
+            break;
+          }
+          expectedChecksum = input.readInt();
+          body = new byte[length];
+          input.readFully(body);
+        } catch (EOFException e) {
+          break;
+        }
+        if (checksum(body) != expectedChecksum) {
+          logger.log(
+              Level.WARNING,
+              String.format("Ignoring corrupt state journal record at %s:%d", path, position));
+          break;
+        }
+        replay.accept(Entry.decode(body));
+        position += 8 + length;
+        records++;
+      }
+    }
+    lastRecordEnd = position;
+    return records;
+  }
+
+  private void startGeneration(long newGeneration) throws IOException {
+    if (journalChannel != null) {
+      journalBuffer.force();
+      journalChannel.truncate(journalBufferStart + journalBuffer.position());
+      journalChannel.close();
+    }
+    generation = newGeneration;
+    entriesSinceSnapshot = 0;
+    journalChannel =
+        FileChannel.open(
+            journalPath(generation),
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    mapJournalRegion(0, 0);
+  }
+
+  private void mapJournalRegion(long start, int minimumBytes) throws IOException {
+    journalBufferStart = start;
+    journalBuffer =
+        journalChannel.map(
+            FileChannel.MapMode.READ_WRITE, start, Math.max(MAPPED_REGION_BYTES, minimumBytes));
+  }
+
+  private void writeSnapshot(long snapshotGeneration, List<Entry> entries) {
+    Path snapshotPath = snapshotPath(snapshotGeneration);
+    Path temporaryPath = directory.resolve(snapshotPath.getFileName() + ".tmp");
+    try {
+      try (FileChannel channel =
+              FileChannel.open(
+                  temporaryPath,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.TRUNCATE_EXISTING,
+                  StandardOpenOption.WRITE);
+          DataOutputStream output =
+              new DataOutputStream(
+                  new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+        for (Entry entry : entries) {
+          byte[] body = entry.encode();
+          output.writeInt(body.length);
+          output.writeInt(checksum(body));
+          output.write(body);
+        }
+        output.flush();
+        channel.force(true);
+      }
+      Files.move(temporaryPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+
+      // Everything before this generation is now covered by the snapshot.
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Matcher matcher = FILE_NAME_PATTERN.matcher(file.getFileName().toString());
+          if (matcher.matches() && Long.parseLong(matcher.group(2)) < snapshotGeneration) {
+            Files.deleteIfExists(file);
+          }
+        }
+      }
+      logger.log(
+          Level.INFO,
+          String.format(
+              "Wrote state snapshot %s with %d entries", snapshotPath, entries.size()));
+    } catch (IOException e) {
+      // The previous snapshot and journals are kept, so the state can still be recovered.
+      logger.log(Level.SEVERE, "Failed to write state snapshot " + snapshotPath, e);
+    }
+  }
+
+  private Path journalPath(long journalGeneration) {
+    return directory.resolve(String.format("journal-%d.log", journalGeneration));
+  }
+
+  private Path snapshotPath(long snapshotGeneration) {
+    return directory.resolve(String.format("snapshot-%d.bin", snapshotGeneration));
+  }
+
+  private static int checksum(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  /** Supplies the entries that rebuild the current state, for a snapshot. */
+  interface SnapshotSource {
+    List<Entry> capture();
+  }
+
+  /** A single ServletState mutation. */
+  static final class Entry {
+
+    /** The kinds of mutation. The ordinal is part of the on-disk format; only append to it. */
+    enum Type {
+      BACKEND_CONFIG,
+      TASK,
+      DELIVERY_VEHICLE,
+      ASSIGNMENT,
+      MANIFEST_STOP_STATE,
+      MANIFEST_REMAINING_STOP_ID_LIST,
+      REMOVE_STOP_TASK,
+      CLEAR_DELIVERY_STATE,
+      GENERATION,
+      REMOVE_DELIVERY_VEHICLE
+    }
+
+    private final Type type;
+    private final Object value;
+    private final String[] ids;
+
+    private Entry(Type type, Object value, String... ids) {
+      this.type = type;
+      this.value = value;
+      this.ids = ids;
+    }
+
+    static Entry backendConfig(BackendConfig backendConfig) {
+      return new Entry(Type.BACKEND_CONFIG, backendConfig);
+    }
+
+    /**
+     * A backend config entry which is serialized right away. Use this when the config may be
+     * modified before the entry is written.
+     */
+    static Entry backendConfigSnapshot(BackendConfig backendConfig) {
+      return new Entry(
+          Type.BACKEND_CONFIG,
+          backendConfig == null ? null : BackendConfigGsonProvider.get().toJson(backendConfig));
+    }
+
+    static Entry task(Task task) {
+      return new Entry(Type.TASK, task);
+    }
+
+    static Entry deliveryVehicle(DeliveryVehicle deliveryVehicle) {
+      return new Entry(Type.DELIVERY_VEHICLE, deliveryVehicle);
+    }
+
+    static Entry assignment(String clientId, String vehicleId) {
+      return new Entry(Type.ASSIGNMENT, null, clientId, vehicleId);
+    }
+
+    static Entry manifestStopState(String vehicleId, BackendConfig.StopState stopState) {
+      return new Entry(Type.MANIFEST_STOP_STATE, stopState, vehicleId);
+    }
+
+    static Entry manifestRemainingStopIdList(String vehicleId, String[] remainingStopIdList) {
+      return new Entry(Type.MANIFEST_REMAINING_STOP_ID_LIST, remainingStopIdList, vehicleId);
+    }
+
+    static Entry removeStopTask(String taskId) {
+      return new Entry(Type.REMOVE_STOP_TASK, null, taskId);
+    }
+
+    static Entry removeDeliveryVehicle(String vehicleId) {
+      return new Entry(Type.REMOVE_DELIVERY_VEHICLE, null, vehicleId);
+    }
+
+    static Entry clearDeliveryState() {
+      return new Entry(Type.CLEAR_DELIVERY_STATE, null);
+    }
+
+    /**
+     * A whole generation of the delivery state, made of backend config, task and vehicle entries.
+     * It is written as a single record, so it is either replayed in full or not at all.
+     */
+    static Entry generation(List<Entry> entries) {
+      return new Entry(Type.GENERATION, entries);
+    }
+
+    Type type() {
+      return type;
+    }
+
+    /** Returns the backend config of a BACKEND_CONFIG entry. */
+    BackendConfig backendConfig() {
+      if (value instanceof String) {
+        return BackendConfigGsonProvider.get().fromJson((String) value, BackendConfig.class);
+      }
+      return (BackendConfig) value;
+    }
+
+    Task task() {
+      return (Task) value;
+    }
+
+    DeliveryVehicle deliveryVehicle() {
+      return (DeliveryVehicle) value;
+    }
+
+    BackendConfig.StopState stopState() {
+      return (BackendConfig.StopState) value;
+    }
+
+    String[] remainingStopIdList() {
+      return (String[]) value;
+    }
+
+    /** Returns the entries of a GENERATION entry. */
+    @SuppressWarnings("unchecked")
+    List<Entry> entries() {
+      return (List<Entry>) value;
+    }
+
+    /** Returns the i-th ID of the entry: client and vehicle IDs, or a task ID. */
+    String id(int i) {
+      return ids[i];
+    }
+
+    byte[] encode() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream output = new DataOutputStream(bytes)) {
+        output.writeByte(type.ordinal());
+        output.writeShort(ids.length);
+        for (String id : ids) {
+          writeString(output, id);
+        }
+        switch (type) {
+          case BACKEND_CONFIG:
+            writeString(
+                output,
+                value instanceof String
+                    ? (String) value
+                    : BackendConfigGsonProvider.get().toJson(value));
+            break;
+          case TASK:
+          case DELIVERY_VEHICLE:
+            byte[] proto = ((MessageLite) value).toByteArray();
+            output.writeInt(proto.length);
+            output.write(proto);
+            break;
+          case MANIFEST_STOP_STATE:
+            writeString(output, value == null ? null : stopState().getValue());
+            break;
+          case MANIFEST_REMAINING_STOP_ID_LIST:
+            String[] stopIds = remainingStopIdList();
+            output.writeInt(stopIds == null ? -1 : stopIds.length);
+            if (stopIds != null) {
+              for (String stopId : stopIds) {
+                writeString(output, stopId);
+              }
+            }
+            break;
+          case GENERATION:
+            output.writeInt(entries().size());
+            for (Entry entry : entries()) {
+              byte[] body = entry.encode();
+              output.writeInt(body.length);
+              output.write(body);
+            }
+            break;
+          default:
+            break;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    static Entry decode(byte[] body) throws IOException {
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+      Type type = Type.values()[input.readByte()];
+      String[] ids = new String[input.readShort()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = readString(input);
+      }
+      Object value = null;
+      switch (type) {
+        case BACKEND_CONFIG:
+          value = readString(input);
+          break;
+        case TASK:
+          value = Task.parseFrom(readBytes(input));
+          break;
+        case DELIVERY_VEHICLE:
+          value = DeliveryVehicle.parseFrom(readBytes(input));
+          break;
+        case MANIFEST_STOP_STATE:
+          String stopState = readString(input);
+          value = stopState == null ? null : BackendConfig.StopState.of(stopState);
+          break;
+        case MANIFEST_REMAINING_STOP_ID_LIST:
+          int count = input.readInt();
+          if (count >= 0) {
+            String[] stopIds = new String[count];
+            for (int i = 0; i < count; i++) {
+              stopIds[i] = readString(input);
+            }
+            value = stopIds;
+          }
+          break;
+        case GENERATION:
+          int entryCount = input.readInt();
+          List<Entry> entries = new ArrayList<>(entryCount);
+          for (int i = 0; i < entryCount; i++) {
+            entries.add(decode(readBytes(input)));
+          }
+          value = entries;
+          break;
+        default:
+          break;
+      }
+      return new Entry(type, value, ids);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+      if (value == null) {
+        output.writeInt(-1);
+        return;
+      }
+      byte[] bytes = value.getBytes(UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+      byte[] bytes = readBytes(input);
+      return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+      int length = input.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      input.readFully(bytes);
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for the size of the servlet state, and how much of it has been evicted.
+ *
+ * <p>GET /state_stats
+ */
+@Singleton
+public final class StateStatsServlet extends HttpServlet {
+
+  private final DeliveryStateStore servletState;
+
+  @Inject
+  public StateStatsServlet(DeliveryStateStore servletState) {
+    this.servletState = servletState;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    JsonObject stats = new JsonObject();
+    stats.addProperty("task_count", servletState.getTaskCount());
+    stats.addProperty("closed_task_count", servletState.getClosedTaskCount());
+    stats.addProperty("evicted_task_count", servletState.getEvictedTaskCount());
+    stats.addProperty("manifest_count", servletState.getManifestCount());
+    stats.addProperty("finished_manifest_count", servletState.getFinishedManifestCount());
+    stats.addProperty("evicted_manifest_count", servletState.getEvictedManifestCount());
+
+    response.setHeader("cache-control", "no-store");
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().print(BackendConfigGsonProvider.get().toJson(stats));
+    response.getWriter().flush();
+  }
+}
@@ -0,0 +1,38 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.utils.BackendProperties;
+import com.example.backend.utils.SampleBackendUtils;
+import com.google.inject.AbstractModule;
+
+/**
+ * Guice Module which binds the delivery state store selected by the {@code state-store} backend
+ * property. Without it, the in-memory {@link ServletState} is used.
+ *
+ * <p>The shared store is bound to an {@link InProcessKeyValueStore}, which is only shared within
+ * this process. To share the state between backend instances, bind {@link KeyValueStore} to a
+ * client of the key-value service instead.
+ */
+final class StateStoreModule extends AbstractModule {
+
+  @Override
+  protected void configure() {
+    if (SampleBackendUtils.backendProperties.stateStore() == BackendProperties.StateStore.SHARED) {
+      bind(KeyValueStore.class).to(InProcessKeyValueStore.class);
+      bind(DeliveryStateStore.class).to(SharedDeliveryStateStore.class);
+    }
+  }
+}
@@ -29,6 +29,8 @@ import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
 import com.google.maps.fleetengine.delivery.v1.VehicleStop;
 import com.google.protobuf.FieldMask;
 import com.google.protobuf.Timestamp;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -44,15 +46,19 @@ import javax.servlet.http.HttpServletResponse;
 @Singleton
 public final class TaskServlet extends HttpServlet {
 
-  private final ServletState servletState;
+  private final DeliveryStateStore servletState;
   private static final Logger logger = Logger.getLogger(TaskServlet.class.getName());
   private final AuthenticatedGrpcServiceProvider grpcServiceProvider;
+  private final ChangeEvents changeEvents;
 
   @Inject
   public TaskServlet(
-      ServletState servletState, AuthenticatedGrpcServiceProvider grpcServiceProvider) {
+      DeliveryStateStore servletState,
+      AuthenticatedGrpcServiceProvider grpcServiceProvider,
+      ChangeEvents changeEvents) {
     this.servletState = servletState;
     this.grpcServiceProvider = grpcServiceProvider;
+    this.changeEvents = changeEvents;
   }
 
   /**
@@ -66,8 +72,6 @@ public final class TaskServlet extends HttpServlet {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     PrintWriter responseWriter = response.getWriter();
-    DeliveryServiceGrpc.DeliveryServiceBlockingStub authenticatedDeliveryService =
-        grpcServiceProvider.getAuthenticatedDeliveryService();
 
     // Fetch tasks by vehicle ID.
     // It's silly that HttpServletRequest doesn't deal well with URL queries out of the box.
@@ -179,8 +183,13 @@ public final class TaskServlet extends HttpServlet {
         }
       }
 
-      Task task = servletState.getTaskById(taskId);
-      if (task == null) {
+      // Fetch the task from Fleet Engine, just in case. Fleet Engine is only asked for tasks which
+      // are in the servlet state, or which were evicted from it once closed.
+      Task responseTask = null;
+      if (servletState.hasTask(taskId) || servletState.wasTaskEvicted(taskId)) {
+        responseTask = fetchTask(taskId);
+      }
+      if (responseTask == null) {
         logger.log(
             Level.WARNING,
             String.format(
@@ -190,13 +199,8 @@ public final class TaskServlet extends HttpServlet {
         return;
       }
 
-      // Fetch the task from Fleet Engine, just in case.
-      GetTaskRequest req =
-          GetTaskRequest.newBuilder().setName(TaskUtils.getTaskNameFromId(taskId)).build();
-      Task responseTask = authenticatedDeliveryService.getTask(req);
-
-      // Store the new task.
-      servletState.addTask(responseTask);
+      // Store the new task, unless it has been evicted.
+      servletState.replaceTask(responseTask);
       ServletUtils.writeProtoJson(responseWriter, responseTask);
       responseWriter.flush();
     }
@@ -217,6 +221,9 @@ public final class TaskServlet extends HttpServlet {
    * sample backend is implemented with Java's HttpServlet
    * (https://javaee.github.io/javaee-spec/javadocs/javax/servlet/http/HttpServlet.html) which does
    * not support PATCH. As such, for this operation, updates are supported via POST.
+   *
+   * <p>The updated task, and the manifest it is removed from, are published to their subscribers;
+   * see {@link ChangeStreamServlet}.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -228,6 +235,9 @@ public final class TaskServlet extends HttpServlet {
     String taskId = request.getPathInfo().substring(1);
 
     Task task = servletState.getTaskById(taskId);
+    if (task == null && servletState.wasTaskEvicted(taskId)) {
+      task = fetchTask(taskId);
+    }
     if (task == null) {
       logger.log(
           Level.WARNING,
@@ -276,12 +286,39 @@ public final class TaskServlet extends HttpServlet {
             .build();
     DeliveryServiceGrpc.DeliveryServiceBlockingStub authenticatedDeliveryService =
         grpcServiceProvider.getAuthenticatedDeliveryService();
-    Task responseTask = authenticatedDeliveryService.updateTask(updateReq);
-    servletState.addTask(responseTask);
 
-    // The task has been marked as complete; remove it from the manifest.
-    if (!outcome.equals(Task.TaskOutcome.TASK_OUTCOME_UNSPECIFIED)) {
-      servletState.removeBackendConfigTask(taskId);
+    // A completed task is removed from its manifest, so the manifest is claimed first, like for the
+    // updates of ManifestServlet, and the removal is not lost to a concurrent update of the
+    // manifest, such as an incremental upload. The manifest is found from the stop holding the
+    // task, as the delivery_vehicle_id of a task created from the backend config is not set.
+    boolean completed = !outcome.equals(Task.TaskOutcome.TASK_OUTCOME_UNSPECIFIED);
+    String vehicleId = completed ? servletState.getManifestVehicleIdByTaskId(taskId) : null;
+    Task responseTask;
+    try (DeliveryStateStore.ManifestUpdate update =
+        vehicleId != null ? servletState.beginManifestUpdate(vehicleId, null) : null) {
+      if (vehicleId != null && update == null) {
+        logger.log(
+            Level.WARNING,
+            String.format(
+                "The client completed task %s while the manifest of %s was being updated",
+                taskId, vehicleId));
+        ServletUtils.setErrorResponse(response, "The manifest is being updated.", 409);
+        return;
+      }
+      responseTask = authenticatedDeliveryService.updateTask(updateReq);
+      servletState.replaceTask(responseTask);
+      changeEvents.publishTaskChange(responseTask);
+
+      // The task has been marked as complete; remove it from the manifest.
+      if (completed) {
+        String previousVersion =
+            vehicleId == null ? null : servletState.getManifestVersion(vehicleId);
+        servletState.removeBackendConfigTask(taskId);
+        if (previousVersion != null
+            && !previousVersion.equals(servletState.getManifestVersion(vehicleId))) {
+          changeEvents.publishManifestChange(vehicleId, previousVersion);
+        }
+      }
     }
 
     response.setContentType("application/json");
@@ -301,10 +338,14 @@ public final class TaskServlet extends HttpServlet {
       }
       String taskId = request.getPathInfo().substring(1);
 
-      // Verify that the task exists in servletState.
-      Task task = servletState.getTaskById(taskId);
+      // Verify that the task exists in servletState, or in Fleet Engine if it has been evicted.
+      Task.TaskOutcome taskOutcome = servletState.getTaskOutcome(taskId);
+      if (taskOutcome == null && servletState.wasTaskEvicted(taskId)) {
+        Task task = fetchTask(taskId);
+        taskOutcome = task == null ? null : task.getTaskOutcome();
+      }
 
-      if (task == null) {
+      if (taskOutcome == null) {
         logger.log(
             Level.WARNING,
             String.format(
@@ -317,7 +358,7 @@ public final class TaskServlet extends HttpServlet {
       Task updatedTask = ServletUtils.readJsonProto(request.getReader(), Task.newBuilder());
 
       // For example, we can update the task outcome.
-      if (task.getTaskOutcome() == updatedTask.getTaskOutcome()) {
+      if (taskOutcome == updatedTask.getTaskOutcome()) {
         logger.log(
             Level.WARNING,
             "The client requested a task update, but the new task outcome is the same as the"
@@ -334,7 +375,8 @@ public final class TaskServlet extends HttpServlet {
       DeliveryServiceGrpc.DeliveryServiceBlockingStub authenticatedDeliveryService =
           grpcServiceProvider.getAuthenticatedDeliveryService();
       Task responseTask = authenticatedDeliveryService.updateTask(updateReq);
-      servletState.addTask(responseTask);
+      servletState.replaceTask(responseTask);
+      changeEvents.publishTaskChange(responseTask);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -342,4 +384,18 @@ public final class TaskServlet extends HttpServlet {
       response.getWriter().flush();
     }
   }
+
+  /** Fetches a task from Fleet Engine. Null if Fleet Engine has no task with the ID. */
+  private Task fetchTask(String taskId) {
+    GetTaskRequest req =
+        GetTaskRequest.newBuilder().setName(TaskUtils.getTaskNameFromId(taskId)).build();
+    try {
+      return grpcServiceProvider.getAuthenticatedDeliveryService().getTask(req);
+    } catch (StatusRuntimeException e) {
+      if (e.getStatus().getCode() == Status.Code.NOT_FOUND) {
+        return null;
+      }
+      throw e;
+    }
+  }
 }
@@ -0,0 +1,399 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.utils.ResourceNames;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.type.LatLng;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Compact storage for the Fleet Engine tasks of a generation.
+ *
+ * <p>Each task ID is interned once and mapped to an int handle, which indexes a set of columns:
+ * the task outcome is stored as its enum number, the planned location as two doubles, and the task
+ * itself as its serialized proto. A {@link Task} is only parsed when a caller asks for it, which
+ * is typically to write a response.
+ *
+ * <p>Other holders of the same IDs, such as the backend config, can share the interned strings
+ * through {@link #intern}, so each ID is only held once.
+ *
+ * <p>The table records when each task was closed, so closed tasks can be evicted with {@link
+ * #evictClosed}, oldest first. The rows of evicted tasks are reclaimed by copying the live rows
+ * into new columns once they make up most of the table. The IDs of recently evicted tasks are
+ * remembered, so callers only look further for tasks which are known to have existed.
+ *
+ * <p>Writes are serialized. Reads do not take any lock: a reader sees, for each task, either the
+ * previous or the latest version.
+ */
+final class TaskTable {
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** The number of evicted task IDs remembered, so they can be told apart from unknown IDs. */
+  static final int MAX_EVICTED_TASK_IDS = 100000;
+  private static final VarHandle PROTO_ELEMENT =
+      MethodHandles.arrayElementVarHandle(byte[][].class);
+
+  private final LongSupplier clock;
+
+  // Replaced as a whole when evicted rows are reclaimed, so a reader never mixes handles of one
+  // set of rows with the columns of another.
+  private volatile Rows rows = new Rows(INITIAL_CAPACITY);
+
+  // IDs of closed tasks, in the order they were closed. May hold IDs which have since been evicted
+  // or reopened; those are skipped. Guarded by this.
+  private final ArrayDeque<String> closedTaskIds = new ArrayDeque<>();
+  private int evictedRows;
+  // IDs of the most recently evicted tasks, oldest first. Guarded by this.
+  private final LinkedHashSet<String> evictedTaskIds = new LinkedHashSet<>();
+  private volatile int taskCount;
+  private volatile int closedTaskCount;
+
+  TaskTable() {
+    this(System::currentTimeMillis);
+  }
+
+  /** Creates a table which timestamps closed tasks with {@code clock}, in milliseconds. */
+  TaskTable(LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the canonical instance of a task ID, and reserves a handle for it. The task itself
+   * does not need to have been added.
+   */
+  String intern(String taskId) {
+    if (taskId == null) {
+      return null;
+    }
+    Rows current = rows;
+    Integer handle = current.handles.get(taskId);
+    if (handle != null) {
+      String interned = current.columns.taskIds[handle];
+      if (interned != null) {
+        return interned;
+      }
+    }
+    synchronized (this) {
+      return rows.columns.taskIds[handleFor(taskId)];
+    }
+  }
+
+  /**
+   * Releases the handle reserved for a task ID by {@link #intern}, unless a task with that ID has
+   * been added.
+   */
+  synchronized void release(String taskId) {
+    Rows current = rows;
+    Integer handle = current.handles.get(taskId);
+    if (handle != null && current.columns.protos[handle] == null) {
+      remove(current, taskId, handle);
+    }
+  }
+
+  /** Adds a task, or replaces the task with the same ID. */
+  synchronized void put(Task task) {
+    String taskId = ResourceNames.getId(task.getName());
+    evictedTaskIds.remove(taskId);
+    int handle = handleFor(taskId);
+    Columns current = rows.columns;
+    current.outcomes[handle] = (byte) task.getTaskOutcomeValue();
+    LatLng point = task.getPlannedLocation().getPoint();
+    current.latitudes[handle] = point.getLatitude();
+    current.longitudes[handle] = point.getLongitude();
+    boolean closed =
+        task.getState() == Task.State.CLOSED
+            || task.getTaskOutcome() != Task.TaskOutcome.TASK_OUTCOME_UNSPECIFIED;
+    if (closed && current.closedAtMillis[handle] == 0) {
+      current.closedAtMillis[handle] = clock.getAsLong();
+      closedTaskIds.add(current.taskIds[handle]);
+      closedTaskCount++;
+    } else if (!closed && current.closedAtMillis[handle] != 0) {
+      current.closedAtMillis[handle] = 0;
+      closedTaskCount--;
+    }
+    if (current.protos[handle] == null) {
+      taskCount++;
+    }
+    // Published last: a reader which sees this version of the proto also sees its columns.
+    PROTO_ELEMENT.setRelease(current.protos, handle, task.toByteArray());
+  }
+
+  /**
+   * Replaces the task with the same ID, only if it has been added and not evicted.
+   *
+   * @return true if the task was replaced
+   */
+  synchronized boolean replace(Task task) {
+    if (!contains(ResourceNames.getId(task.getName()))) {
+      return false;
+    }
+    put(task);
+    return true;
+  }
+
+  /**
+   * Returns true if a task with the given ID was evicted, and has not been added again since. Only
+   * the last {@link #MAX_EVICTED_TASK_IDS} evicted IDs are remembered.
+   */
+  synchronized boolean wasEvicted(String taskId) {
+    return evictedTaskIds.contains(taskId);
+  }
+
+  /** Returns the task with the given ID, parsed from its stored form. Null if there is none. */
+  Task get(String taskId) {
+    byte[] proto = proto(taskId);
+    if (proto == null) {
+      return null;
+    }
+    try {
+      return Task.parseFrom(proto);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Stored task " + taskId + " cannot be parsed", e);
+    }
+  }
+
+  /** Returns true if a task with the given ID has been added. The task is not parsed. */
+  boolean contains(String taskId) {
+    return proto(taskId) != null;
+  }
+
+  /** Returns the outcome of the task, without parsing it. Null if there is no such task. */
+  Task.TaskOutcome getOutcome(String taskId) {
+    Rows current = rows;
+    Integer handle = current.handles.get(taskId);
+    if (handle == null) {
+      return null;
+    }
+    Columns columns = current.columns;
+    if (PROTO_ELEMENT.getAcquire(columns.protos, handle.intValue()) == null) {
+      return null;
+    }
+    return Task.TaskOutcome.forNumber(columns.outcomes[handle]);
+  }
+
+  /** Returns the planned location of the task, without parsing it. Null if there is no task. */
+  LatLng getPlannedLocation(String taskId) {
+    Rows current = rows;
+    Integer handle = current.handles.get(taskId);
+    if (handle == null) {
+      return null;
+    }
+    Columns columns = current.columns;
+    if (PROTO_ELEMENT.getAcquire(columns.protos, handle.intValue()) == null) {
+      return null;
+    }
+    return LatLng.newBuilder()
+        .setLatitude(columns.latitudes[handle])
+        .setLongitude(columns.longitudes[handle])
+        .build();
+  }
+
+  /** Parses every task and passes it to {@code action}. */
+  void forEach(Consumer<Task> action) {
+    for (String taskId : rows.handles.keySet()) {
+      Task task = get(taskId);
+      if (task != null) {
+        action.accept(task);
+      }
+    }
+  }
+
+  /** Returns the number of tasks which have been added and not evicted. */
+  int size() {
+    return taskCount;
+  }
+
+  /** Returns the number of closed tasks which have not been evicted. */
+  int closedSize() {
+    return closedTaskCount;
+  }
+
+  /**
+   * Evicts closed tasks, oldest first, while they were closed before {@code closedBeforeMillis}
+   * or there are more than {@code maxClosedTasks} of them. A {@code maxClosedTasks} of 0 means no
+   * limit.
+   *
+   * @return the number of evicted tasks
+   */
+  synchronized int evictClosed(long closedBeforeMillis, int maxClosedTasks) {
+    int evicted = 0;
+    String taskId;
+    while ((taskId = closedTaskIds.peek()) != null) {
+      Rows current = rows;
+      Integer handle = current.handles.get(taskId);
+      long closedAtMillis = handle == null ? 0 : current.columns.closedAtMillis[handle];
+      if (closedAtMillis != 0) {
+        boolean overLimit = maxClosedTasks > 0 && closedTaskCount > maxClosedTasks;
+        if (closedAtMillis >= closedBeforeMillis && !overLimit) {
+          break;
+        }
+        remove(current, taskId, handle);
+        rememberEvicted(taskId);
+        evicted++;
+      }
+      closedTaskIds.poll();
+    }
+    if (evictedRows > INITIAL_CAPACITY && evictedRows > rows.size / 2) {
+      reclaimEvictedRows();
+    }
+    return evicted;
+  }
+
+  private void rememberEvicted(String taskId) {
+    evictedTaskIds.add(taskId);
+    if (evictedTaskIds.size() > MAX_EVICTED_TASK_IDS) {
+      Iterator<String> oldest = evictedTaskIds.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  private byte[] proto(String taskId) {
+    Rows current = rows;
+    Integer handle = current.handles.get(taskId);
+    if (handle == null) {
+      return null;
+    }
+    return (byte[]) PROTO_ELEMENT.getAcquire(current.columns.protos, handle.intValue());
+  }
+
+  private synchronized int handleFor(String taskId) {
+    Rows current = rows;
+    Integer existing = current.handles.get(taskId);
+    if (existing != null) {
+      return existing;
+    }
+    return current.add(taskId);
+  }
+
+  private void remove(Rows current, String taskId, int handle) {
+    Columns columns = current.columns;
+    current.handles.remove(taskId);
+    if (columns.protos[handle] != null) {
+      taskCount--;
+    }
+    if (columns.closedAtMillis[handle] != 0) {
+      closedTaskCount--;
+    }
+    PROTO_ELEMENT.setRelease(columns.protos, handle, null);
+    columns.taskIds[handle] = null;
+    columns.closedAtMillis[handle] = 0;
+    evictedRows++;
+  }
+
+  /** Copies the live rows into new columns, and publishes them in place of the current ones. */
+  private void reclaimEvictedRows() {
+    Rows current = rows;
+    Rows reclaimed = new Rows(Math.max(INITIAL_CAPACITY, current.handles.size() * 2));
+    for (Map.Entry<String, Integer> row : current.handles.entrySet()) {
+      reclaimed.copy(current.columns, row.getValue());
+    }
+    rows = reclaimed;
+    evictedRows = 0;
+  }
+
+  /** Task handles, and the columns they index. */
+  private static final class Rows {
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<>();
+
+    // Replaced as a whole when the table grows. A handle is only published once the columns hold
+    // it.
+    private volatile Columns columns;
+    private int size;
+
+    Rows(int capacity) {
+      this.columns = new Columns(capacity);
+    }
+
+    int add(String taskId) {
+      int handle = size++;
+      Columns current = columns;
+      if (handle == current.taskIds.length) {
+        current = current.grow(handle * 2);
+        columns = current;
+      }
+      current.taskIds[handle] = taskId;
+      handles.put(taskId, handle);
+      return handle;
+    }
+
+    void copy(Columns from, int fromHandle) {
+      int handle = add(from.taskIds[fromHandle]);
+      Columns to = columns;
+      to.outcomes[handle] = from.outcomes[fromHandle];
+      to.latitudes[handle] = from.latitudes[fromHandle];
+      to.longitudes[handle] = from.longitudes[fromHandle];
+      to.closedAtMillis[handle] = from.closedAtMillis[fromHandle];
+      to.protos[handle] = from.protos[fromHandle];
+    }
+  }
+
+  /** The per-task columns, indexed by handle. */
+  private static final class Columns {
+    private final String[] taskIds;
+    private final byte[] outcomes;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    // When each task was closed, in milliseconds. 0 while the task is open.
+    private final long[] closedAtMillis;
+    private final byte[][] protos;
+
+    Columns(int capacity) {
+      this(
+          new String[capacity],
+          new byte[capacity],
+          new double[capacity],
+          new double[capacity],
+          new long[capacity],
+          new byte[capacity][]);
+    }
+
+    private Columns(
+        String[] taskIds,
+        byte[] outcomes,
+        double[] latitudes,
+        double[] longitudes,
+        long[] closedAtMillis,
+        byte[][] protos) {
+      this.taskIds = taskIds;
+      this.outcomes = outcomes;
+      this.latitudes = latitudes;
+      this.longitudes = longitudes;
+      this.closedAtMillis = closedAtMillis;
+      this.protos = protos;
+    }
+
+    Columns grow(int capacity) {
+      return new Columns(
+          Arrays.copyOf(taskIds, capacity),
+          Arrays.copyOf(outcomes, capacity),
+          Arrays.copyOf(latitudes, capacity),
+          Arrays.copyOf(longitudes, capacity),
+          Arrays.copyOf(closedAtMillis, capacity),
+          Arrays.copyOf(protos, capacity));
+    }
+  }
+}
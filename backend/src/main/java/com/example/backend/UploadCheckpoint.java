@@ -0,0 +1,404 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * What a backend config upload has done so far, kept on disk so that the upload can be resumed
+ * where it stopped after a failure or a restart.
+ *
+ * <p>Each upload has a directory of its own, named after its job ID, which holds a copy of the
+ * uploaded config ({@code config.json}, or {@code config.pb} if it was uploaded in the protobuf
+ * format, with a {@code .gz} suffix if it was uploaded compressed) and a log of its progress
+ * ({@code checkpoint.bin}). The log holds the upload mode, the timestamp its IDs were given, and
+ * the Fleet Engine entities of each manifest once it has been provisioned. Its records have the
+ * same format as the {@link StateJournal}: a length, a CRC32 of the body, and the body. The log is
+ * flushed after each record, so a record survives a crash of the process; a record torn by a crash
+ * is dropped when the checkpoint is opened again.
+ *
+ * <p>Resuming an upload gives its manifests the same IDs as before. The manifests found in the
+ * log are not provisioned again, and the entities which were created for the others before the
+ * upload stopped are read back from Fleet Engine; see {@link ManifestProvisioner}.
+ */
+final class UploadCheckpoint implements ManifestProvisioner.Checkpoint, Closeable {
+  private static final Logger logger = Logger.getLogger(UploadCheckpoint.class.getName());
+
+  private static final String CONFIG_FILE = "config.json";
+  private static final String PROTOBUF_CONFIG_FILE = "config.pb";
+  private static final String COMPRESSED_SUFFIX = ".gz";
+  private static final String LOG_FILE = "checkpoint.bin";
+
+  private static final byte MODE = 1;
+  private static final byte TIMESTAMP = 2;
+  private static final byte MANIFEST = 3;
+
+  /** The largest uploaded file, compressed or not. */
+  static final long MAX_UPLOAD_BYTES = 100L * 1024 * 1024;
+
+  /** The largest config once decompressed. */
+  static final long MAX_CONFIG_BYTES = 2L * 1024 * 1024 * 1024;
+
+  private static final int GZIP_MAGIC = 0x1f8b;
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+  private final String mode;
+  private final Path configFile;
+  private final Map<Integer, ManifestProvisioner.ProvisionedManifest> provisioned;
+  private long timestamp;
+  private DataOutputStream log;
+
+  private UploadCheckpoint(
+      Path directory,
+      String mode,
+      Path configFile,
+      long timestamp,
+      Map<Integer, ManifestProvisioner.ProvisionedManifest> provisioned,
+      DataOutputStream log) {
+    this.directory = directory;
+    this.mode = mode;
+    this.configFile = configFile;
+    this.timestamp = timestamp;
+    this.provisioned = provisioned;
+    this.log = log;
+  }
+
+  /**
+   * Creates the checkpoint of a new upload in {@code directory}, which must not exist yet, and
+   * copies the uploaded config into it. A gzip-compressed config, recognized by its first bytes, is
+   * kept compressed.
+   *
+   * @throws ConfigTooLargeException if the config is larger than {@link #MAX_UPLOAD_BYTES}
+   */
+  static UploadCheckpoint create(Path directory, String mode, InputStream config)
+      throws IOException {
+    return create(directory, mode, false, config);
+  }
+
+  /**
+   * Creates the checkpoint of a new upload, like {@link #create(Path, String, InputStream)}, of a
+   * config in the protobuf format if {@code protobuf} is true.
+   */
+  static UploadCheckpoint create(
+      Path directory, String mode, boolean protobuf, InputStream config) throws IOException {
+    Files.createDirectories(directory.getParent());
+    Files.createDirectory(directory);
+    Path configFile;
+    try {
+      try (PushbackInputStream in = new PushbackInputStream(config, 2)) {
+        byte[] magic = new byte[2];
+        int length = in.readNBytes(magic, 0, 2);
+        in.unread(magic, 0, length);
+        boolean compressed =
+            length == 2 && ((magic[0] & 0xff) << 8 | (magic[1] & 0xff)) == GZIP_MAGIC;
+        configFile =
+            directory.resolve(
+                (protobuf ? PROTOBUF_CONFIG_FILE : CONFIG_FILE)
+                    + (compressed ? COMPRESSED_SUFFIX : ""));
+        Files.copy(
+            new SizeLimitedInputStream(in, MAX_UPLOAD_BYTES),
+            configFile,
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      DataOutputStream log = openLog(directory, 0);
+      UploadCheckpoint checkpoint =
+          new UploadCheckpoint(directory, mode, configFile, 0, new HashMap<>(), log);
+      checkpoint.append(MODE, body -> body.writeUTF(mode));
+      return checkpoint;
+    } catch (IOException e) {
+      deleteDirectory(directory);
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the checkpoint of an upload which did not complete, to resume it.
+   *
+   * @throws NoSuchFileException if there is no such checkpoint
+   */
+  static UploadCheckpoint open(Path directory) throws IOException {
+    Path logPath = directory.resolve(LOG_FILE);
+    Path configFile = findConfigFile(directory);
+    if (!Files.exists(logPath) || configFile == null) {
+      throw new NoSuchFileException(directory.toString());
+    }
+    String mode = null;
+    long timestamp = 0;
+    Map<Integer, ManifestProvisioner.ProvisionedManifest> provisioned = new HashMap<>();
+    long position = 0;
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+      while (true) {
+        byte[] body;
+        try {
+          int length = input.readInt();
+          int expectedChecksum = input.readInt();
+          if (length <= 0) {
+            break;
+          }
+          body = new byte[length];
+          input.readFully(body);
+          if (checksum(body) != expectedChecksum) {
+            logger.log(
+                Level.WARNING,
+                String.format("Ignoring corrupt checkpoint record at %s:%d", logPath, position));
+            break;
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        switch (record.readByte()) {
+          case MODE:
+            mode = record.readUTF();
+            break;
+          case TIMESTAMP:
+            timestamp = record.readLong();
+            break;
+          case MANIFEST:
+            int index = record.readInt();
+            DeliveryVehicle deliveryVehicle = DeliveryVehicle.parseDelimitedFrom(record);
+            int taskCount = record.readInt();
+            List<Task> tasks = new ArrayList<>(taskCount);
+            for (int t = 0; t < taskCount; t++) {
+              tasks.add(Task.parseDelimitedFrom(record));
+            }
+            provisioned.put(
+                index, new ManifestProvisioner.ProvisionedManifest(tasks, deliveryVehicle));
+            break;
+          default:
+            throw new IOException("Unknown upload checkpoint record in " + logPath);
+        }
+        position += 8 + body.length;
+      }
+    }
+    if (mode == null) {
+      throw new IOException("The upload checkpoint in " + directory + " has no mode");
+    }
+    return new UploadCheckpoint(
+        directory, mode, configFile, timestamp, provisioned, openLog(directory, position));
+  }
+
+  private static Path findConfigFile(Path directory) {
+    for (String name : new String[] {CONFIG_FILE, PROTOBUF_CONFIG_FILE}) {
+      for (String suffix : new String[] {"", COMPRESSED_SUFFIX}) {
+        Path configFile = directory.resolve(name + suffix);
+        if (Files.exists(configFile)) {
+          return configFile;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Opens the uploaded config, which is decompressed as it is read if it was uploaded compressed.
+   * Reading fails with a {@link ConfigTooLargeException} past {@link #MAX_CONFIG_BYTES}.
+   */
+  InputStream openConfig() throws IOException {
+    if (!configFile.getFileName().toString().endsWith(COMPRESSED_SUFFIX)) {
+      return Files.newInputStream(configFile);
+    }
+    return new SizeLimitedInputStream(
+        new GZIPInputStream(Files.newInputStream(configFile), GZIP_BUFFER_SIZE),
+        MAX_CONFIG_BYTES);
+  }
+
+  /** Returns true if the config was uploaded in the protobuf format rather than in JSON. */
+  boolean isProtobuf() {
+    return configFile.getFileName().toString().startsWith(PROTOBUF_CONFIG_FILE);
+  }
+
+  String mode() {
+    return mode;
+  }
+
+  /**
+   * Returns the timestamp the IDs of the upload are given: the one recorded when the upload first
+   * started, or else {@code now}, which is recorded.
+   */
+  long startTimestamp(long now) throws IOException {
+    if (timestamp == 0) {
+      timestamp = now;
+      append(TIMESTAMP, body -> body.writeLong(now));
+    }
+    return timestamp;
+  }
+
+  /** Returns the number of manifests which were provisioned before the upload was resumed. */
+  int provisionedCount() {
+    return provisioned.size();
+  }
+
+  @Override
+  public ManifestProvisioner.ProvisionedManifest get(int index) {
+    return provisioned.get(index);
+  }
+
+  /** Records that the manifest at {@code index} was provisioned. */
+  void record(int index, List<Task> tasks, DeliveryVehicle deliveryVehicle) throws IOException {
+    append(
+        MANIFEST,
+        body -> {
+          body.writeInt(index);
+          deliveryVehicle.writeDelimitedTo(body);
+          body.writeInt(tasks.size());
+          for (Task task : tasks) {
+            task.writeDelimitedTo(body);
+          }
+        });
+  }
+
+  /** Deletes the checkpoint, once the upload has completed or has been abandoned. */
+  void delete() throws IOException {
+    close();
+    deleteDirectory(directory);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+    }
+  }
+
+  /** Writes the body of a record. */
+  private interface RecordWriter {
+    void write(DataOutputStream body) throws IOException;
+  }
+
+  private void append(byte type, RecordWriter writer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeByte(type);
+    writer.write(body);
+    body.flush();
+    byte[] encoded = bytes.toByteArray();
+    log.writeInt(encoded.length);
+    log.writeInt(checksum(encoded));
+    log.write(encoded);
+    log.flush();
+  }
+
+  /** Opens the log for appending after {@code end}, dropping anything after it. */
+  private static DataOutputStream openLog(Path directory, long end) throws IOException {
+    FileChannel channel =
+        FileChannel.open(
+            directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    channel.truncate(end);
+    channel.position(end);
+    return new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  private static int checksum(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return (int) crc.getValue();
+  }
+
+  private static void deleteDirectory(Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /** Thrown when an uploaded config is too large. */
+  static final class ConfigTooLargeException extends IOException {
+    ConfigTooLargeException(long maxBytes) {
+      super(String.format("The backend config is larger than %d MB.", maxBytes / (1024 * 1024)));
+    }
+  }
+
+  /** Fails with a {@link ConfigTooLargeException} once more than a number of bytes is read. */
+  private static final class SizeLimitedInputStream extends FilterInputStream {
+    private final long maxBytes;
+    private long bytesRead;
+
+    SizeLimitedInputStream(InputStream in, long maxBytes) {
+      super(in);
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long n) throws ConfigTooLargeException {
+      bytesRead += n;
+      if (bytesRead > maxBytes) {
+        throw new ConfigTooLargeException(maxBytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * A backend config upload which runs in the background, and its progress so far. The progress is
+ * updated by the upload thread and read by the status requests.
+ */
+final class UploadJob implements BackendConfigServlet.UploadListener {
+
+  /** The stages of an upload job. */
+  enum Phase {
+    /** Waiting for the jobs submitted before it. */
+    QUEUED,
+    /** Creating or updating the Fleet Engine entities. */
+    PROVISIONING,
+    /** Making the new delivery state current. */
+    PUBLISHING,
+    SUCCEEDED,
+    FAILED
+  }
+
+  private final String id;
+  private final String mode;
+  private final LongSupplier clock;
+  private final long submittedMillis;
+  private volatile Phase phase = Phase.QUEUED;
+  private volatile long startedMillis;
+  private volatile long finishedMillis;
+  private volatile int vehicleCount = -1;
+  private volatile boolean invalidConfig;
+  private final AtomicInteger tasksCreated = new AtomicInteger();
+  private final AtomicInteger vehiclesCreated = new AtomicInteger();
+  private final AtomicInteger vehiclesUpdated = new AtomicInteger();
+  private final List<String> errors = new ArrayList<>();
+  private final List<String> vehicleIds = new ArrayList<>();
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  UploadJob(String id, String mode, LongSupplier clock) {
+    this.id = id;
+    this.mode = mode;
+    this.clock = clock;
+    this.submittedMillis = clock.getAsLong();
+  }
+
+  String id() {
+    return id;
+  }
+
+  Phase phase() {
+    return phase;
+  }
+
+  /** Returns true if the job has succeeded or failed. */
+  boolean isDone() {
+    return phase == Phase.SUCCEEDED || phase == Phase.FAILED;
+  }
+
+  void started() {
+    startedMillis = clock.getAsLong();
+    phase = Phase.PROVISIONING;
+  }
+
+  void succeeded() {
+    finishedMillis = clock.getAsLong();
+    phase = Phase.SUCCEEDED;
+    done.countDown();
+  }
+
+  void failed(String error) {
+    failed(error, false);
+  }
+
+  /**
+   * Marks the job as failed. {@code invalidConfig} is true if it failed because its backend config
+   * is invalid, so that running it again would fail the same way.
+   */
+  void failed(String error, boolean invalidConfig) {
+    this.invalidConfig = invalidConfig;
+    synchronized (errors) {
+      errors.add(error);
+    }
+    finishedMillis = clock.getAsLong();
+    phase = Phase.FAILED;
+    done.countDown();
+  }
+
+  /** Returns true if the job failed because its backend config is invalid. */
+  boolean failedOnInvalidConfig() {
+    return phase == Phase.FAILED && invalidConfig;
+  }
+
+  /** Waits up to {@code timeoutMillis} for the job to finish, and returns whether it has. */
+  boolean awaitDone(long timeoutMillis) throws InterruptedException {
+    return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void onVehicleCount(int vehicleCount) {
+    this.vehicleCount = vehicleCount;
+  }
+
+  @Override
+  public void onTaskCreated(Task task) {
+    tasksCreated.incrementAndGet();
+  }
+
+  @Override
+  public void onVehicleProvisioned(DeliveryVehicle deliveryVehicle, boolean created) {
+    (created ? vehiclesCreated : vehiclesUpdated).incrementAndGet();
+    synchronized (vehicleIds) {
+      vehicleIds.add(ServletState.getId(deliveryVehicle.getName()));
+    }
+  }
+
+  @Override
+  public void onPublishing() {
+    phase = Phase.PUBLISHING;
+  }
+
+  /**
+   * Returns the status of the job: its phase, the vehicles and tasks done so far, how many
+   * vehicles remain (once known), the throughput since the job started, and its errors.
+   */
+  JsonObject toJson() {
+    Phase currentPhase = phase;
+    long now = isDone() ? finishedMillis : clock.getAsLong();
+    boolean queued = currentPhase == Phase.QUEUED;
+    double elapsedSeconds = queued ? 0 : (now - startedMillis) / 1000.0;
+    int vehiclesDone = vehiclesCreated.get() + vehiclesUpdated.get();
+
+    JsonObject status = new JsonObject();
+    status.addProperty("job_id", id);
+    status.addProperty("mode", mode);
+    status.addProperty("phase", currentPhase.name());
+    status.addProperty("vehicles_created", vehiclesCreated.get());
+    status.addProperty("vehicles_updated", vehiclesUpdated.get());
+    if (vehicleCount >= 0) {
+      status.addProperty("vehicles_remaining", Math.max(vehicleCount - vehiclesDone, 0));
+    }
+    status.addProperty("tasks_created", tasksCreated.get());
+    long queuedUntil = queued ? now : startedMillis;
+    status.addProperty("queued_seconds", (queuedUntil - submittedMillis) / 1000.0);
+    status.addProperty("elapsed_seconds", elapsedSeconds);
+    if (elapsedSeconds > 0) {
+      status.addProperty("vehicles_per_second", vehiclesDone / elapsedSeconds);
+      status.addProperty("tasks_per_second", tasksCreated.get() / elapsedSeconds);
+    }
+    JsonArray errorList = new JsonArray();
+    synchronized (errors) {
+      errors.forEach(errorList::add);
+    }
+    status.add("errors", errorList);
+    return status;
+  }
+
+  /** Returns the status of the job, with the IDs of the vehicles it created or updated. */
+  JsonObject toSummaryJson() {
+    JsonObject summary = toJson();
+    JsonArray vehicleIdList = new JsonArray();
+    synchronized (vehicleIds) {
+      vehicleIds.forEach(vehicleIdList::add);
+    }
+    summary.add("vehicle_ids", vehicleIdList);
+    return summary;
+  }
+}
@@ -0,0 +1,67 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.utils.ServletUtils;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for the status of backend config uploads.
+ *
+ * <p>GET /backend_config/jobs/:jobId
+ */
+@Singleton
+public final class UploadJobServlet extends HttpServlet {
+  private static final Logger logger = Logger.getLogger(UploadJobServlet.class.getName());
+
+  /** The path of the job statuses, followed by the job ID. */
+  static final String PATH = "/backend_config/jobs/";
+
+  private final UploadJobs uploadJobs;
+
+  @Inject
+  UploadJobServlet(UploadJobs uploadJobs) {
+    this.uploadJobs = uploadJobs;
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    ServletUtils.setStandardResponseHeaders(response);
+    response.setHeader("cache-control", "no-store");
+    if (request.getPathInfo() == null || request.getPathInfo().length() <= 1) {
+      logger.log(Level.WARNING, "The client requested an upload job without specifying its ID");
+      ServletUtils.setErrorResponse(response, "The upload job ID must be specified.", 400);
+      return;
+    }
+    String jobId = request.getPathInfo().substring(1);
+    UploadJob job = uploadJobs.get(jobId);
+    if (job == null) {
+      logger.log(
+          Level.WARNING, String.format("The client requested an unknown upload job (%s)", jobId));
+      ServletUtils.setErrorResponse(response, "The requested upload job doesn't exist.", 404);
+      return;
+    }
+    response.getWriter().print(BackendConfigGsonProvider.get().toJson(job.toJson()));
+    response.getWriter().flush();
+  }
+}
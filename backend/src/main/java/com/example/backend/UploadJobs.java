@@ -0,0 +1,193 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.utils.BackendConfigException;
+import com.example.backend.utils.SampleBackendUtils;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Runs backend config uploads in the background, one at a time, and keeps their status.
+ *
+ * <p>Uploads are run one after the other, since each one replaces or changes the delivery state
+ * that the next one builds on. At most {@link #MAX_QUEUED_JOBS} jobs wait behind the running one;
+ * further jobs are rejected. The status of the last {@link #MAX_RETAINED_JOBS} finished jobs is
+ * kept.
+ *
+ * <p>The {@link UploadCheckpoint} of each upload is kept in the {@code
+ * upload-checkpoint-directory} of the backend properties, or in a temporary directory if none is
+ * set, in which case the uploads cannot be resumed after a restart.
+ */
+@Singleton
+final class UploadJobs {
+  private static final Logger logger = Logger.getLogger(UploadJobs.class.getName());
+
+  static final int MAX_QUEUED_JOBS = 4;
+  static final int MAX_RETAINED_JOBS = 100;
+
+  private final ExecutorService executor;
+  private final LongSupplier clock;
+  private final Path checkpointDirectory;
+  // Jobs in the order they were submitted.
+  private final LinkedHashMap<String, UploadJob> jobs = new LinkedHashMap<>();
+
+  @Inject
+  UploadJobs() {
+    this(System::currentTimeMillis);
+  }
+
+  UploadJobs(LongSupplier clock) {
+    this(clock, defaultCheckpointDirectory());
+  }
+
+  UploadJobs(LongSupplier clock, Path checkpointDirectory) {
+    this.clock = clock;
+    this.checkpointDirectory = checkpointDirectory;
+    this.executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_JOBS),
+            runnable -> {
+              Thread thread = new Thread(runnable, "backend-config-upload");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** The work of an upload job, which reports its progress to the job. */
+  interface Work {
+    void run(UploadJob job) throws Exception;
+  }
+
+  /** Returns a new job ID. */
+  static String newJobId() {
+    return UUID.randomUUID().toString();
+  }
+
+  /** Returns the directory holding the checkpoint of the upload with the given job ID. */
+  Path checkpointDirectory(String jobId) {
+    return checkpointDirectory.resolve(jobId);
+  }
+
+  /**
+   * Queues an upload job with a new ID, and returns it.
+   *
+   * @throws RejectedExecutionException if too many jobs are already waiting
+   */
+  UploadJob submit(String mode, Work work) {
+    return submit(newJobId(), mode, work);
+  }
+
+  /**
+   * Queues an upload job, and returns it. A job which failed may be submitted again under the same
+   * ID to resume it.
+   *
+   * @throws RejectedExecutionException if too many jobs are already waiting
+   * @throws IllegalStateException if a job with the same ID is waiting or running
+   */
+  UploadJob submit(String jobId, String mode, Work work) {
+    UploadJob job = new UploadJob(jobId, mode, clock);
+    synchronized (jobs) {
+      if (isActive(jobId)) {
+        throw new IllegalStateException("Upload job " + jobId + " is already in progress");
+      }
+      executor.execute(() -> run(job, work));
+      // A resumed job replaces the failed one, and moves to the end of the submission order.
+      jobs.remove(jobId);
+      jobs.put(jobId, job);
+      removeOldJobs();
+    }
+    return job;
+  }
+
+  /** Returns the job with the given ID. Null if there is none, or it is no longer kept. */
+  UploadJob get(String jobId) {
+    synchronized (jobs) {
+      return jobs.get(jobId);
+    }
+  }
+
+  /** Returns whether the job with the given ID is waiting or running. */
+  boolean isActive(String jobId) {
+    synchronized (jobs) {
+      UploadJob job = jobs.get(jobId);
+      return job != null && !job.isDone();
+    }
+  }
+
+  private void run(UploadJob job, Work work) {
+    job.started();
+    try {
+      work.run(job);
+      job.succeeded();
+      logger.log(Level.INFO, "Upload job {0} succeeded", job.id());
+    } catch (BackendConfigException e) {
+      logger.log(Level.WARNING, String.format("Upload job %s failed", job.id()), e);
+      job.failed(e.getMessage(), true);
+    } catch (Exception | Error e) {
+      logger.log(Level.WARNING, String.format("Upload job %s failed", job.id()), e);
+      job.failed(e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+  }
+
+  private static Path defaultCheckpointDirectory() {
+    String directory = SampleBackendUtils.backendProperties.uploadCheckpointDirectory();
+    try {
+      return directory.isEmpty()
+          ? Files.createTempDirectory("backend-config-uploads")
+          : Paths.get(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Drops the oldest finished jobs beyond {@link #MAX_RETAINED_JOBS}. */
+  private void removeOldJobs() {
+    int finished = 0;
+    for (UploadJob job : jobs.values()) {
+      if (job.isDone()) {
+        finished++;
+      }
+    }
+    Iterator<Map.Entry<String, UploadJob>> oldestFirst = jobs.entrySet().iterator();
+    while (finished > MAX_RETAINED_JOBS && oldestFirst.hasNext()) {
+      if (oldestFirst.next().getValue().isDone()) {
+        oldestFirst.remove();
+        finished--;
+      }
+    }
+  }
+}
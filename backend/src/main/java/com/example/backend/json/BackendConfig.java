@@ -72,6 +72,13 @@ public final class BackendConfig {
     @SerializedName("remaining_stop_id_list")
     public String[] remainingStopIdList;
 
+    /**
+     * The suffix the backend appended to the vehicle and task IDs of the manifest when it was
+     * uploaded. Set by the backend.
+     */
+    @SerializedName("id_suffix")
+    public String idSuffix;
+
     Manifest() {}
   }
 
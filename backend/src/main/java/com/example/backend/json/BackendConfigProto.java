@@ -0,0 +1,586 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes backend configs and manifests in the protobuf wire format of {@code
+ * src/main/proto/backend_config.proto}, without generated code.
+ *
+ * <p>Fields which are null are not written, and fields which are missing are read as null, so a
+ * manifest reads back as it was written, like in JSON.
+ */
+public final class BackendConfigProto {
+
+  /** The content type of the protobuf wire format. */
+  public static final String CONTENT_TYPE = "application/x-protobuf";
+
+  // BackendConfig
+  static final int CONFIG_DESCRIPTION = 1;
+  static final int CONFIG_MANIFESTS = 2;
+
+  // Manifest
+  private static final int MANIFEST_VEHICLE = 1;
+  private static final int MANIFEST_TASKS = 2;
+  private static final int MANIFEST_STOPS = 3;
+  private static final int MANIFEST_CLIENT_ID = 4;
+  private static final int MANIFEST_CURRENT_STOP_STATE = 5;
+  private static final int MANIFEST_REMAINING_STOP_ID_LIST = 6;
+  private static final int MANIFEST_ID_SUFFIX = 7;
+
+  // StopIdList
+  private static final int STOP_ID_LIST_STOP_IDS = 1;
+
+  // Vehicle
+  private static final int VEHICLE_VEHICLE_ID = 1;
+  private static final int VEHICLE_PROVIDER_ID = 2;
+  private static final int VEHICLE_START_LOCATION = 3;
+
+  // Task
+  private static final int TASK_TASK_ID = 1;
+  private static final int TASK_TRACKING_ID = 2;
+  private static final int TASK_PLANNED_WAYPOINT = 3;
+  private static final int TASK_PLANNED_COMPLETION_TIME = 4;
+  private static final int TASK_PLANNED_COMPLETION_TIME_RANGE = 5;
+  private static final int TASK_DURATION = 6;
+  private static final int TASK_TYPE = 7;
+  private static final int TASK_CONTACT_NAME = 8;
+  private static final int TASK_DESCRIPTION = 9;
+
+  // Stop
+  private static final int STOP_STOP_ID = 1;
+  private static final int STOP_PLANNED_WAYPOINT = 2;
+  private static final int STOP_TASKS = 3;
+
+  // Waypoint
+  private static final int WAYPOINT_DESCRIPTION = 1;
+  private static final int WAYPOINT_LAT = 2;
+  private static final int WAYPOINT_LNG = 3;
+
+  // google.protobuf.Duration
+  private static final int DURATION_SECONDS = 1;
+  private static final int DURATION_NANOS = 2;
+
+  // The enum values, in the order of their numbers in the schema.
+  private static final BackendConfig.StopState[] STOP_STATES = {
+    BackendConfig.StopState.STATE_UNSPECIFIED,
+    BackendConfig.StopState.NEW,
+    BackendConfig.StopState.ENROUTE,
+    BackendConfig.StopState.ARRIVED
+  };
+  private static final BackendConfig.TaskType[] TASK_TYPES = {
+    null,
+    BackendConfig.TaskType.PICKUP,
+    BackendConfig.TaskType.DELIVERY,
+    BackendConfig.TaskType.SCHEDULED_STOP,
+    BackendConfig.TaskType.UNAVAILABLE
+  };
+
+  /** Writes a whole backend config. */
+  public static void writeBackendConfig(BackendConfig backendConfig, OutputStream out)
+      throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    writeString(output, CONFIG_DESCRIPTION, backendConfig.description);
+    if (backendConfig.manifests != null) {
+      for (BackendConfig.Manifest manifest : backendConfig.manifests) {
+        output.writeTag(CONFIG_MANIFESTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(manifestSize(manifest));
+        writeManifestFields(output, manifest);
+      }
+    }
+    output.flush();
+  }
+
+  /** Writes a manifest as a message of its own. */
+  public static void writeManifest(BackendConfig.Manifest manifest, OutputStream out)
+      throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    writeManifestFields(output, manifest);
+    output.flush();
+  }
+
+  /** Returns the manifest written as a message of its own. */
+  public static byte[] toByteArray(BackendConfig.Manifest manifest) {
+    byte[] bytes = new byte[manifestSize(manifest)];
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      writeManifestFields(output, manifest);
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to a byte array cannot fail", e);
+    }
+    output.checkNoSpaceLeft();
+    return bytes;
+  }
+
+  /**
+   * Reads a manifest written as a message of its own, up to the end of {@code in}.
+   *
+   * @throws InvalidProtocolBufferException if the manifest is not valid
+   */
+  public static BackendConfig.Manifest readManifest(InputStream in) throws IOException {
+    return readManifestFields(CodedInputStream.newInstance(in));
+  }
+
+  /**
+   * Reads a whole backend config.
+   *
+   * @throws InvalidProtocolBufferException if the config is not valid
+   */
+  public static BackendConfig readBackendConfig(InputStream in) throws IOException {
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    BackendConfig backendConfig;
+    try (BackendConfigProtoReader reader = new BackendConfigProtoReader(in)) {
+      while (reader.hasNextManifest()) {
+        manifests.add(reader.nextManifest());
+      }
+      backendConfig = reader.finish();
+    }
+    backendConfig.manifests = manifests.toArray(new BackendConfig.Manifest[0]);
+    return backendConfig;
+  }
+
+  private static void writeManifestFields(CodedOutputStream output, BackendConfig.Manifest m)
+      throws IOException {
+    if (m.vehicle != null) {
+      writeMessageHeader(output, MANIFEST_VEHICLE, vehicleSize(m.vehicle));
+      writeString(output, VEHICLE_VEHICLE_ID, m.vehicle.vehicleId);
+      writeString(output, VEHICLE_PROVIDER_ID, m.vehicle.providerId);
+      writeWaypoint(output, VEHICLE_START_LOCATION, m.vehicle.startLocation);
+    }
+    if (m.tasks != null) {
+      for (BackendConfig.Task task : m.tasks) {
+        writeMessageHeader(output, MANIFEST_TASKS, taskSize(task));
+        writeTaskFields(output, task);
+      }
+    }
+    if (m.stops != null) {
+      for (BackendConfig.Stop stop : m.stops) {
+        writeMessageHeader(output, MANIFEST_STOPS, stopSize(stop));
+        writeString(output, STOP_STOP_ID, stop.stopId);
+        writeWaypoint(output, STOP_PLANNED_WAYPOINT, stop.plannedWaypoint);
+        writeStrings(output, STOP_TASKS, stop.tasks);
+      }
+    }
+    writeString(output, MANIFEST_CLIENT_ID, m.clientId);
+    if (m.currentStopState != null) {
+      output.writeEnum(MANIFEST_CURRENT_STOP_STATE, m.currentStopState.ordinal());
+    }
+    if (m.remainingStopIdList != null) {
+      writeMessageHeader(
+          output,
+          MANIFEST_REMAINING_STOP_ID_LIST,
+          stringsSize(STOP_ID_LIST_STOP_IDS, m.remainingStopIdList));
+      writeStrings(output, STOP_ID_LIST_STOP_IDS, m.remainingStopIdList);
+    }
+    writeString(output, MANIFEST_ID_SUFFIX, m.idSuffix);
+  }
+
+  private static void writeTaskFields(CodedOutputStream output, BackendConfig.Task t)
+      throws IOException {
+    writeString(output, TASK_TASK_ID, t.taskId);
+    writeString(output, TASK_TRACKING_ID, t.trackingId);
+    writeWaypoint(output, TASK_PLANNED_WAYPOINT, t.plannedWaypoint);
+    if (t.plannedCompletionTime != null) {
+      writeString(
+          output,
+          TASK_PLANNED_COMPLETION_TIME,
+          t.plannedCompletionTime.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+    }
+    writeDuration(output, TASK_PLANNED_COMPLETION_TIME_RANGE, t.plannedCompletionTimeRangeSeconds);
+    writeDuration(output, TASK_DURATION, t.duration);
+    if (t.type != null) {
+      output.writeEnum(TASK_TYPE, t.type.ordinal() + 1);
+    }
+    writeString(output, TASK_CONTACT_NAME, t.contactName);
+    writeString(output, TASK_DESCRIPTION, t.description);
+  }
+
+  private static void writeMessageHeader(CodedOutputStream output, int field, int size)
+      throws IOException {
+    output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(size);
+  }
+
+  private static void writeString(CodedOutputStream output, int field, String value)
+      throws IOException {
+    if (value != null) {
+      output.writeString(field, value);
+    }
+  }
+
+  private static void writeStrings(CodedOutputStream output, int field, String[] values)
+      throws IOException {
+    if (values != null) {
+      for (String value : values) {
+        output.writeString(field, value);
+      }
+    }
+  }
+
+  private static void writeWaypoint(
+      CodedOutputStream output, int field, BackendConfig.Waypoint waypoint) throws IOException {
+    if (waypoint == null) {
+      return;
+    }
+    writeMessageHeader(output, field, waypointSize(waypoint));
+    writeString(output, WAYPOINT_DESCRIPTION, waypoint.description);
+    if (Double.doubleToRawLongBits(waypoint.lat) != 0) {
+      output.writeDouble(WAYPOINT_LAT, waypoint.lat);
+    }
+    if (Double.doubleToRawLongBits(waypoint.lng) != 0) {
+      output.writeDouble(WAYPOINT_LNG, waypoint.lng);
+    }
+  }
+
+  private static void writeDuration(CodedOutputStream output, int field, Duration duration)
+      throws IOException {
+    if (duration == null) {
+      return;
+    }
+    writeMessageHeader(output, field, durationSize(duration));
+    if (duration.getSeconds() != 0) {
+      output.writeInt64(DURATION_SECONDS, duration.getSeconds());
+    }
+    if (duration.getNano() != 0) {
+      output.writeInt32(DURATION_NANOS, duration.getNano());
+    }
+  }
+
+  // The sizes of the messages, which precede them on the wire.
+
+  private static int manifestSize(BackendConfig.Manifest m) {
+    int size = 0;
+    if (m.vehicle != null) {
+      size += messageSize(MANIFEST_VEHICLE, vehicleSize(m.vehicle));
+    }
+    if (m.tasks != null) {
+      for (BackendConfig.Task task : m.tasks) {
+        size += messageSize(MANIFEST_TASKS, taskSize(task));
+      }
+    }
+    if (m.stops != null) {
+      for (BackendConfig.Stop stop : m.stops) {
+        size += messageSize(MANIFEST_STOPS, stopSize(stop));
+      }
+    }
+    size += stringSize(MANIFEST_CLIENT_ID, m.clientId);
+    if (m.currentStopState != null) {
+      size += CodedOutputStream.computeEnumSize(
+          MANIFEST_CURRENT_STOP_STATE, m.currentStopState.ordinal());
+    }
+    if (m.remainingStopIdList != null) {
+      size +=
+          messageSize(
+              MANIFEST_REMAINING_STOP_ID_LIST,
+              stringsSize(STOP_ID_LIST_STOP_IDS, m.remainingStopIdList));
+    }
+    size += stringSize(MANIFEST_ID_SUFFIX, m.idSuffix);
+    return size;
+  }
+
+  private static int vehicleSize(BackendConfig.Vehicle v) {
+    return stringSize(VEHICLE_VEHICLE_ID, v.vehicleId)
+        + stringSize(VEHICLE_PROVIDER_ID, v.providerId)
+        + waypointMessageSize(VEHICLE_START_LOCATION, v.startLocation);
+  }
+
+  private static int taskSize(BackendConfig.Task t) {
+    int size =
+        stringSize(TASK_TASK_ID, t.taskId)
+            + stringSize(TASK_TRACKING_ID, t.trackingId)
+            + waypointMessageSize(TASK_PLANNED_WAYPOINT, t.plannedWaypoint)
+            + durationMessageSize(
+                TASK_PLANNED_COMPLETION_TIME_RANGE, t.plannedCompletionTimeRangeSeconds)
+            + durationMessageSize(TASK_DURATION, t.duration)
+            + stringSize(TASK_CONTACT_NAME, t.contactName)
+            + stringSize(TASK_DESCRIPTION, t.description);
+    if (t.plannedCompletionTime != null) {
+      size +=
+          stringSize(
+              TASK_PLANNED_COMPLETION_TIME,
+              t.plannedCompletionTime.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+    }
+    if (t.type != null) {
+      size += CodedOutputStream.computeEnumSize(TASK_TYPE, t.type.ordinal() + 1);
+    }
+    return size;
+  }
+
+  private static int stopSize(BackendConfig.Stop s) {
+    return stringSize(STOP_STOP_ID, s.stopId)
+        + waypointMessageSize(STOP_PLANNED_WAYPOINT, s.plannedWaypoint)
+        + stringsSize(STOP_TASKS, s.tasks);
+  }
+
+  private static int waypointMessageSize(int field, BackendConfig.Waypoint waypoint) {
+    return waypoint == null ? 0 : messageSize(field, waypointSize(waypoint));
+  }
+
+  private static int waypointSize(BackendConfig.Waypoint waypoint) {
+    int size = stringSize(WAYPOINT_DESCRIPTION, waypoint.description);
+    if (Double.doubleToRawLongBits(waypoint.lat) != 0) {
+      size += CodedOutputStream.computeDoubleSize(WAYPOINT_LAT, waypoint.lat);
+    }
+    if (Double.doubleToRawLongBits(waypoint.lng) != 0) {
+      size += CodedOutputStream.computeDoubleSize(WAYPOINT_LNG, waypoint.lng);
+    }
+    return size;
+  }
+
+  private static int durationMessageSize(int field, Duration duration) {
+    return duration == null ? 0 : messageSize(field, durationSize(duration));
+  }
+
+  private static int durationSize(Duration duration) {
+    int size = 0;
+    if (duration.getSeconds() != 0) {
+      size += CodedOutputStream.computeInt64Size(DURATION_SECONDS, duration.getSeconds());
+    }
+    if (duration.getNano() != 0) {
+      size += CodedOutputStream.computeInt32Size(DURATION_NANOS, duration.getNano());
+    }
+    return size;
+  }
+
+  private static int messageSize(int field, int size) {
+    return CodedOutputStream.computeTagSize(field)
+        + CodedOutputStream.computeUInt32SizeNoTag(size)
+        + size;
+  }
+
+  private static int stringSize(int field, String value) {
+    return value == null ? 0 : CodedOutputStream.computeStringSize(field, value);
+  }
+
+  private static int stringsSize(int field, String[] values) {
+    int size = 0;
+    if (values != null) {
+      for (String value : values) {
+        size += CodedOutputStream.computeStringSize(field, value);
+      }
+    }
+    return size;
+  }
+
+  // Reading. Each method reads the fields of a message up to the current limit of the input, and
+  // skips the fields it does not know.
+
+  static BackendConfig.Manifest readManifestFields(CodedInputStream input) throws IOException {
+    BackendConfig.Manifest m = new BackendConfig.Manifest();
+    List<BackendConfig.Task> tasks = new ArrayList<>();
+    List<BackendConfig.Stop> stops = new ArrayList<>();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case MANIFEST_VEHICLE:
+          m.vehicle = readMessage(input, BackendConfigProto::readVehicleFields);
+          break;
+        case MANIFEST_TASKS:
+          tasks.add(readMessage(input, BackendConfigProto::readTaskFields));
+          break;
+        case MANIFEST_STOPS:
+          stops.add(readMessage(input, BackendConfigProto::readStopFields));
+          break;
+        case MANIFEST_CLIENT_ID:
+          m.clientId = input.readStringRequireUtf8();
+          break;
+        case MANIFEST_CURRENT_STOP_STATE:
+          int stopState = input.readEnum();
+          m.currentStopState =
+              stopState >= 0 && stopState < STOP_STATES.length ? STOP_STATES[stopState] : null;
+          break;
+        case MANIFEST_REMAINING_STOP_ID_LIST:
+          m.remainingStopIdList = readMessage(input, BackendConfigProto::readStopIdListFields);
+          break;
+        case MANIFEST_ID_SUFFIX:
+          m.idSuffix = input.readStringRequireUtf8();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    m.tasks = tasks.toArray(new BackendConfig.Task[0]);
+    m.stops = stops.toArray(new BackendConfig.Stop[0]);
+    return m;
+  }
+
+  private static String[] readStopIdListFields(CodedInputStream input) throws IOException {
+    List<String> stopIds = new ArrayList<>();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      if (WireFormat.getTagFieldNumber(tag) == STOP_ID_LIST_STOP_IDS) {
+        stopIds.add(input.readStringRequireUtf8());
+      } else {
+        input.skipField(tag);
+      }
+    }
+    return stopIds.toArray(new String[0]);
+  }
+
+  private static BackendConfig.Vehicle readVehicleFields(CodedInputStream input)
+      throws IOException {
+    BackendConfig.Vehicle v = new BackendConfig.Vehicle();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case VEHICLE_VEHICLE_ID:
+          v.vehicleId = input.readStringRequireUtf8();
+          break;
+        case VEHICLE_PROVIDER_ID:
+          v.providerId = input.readStringRequireUtf8();
+          break;
+        case VEHICLE_START_LOCATION:
+          v.startLocation = readMessage(input, BackendConfigProto::readWaypointFields);
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return v;
+  }
+
+  private static BackendConfig.Task readTaskFields(CodedInputStream input) throws IOException {
+    BackendConfig.Task t = new BackendConfig.Task();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case TASK_TASK_ID:
+          t.taskId = input.readStringRequireUtf8();
+          break;
+        case TASK_TRACKING_ID:
+          t.trackingId = input.readStringRequireUtf8();
+          break;
+        case TASK_PLANNED_WAYPOINT:
+          t.plannedWaypoint = readMessage(input, BackendConfigProto::readWaypointFields);
+          break;
+        case TASK_PLANNED_COMPLETION_TIME:
+          String time = input.readStringRequireUtf8();
+          try {
+            t.plannedCompletionTime = ZonedDateTime.parse(time);
+          } catch (DateTimeParseException e) {
+            throw new InvalidProtocolBufferException("Invalid planned_completion_time: " + time);
+          }
+          break;
+        case TASK_PLANNED_COMPLETION_TIME_RANGE:
+          t.plannedCompletionTimeRangeSeconds =
+              readMessage(input, BackendConfigProto::readDurationFields);
+          break;
+        case TASK_DURATION:
+          t.duration = readMessage(input, BackendConfigProto::readDurationFields);
+          break;
+        case TASK_TYPE:
+          int type = input.readEnum();
+          t.type = type >= 0 && type < TASK_TYPES.length ? TASK_TYPES[type] : null;
+          break;
+        case TASK_CONTACT_NAME:
+          t.contactName = input.readStringRequireUtf8();
+          break;
+        case TASK_DESCRIPTION:
+          t.description = input.readStringRequireUtf8();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return t;
+  }
+
+  private static BackendConfig.Stop readStopFields(CodedInputStream input) throws IOException {
+    BackendConfig.Stop s = new BackendConfig.Stop();
+    List<String> taskIds = new ArrayList<>();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case STOP_STOP_ID:
+          s.stopId = input.readStringRequireUtf8();
+          break;
+        case STOP_PLANNED_WAYPOINT:
+          s.plannedWaypoint = readMessage(input, BackendConfigProto::readWaypointFields);
+          break;
+        case STOP_TASKS:
+          taskIds.add(input.readStringRequireUtf8());
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    s.tasks = taskIds.toArray(new String[0]);
+    return s;
+  }
+
+  private static BackendConfig.Waypoint readWaypointFields(CodedInputStream input)
+      throws IOException {
+    BackendConfig.Waypoint w = new BackendConfig.Waypoint();
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case WAYPOINT_DESCRIPTION:
+          w.description = input.readStringRequireUtf8();
+          break;
+        case WAYPOINT_LAT:
+          w.lat = input.readDouble();
+          break;
+        case WAYPOINT_LNG:
+          w.lng = input.readDouble();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return w;
+  }
+
+  private static Duration readDurationFields(CodedInputStream input) throws IOException {
+    long seconds = 0;
+    int nanos = 0;
+    for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case DURATION_SECONDS:
+          seconds = input.readInt64();
+          break;
+        case DURATION_NANOS:
+          nanos = input.readInt32();
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return Duration.ofSeconds(seconds, nanos);
+  }
+
+  /** Reads the fields of a message. */
+  interface FieldReader<T> {
+    T read(CodedInputStream input) throws IOException;
+  }
+
+  /** Reads a length-delimited message with {@code reader}. */
+  static <T> T readMessage(CodedInputStream input, FieldReader<T> reader) throws IOException {
+    int length = input.readRawVarint32();
+    int oldLimit = input.pushLimit(length);
+    T message = reader.read(input);
+    input.checkLastTagWas(0);
+    input.popLimit(oldLimit);
+    return message;
+  }
+
+  private BackendConfigProto() {}
+}
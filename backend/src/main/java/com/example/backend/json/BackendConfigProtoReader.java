@@ -0,0 +1,116 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a protobuf backend config one manifest at a time, so the manifests can be used while the
+ * rest of the file is still being read.
+ *
+ * <p>Call {@link #hasNextManifest} and {@link #nextManifest} until there are no more manifests,
+ * then {@link #finish} for the other fields of the config. The fields may come in any order.
+ */
+public final class BackendConfigProtoReader implements BackendConfigReader {
+
+  private final InputStream in;
+  private final CodedInputStream input;
+  private final BackendConfig otherFields = new BackendConfig();
+  private boolean atManifest;
+  private boolean finished;
+
+  /** Starts reading a backend config. */
+  public BackendConfigProtoReader(InputStream in) {
+    this.in = in;
+    this.input = CodedInputStream.newInstance(in);
+  }
+
+  /**
+   * Returns true if there is another manifest to read. Reads, and keeps, the fields before it.
+   *
+   * @throws IOException if the config cannot be read
+   * @throws InvalidProtocolBufferException if the config is not valid
+   */
+  @Override
+  public boolean hasNextManifest() throws IOException {
+    while (!atManifest && !finished) {
+      int tag = input.readTag();
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case 0:
+          finished = true;
+          break;
+        case BackendConfigProto.CONFIG_DESCRIPTION:
+          otherFields.description = input.readStringRequireUtf8();
+          break;
+        case BackendConfigProto.CONFIG_MANIFESTS:
+          if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            throw new InvalidProtocolBufferException("Invalid wire type for a manifest");
+          }
+          atManifest = true;
+          break;
+        default:
+          input.skipField(tag);
+      }
+    }
+    return atManifest;
+  }
+
+  /**
+   * Reads the next manifest.
+   *
+   * @throws NoSuchElementException if there are no more manifests
+   * @throws IOException if the config cannot be read
+   * @throws InvalidProtocolBufferException if the manifest is not valid
+   */
+  @Override
+  public BackendConfig.Manifest nextManifest() throws IOException {
+    if (!hasNextManifest()) {
+      throw new NoSuchElementException("There are no more manifests in the backend config");
+    }
+    atManifest = false;
+    BackendConfig.Manifest manifest =
+        BackendConfigProto.readMessage(input, BackendConfigProto::readManifestFields);
+    // The size limit of the input counts every byte read so far; a config may be larger.
+    input.resetSizeCounter();
+    return manifest;
+  }
+
+  /**
+   * Reads the rest of the config, skipping any manifests that were not read, and returns its
+   * fields other than the manifests, which are left null.
+   *
+   * @throws IOException if the config cannot be read
+   * @throws InvalidProtocolBufferException if the config is not valid
+   */
+  @Override
+  public BackendConfig finish() throws IOException {
+    while (hasNextManifest()) {
+      atManifest = false;
+      input.skipRawBytes(input.readRawVarint32());
+      input.resetSizeCounter();
+    }
+    return otherFields;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,45 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads a backend config one manifest at a time, so the manifests can be used while the rest of
+ * the file is still being read. See {@link BackendConfigStreamReader} for JSON, and {@link
+ * BackendConfigProtoReader} for protobuf.
+ *
+ * <p>Call {@link #hasNextManifest} and {@link #nextManifest} until there are no more manifests,
+ * then {@link #finish} for the other fields of the config.
+ */
+public interface BackendConfigReader extends Closeable {
+
+  /** Returns true if there is another manifest to read. */
+  boolean hasNextManifest() throws IOException;
+
+  /**
+   * Reads the next manifest.
+   *
+   * @throws java.util.NoSuchElementException if there are no more manifests
+   */
+  BackendConfig.Manifest nextManifest() throws IOException;
+
+  /**
+   * Reads the rest of the config, skipping any manifests that were not read, and returns its
+   * fields other than the manifests, which are left null.
+   */
+  BackendConfig finish() throws IOException;
+}
@@ -0,0 +1,157 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a JSON backend config one manifest at a time, so the manifests can be used while the rest
+ * of the file is still being read.
+ *
+ * <p>Call {@link #hasNextManifest} and {@link #nextManifest} until there are no more manifests,
+ * then {@link #finish} for the other fields of the config. The fields may come in any order.
+ */
+public final class BackendConfigStreamReader implements BackendConfigReader {
+
+  private static final String MANIFESTS = "manifests";
+
+  private final Gson gson = BackendConfigGsonProvider.get();
+  private final JsonReader reader;
+  private final JsonObject otherFields = new JsonObject();
+  private boolean inManifests;
+  private boolean finished;
+
+  /**
+   * Starts reading a backend config.
+   *
+   * @throws IOException if the config cannot be read
+   * @throws JsonSyntaxException if the config is not a JSON object
+   */
+  public BackendConfigStreamReader(Reader reader) throws IOException {
+    this.reader = new JsonReader(reader);
+    try {
+      this.reader.beginObject();
+    } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Returns true if there is another manifest to read. Reads, and keeps, the fields before it.
+   *
+   * @throws IOException if the config cannot be read
+   * @throws JsonSyntaxException if the config is not valid JSON
+   */
+  @Override
+  public boolean hasNextManifest() throws IOException {
+    try {
+      return advanceToNextManifest();
+    } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  private boolean advanceToNextManifest() throws IOException {
+    while (true) {
+      if (finished) {
+        return false;
+      }
+      if (inManifests) {
+        if (reader.hasNext()) {
+          return true;
+        }
+        reader.endArray();
+        inManifests = false;
+      }
+      if (!reader.hasNext()) {
+        reader.endObject();
+        finished = true;
+        return false;
+      }
+      String name = reader.nextName();
+      if (name.equals(MANIFESTS) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+        reader.beginArray();
+        inManifests = true;
+      } else {
+        otherFields.add(name, JsonParser.parseReader(reader));
+      }
+    }
+  }
+
+  /**
+   * Reads the next manifest.
+   *
+   * @throws NoSuchElementException if there are no more manifests
+   * @throws IOException if the config cannot be read
+   * @throws JsonParseException if the manifest is not valid
+   */
+  @Override
+  public BackendConfig.Manifest nextManifest() throws IOException {
+    if (!hasNextManifest()) {
+      throw new NoSuchElementException("There are no more manifests in the backend config");
+    }
+    return gson.fromJson(reader, BackendConfig.Manifest.class);
+  }
+
+  /**
+   * Skips the next manifest without parsing it.
+   *
+   * @throws NoSuchElementException if there are no more manifests
+   * @throws IOException if the config cannot be read
+   * @throws JsonSyntaxException if the config is not valid JSON
+   */
+  public void skipManifest() throws IOException {
+    if (!hasNextManifest()) {
+      throw new NoSuchElementException("There are no more manifests in the backend config");
+    }
+    try {
+      reader.skipValue();
+    } catch (MalformedJsonException | EOFException e) {
+      throw new JsonSyntaxException(e);
+    }
+  }
+
+  /**
+   * Reads the rest of the config, skipping any manifests that were not read, and returns its
+   * fields other than the manifests, which are left null.
+   *
+   * @throws IOException if the config cannot be read
+   * @throws JsonSyntaxException if the config is not valid JSON
+   */
+  @Override
+  public BackendConfig finish() throws IOException {
+    while (hasNextManifest()) {
+      skipManifest();
+    }
+    otherFields.remove(MANIFESTS);
+    return gson.fromJson(otherFields, BackendConfig.class);
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+}
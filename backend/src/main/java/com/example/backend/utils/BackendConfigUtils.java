@@ -35,12 +35,6 @@ public final class BackendConfigUtils {
   private static final String PROVIDER_ID = SampleBackendUtils.backendProperties.providerId();
   public static final String PARENT = "providers/" + PROVIDER_ID;
 
-  private static long timestamp = 0;
-
-  public static final void setTimestamp(long ts) {
-    timestamp = ts;
-  }
-
   public static final Task createTask(BackendConfig.Task t) {
     // Create the task.
     return Task.newBuilder()
@@ -56,14 +50,20 @@ public final class BackendConfigUtils {
 
   public static final List<VehicleJourneySegment> createVehicleJourneySegments(
       BackendConfig.Manifest m) throws BackendConfigException {
+    return createVehicleJourneySegments(m.tasks, m.stops);
+  }
+
+  /** Creates the journey segments of the given stops, whose tasks must be among {@code tasks}. */
+  public static final List<VehicleJourneySegment> createVehicleJourneySegments(
+      BackendConfig.Task[] tasks, BackendConfig.Stop[] stops) throws BackendConfigException {
 
     ArrayList<VehicleJourneySegment> vehicleJourneySegments = new ArrayList<>();
     HashMap<String, BackendConfig.Task> tasksMap = new HashMap<>();
-    for (BackendConfig.Task task : m.tasks) {
+    for (BackendConfig.Task task : tasks) {
       tasksMap.put(task.taskId, task);
     }
 
-    for (BackendConfig.Stop stop : m.stops) {
+    for (BackendConfig.Stop stop : stops) {
       VehicleStop.Builder stopBuilder =
           VehicleStop.newBuilder()
               .setPlannedLocation(createLocationInfo(stop.plannedWaypoint))
@@ -84,7 +84,8 @@ public final class BackendConfigUtils {
     return vehicleJourneySegments;
   }
 
-  public static final String getTimestampedId(String id) {
+  /** Returns {@code id} suffixed with {@code timestamp}, or {@code id} itself if it is 0. */
+  public static final String getTimestampedId(String id, long timestamp) {
     return id + (timestamp > 0 ? "_" + String.valueOf(timestamp) : "");
   }
 
@@ -20,6 +20,25 @@ import com.google.auto.value.AutoValue;
 @AutoValue
 public abstract class BackendProperties {
 
+  /** Where the delivery state is kept. */
+  public enum StateStore {
+    /** In the memory of each backend instance. */
+    IN_MEMORY,
+    /** In a key-value service shared by the backend instances. */
+    SHARED,
+  }
+
+  public static final int DEFAULT_STATE_SNAPSHOT_INTERVAL_ENTRIES = 100000;
+  public static final long DEFAULT_CLOSED_TASK_RETENTION_SECONDS = 24 * 60 * 60;
+  public static final int DEFAULT_MAX_CLOSED_TASKS = 100000;
+  public static final long DEFAULT_FINISHED_MANIFEST_RETENTION_SECONDS = 24 * 60 * 60;
+  public static final int DEFAULT_MAX_FINISHED_MANIFESTS = 10000;
+  public static final int DEFAULT_PROVISIONING_CONCURRENCY = 8;
+  public static final int DEFAULT_PROVISIONING_MAX_ATTEMPTS = 5;
+  /** The largest number of tasks Fleet Engine accepts in one BatchCreateTasks call. */
+  public static final int MAX_TASK_BATCH_SIZE = 500;
+
+  /** Creates properties with the given required values, and defaults for the optional ones. */
   public static BackendProperties create(
       String providerId,
       String fleetEngineAddress,
@@ -29,15 +48,32 @@ public abstract class BackendProperties {
       String fleetReaderServiceAccountEmail,
       String apiKey,
       String backendHost) {
-    return new AutoValue_BackendProperties(
-        providerId,
-        fleetEngineAddress,
-        serverServiceAccountEmail,
-        driverServiceAccountEmail,
-        consumerServiceAccountEmail,
-        fleetReaderServiceAccountEmail,
-        apiKey,
-        backendHost);
+    return builder()
+        .setProviderId(providerId)
+        .setFleetEngineAddress(fleetEngineAddress)
+        .setServerServiceAccountEmail(serverServiceAccountEmail)
+        .setDriverServiceAccountEmail(driverServiceAccountEmail)
+        .setConsumerServiceAccountEmail(consumerServiceAccountEmail)
+        .setFleetReaderServiceAccountEmail(fleetReaderServiceAccountEmail)
+        .setApiKey(apiKey)
+        .setBackendHost(backendHost)
+        .build();
+  }
+
+  /** Returns a builder where the optional properties are set to their defaults. */
+  public static Builder builder() {
+    return new AutoValue_BackendProperties.Builder()
+        .setStateStore(StateStore.IN_MEMORY)
+        .setStateJournalDirectory("")
+        .setStateSnapshotIntervalEntries(DEFAULT_STATE_SNAPSHOT_INTERVAL_ENTRIES)
+        .setClosedTaskRetentionSeconds(DEFAULT_CLOSED_TASK_RETENTION_SECONDS)
+        .setMaxClosedTasks(DEFAULT_MAX_CLOSED_TASKS)
+        .setFinishedManifestRetentionSeconds(DEFAULT_FINISHED_MANIFEST_RETENTION_SECONDS)
+        .setMaxFinishedManifests(DEFAULT_MAX_FINISHED_MANIFESTS)
+        .setProvisioningConcurrency(DEFAULT_PROVISIONING_CONCURRENCY)
+        .setTaskBatchSize(MAX_TASK_BATCH_SIZE)
+        .setProvisioningMaxAttempts(DEFAULT_PROVISIONING_MAX_ATTEMPTS)
+        .setUploadCheckpointDirectory("");
   }
 
   public abstract String providerId();
@@ -55,4 +91,87 @@ public abstract class BackendProperties {
   public abstract String apiKey();
 
   public abstract String backendHost();
+
+  /** Directory where the servlet state is journaled, or empty if it is kept in memory only. */
+  public abstract String stateJournalDirectory();
+
+  /** Where the delivery state is kept. */
+  public abstract StateStore stateStore();
+
+  /** Number of journal entries after which the servlet state is snapshotted. */
+  public abstract int stateSnapshotIntervalEntries();
+
+  /** How long a closed task is kept in the servlet state, or 0 to keep it until the cap. */
+  public abstract long closedTaskRetentionSeconds();
+
+  /** Maximum number of closed tasks kept in the servlet state, or 0 for no limit. */
+  public abstract int maxClosedTasks();
+
+  /** How long a manifest with no remaining stops is kept, or 0 to keep it until the cap. */
+  public abstract long finishedManifestRetentionSeconds();
+
+  /** Maximum number of manifests with no remaining stops that are kept, or 0 for no limit. */
+  public abstract int maxFinishedManifests();
+
+  /** Maximum number of manifests of an uploaded backend config provisioned at the same time. */
+  public abstract int provisioningConcurrency();
+
+  /** Maximum number of tasks created per Fleet Engine call when provisioning a backend config. */
+  public abstract int taskBatchSize();
+
+  /**
+   * Number of times a Fleet Engine call which failed with a transient error is made, counting the
+   * first, when provisioning a backend config.
+   */
+  public abstract int provisioningMaxAttempts();
+
+  /**
+   * Directory where backend config uploads are checkpointed, so that an interrupted upload can be
+   * resumed after a restart, or empty to checkpoint them in a temporary directory.
+   */
+  public abstract String uploadCheckpointDirectory();
+
+  /** Builder for BackendProperties. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setProviderId(String value);
+
+    public abstract Builder setFleetEngineAddress(String value);
+
+    public abstract Builder setServerServiceAccountEmail(String value);
+
+    public abstract Builder setDriverServiceAccountEmail(String value);
+
+    public abstract Builder setConsumerServiceAccountEmail(String value);
+
+    public abstract Builder setFleetReaderServiceAccountEmail(String value);
+
+    public abstract Builder setApiKey(String value);
+
+    public abstract Builder setBackendHost(String value);
+
+    public abstract Builder setStateStore(StateStore value);
+
+    public abstract Builder setStateJournalDirectory(String value);
+
+    public abstract Builder setStateSnapshotIntervalEntries(int value);
+
+    public abstract Builder setClosedTaskRetentionSeconds(long value);
+
+    public abstract Builder setMaxClosedTasks(int value);
+
+    public abstract Builder setFinishedManifestRetentionSeconds(long value);
+
+    public abstract Builder setMaxFinishedManifests(int value);
+
+    public abstract Builder setProvisioningConcurrency(int value);
+
+    public abstract Builder setTaskBatchSize(int value);
+
+    public abstract Builder setProvisioningMaxAttempts(int value);
+
+    public abstract Builder setUploadCheckpointDirectory(String value);
+
+    public abstract BackendProperties build();
+  }
 }
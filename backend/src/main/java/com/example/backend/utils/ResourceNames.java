@@ -0,0 +1,33 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.utils;
+
+/**
+ * Parses Fleet Engine resource names, such as {@code providers/my-project/tasks/task_1}.
+ *
+ * <p>Names are scanned in place rather than split, so the only allocation is the returned ID.
+ * Callers that need the ID of an object repeatedly should keep it next to the object instead of
+ * parsing its name again.
+ */
+public final class ResourceNames {
+
+  private ResourceNames() {}
+
+  /** Returns the ID of a resource, which is the last segment of its name. */
+  public static String getId(String name) {
+    int idStart = name.lastIndexOf('/') + 1;
+    return idStart == 0 ? name : name.substring(idStart);
+  }
+}
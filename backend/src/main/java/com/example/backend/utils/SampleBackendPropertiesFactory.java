@@ -43,6 +43,36 @@ public final class SampleBackendPropertiesFactory {
 
   @VisibleForTesting static final String BACKEND_HOST_PROP_KEY = "backend-host";
 
+  @VisibleForTesting static final String STATE_STORE_PROP_KEY = "state-store";
+
+  @VisibleForTesting
+  static final String STATE_JOURNAL_DIRECTORY_PROP_KEY = "state-journal-directory";
+
+  @VisibleForTesting
+  static final String STATE_SNAPSHOT_INTERVAL_ENTRIES_PROP_KEY = "state-snapshot-interval-entries";
+
+  @VisibleForTesting
+  static final String CLOSED_TASK_RETENTION_SECONDS_PROP_KEY = "closed-task-retention-seconds";
+
+  @VisibleForTesting static final String MAX_CLOSED_TASKS_PROP_KEY = "max-closed-tasks";
+
+  @VisibleForTesting
+  static final String FINISHED_MANIFEST_RETENTION_SECONDS_PROP_KEY =
+      "finished-manifest-retention-seconds";
+
+  @VisibleForTesting static final String MAX_FINISHED_MANIFESTS_PROP_KEY = "max-finished-manifests";
+
+  @VisibleForTesting
+  static final String PROVISIONING_CONCURRENCY_PROP_KEY = "provisioning-concurrency";
+
+  @VisibleForTesting static final String TASK_BATCH_SIZE_PROP_KEY = "task-batch-size";
+
+  @VisibleForTesting
+  static final String PROVISIONING_MAX_ATTEMPTS_PROP_KEY = "provisioning-max-attempts";
+
+  @VisibleForTesting
+  static final String UPLOAD_CHECKPOINT_DIRECTORY_PROP_KEY = "upload-checkpoint-directory";
+
   private SampleBackendPropertiesFactory() {}
 
   /** Creates {@code BackendProperties} from params. */
@@ -73,15 +103,80 @@ public final class SampleBackendPropertiesFactory {
    */
   public static BackendProperties create(InputStream stream) throws IOException {
     Properties properties = loadPropertiesFromInputStream(stream);
-    return create(
-        getPropertyFromKey(properties, PROVIDER_ID_PROP_KEY),
-        getPropertyFromKey(properties, FLEET_ENGINE_ADDRESS_PROP_KEY),
-        getPropertyFromKey(properties, SERVER_SERVICE_ACCOUNT_EMAIL_PROP_KEY),
-        getPropertyFromKey(properties, DRIVER_SERVICE_ACCOUNT_EMAIL_PROP_KEY),
-        getPropertyFromKey(properties, CONSUMER_SERVICE_ACCOUNT_EMAIL_PROP_KEY),
-        getPropertyFromKey(properties, FLEET_READER_SERVICE_ACCOUNT_EMAIL_PROP_KEY),
-        getPropertyFromKey(properties, API_KEY_PROP_KEY),
-        getPropertyFromKey(properties, BACKEND_HOST_PROP_KEY));
+    return BackendProperties.builder()
+        .setProviderId(getPropertyFromKey(properties, PROVIDER_ID_PROP_KEY))
+        .setFleetEngineAddress(getPropertyFromKey(properties, FLEET_ENGINE_ADDRESS_PROP_KEY))
+        .setServerServiceAccountEmail(
+            getPropertyFromKey(properties, SERVER_SERVICE_ACCOUNT_EMAIL_PROP_KEY))
+        .setDriverServiceAccountEmail(
+            getPropertyFromKey(properties, DRIVER_SERVICE_ACCOUNT_EMAIL_PROP_KEY))
+        .setConsumerServiceAccountEmail(
+            getPropertyFromKey(properties, CONSUMER_SERVICE_ACCOUNT_EMAIL_PROP_KEY))
+        .setFleetReaderServiceAccountEmail(
+            getPropertyFromKey(properties, FLEET_READER_SERVICE_ACCOUNT_EMAIL_PROP_KEY))
+        .setApiKey(getPropertyFromKey(properties, API_KEY_PROP_KEY))
+        .setBackendHost(getPropertyFromKey(properties, BACKEND_HOST_PROP_KEY))
+        .setStateStore(getStateStoreFromKey(properties, STATE_STORE_PROP_KEY))
+        .setStateJournalDirectory(
+            properties.getProperty(STATE_JOURNAL_DIRECTORY_PROP_KEY, "").trim())
+        .setStateSnapshotIntervalEntries(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    STATE_SNAPSHOT_INTERVAL_ENTRIES_PROP_KEY,
+                    BackendProperties.DEFAULT_STATE_SNAPSHOT_INTERVAL_ENTRIES,
+                    1))
+        .setClosedTaskRetentionSeconds(
+            getLongPropertyFromKey(
+                properties,
+                CLOSED_TASK_RETENTION_SECONDS_PROP_KEY,
+                BackendProperties.DEFAULT_CLOSED_TASK_RETENTION_SECONDS,
+                0))
+        .setMaxClosedTasks(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    MAX_CLOSED_TASKS_PROP_KEY,
+                    BackendProperties.DEFAULT_MAX_CLOSED_TASKS,
+                    0))
+        .setFinishedManifestRetentionSeconds(
+            getLongPropertyFromKey(
+                properties,
+                FINISHED_MANIFEST_RETENTION_SECONDS_PROP_KEY,
+                BackendProperties.DEFAULT_FINISHED_MANIFEST_RETENTION_SECONDS,
+                0))
+        .setMaxFinishedManifests(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    MAX_FINISHED_MANIFESTS_PROP_KEY,
+                    BackendProperties.DEFAULT_MAX_FINISHED_MANIFESTS,
+                    0))
+        .setProvisioningConcurrency(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    PROVISIONING_CONCURRENCY_PROP_KEY,
+                    BackendProperties.DEFAULT_PROVISIONING_CONCURRENCY,
+                    1))
+        .setTaskBatchSize(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    TASK_BATCH_SIZE_PROP_KEY,
+                    BackendProperties.MAX_TASK_BATCH_SIZE,
+                    1,
+                    BackendProperties.MAX_TASK_BATCH_SIZE))
+        .setProvisioningMaxAttempts(
+            (int)
+                getLongPropertyFromKey(
+                    properties,
+                    PROVISIONING_MAX_ATTEMPTS_PROP_KEY,
+                    BackendProperties.DEFAULT_PROVISIONING_MAX_ATTEMPTS,
+                    1))
+        .setUploadCheckpointDirectory(
+            properties.getProperty(UPLOAD_CHECKPOINT_DIRECTORY_PROP_KEY, "").trim())
+        .build();
   }
 
   /**
@@ -108,4 +203,77 @@ public final class SampleBackendPropertiesFactory {
     }
     return propertyValue;
   }
+
+  /**
+   * Returns the integer value for a given optional property, or {@code defaultValue} if it is not
+   * set.
+   *
+   * @throws IllegalArgumentException if the property is not an integer of at least {@code
+   *     minimumValue}
+   */
+  private static long getLongPropertyFromKey(
+      Properties properties, String propertyKey, long defaultValue, long minimumValue) {
+    return getLongPropertyFromKey(
+        properties, propertyKey, defaultValue, minimumValue, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the integer value for a given optional property, or {@code defaultValue} if it is not
+   * set.
+   *
+   * @throws IllegalArgumentException if the property is not an integer between {@code
+   *     minimumValue} and {@code maximumValue}
+   */
+  private static long getLongPropertyFromKey(
+      Properties properties,
+      String propertyKey,
+      long defaultValue,
+      long minimumValue,
+      long maximumValue) {
+    String propertyValue = properties.getProperty(propertyKey);
+    if (propertyValue == null || propertyValue.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      long value = Long.parseLong(propertyValue.trim());
+      if (value >= minimumValue && value <= maximumValue) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below.
+    }
+    if (maximumValue < Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Property '%s' must be an integer between %d and %d, was '%s'",
+              propertyKey, minimumValue, maximumValue, propertyValue));
+    }
+    throw new IllegalArgumentException(
+        String.format(
+            "Property '%s' must be an integer of at least %d, was '%s'",
+            propertyKey, minimumValue, propertyValue));
+  }
+
+  /**
+   * Returns the state store named by an optional property: {@code in-memory} (the default) or
+   * {@code shared}.
+   *
+   * @throws IllegalArgumentException if the property names another state store
+   */
+  private static BackendProperties.StateStore getStateStoreFromKey(
+      Properties properties, String propertyKey) {
+    String propertyValue = properties.getProperty(propertyKey, "").trim();
+    switch (propertyValue) {
+      case "":
+      case "in-memory":
+        return BackendProperties.StateStore.IN_MEMORY;
+      case "shared":
+        return BackendProperties.StateStore.SHARED;
+      default:
+        throw new IllegalArgumentException(
+            String.format(
+                "Property '%s' must be 'in-memory' or 'shared', was '%s'",
+                propertyKey, propertyValue));
+    }
+  }
 }
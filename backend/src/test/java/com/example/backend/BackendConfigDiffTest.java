@@ -0,0 +1,268 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.example.backend.ServletStateTest.readBackendConfig;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.utils.BackendConfigException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
+import com.google.maps.fleetengine.delivery.v1.VehicleStop;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the comparison of a re-uploaded backend config with the live manifests. */
+@RunWith(JUnit4.class)
+public class BackendConfigDiffTest {
+
+  private static final String SUFFIX = "_100";
+
+  @Test
+  public void unchangedUpload_keepsTheLiveManifests() throws Exception {
+    List<BackendConfig.Manifest> live = live("test-two-vehicles.json");
+
+    BackendConfigDiff diff =
+        BackendConfigDiff.compute(live, manifests(readBackendConfig("test-two-vehicles.json")));
+
+    assertThat(diff.addedManifests()).isEmpty();
+    assertThat(diff.updates()).isEmpty();
+    assertThat(diff.removedVehicleIds()).isEmpty();
+    assertThat(diff.manifests()).hasSize(2);
+    assertThat(diff.manifests().get(0)).isSameInstanceAs(live.get(0));
+    assertThat(diff.manifests().get(1)).isSameInstanceAs(live.get(1));
+  }
+
+  @Test
+  public void newAndMissingVehicles_areAddedAndRemoved() throws Exception {
+    List<BackendConfig.Manifest> uploaded = manifests(readBackendConfig("test-two-vehicles.json"));
+    uploaded.get(1).vehicle.vehicleId = "vehicle_3";
+
+    BackendConfigDiff diff = BackendConfigDiff.compute(live("test-two-vehicles.json"), uploaded);
+
+    assertThat(diff.addedManifests()).containsExactly(uploaded.get(1));
+    assertThat(diff.removedVehicleIds()).containsExactly("vehicle_2" + SUFFIX);
+    // The removed vehicle's journey is cleared.
+    assertThat(diff.updates()).hasSize(1);
+    assertThat(diff.updates().get(0).vehicleId()).isEqualTo("vehicle_2" + SUFFIX);
+    assertThat(diff.updates().get(0).segments()).isEmpty();
+    assertThat(vehicleIds(diff.manifests())).containsExactly("vehicle_1" + SUFFIX, "vehicle_3");
+  }
+
+  @Test
+  public void newStop_createsOnlyItsTasks_andKeepsTheAssignmentAndProgress() throws Exception {
+    BackendConfig.Manifest live = live("test.json").get(0);
+    live.clientId = "client_1";
+    completeFirstStop(live);
+    live.currentStopState = BackendConfig.StopState.ENROUTE;
+    JsonObject uploaded = readJson("test.json");
+    addStop(uploaded, "stop_5", "task_10");
+
+    BackendConfigDiff diff = BackendConfigDiff.compute(List.of(live), manifests(uploaded));
+
+    assertThat(diff.addedManifests()).isEmpty();
+    assertThat(diff.updates()).hasSize(1);
+    ManifestProvisioner.VehicleUpdate update = diff.updates().get(0);
+    assertThat(update.vehicleId()).isEqualTo("vehicle_1" + SUFFIX);
+    assertThat(taskIds(update.newTasks())).containsExactly("task_10" + SUFFIX);
+    assertThat(stopTaskIds(update.segments()))
+        .containsExactly(
+            "task_4_100,task_5_100,task_6_100",
+            "task_7_100,task_8_100",
+            "task_9_100",
+            "task_10_100")
+        .inOrder();
+    assertThat(update.segments().get(0).getStop().getState()).isEqualTo(VehicleStop.State.ENROUTE);
+
+    BackendConfig.Manifest merged = diff.manifests().get(0);
+    assertThat(merged.vehicle.vehicleId).isEqualTo("vehicle_1" + SUFFIX);
+    assertThat(merged.clientId).isEqualTo("client_1");
+    assertThat(merged.currentStopState).isEqualTo(BackendConfig.StopState.ENROUTE);
+    assertThat(merged.remainingStopIdList)
+        .asList()
+        .containsExactly("stop_2", "stop_3", "stop_4", "stop_5")
+        .inOrder();
+    // The completed stop and its tasks are kept, and stay completed.
+    assertThat(merged.stops[0].stopId).isEqualTo("stop_1");
+    assertThat(merged.stops[0].tasks).isEmpty();
+    assertThat(taskIds(merged.tasks)).contains("task_1" + SUFFIX);
+  }
+
+  @Test
+  public void completedStops_doNotMakeAnUnchangedUploadChanged() throws Exception {
+    BackendConfig.Manifest live = live("test.json").get(0);
+    completeFirstStop(live);
+
+    BackendConfigDiff diff =
+        BackendConfigDiff.compute(List.of(live), manifests(readBackendConfig("test.json")));
+
+    assertThat(diff.updates()).isEmpty();
+    assertThat(diff.manifests()).containsExactly(live);
+  }
+
+  @Test
+  public void driverOrder_isKeptUnlessTheUploadSetsIt() throws Exception {
+    BackendConfig.Manifest live = live("test.json").get(0);
+    live.remainingStopIdList = new String[] {"stop_4", "stop_3", "stop_2", "stop_1"};
+    live.currentStopState = BackendConfig.StopState.ARRIVED;
+
+    BackendConfigDiff unordered =
+        BackendConfigDiff.compute(List.of(live), manifests(readBackendConfig("test.json")));
+    JsonObject ordered = readJson("test.json");
+    JsonArray remainingStopIdList = new JsonArray();
+    for (String stopId : new String[] {"stop_1", "stop_2", "stop_3", "stop_4"}) {
+      remainingStopIdList.add(stopId);
+    }
+    ordered
+        .getAsJsonArray("manifests")
+        .get(0)
+        .getAsJsonObject()
+        .add("remaining_stop_id_list", remainingStopIdList);
+    BackendConfigDiff reordered = BackendConfigDiff.compute(List.of(live), manifests(ordered));
+
+    assertThat(unordered.updates()).isEmpty();
+    assertThat(reordered.updates()).hasSize(1);
+    BackendConfig.Manifest merged = reordered.manifests().get(0);
+    assertThat(merged.remainingStopIdList)
+        .asList()
+        .containsExactly("stop_1", "stop_2", "stop_3", "stop_4")
+        .inOrder();
+    // The driver is no longer heading to the same stop.
+    assertThat(merged.currentStopState).isEqualTo(BackendConfig.StopState.NEW);
+  }
+
+  @Test
+  public void missingTask_isDroppedFromItsStop() throws Exception {
+    JsonObject uploaded = readJson("test.json");
+    JsonObject manifest = uploaded.getAsJsonArray("manifests").get(0).getAsJsonObject();
+    manifest.getAsJsonArray("tasks").remove(8);
+    manifest.getAsJsonArray("stops").remove(3);
+
+    BackendConfigDiff diff = BackendConfigDiff.compute(live("test.json"), manifests(uploaded));
+
+    assertThat(diff.updates()).hasSize(1);
+    assertThat(diff.updates().get(0).newTasks()).isEmpty();
+    assertThat(diff.updates().get(0).segments()).hasSize(3);
+    assertThat(taskIds(diff.manifests().get(0).tasks)).doesNotContain("task_9" + SUFFIX);
+  }
+
+  @Test
+  public void unknownRemainingStop_throws() throws Exception {
+    JsonObject uploaded = readJson("test.json");
+    JsonArray remainingStopIdList = new JsonArray();
+    remainingStopIdList.add("unknown_stop");
+    uploaded
+        .getAsJsonArray("manifests")
+        .get(0)
+        .getAsJsonObject()
+        .add("remaining_stop_id_list", remainingStopIdList);
+
+    BackendConfigException e =
+        assertThrows(
+            BackendConfigException.class,
+            () -> BackendConfigDiff.compute(live("test.json"), manifests(uploaded)));
+
+    assertThat(e).hasMessageThat().contains("unknown_stop");
+  }
+
+  /** Returns the manifests of a config as they are once uploaded, with the IDs suffixed. */
+  private static List<BackendConfig.Manifest> live(String path) throws IOException {
+    List<BackendConfig.Manifest> manifests = manifests(readBackendConfig(path));
+    for (BackendConfig.Manifest manifest : manifests) {
+      manifest.idSuffix = SUFFIX;
+      manifest.vehicle.vehicleId += SUFFIX;
+      for (BackendConfig.Task task : manifest.tasks) {
+        task.taskId += SUFFIX;
+        task.trackingId += SUFFIX;
+      }
+      for (BackendConfig.Stop stop : manifest.stops) {
+        stop.tasks = Arrays.stream(stop.tasks).map(id -> id + SUFFIX).toArray(String[]::new);
+      }
+      manifest.remainingStopIdList =
+          Arrays.stream(manifest.stops).map(stop -> stop.stopId).toArray(String[]::new);
+    }
+    return manifests;
+  }
+
+  /** Completes the first remaining stop of a manifest, as the manifest servlet does. */
+  private static void completeFirstStop(BackendConfig.Manifest manifest) {
+    manifest.stops[0].tasks = new String[0];
+    manifest.remainingStopIdList =
+        Arrays.copyOfRange(manifest.remainingStopIdList, 1, manifest.remainingStopIdList.length);
+  }
+
+  /** Adds a stop with one new task to the first manifest of a config. */
+  private static void addStop(JsonObject config, String stopId, String taskId) {
+    JsonObject manifest = config.getAsJsonArray("manifests").get(0).getAsJsonObject();
+    JsonObject waypoint = new JsonObject();
+    waypoint.addProperty("lat", 37.42);
+    waypoint.addProperty("lng", -122.08);
+    JsonObject task = new JsonObject();
+    task.addProperty("task_id", taskId);
+    task.addProperty("tracking_id", taskId + "_tracking");
+    task.add("planned_waypoint", waypoint);
+    task.addProperty("task_type", "DELIVERY");
+    task.addProperty("duration_seconds", 60);
+    manifest.getAsJsonArray("tasks").add(task);
+    JsonArray stopTasks = new JsonArray();
+    stopTasks.add(taskId);
+    JsonObject stop = new JsonObject();
+    stop.addProperty("stop_id", stopId);
+    stop.add("planned_waypoint", waypoint);
+    stop.add("tasks", stopTasks);
+    manifest.getAsJsonArray("stops").add(stop);
+  }
+
+  private static JsonObject readJson(String path) throws IOException {
+    return BackendConfigGsonProvider.get().toJsonTree(readBackendConfig(path)).getAsJsonObject();
+  }
+
+  private static List<BackendConfig.Manifest> manifests(JsonObject config) {
+    return manifests(BackendConfigGsonProvider.get().fromJson(config, BackendConfig.class));
+  }
+
+  private static List<BackendConfig.Manifest> manifests(BackendConfig config) {
+    return Arrays.asList(config.manifests);
+  }
+
+  private static List<String> taskIds(BackendConfig.Task[] tasks) {
+    return Arrays.stream(tasks).map(task -> task.taskId).collect(Collectors.toList());
+  }
+
+  private static List<String> vehicleIds(List<BackendConfig.Manifest> manifests) {
+    return manifests.stream()
+        .map(manifest -> manifest.vehicle.vehicleId)
+        .collect(Collectors.toList());
+  }
+
+  private static List<String> stopTaskIds(List<VehicleJourneySegment> segments) {
+    return segments.stream()
+        .map(
+            segment ->
+                segment.getStop().getTasksList().stream()
+                    .map(VehicleStop.TaskInfo::getTaskId)
+                    .collect(Collectors.joining(",")))
+        .collect(Collectors.toList());
+  }
+}
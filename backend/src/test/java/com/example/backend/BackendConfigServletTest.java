@@ -15,11 +15,20 @@
 package com.example.backend;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.example.backend.auth.grpcservice.GrpcServiceModule;
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonObject;
 import com.google.inject.Guice;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.inject.Inject;
 import javax.servlet.ServletException;
 import org.junit.Before;
@@ -58,4 +67,202 @@ public class BackendConfigServletTest {
     }
     assertThat(response.getStatus()).isEqualTo(200);
   }
+
+  @Test
+  public void handlesBackendConfigUpload_withSummaryResponse()
+      throws ServletException, IOException {
+    try (InputStream testStream =
+        this.getClass().getClassLoader().getResourceAsStream("test.json")) {
+      servlet.serveUpload(testStream, BackendConfigServlet.ResponseFormat.SUMMARY, response);
+    }
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentAsString()).contains("\"phase\":\"SUCCEEDED\"");
+    assertThat(response.getContentAsString()).contains("\"vehicle_ids\":[\"vehicle_1_");
+  }
+
+  @Test
+  public void responseFormat_isReadFromTheParameterOrTheAcceptHeader() {
+    assertThat(BackendConfigServlet.responseFormat(request)).isNull();
+
+    request.addHeader("Accept", "application/x-ndjson");
+    assertThat(BackendConfigServlet.responseFormat(request))
+        .isEqualTo(BackendConfigServlet.ResponseFormat.NDJSON);
+
+    request.setParameter("response", "summary");
+    assertThat(BackendConfigServlet.responseFormat(request))
+        .isEqualTo(BackendConfigServlet.ResponseFormat.SUMMARY);
+  }
+
+  @Test
+  public void rejectsUnknownResponseFormat() throws ServletException, IOException {
+    request.setMethod("POST");
+    request.setParameter("response", "text");
+
+    servlet.service(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
+  @Test
+  public void incrementalUpload_keepsUpdatesOfDriversMadeWhileFleetEngineIsUpdated()
+      throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (FakeDeliveryServer server = new FakeDeliveryServer(500)) {
+      ServletState servletState = new ServletState();
+      BackendConfigServlet fakeServlet = new BackendConfigServlet(servletState, server::stub);
+      fakeServlet.serveUpload(
+          new ByteArrayInputStream(readResource("test-two-vehicles.json")),
+          BackendConfigServlet.ResponseFormat.SUMMARY,
+          response);
+      String changedVehicleId = vehicleId(servletState, "vehicle_1");
+      String unchangedVehicleId = vehicleId(servletState, "vehicle_2");
+      int fullUploadCallCount = server.calls().size();
+
+      MockHttpServletResponse incrementalResponse = new MockHttpServletResponse();
+      Future<?> upload =
+          executor.submit(() -> uploadIncrementally(fakeServlet, incrementalResponse));
+      awaitCall(server, fullUploadCallCount, "update_vehicle:" + changedVehicleId);
+
+      // While Fleet Engine is updated, drivers can update their manifests.
+      for (String vehicleId : List.of(changedVehicleId, unchangedVehicleId)) {
+        try (DeliveryStateStore.ManifestUpdate update =
+            servletState.beginManifestUpdate(vehicleId, null)) {
+          assertThat(update).isNotNull();
+          servletState.updateManifestStopState(vehicleId, BackendConfig.StopState.ENROUTE);
+        }
+      }
+      upload.get();
+
+      assertThat(incrementalResponse.getContentAsString()).contains("\"phase\":\"SUCCEEDED\"");
+      BackendConfig.Manifest changed = servletState.getManifest(changedVehicleId);
+      assertThat(changed.stops[0].plannedWaypoint.description)
+          .isEqualTo("Google Landmark Bldgs, north door");
+      assertThat(changed.currentStopState).isEqualTo(BackendConfig.StopState.ENROUTE);
+      assertThat(servletState.getManifest(unchangedVehicleId).currentStopState)
+          .isEqualTo(BackendConfig.StopState.ENROUTE);
+      // The changed vehicle is updated again, from the manifest its driver updated.
+      assertThat(
+              server.calls().stream()
+                  .skip(fullUploadCallCount)
+                  .filter(call -> call.equals("update_vehicle:" + changedVehicleId))
+                  .count())
+          .isEqualTo(2);
+      try (DeliveryStateStore.ManifestUpdate update =
+          servletState.beginManifestUpdate(changedVehicleId, null)) {
+        assertThat(update).isNotNull();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void incrementalUpload_waitsForAnUpdateInProgressToPublish() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (FakeDeliveryServer server = new FakeDeliveryServer(0)) {
+      ServletState servletState = new ServletState();
+      BackendConfigServlet fakeServlet = new BackendConfigServlet(servletState, server::stub);
+      fakeServlet.serveUpload(
+          new ByteArrayInputStream(readResource("test-two-vehicles.json")),
+          BackendConfigServlet.ResponseFormat.SUMMARY,
+          response);
+      String changedVehicleId = vehicleId(servletState, "vehicle_1");
+      int fullUploadCallCount = server.calls().size();
+
+      MockHttpServletResponse incrementalResponse = new MockHttpServletResponse();
+      Future<?> upload;
+      try (DeliveryStateStore.ManifestUpdate update =
+          servletState.beginManifestUpdate(changedVehicleId, null)) {
+        upload = executor.submit(() -> uploadIncrementally(fakeServlet, incrementalResponse));
+        awaitCall(server, fullUploadCallCount, "update_vehicle:" + changedVehicleId);
+        Thread.sleep(200);
+
+        // Fleet Engine has been updated, but the new config waits for the driver's update.
+        assertThat(upload.isDone()).isFalse();
+        assertThat(servletState.getManifest(changedVehicleId).stops[0].plannedWaypoint.description)
+            .isEqualTo("Google Landmark Bldgs");
+        servletState.updateManifestStopState(changedVehicleId, BackendConfig.StopState.ENROUTE);
+      }
+      upload.get();
+
+      assertThat(incrementalResponse.getContentAsString()).contains("\"phase\":\"SUCCEEDED\"");
+      BackendConfig.Manifest changed = servletState.getManifest(changedVehicleId);
+      assertThat(changed.stops[0].plannedWaypoint.description)
+          .isEqualTo("Google Landmark Bldgs, north door");
+      assertThat(changed.currentStopState).isEqualTo(BackendConfig.StopState.ENROUTE);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void summaryResponse_isAcceptedIfTheUploadOutlastsTheWait() throws Exception {
+    try (FakeDeliveryServer server = new FakeDeliveryServer(500)) {
+      UploadJobs uploadJobs = new UploadJobs();
+      BackendConfigServlet fakeServlet =
+          new BackendConfigServlet(new ServletState(), server::stub, uploadJobs, 50);
+      request.setMethod("POST");
+      request.setContentType("application/json");
+      request.setContent(readResource("test-two-vehicles.json"));
+      request.setParameter("response", "summary");
+
+      fakeServlet.service(request, response);
+
+      assertThat(response.getStatus()).isEqualTo(202);
+      String jobId =
+          BackendConfigGsonProvider.get()
+              .fromJson(response.getContentAsString(), JsonObject.class)
+              .get("job_id")
+              .getAsString();
+      assertThat(response.getHeader("Location")).isEqualTo(UploadJobServlet.PATH + jobId);
+      assertThat(uploadJobs.get(jobId).awaitDone(10_000)).isTrue();
+    }
+  }
+
+  @Test
+  public void summaryResponse_ofAnInvalidConfig_isABadRequest() throws Exception {
+    UploadJob job = new UploadJob("job", "incremental", () -> 0);
+    job.failed("Stop ID stop_9 cannot be found.", true);
+
+    BackendConfigServlet.writeResult(job, BackendConfigServlet.ResponseFormat.SUMMARY, response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+    assertThat(response.getContentAsString()).contains("Stop ID stop_9 cannot be found.");
+  }
+
+  /** Uploads test-two-vehicles.json incrementally, with the description of a stop changed. */
+  private Void uploadIncrementally(BackendConfigServlet servlet, MockHttpServletResponse response)
+      throws IOException {
+    servlet.serveIncrementalUpload(
+        new ByteArrayInputStream(
+            new String(readResource("test-two-vehicles.json"), UTF_8)
+                .replace("Google Landmark Bldgs", "Google Landmark Bldgs, north door")
+                .getBytes(UTF_8)),
+        BackendConfigServlet.ResponseFormat.SUMMARY,
+        response);
+    return null;
+  }
+
+  /** Waits until the server has received a call, after the first {@code skipped} calls. */
+  private static void awaitCall(FakeDeliveryServer server, int skipped, String call)
+      throws InterruptedException {
+    while (server.calls().stream().skip(skipped).noneMatch(call::equals)) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static String vehicleId(ServletState servletState, String uploadedVehicleId) {
+    for (BackendConfig.Manifest manifest : servletState.getManifests()) {
+      if (manifest.vehicle.vehicleId.startsWith(uploadedVehicleId + "_")) {
+        return manifest.vehicle.vehicleId;
+      }
+    }
+    throw new AssertionError("No manifest for " + uploadedVehicleId);
+  }
+
+  private byte[] readResource(String path) throws IOException {
+    try (InputStream stream = getClass().getClassLoader().getResourceAsStream(path)) {
+      return stream.readAllBytes();
+    }
+  }
 }
@@ -0,0 +1,116 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.example.backend.ServletStateTest.readBackendConfig;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.utils.BackendConfigException;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the checks made on a backend config before it is provisioned. */
+@RunWith(JUnit4.class)
+public class BackendConfigValidatorTest {
+
+  @Test
+  public void validConfigs_pass() throws Exception {
+    BackendConfigValidator validator = new BackendConfigValidator();
+
+    validate(validator, readBackendConfig("test-two-vehicles.json"));
+    validator.check();
+
+    assertThat(validator.manifestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void duplicateIds_acrossManifests_fail() throws Exception {
+    BackendConfig config = readBackendConfig("test-two-vehicles.json");
+    config.manifests[1].vehicle.vehicleId = config.manifests[0].vehicle.vehicleId;
+    config.manifests[1].tasks[0].taskId = config.manifests[0].tasks[0].taskId;
+
+    BackendConfigException e = assertInvalid(config);
+
+    // The renamed task also leaves its stop referring to a task that no longer exists.
+    assertThat(e).hasMessageThat().contains("The backend config has 3 error(s)");
+    assertThat(e).hasMessageThat().contains("vehicle ID vehicle_1 is used by another manifest");
+    assertThat(e).hasMessageThat().contains("task vehicle_1_task_1: the task ID is used");
+    assertThat(e).hasMessageThat().contains("task ID vehicle_2_task_1 cannot be found");
+  }
+
+  @Test
+  public void brokenReferences_fail() throws Exception {
+    BackendConfig config = readBackendConfig("test.json");
+    BackendConfig.Manifest manifest = config.manifests[0];
+    manifest.stops[0].tasks = new String[] {"unknown_task", manifest.stops[1].tasks[0]};
+    manifest.remainingStopIdList = new String[] {"stop_1", "stop_1", "unknown_stop"};
+
+    BackendConfigException e = assertInvalid(config);
+
+    assertThat(e).hasMessageThat().contains("stop stop_1: task ID unknown_task cannot be found");
+    assertThat(e).hasMessageThat().contains("is already in another stop");
+    assertThat(e).hasMessageThat().contains("stop ID stop_1 is listed twice");
+    assertThat(e).hasMessageThat().contains("stop ID unknown_stop cannot be found");
+  }
+
+  @Test
+  public void invalidWaypointsAndDurations_fail() throws Exception {
+    BackendConfig config = readBackendConfig("test.json");
+    BackendConfig.Task task = config.manifests[0].tasks[0];
+    task.plannedWaypoint.lat = 91;
+    task.duration = Duration.ofSeconds(-1);
+    config.manifests[0].tasks[1].duration = null;
+    config.manifests[0].stops[0].plannedWaypoint.lng = Double.NaN;
+
+    BackendConfigException e = assertInvalid(config);
+
+    assertThat(e).hasMessageThat().contains("task task_1: latitude 91.0 is not between -90 and 90");
+    assertThat(e).hasMessageThat().contains("task task_1: duration_seconds must not be negative");
+    assertThat(e).hasMessageThat().contains("task task_2: duration_seconds is missing");
+    assertThat(e).hasMessageThat().contains("stop stop_1: longitude NaN is not between");
+  }
+
+  @Test
+  public void manyErrors_areCountedButNotAllListed() throws Exception {
+    BackendConfigValidator validator = new BackendConfigValidator();
+    for (int i = 0; i < BackendConfigValidator.MAX_REPORTED_ERRORS + 5; i++) {
+      validate(validator, readBackendConfig("test.json"));
+    }
+
+    BackendConfigException e = assertThrows(BackendConfigException.class, validator::check);
+
+    // Every manifest after the first repeats its vehicle ID and its 9 task IDs.
+    int errorCount = (BackendConfigValidator.MAX_REPORTED_ERRORS + 4) * 10;
+    int unlisted = errorCount - BackendConfigValidator.MAX_REPORTED_ERRORS;
+    assertThat(e).hasMessageThat().startsWith("The backend config has " + errorCount + " error(s)");
+    assertThat(e).hasMessageThat().endsWith("... and " + unlisted + " more.");
+  }
+
+  private static BackendConfigException assertInvalid(BackendConfig config) {
+    BackendConfigValidator validator = new BackendConfigValidator();
+    validate(validator, config);
+    return assertThrows(BackendConfigException.class, validator::check);
+  }
+
+  private static void validate(BackendConfigValidator validator, BackendConfig config) {
+    for (BackendConfig.Manifest manifest : config.manifests) {
+      validator.add(manifest);
+    }
+  }
+}
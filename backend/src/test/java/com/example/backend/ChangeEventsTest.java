@@ -0,0 +1,179 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.example.backend.json.BackendConfig;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for publishing changes to subscribers. These tests do not open any connections. */
+@RunWith(JUnit4.class)
+public class ChangeEventsTest {
+
+  ServletState servletState;
+  ChangeEvents changeEvents;
+
+  @Before
+  public void setUp() throws IOException {
+    servletState = new ServletState();
+    servletState.setBackendConfig(ServletStateTest.readBackendConfig("test-two-vehicles.json"));
+    changeEvents = new ChangeEvents(servletState);
+  }
+
+  @After
+  public void tearDown() {
+    changeEvents.close();
+  }
+
+  @Test
+  public void publishManifestChangeSendsChangesToVehicleSubscribers() {
+    RecordingSubscriber vehicle1 = new RecordingSubscriber();
+    RecordingSubscriber vehicle2 = new RecordingSubscriber();
+    changeEvents.subscribe("vehicle_1", null, vehicle1);
+    changeEvents.subscribe("vehicle_2", null, vehicle2);
+    String version = servletState.getManifestVersion("vehicle_1");
+
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ENROUTE);
+    changeEvents.publishManifestChange("vehicle_1", version);
+
+    assertThat(vehicle1.events).hasSize(1);
+    assertThat(vehicle1.events.get(0)).startsWith("id: 1\nevent: manifest\ndata: {");
+    assertThat(vehicle1.events.get(0)).contains("\"vehicle_id\":\"vehicle_1\"");
+    assertThat(vehicle1.events.get(0))
+        .contains("\"changes\":{\"current_stop_state\":\"ENROUTE\"}");
+    assertThat(vehicle1.events.get(0)).endsWith("}\n\n");
+    assertThat(vehicle2.events).isEmpty();
+  }
+
+  @Test
+  public void publishManifestChangeWithoutPreviousVersionSendsOnlyVersion() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    changeEvents.subscribe("vehicle_1", null, subscriber);
+
+    changeEvents.publishManifestChange("vehicle_1", null);
+
+    assertThat(subscriber.events).hasSize(1);
+    assertThat(subscriber.events.get(0))
+        .contains("\"version\":\"" + servletState.getManifestVersion("vehicle_1") + "\"");
+    assertThat(subscriber.events.get(0)).doesNotContain("changes");
+  }
+
+  @Test
+  public void publishTaskChangeSendsOnceToVehicleAndTrackingIdSubscribers() {
+    RecordingSubscriber vehicle = new RecordingSubscriber();
+    RecordingSubscriber trackingId = new RecordingSubscriber();
+    RecordingSubscriber both = new RecordingSubscriber();
+    changeEvents.subscribe("vehicle_1", null, vehicle);
+    changeEvents.subscribe(null, "vehicle_1_tracking_1", trackingId);
+    changeEvents.subscribe("vehicle_1", "vehicle_1_tracking_1", both);
+
+    changeEvents.publishTaskChange(
+        ServletStateTest.createClosedTask("vehicle_1_task_1").toBuilder()
+            .setDeliveryVehicleId("vehicle_1")
+            .setTrackingId("vehicle_1_tracking_1")
+            .build());
+
+    assertThat(vehicle.events).hasSize(1);
+    assertThat(trackingId.events).hasSize(1);
+    assertThat(both.events).hasSize(1);
+    assertThat(vehicle.events.get(0)).contains("event: task\n");
+    assertThat(vehicle.events.get(0)).contains("\"task_id\":\"vehicle_1_task_1\"");
+    assertThat(vehicle.events.get(0)).contains("\"task_outcome\":\"SUCCEEDED\"");
+  }
+
+  @Test
+  public void unsubscribeStopsEvents() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    changeEvents.subscribe("vehicle_1", "vehicle_1_tracking_1", subscriber);
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(1);
+
+    changeEvents.unsubscribe("vehicle_1", "vehicle_1_tracking_1", subscriber);
+    changeEvents.unsubscribe("vehicle_1", "vehicle_1_tracking_1", subscriber);
+    changeEvents.publishManifestChange("vehicle_1", null);
+
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(0);
+    assertThat(subscriber.events).isEmpty();
+  }
+
+  @Test
+  public void subscribeRejectsSubscribersOverLimit() {
+    for (int i = 0; i < ChangeEvents.MAX_SUBSCRIBERS; i++) {
+      assertThat(changeEvents.subscribe("vehicle_1", null, event -> true)).isTrue();
+    }
+
+    assertThat(changeEvents.subscribe("vehicle_1", null, event -> true)).isFalse();
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(ChangeEvents.MAX_SUBSCRIBERS);
+  }
+
+  @Test
+  public void everySubscriberReceivesConcurrentlyPublishedEvents() throws Exception {
+    int subscriberCount = 10000;
+    int eventCount = 100;
+    List<CountingSubscriber> subscribers = new ArrayList<>();
+    for (int i = 0; i < subscriberCount; i++) {
+      CountingSubscriber subscriber = new CountingSubscriber();
+      subscribers.add(subscriber);
+      changeEvents.subscribe("vehicle_" + (i % 2 + 1), null, subscriber);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < eventCount; i++) {
+      String vehicleId = "vehicle_" + (i % 2 + 1);
+      executor.execute(() -> changeEvents.publishManifestChange(vehicleId, null));
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(60, SECONDS)).isTrue();
+
+    for (CountingSubscriber subscriber : subscribers) {
+      assertThat(subscriber.count).isEqualTo(eventCount / 2);
+    }
+  }
+
+  /** Records the events it is sent, as strings. */
+  private static final class RecordingSubscriber implements ChangeEvents.Subscriber {
+    final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public boolean offer(byte[] event) {
+      events.add(new String(event, UTF_8));
+      return true;
+    }
+  }
+
+  /** Counts the events it is sent. */
+  private static final class CountingSubscriber implements ChangeEvents.Subscriber {
+    int count;
+
+    @Override
+    public synchronized boolean offer(byte[] event) {
+      count++;
+      return true;
+    }
+  }
+}
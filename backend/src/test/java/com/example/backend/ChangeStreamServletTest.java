@@ -0,0 +1,167 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Tests for streaming changes to a client. The client is a fake output stream, which only takes
+ * writes while the test lets it, like a slow connection.
+ */
+@RunWith(JUnit4.class)
+public class ChangeStreamServletTest {
+
+  ServletState servletState;
+  ChangeEvents changeEvents;
+  ChangeStreamServlet servlet;
+  MockHttpServletRequest request;
+  FakeOutputStream output;
+  MockHttpServletResponse response;
+
+  @Before
+  public void setUp() throws IOException {
+    servletState = new ServletState();
+    servletState.setBackendConfig(ServletStateTest.readBackendConfig("test-two-vehicles.json"));
+    changeEvents = new ChangeEvents(servletState);
+    servlet = new ChangeStreamServlet(servletState, changeEvents);
+    request = new MockHttpServletRequest("GET", "/events");
+    request.setAsyncSupported(true);
+    output = new FakeOutputStream();
+    response = new MockHttpServletResponse();
+  }
+
+  @After
+  public void tearDown() {
+    changeEvents.close();
+  }
+
+  @Test
+  public void eventsWaitUntilTheClientIsReady() throws IOException {
+    subscribe("vehicle_1");
+    changeEvents.publishManifestChange("vehicle_1", null);
+    assertThat(output.contents()).isEmpty();
+
+    output.ready = true;
+    output.writeListener.onWritePossible();
+
+    assertThat(output.contents()).startsWith("retry: 3000\n\n");
+    assertThat(output.contents()).contains("event: manifest\n");
+    assertThat(response.getContentType()).startsWith("text/event-stream");
+  }
+
+  @Test
+  public void eventsQueuedWhileTheClientIsNotReadyAreWrittenOnceItIs() throws IOException {
+    subscribe("vehicle_1");
+    output.ready = true;
+    output.writeListener.onWritePossible();
+    int written = output.contents().length();
+
+    output.ready = false;
+    changeEvents.publishManifestChange("vehicle_1", null);
+    changeEvents.publishManifestChange("vehicle_1", null);
+    assertThat(output.contents()).hasLength(written);
+
+    output.ready = true;
+    output.writeListener.onWritePossible();
+    assertThat(output.contents().substring(written).split("event: manifest\n", -1)).hasLength(3);
+  }
+
+  @Test
+  public void clientWhichFallsTooFarBehindIsDropped() throws IOException {
+    subscribe("vehicle_1");
+    output.ready = true;
+    output.writeListener.onWritePossible();
+    output.ready = false;
+
+    for (int i = 0; i <= ChangeEvents.MAX_PENDING_EVENTS; i++) {
+      changeEvents.publishManifestChange("vehicle_1", null);
+    }
+
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(0);
+    assertThat(request.isAsyncStarted()).isFalse();
+    // Nothing is written once the client has been dropped.
+    int written = output.contents().length();
+    output.ready = true;
+    output.writeListener.onWritePossible();
+    assertThat(output.contents()).hasLength(written);
+  }
+
+  @Test
+  public void unknownVehicleIsNotFound() throws IOException {
+    request.setParameter("vehicleId", "unknown_vehicle");
+
+    servlet.doGet(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(404);
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(0);
+  }
+
+  private void subscribe(String vehicleId) throws IOException {
+    request.setParameter("vehicleId", vehicleId);
+    servlet.doGet(
+        request,
+        new HttpServletResponseWrapper(response) {
+          @Override
+          public ServletOutputStream getOutputStream() {
+            return output;
+          }
+        });
+    assertThat(request.isAsyncStarted()).isTrue();
+    assertThat(changeEvents.getSubscriberCount()).isEqualTo(1);
+  }
+
+  /** A non-blocking output stream which is only ready when the test says so. */
+  private static final class FakeOutputStream extends ServletOutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    boolean ready;
+    WriteListener writeListener;
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      this.writeListener = writeListener;
+    }
+
+    @Override
+    public void write(int b) {
+      if (!ready) {
+        throw new IllegalStateException("The stream was written while it was not ready");
+      }
+      written.write(b);
+    }
+
+    String contents() {
+      return new String(written.toByteArray(), UTF_8);
+    }
+  }
+}
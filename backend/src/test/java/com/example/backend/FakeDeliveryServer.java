@@ -0,0 +1,308 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.google.maps.fleetengine.delivery.v1.BatchCreateTasksRequest;
+import com.google.maps.fleetengine.delivery.v1.BatchCreateTasksResponse;
+import com.google.maps.fleetengine.delivery.v1.CreateDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.CreateTaskRequest;
+import com.google.maps.fleetengine.delivery.v1.DeliveryServiceGrpc;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.GetDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.GetTaskRequest;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.maps.fleetengine.delivery.v1.UpdateDeliveryVehicleRequest;
+import com.google.maps.fleetengine.delivery.v1.UpdateTaskRequest;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A Fleet Engine Delivery API stand-in served on a local port, for the tests and benchmarks which
+ * provision backend configs. It answers each call after a fixed latency, and records the calls.
+ * It keeps the vehicles and tasks it creates, and refuses to create them twice with
+ * ALREADY_EXISTS, as Fleet Engine does.
+ */
+final class FakeDeliveryServer implements AutoCloseable {
+
+  private final long latencyMillis;
+  private final ScheduledExecutorService responder = Executors.newScheduledThreadPool(4);
+  private final Server server;
+  private final ManagedChannel channel;
+  private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final Map<String, DeliveryVehicle> vehicles = new ConcurrentHashMap<>();
+  private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+  private final List<InjectedFailure> injectedFailures = new ArrayList<>();
+
+  /** Starts a server which answers each call after {@code latencyMillis}. */
+  FakeDeliveryServer(long latencyMillis) throws IOException {
+    this.latencyMillis = latencyMillis;
+    server = NettyServerBuilder.forPort(0).addService(new FakeDeliveryService()).build().start();
+    channel =
+        ManagedChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+  }
+
+  /** Returns a stub which calls this server. */
+  DeliveryServiceGrpc.DeliveryServiceBlockingStub stub() {
+    return DeliveryServiceGrpc.newBlockingStub(channel);
+  }
+
+  /**
+   * Returns the calls received so far, in order, as "create_vehicle:ID", "create_task:ID",
+   * "batch_create_tasks:ID,ID,...", "update_vehicle:ID", "update_task:ID", "get_vehicle:ID" or
+   * "get_task:ID". A call fails with INVALID_ARGUMENT if it contains "fail".
+   */
+  List<String> calls() {
+    synchronized (calls) {
+      return new ArrayList<>(calls);
+    }
+  }
+
+  /**
+   * Fails the next {@code count} calls which start with {@code callPrefix} with {@code code}. If
+   * {@code afterApplying} is true, the calls take effect first, as if only their response was lost.
+   */
+  void failNext(String callPrefix, int count, Status.Code code, boolean afterApplying) {
+    synchronized (injectedFailures) {
+      injectedFailures.add(new InjectedFailure(callPrefix, count, code, afterApplying));
+    }
+  }
+
+  /** Returns the IDs of the vehicles created so far. */
+  Set<String> vehicleIds() {
+    return new HashSet<>(vehicles.keySet());
+  }
+
+  /** Returns the largest number of calls that were in progress at the same time. */
+  int maxInFlight() {
+    return maxInFlight.get();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    responder.shutdownNow();
+  }
+
+  /**
+   * Answers a call after the latency. {@code response} applies the call, and returns its response,
+   * or throws a StatusRuntimeException to fail it.
+   */
+  private <T> void respond(String call, StreamObserver<T> observer, Supplier<T> response) {
+    calls.add(call);
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    InjectedFailure failure = takeInjectedFailure(call);
+    responder.schedule(
+        () -> {
+          inFlight.decrementAndGet();
+          if (call.contains("fail")) {
+            observer.onError(Status.INVALID_ARGUMENT.withDescription(call).asRuntimeException());
+            return;
+          }
+          if (failure != null && !failure.afterApplying) {
+            observer.onError(Status.fromCode(failure.code).asRuntimeException());
+            return;
+          }
+          T value;
+          try {
+            value = response.get();
+          } catch (StatusRuntimeException e) {
+            observer.onError(e);
+            return;
+          }
+          if (failure != null) {
+            observer.onError(Status.fromCode(failure.code).asRuntimeException());
+            return;
+          }
+          observer.onNext(value);
+          observer.onCompleted();
+        },
+        latencyMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private InjectedFailure takeInjectedFailure(String call) {
+    synchronized (injectedFailures) {
+      for (InjectedFailure failure : injectedFailures) {
+        if (failure.remaining > 0 && call.startsWith(failure.callPrefix)) {
+          failure.remaining--;
+          return failure;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static <T> T create(Map<String, T> entities, String name, T entity) {
+    if (entities.putIfAbsent(name, entity) != null) {
+      throw Status.ALREADY_EXISTS.withDescription(name).asRuntimeException();
+    }
+    return entity;
+  }
+
+  private static <T> T get(Map<String, T> entities, String name) {
+    T entity = entities.get(name);
+    if (entity == null) {
+      throw Status.NOT_FOUND.withDescription(name).asRuntimeException();
+    }
+    return entity;
+  }
+
+  private static String id(String name) {
+    return name.substring(name.lastIndexOf('/') + 1);
+  }
+
+  /** Failures to return instead of the responses of some calls. */
+  private static final class InjectedFailure {
+    private final String callPrefix;
+    private final Status.Code code;
+    private final boolean afterApplying;
+    private int remaining;
+
+    InjectedFailure(String callPrefix, int count, Status.Code code, boolean afterApplying) {
+      this.callPrefix = callPrefix;
+      this.remaining = count;
+      this.code = code;
+      this.afterApplying = afterApplying;
+    }
+  }
+
+  private final class FakeDeliveryService extends DeliveryServiceGrpc.DeliveryServiceImplBase {
+    @Override
+    public void createDeliveryVehicle(
+        CreateDeliveryVehicleRequest request, StreamObserver<DeliveryVehicle> observer) {
+      String name = request.getParent() + "/deliveryVehicles/" + request.getDeliveryVehicleId();
+      respond(
+          "create_vehicle:" + request.getDeliveryVehicleId(),
+          observer,
+          () ->
+              create(
+                  vehicles,
+                  id(name),
+                  request.getDeliveryVehicle().toBuilder().setName(name).build()));
+    }
+
+    @Override
+    public void createTask(CreateTaskRequest request, StreamObserver<Task> observer) {
+      String name = request.getParent() + "/tasks/" + request.getTaskId();
+      respond(
+          "create_task:" + request.getTaskId(),
+          observer,
+          () -> create(tasks, id(name), request.getTask().toBuilder().setName(name).build()));
+    }
+
+    @Override
+    public void batchCreateTasks(
+        BatchCreateTasksRequest request, StreamObserver<BatchCreateTasksResponse> observer) {
+      respond(
+          "batch_create_tasks:"
+              + request.getRequestsList().stream()
+                  .map(CreateTaskRequest::getTaskId)
+                  .collect(Collectors.joining(",")),
+          observer,
+          () -> {
+            // The batch is created as a whole, or not at all.
+            List<Task> created =
+                request.getRequestsList().stream()
+                    .map(
+                        r ->
+                            r.getTask().toBuilder()
+                                .setName(request.getParent() + "/tasks/" + r.getTaskId())
+                                .build())
+                    .collect(Collectors.toList());
+            synchronized (tasks) {
+              for (Task task : created) {
+                if (tasks.containsKey(id(task.getName()))) {
+                  throw Status.ALREADY_EXISTS.withDescription(task.getName()).asRuntimeException();
+                }
+              }
+              for (Task task : created) {
+                tasks.put(id(task.getName()), task);
+              }
+            }
+            return BatchCreateTasksResponse.newBuilder().addAllTasks(created).build();
+          });
+    }
+
+    @Override
+    public void getTask(GetTaskRequest request, StreamObserver<Task> observer) {
+      respond(
+          "get_task:" + id(request.getName()),
+          observer,
+          () -> get(tasks, id(request.getName())));
+    }
+
+    @Override
+    public void getDeliveryVehicle(
+        GetDeliveryVehicleRequest request, StreamObserver<DeliveryVehicle> observer) {
+      respond(
+          "get_vehicle:" + id(request.getName()),
+          observer,
+          () -> get(vehicles, id(request.getName())));
+    }
+
+    @Override
+    public void updateDeliveryVehicle(
+        UpdateDeliveryVehicleRequest request, StreamObserver<DeliveryVehicle> observer) {
+      String name = request.getDeliveryVehicle().getName();
+      respond(
+          "update_vehicle:" + id(name),
+          observer,
+          () -> {
+            vehicles.put(id(name), request.getDeliveryVehicle());
+            return request.getDeliveryVehicle();
+          });
+    }
+
+    /** Updates the outcome of a task, the only fields the backend updates. */
+    @Override
+    public void updateTask(UpdateTaskRequest request, StreamObserver<Task> observer) {
+      String name = request.getTask().getName();
+      respond(
+          "update_task:" + id(name),
+          observer,
+          () -> {
+            Task updated =
+                get(tasks, id(name)).toBuilder()
+                    .setTaskOutcome(request.getTask().getTaskOutcome())
+                    .setTaskOutcomeTime(request.getTask().getTaskOutcomeTime())
+                    .build();
+            tasks.put(id(name), updated);
+            return updated;
+          });
+    }
+  }
+}
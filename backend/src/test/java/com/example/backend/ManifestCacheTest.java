@@ -0,0 +1,84 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.example.backend.ServletStateTest.readBackendConfig;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the manifest cache. These tests do not communicate with Fleet Engine. */
+@RunWith(JUnit4.class)
+public class ManifestCacheTest {
+
+  ServletState servletState;
+
+  @Before
+  public void setUp() throws IOException {
+    servletState = new ServletState();
+    servletState.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+  }
+
+  @Test
+  public void unchangedManifestIsServedFromCache() {
+    ManifestCache cache = new ManifestCache(servletState);
+
+    ManifestCache.SerializedManifest manifest = cache.get("vehicle_1");
+
+    assertThat(cache.get("vehicle_1")).isSameInstanceAs(manifest);
+    assertThat(new String(manifest.json(), UTF_8)).contains("\"vehicle_1\"");
+    assertThat(cache.get("invalid_vehicle_id")).isNull();
+  }
+
+  @Test
+  public void changedManifestIsSerializedAgain() {
+    ManifestCache cache = new ManifestCache(servletState);
+    ManifestCache.SerializedManifest before = cache.get("vehicle_1");
+    ManifestCache.SerializedManifest otherVehicle = cache.get("vehicle_2");
+
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ENROUTE);
+    ManifestCache.SerializedManifest after = cache.get("vehicle_1");
+
+    assertThat(after.etag()).isNotEqualTo(before.etag());
+    assertThat(new String(after.json(), UTF_8)).contains("ENROUTE");
+    assertThat(new String(before.json(), UTF_8)).doesNotContain("ENROUTE");
+    assertThat(cache.get("vehicle_2")).isSameInstanceAs(otherVehicle);
+  }
+
+  @Test
+  public void etagsAreStrongAndDifferByFormat() {
+    ManifestCache.SerializedManifest manifest = new ManifestCache(servletState).get("vehicle_1");
+
+    assertThat(manifest.etag()).startsWith("\"");
+    assertThat(manifest.etag()).endsWith("\"");
+    assertThat(manifest.protobufEtag()).isNotEqualTo(manifest.etag());
+  }
+
+  @Test
+  public void cacheIsBoundedBySize() {
+    ManifestCache cache = new ManifestCache(servletState, 1);
+
+    ManifestCache.SerializedManifest manifest = cache.get("vehicle_1");
+
+    assertThat(cache.get("vehicle_1")).isNotSameInstanceAs(manifest);
+    assertThat(cache.get("vehicle_1").etag()).isEqualTo(manifest.etag());
+  }
+}
@@ -0,0 +1,61 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the manifest change log. */
+@RunWith(JUnit4.class)
+public class ManifestChangeLogTest {
+
+  @Test
+  public void changesSinceLatestVersionAreEmpty() {
+    ManifestChangeLog changeLog = new ManifestChangeLog(10);
+    assertThat(changeLog.since(10, "v").isEmpty()).isTrue();
+    assertThat(changeLog.since(10, "v").version()).isEqualTo("v10");
+
+    changeLog.currentStopStateChanged(12);
+
+    assertThat(changeLog.latestVersion()).isEqualTo(12);
+    assertThat(changeLog.since(12, "v").isEmpty()).isTrue();
+    assertThat(changeLog.since(10, "v").isEmpty()).isFalse();
+    assertThat(changeLog.since(10, "v").version()).isEqualTo("v12");
+  }
+
+  @Test
+  public void unknownVersionsHaveNoChanges() {
+    ManifestChangeLog changeLog = new ManifestChangeLog(10);
+    changeLog.clientIdChanged(11);
+
+    assertThat(changeLog.since(9, "v")).isNull();
+    assertThat(changeLog.since(12, "v")).isNull();
+  }
+
+  @Test
+  public void compactedChangesAreNoLongerKnown() {
+    ManifestChangeLog changeLog = new ManifestChangeLog(10, 2);
+    changeLog.clientIdChanged(11);
+    changeLog.currentStopStateChanged(12);
+    changeLog.remainingStopIdListChanged(13);
+
+    assertThat(changeLog.since(10, "v")).isNull();
+    assertThat(changeLog.since(11, "v")).isNotNull();
+    assertThat(changeLog.since(12, "v").version()).isEqualTo("v13");
+  }
+}
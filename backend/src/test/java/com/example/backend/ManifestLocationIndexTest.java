@@ -0,0 +1,152 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the spatial index of manifest locations. */
+@RunWith(JUnit4.class)
+public class ManifestLocationIndexTest {
+
+  @Test
+  public void nearestReturnsNearestAvailableManifest() {
+    ManifestLocationIndex index =
+        new ManifestLocationIndex(
+            List.of(
+                manifest("mountain_view", 37.39, -122.08),
+                manifest("san_francisco", 37.77, -122.42),
+                manifest("new_york", 40.71, -74.01)));
+
+    assertThat(index.size()).isEqualTo(3);
+    assertThat(index.nearest(37.80, -122.27)).isEqualTo("san_francisco");
+    assertThat(index.nearest(42.36, -71.06)).isEqualTo("new_york");
+
+    index.remove("san_francisco");
+    assertThat(index.nearest(37.80, -122.27)).isEqualTo("mountain_view");
+
+    index.restore("san_francisco");
+    assertThat(index.nearest(37.80, -122.27)).isEqualTo("san_francisco");
+  }
+
+  @Test
+  public void nearestMeasuresDistanceAcrossTheAntimeridian() {
+    ManifestLocationIndex index =
+        new ManifestLocationIndex(
+            List.of(manifest("fiji", -17.7, 178.0), manifest("tonga", -21.1, -175.2)));
+
+    // Tonga is nearer in longitude as a number, but Fiji is nearer across the antimeridian.
+    assertThat(index.nearest(-18.0, -179.9)).isEqualTo("fiji");
+  }
+
+  @Test
+  public void nearestReturnsNullOnceEveryManifestIsRemoved() {
+    ManifestLocationIndex index =
+        new ManifestLocationIndex(
+            List.of(manifest("vehicle_1", 1, 1), manifest("vehicle_2", 2, 2)));
+
+    index.remove("vehicle_1");
+    index.remove("vehicle_2");
+    index.remove("vehicle_2");
+    index.remove("unknown");
+
+    assertThat(index.size()).isEqualTo(0);
+    assertThat(index.nearest(1, 1)).isNull();
+  }
+
+  @Test
+  public void manifestsWithoutStartLocationUseTheirFirstRemainingStop() {
+    BackendConfig.Manifest manifest =
+        BackendConfigGsonProvider.get()
+            .fromJson(
+                "{\"vehicle\": {\"vehicle_id\": \"vehicle_1\"},"
+                    + " \"stops\": ["
+                    + "{\"stop_id\": \"stop_1\", \"planned_waypoint\": {\"lat\": 1, \"lng\": 1}},"
+                    + "{\"stop_id\": \"stop_2\", \"planned_waypoint\": {\"lat\": 2, \"lng\": 2}}],"
+                    + " \"remaining_stop_id_list\": [\"stop_2\"]}",
+                BackendConfig.Manifest.class);
+
+    assertThat(ManifestLocationIndex.locationOf(manifest).lat).isEqualTo(2);
+  }
+
+  @Test
+  public void nearestMatchesLinearSearch() {
+    Random random = new Random(1);
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      double lat = random.nextDouble() * 180 - 90;
+      double lng = random.nextDouble() * 360 - 180;
+      manifests.add(manifest("vehicle_" + i, lat, lng));
+    }
+    ManifestLocationIndex index = new ManifestLocationIndex(manifests);
+    Set<String> removed = new HashSet<>();
+
+    for (int i = 0; i < 1000; i++) {
+      double lat = random.nextDouble() * 180 - 90;
+      double lng = random.nextDouble() * 360 - 180;
+      String nearest = index.nearest(lat, lng);
+      assertThat(nearest).isEqualTo(linearNearest(manifests, removed, lat, lng));
+      // Claim most of the manifests found, so the search runs over a thinning tree.
+      if (i % 4 != 0) {
+        index.remove(nearest);
+        removed.add(nearest);
+      }
+    }
+  }
+
+  private static String linearNearest(
+      List<BackendConfig.Manifest> manifests, Set<String> removed, double lat, double lng) {
+    double[] target = ManifestLocationIndex.toPoint(lat, lng);
+    String nearest = null;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (BackendConfig.Manifest manifest : manifests) {
+      if (removed.contains(manifest.vehicle.vehicleId)) {
+        continue;
+      }
+      double[] point =
+          ManifestLocationIndex.toPoint(
+              manifest.vehicle.startLocation.lat, manifest.vehicle.startLocation.lng);
+      double distance = 0;
+      for (int axis = 0; axis < 3; axis++) {
+        distance += (point[axis] - target[axis]) * (point[axis] - target[axis]);
+      }
+      if (distance < nearestDistance) {
+        nearest = manifest.vehicle.vehicleId;
+        nearestDistance = distance;
+      }
+    }
+    return nearest;
+  }
+
+  static BackendConfig.Manifest manifest(String vehicleId, double lat, double lng) {
+    return BackendConfigGsonProvider.get()
+        .fromJson(
+            String.format(
+                "{\"vehicle\": {\"vehicle_id\": \"%s\", \"start_location\": {\"lat\": %s, \"lng\":"
+                    + " %s}}, \"tasks\": [], \"stops\": []}",
+                vehicleId, lat, lng),
+            BackendConfig.Manifest.class);
+  }
+}
@@ -0,0 +1,418 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.utils.BackendConfigException;
+import com.example.backend.utils.BackendConfigUtils;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ManifestProvisionerTest {
+
+  private FakeDeliveryServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeDeliveryServer(20);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+  @Test
+  public void provision_assignsEachVehicleAfterItsTasksAreCreated() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(6, 3);
+    List<String> provisionedVehicles = new ArrayList<>();
+    List<List<String>> provisionedTasks = new ArrayList<>();
+
+    new ManifestProvisioner(server.stub(), 3, 4)
+        .provision(
+            backendConfig.manifests,
+            (tasks, vehicle) -> {
+              provisionedVehicles.add(vehicle.getName());
+              provisionedTasks.add(
+                  tasks.stream().map(Task::getName).collect(Collectors.toList()));
+            });
+
+    assertThat(provisionedVehicles).hasSize(6);
+    List<String> calls = server.calls();
+    for (int v = 0; v < 6; v++) {
+      assertThat(provisionedVehicles.get(v))
+          .isEqualTo(BackendConfigUtils.getDeliveryVehicleName(vehicleId(v)));
+      assertThat(provisionedTasks.get(v))
+          .containsExactly(
+              BackendConfigUtils.getTaskName(taskId(v, 0)),
+              BackendConfigUtils.getTaskName(taskId(v, 1)),
+              BackendConfigUtils.getTaskName(taskId(v, 2)))
+          .inOrder();
+      int update = calls.indexOf("update_vehicle:" + vehicleId(v));
+      assertThat(update).isGreaterThan(calls.indexOf("create_vehicle:" + vehicleId(v)));
+      for (int t = 0; t < 3; t++) {
+        assertThat(update).isGreaterThan(indexOfBatchWith(calls, taskId(v, t)));
+      }
+    }
+    assertThat(server.maxInFlight()).isAtMost(3);
+    assertThat(server.maxInFlight()).isGreaterThan(1);
+  }
+
+  @Test
+  public void provision_batchesTheTasksOfConsecutiveManifests() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(5, 2);
+
+    new ManifestProvisioner(server.stub(), 1, 4)
+        .provision(backendConfig.manifests, (tasks, vehicle) -> {});
+
+    assertThat(batchCalls(server.calls()))
+        .containsExactly(
+            "batch_create_tasks:"
+                + String.join(",", taskId(0, 0), taskId(0, 1), taskId(1, 0), taskId(1, 1)),
+            "batch_create_tasks:"
+                + String.join(",", taskId(2, 0), taskId(2, 1), taskId(3, 0), taskId(3, 1)),
+            "batch_create_tasks:" + String.join(",", taskId(4, 0), taskId(4, 1)))
+        .inOrder();
+  }
+
+  @Test
+  public void provision_withConcurrencyOne_makesOneCallAtATime() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(3, 2);
+    List<DeliveryVehicle> provisioned = new ArrayList<>();
+
+    new ManifestProvisioner(server.stub(), 1, 500)
+        .provision(backendConfig.manifests, (tasks, vehicle) -> provisioned.add(vehicle));
+
+    assertThat(provisioned).hasSize(3);
+    // Three vehicles created, one batch of tasks, three vehicles assigned.
+    assertThat(server.calls()).hasSize(7);
+    assertThat(server.maxInFlight()).isEqualTo(1);
+  }
+
+  @Test
+  public void provision_failedTask_failsOnlyItsManifest() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(4, 2);
+    backendConfig.manifests[2].tasks[1].taskId = "fail";
+    backendConfig.manifests[2].stops[0].tasks[1] = "fail";
+    List<Integer> provisionedTaskCounts = new ArrayList<>();
+
+    assertThrows(
+        StatusRuntimeException.class,
+        () ->
+            new ManifestProvisioner(server.stub(), 2, 8)
+                .provision(
+                    backendConfig.manifests,
+                    (tasks, vehicle) -> provisionedTaskCounts.add(tasks.size())));
+
+    // The batch of 8 tasks was split until the failed task was isolated, so the tasks batched
+    // with it were still created.
+    assertThat(provisionedTaskCounts).containsExactly(2, 2);
+    List<String> batches = batchCalls(server.calls());
+    assertThat(batches).contains("batch_create_tasks:fail");
+    assertThat(batches).contains("batch_create_tasks:" + taskId(2, 0));
+    assertThat(server.calls()).doesNotContain("update_vehicle:" + vehicleId(2));
+  }
+
+  @Test
+  public void provision_readsABoundedNumberOfManifestsAhead() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(10, 2);
+    AtomicInteger read = new AtomicInteger();
+    List<Integer> readAhead = new ArrayList<>();
+
+    new ManifestProvisioner(server.stub(), 2, 500, 3)
+        .provision(
+            () -> read.get() < 10 ? backendConfig.manifests[read.getAndIncrement()] : null,
+            (tasks, vehicle) -> {
+              readAhead.add(read.get() - readAhead.size());
+              assertThat(tasks).hasSize(2);
+            });
+
+    assertThat(readAhead).hasSize(10);
+    assertThat(Collections.max(readAhead)).isAtMost(4);
+    // The batch being filled was sent early to provision the oldest manifests.
+    assertThat(batchCalls(server.calls()).size()).isGreaterThan(1);
+  }
+
+  @Test
+  public void provision_unknownStopTask_throwsBeforeAnyCallForTheManifest() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(4, 2);
+    backendConfig.manifests[0].stops[0].tasks[0] = "unknown_task";
+
+    BackendConfigException e =
+        assertThrows(
+            BackendConfigException.class,
+            () ->
+                new ManifestProvisioner(server.stub(), 4, 500)
+                    .provision(backendConfig.manifests, (tasks, vehicle) -> {}));
+
+    assertThat(e).hasMessageThat().contains("unknown_task");
+    assertThat(server.calls()).isEmpty();
+  }
+
+  @Test
+  public void update_createsTheNewTasksThenReplacesTheJourney() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(2, 2);
+    List<ManifestProvisioner.VehicleUpdate> updates = new ArrayList<>();
+    updates.add(
+        new ManifestProvisioner.VehicleUpdate(
+            vehicleId(0),
+            backendConfig.manifests[0].tasks,
+            BackendConfigUtils.createVehicleJourneySegments(backendConfig.manifests[0])));
+    updates.add(
+        new ManifestProvisioner.VehicleUpdate(
+            vehicleId(1), new BackendConfig.Task[0], new ArrayList<>()));
+    List<DeliveryVehicle> updated = new ArrayList<>();
+
+    new ManifestProvisioner(server.stub(), 2, 500)
+        .update(updates, (tasks, vehicle) -> updated.add(vehicle));
+
+    assertThat(server.calls())
+        .containsExactly(
+            "batch_create_tasks:" + String.join(",", taskId(0, 0), taskId(0, 1)),
+            "update_vehicle:" + vehicleId(0),
+            "update_vehicle:" + vehicleId(1));
+    assertThat(server.calls().indexOf("update_vehicle:" + vehicleId(0)))
+        .isGreaterThan(indexOfBatchWith(server.calls(), taskId(0, 0)));
+    assertThat(updated.get(0).getRemainingVehicleJourneySegmentsCount()).isEqualTo(1);
+    assertThat(updated.get(1).getRemainingVehicleJourneySegmentsCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void provision_retriesTransientFailures() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(2, 2);
+    server.failNext("create_vehicle:", 2, Status.Code.UNAVAILABLE, false);
+    server.failNext("batch_create_tasks:", 1, Status.Code.DEADLINE_EXCEEDED, false);
+    List<DeliveryVehicle> provisioned = new ArrayList<>();
+
+    newProvisioner(3)
+        .provision(backendConfig.manifests, (tasks, vehicle) -> provisioned.add(vehicle));
+
+    assertThat(provisioned).hasSize(2);
+    assertThat(batchCalls(server.calls())).hasSize(2);
+    assertThat(server.vehicleIds()).containsExactly(vehicleId(0), vehicleId(1));
+  }
+
+  @Test
+  public void provision_transientFailure_throwsOnceTheAttemptsAreExhausted() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(1, 1);
+    server.failNext("create_vehicle:", 3, Status.Code.UNAVAILABLE, false);
+
+    StatusRuntimeException e =
+        assertThrows(
+            StatusRuntimeException.class,
+            () -> newProvisioner(3).provision(backendConfig.manifests, (tasks, vehicle) -> {}));
+
+    assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    assertThat(server.calls().stream().filter(call -> call.startsWith("create_vehicle:")).count())
+        .isEqualTo(3);
+  }
+
+  @Test
+  public void provision_lostResponses_readBackWhatWasCreated() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(2, 2);
+    // The first attempts are applied, but fail; the retries find the entities already there.
+    server.failNext("create_vehicle:" + vehicleId(0), 1, Status.Code.UNAVAILABLE, true);
+    server.failNext("batch_create_tasks:", 1, Status.Code.UNAVAILABLE, true);
+    List<List<String>> provisionedTasks = new ArrayList<>();
+    List<String> provisionedVehicles = new ArrayList<>();
+
+    newProvisioner(3)
+        .provision(
+            backendConfig.manifests,
+            (tasks, vehicle) -> {
+              provisionedVehicles.add(vehicle.getName());
+              provisionedTasks.add(
+                  tasks.stream().map(Task::getName).collect(Collectors.toList()));
+            });
+
+    assertThat(provisionedVehicles)
+        .containsExactly(
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(0)),
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(1)))
+        .inOrder();
+    assertThat(provisionedTasks.get(1))
+        .containsExactly(
+            BackendConfigUtils.getTaskName(taskId(1, 0)),
+            BackendConfigUtils.getTaskName(taskId(1, 1)))
+        .inOrder();
+    assertThat(server.calls()).contains("get_vehicle:" + vehicleId(0));
+    assertThat(server.calls()).contains("get_task:" + taskId(0, 0));
+  }
+
+  @Test
+  public void provision_skipsTheCheckpointedManifests() throws Exception {
+    BackendConfig backendConfig = createBackendConfig(3, 2);
+    ManifestProvisioner.ProvisionedManifest earlier =
+        new ManifestProvisioner.ProvisionedManifest(
+            Collections.singletonList(
+                Task.newBuilder().setName(BackendConfigUtils.getTaskName(taskId(1, 0))).build()),
+            DeliveryVehicle.newBuilder()
+                .setName(BackendConfigUtils.getDeliveryVehicleName(vehicleId(1)))
+                .build());
+    List<String> provisionedVehicles = new ArrayList<>();
+    Iterator<BackendConfig.Manifest> manifests = Arrays.asList(backendConfig.manifests).iterator();
+
+    newProvisioner(3)
+        .provision(
+            () -> manifests.hasNext() ? manifests.next() : null,
+            index -> index == 1 ? earlier : null,
+            (tasks, vehicle) -> provisionedVehicles.add(vehicle.getName()));
+
+    assertThat(provisionedVehicles)
+        .containsExactly(
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(0)),
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(1)),
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(2)))
+        .inOrder();
+    assertThat(server.vehicleIds()).containsExactly(vehicleId(0), vehicleId(2));
+    assertThat(String.join(" ", server.calls())).doesNotContain(taskId(1, 0));
+  }
+
+  @Test
+  public void provision_timestampsTheIdsWithTheTimestampOfItsOwnProvisioner() throws Exception {
+    BackendConfig first = createBackendConfig(1, 1);
+    BackendConfig second = createBackendConfig(1, 1);
+    List<String> provisionedVehicles = new ArrayList<>();
+
+    for (BackendConfig backendConfig : Arrays.asList(first, second)) {
+      long timestamp = backendConfig == first ? 1_000 : 2_000;
+      new ManifestProvisioner(
+              server.stub(),
+              1,
+              500,
+              ManifestProvisioner.DEFAULT_MAX_PENDING_MANIFESTS,
+              ManifestProvisioner.RetryPolicy.withMaxAttempts(1),
+              timestamp)
+          .provision(
+              backendConfig.manifests,
+              (tasks, vehicle) -> provisionedVehicles.add(vehicle.getName()));
+    }
+
+    assertThat(provisionedVehicles)
+        .containsExactly(
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(0) + "_1000"),
+            BackendConfigUtils.getDeliveryVehicleName(vehicleId(0) + "_2000"))
+        .inOrder();
+    assertThat(first.manifests[0].tasks[0].taskId).isEqualTo(taskId(0, 0) + "_1000");
+    assertThat(second.manifests[0].tasks[0].taskId).isEqualTo(taskId(0, 0) + "_2000");
+  }
+
+  @Test
+  public void create_taskBatchSizeAboveTheFleetEngineLimit_throws() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new ManifestProvisioner(server.stub(), 1, 501));
+  }
+
+  /** Returns a provisioner which retries quickly, up to {@code maxAttempts} times. */
+  private ManifestProvisioner newProvisioner(int maxAttempts) {
+    return new ManifestProvisioner(
+        server.stub(),
+        2,
+        500,
+        ManifestProvisioner.DEFAULT_MAX_PENDING_MANIFESTS,
+        new ManifestProvisioner.RetryPolicy(maxAttempts, 1, 5));
+  }
+
+  private static List<String> batchCalls(List<String> calls) {
+    return calls.stream()
+        .filter(call -> call.startsWith("batch_create_tasks:"))
+        .collect(Collectors.toList());
+  }
+
+  private static int indexOfBatchWith(List<String> calls, String taskId) {
+    for (int i = 0; i < calls.size(); i++) {
+      String call = calls.get(i);
+      if (call.startsWith("batch_create_tasks:")
+          && Arrays.asList(call.substring(call.indexOf(':') + 1).split(",")).contains(taskId)) {
+        return i;
+      }
+    }
+    throw new AssertionError("No batch created task " + taskId);
+  }
+
+  /**
+   * Creates a backend config of {@code vehicles} manifests with {@code tasksPerVehicle} tasks each,
+   * all at one stop.
+   */
+  static BackendConfig createBackendConfig(int vehicles, int tasksPerVehicle) {
+    JsonArray manifests = new JsonArray();
+    for (int v = 0; v < vehicles; v++) {
+      JsonObject vehicle = new JsonObject();
+      vehicle.addProperty("vehicle_id", vehicleId(v));
+      JsonArray tasks = new JsonArray();
+      JsonArray stopTasks = new JsonArray();
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        JsonObject task = new JsonObject();
+        task.addProperty("task_id", taskId(v, t));
+        task.addProperty("tracking_id", vehicleId(v) + "_tracking_" + t);
+        task.add("planned_waypoint", createWaypoint(v));
+        task.addProperty("task_type", "DELIVERY");
+        task.addProperty("duration_seconds", 60);
+        tasks.add(task);
+        stopTasks.add(taskId(v, t));
+      }
+      JsonObject stop = new JsonObject();
+      stop.addProperty("stop_id", vehicleId(v) + "_stop");
+      stop.add("planned_waypoint", createWaypoint(v));
+      stop.add("tasks", stopTasks);
+      JsonArray stops = new JsonArray();
+      stops.add(stop);
+      JsonObject manifest = new JsonObject();
+      manifest.add("vehicle", vehicle);
+      manifest.add("tasks", tasks);
+      manifest.add("stops", stops);
+      manifests.add(manifest);
+    }
+    JsonObject config = new JsonObject();
+    config.add("manifests", manifests);
+    return BackendConfigGsonProvider.get().fromJson(config, BackendConfig.class);
+  }
+
+  private static JsonObject createWaypoint(int v) {
+    JsonObject waypoint = new JsonObject();
+    waypoint.addProperty("lat", 37.4 + v * 0.001);
+    waypoint.addProperty("lng", -122.08);
+    return waypoint;
+  }
+
+  private static String vehicleId(int v) {
+    return "vehicle_" + v;
+  }
+
+  private static String taskId(int v, int t) {
+    return "vehicle_" + v + "_task_" + t;
+  }
+}
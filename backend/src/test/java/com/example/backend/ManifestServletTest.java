@@ -19,15 +19,19 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.joining;
 
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigProto;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
@@ -48,6 +52,7 @@ import org.springframework.mock.web.MockHttpServletResponse;
 public class ManifestServletTest {
 
   static ManifestServlet servlet;
+  static ChangeEvents changeEvents;
   static Logger logger = Logger.getLogger(ManifestServletTest.class.getName());
   static MockHttpServletRequest request;
   static MockHttpServletResponse response;
@@ -65,10 +70,17 @@ public class ManifestServletTest {
 
     // Set up the BackendConfig and pre-load it with vehicles and tasks.
     testBackendConfigServletProvider = TestBackendConfigServletProvider.get();
+    changeEvents = new ChangeEvents(testBackendConfigServletProvider.servletState);
     servlet =
         new ManifestServlet(
             testBackendConfigServletProvider.servletState,
-            testBackendConfigServletProvider.grpcServiceProvider);
+            testBackendConfigServletProvider.grpcServiceProvider,
+            changeEvents);
+  }
+
+  @AfterClass
+  public static void closeChangeEvents() {
+    changeEvents.close();
   }
 
   @Before
@@ -108,6 +120,128 @@ public class ManifestServletTest {
         .isNotEmpty();
   }
 
+  @Test
+  public void getReturnsManifestAsProtobufWhenAccepted() throws ServletException, IOException {
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    request.addHeader("Accept", BackendConfigProto.CONTENT_TYPE);
+    servlet.service(request, response);
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentType()).startsWith(BackendConfigProto.CONTENT_TYPE);
+    BackendConfig.Manifest manifest =
+        BackendConfigProto.readManifest(new ByteArrayInputStream(response.getContentAsByteArray()));
+    assertThat(manifest.vehicle.vehicleId).isEqualTo(testBackendConfigServletProvider.vehicleId);
+    assertThat(manifest.vehicle.providerId).isNotEmpty();
+  }
+
+  @Test
+  public void getReturnsNotModifiedWhenManifestIsUnchanged() throws ServletException, IOException {
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    servlet.service(request, response);
+    String etag = response.getHeader("ETag");
+    assertThat(etag).isNotNull();
+
+    MockHttpServletRequest secondRequest = new MockHttpServletRequest();
+    secondRequest.setMethod("GET");
+    secondRequest.setServletPath("/manifest");
+    secondRequest.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    secondRequest.addHeader("If-None-Match", etag);
+    MockHttpServletResponse secondResponse = new MockHttpServletResponse();
+    servlet.service(secondRequest, secondResponse);
+
+    assertThat(secondResponse.getStatus()).isEqualTo(304);
+    assertThat(secondResponse.getHeader("ETag")).isEqualTo(etag);
+    assertThat(secondResponse.getContentAsByteArray()).isEmpty();
+  }
+
+  @Test
+  public void getSinceCurrentVersionReturnsNotModified() throws ServletException, IOException {
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    servlet.service(request, response);
+    String etag = response.getHeader("ETag");
+
+    MockHttpServletRequest sinceRequest = new MockHttpServletRequest();
+    sinceRequest.setMethod("GET");
+    sinceRequest.setServletPath("/manifest");
+    sinceRequest.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    sinceRequest.setParameter("since", etag);
+    MockHttpServletResponse sinceResponse = new MockHttpServletResponse();
+    servlet.service(sinceRequest, sinceResponse);
+
+    assertThat(sinceResponse.getStatus()).isEqualTo(304);
+    assertThat(sinceResponse.getContentAsByteArray()).isEmpty();
+  }
+
+  @Test
+  public void getSinceUnknownVersionReturnsWholeManifest() throws ServletException, IOException {
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + testBackendConfigServletProvider.vehicleId);
+    request.setParameter("since", "unknown_version");
+    servlet.service(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    JsonObject responseObject = gson.fromJson(response.getContentAsString(), JsonObject.class);
+    assertThat(responseObject.get("version").getAsString()).isNotEmpty();
+    assertThat(
+            responseObject
+                .getAsJsonObject("manifest")
+                .getAsJsonObject("vehicle")
+                .get("vehicle_id")
+                .getAsString())
+        .isEqualTo(testBackendConfigServletProvider.vehicleId);
+  }
+
+  @Test
+  public void versionOfAcceptsEtags() {
+    assertThat(ManifestServlet.versionOf("abc.1")).isEqualTo("abc.1");
+    assertThat(ManifestServlet.versionOf("\"abc.1\"")).isEqualTo("abc.1");
+    assertThat(ManifestServlet.versionOf("W/\"abc.1.pb\"")).isEqualTo("abc.1");
+  }
+
+  @Test
+  public void expectedVersionAcceptsOnlyStrongEtags() {
+    assertThat(ManifestServlet.expectedVersion(null, "abc.1")).isNull();
+    assertThat(ManifestServlet.expectedVersion("*", "abc.1"))
+        .isEqualTo(DeliveryStateStore.ANY_VERSION);
+    assertThat(ManifestServlet.expectedVersion("\"abc.0\", \"abc.1.pb\"", "abc.1"))
+        .isEqualTo("abc.1");
+    assertThat(ManifestServlet.expectedVersion("\"abc.0\"", "abc.1")).isEmpty();
+    assertThat(ManifestServlet.expectedVersion("W/\"abc.1\"", "abc.1")).isEmpty();
+  }
+
+  @Test
+  public void parseLocationAcceptsOnlyValidCoordinates() {
+    BackendConfig.Waypoint location =
+        ManifestServlet.parseLocation(
+            gson.fromJson("{\"lat\":-33.9,\"lng\":151.2}", JsonObject.class));
+    assertThat(location.lat).isEqualTo(-33.9);
+    assertThat(location.lng).isEqualTo(151.2);
+    assertThat(ManifestServlet.parseLocation(gson.fromJson("{\"lat\":1}", JsonObject.class)))
+        .isNull();
+    assertThat(
+            ManifestServlet.parseLocation(
+                gson.fromJson("{\"lat\":\"1\",\"lng\":2}", JsonObject.class)))
+        .isNull();
+    assertThat(
+            ManifestServlet.parseLocation(
+                gson.fromJson("{\"lat\":1,\"lng\":181}", JsonObject.class)))
+        .isNull();
+  }
+
+  @Test
+  public void matchesEtagAcceptsListsAndWeakEtags() {
+    assertThat(ManifestServlet.matchesEtag(null, "\"1\"")).isFalse();
+    assertThat(ManifestServlet.matchesEtag("*", "\"1\"")).isTrue();
+    assertThat(ManifestServlet.matchesEtag("\"2\", W/\"1\"", "\"1\"")).isTrue();
+    assertThat(ManifestServlet.matchesEtag("\"2\"", "\"1\"")).isFalse();
+  }
+
   @Test
   public void fixedOrder_01_stopsAssignmentWhenNoClientIdIsSupplied()
       throws ServletException, IOException {
@@ -129,6 +263,18 @@ public class ManifestServletTest {
     assertThat(response.getStatus()).isEqualTo(404);
   }
 
+  @Test
+  public void fixedOrder_03_stopsAssignmentWhenLocationIsInvalid()
+      throws ServletException, IOException {
+    request.setMethod("POST");
+    request.setServletPath("/manifest");
+    request.setContent(
+        "{\"client_id\":\"TEST_CLIENT_ID\",\"location\":{\"lat\":91,\"lng\":0}}"
+            .getBytes(UTF_8));
+    servlet.service(request, response);
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
   /**
    * This is a test that exercises most of the functionality in ManifestServlet. Generally such a
    * test is not recommended, as each test should exercise one component or piece of functionality.
@@ -443,6 +589,102 @@ public class ManifestServletTest {
     }
   }
 
+  @Test
+  public void fixedOrder_60_getSinceReturnsOnlyChanges() throws ServletException, IOException {
+    String vehicleId = testBackendConfigServletProvider.vehicleId;
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + vehicleId);
+    servlet.service(request, response);
+    String etag = response.getHeader("ETag");
+
+    MockHttpServletRequest updateRequest = new MockHttpServletRequest();
+    updateRequest.setMethod("POST");
+    updateRequest.setServletPath("/manifest");
+    updateRequest.setPathInfo("/" + vehicleId);
+    updateRequest.setContent("{\"current_stop_state\":\"ARRIVED\"}".getBytes(UTF_8));
+    servlet.service(updateRequest, new MockHttpServletResponse());
+
+    MockHttpServletRequest sinceRequest = new MockHttpServletRequest();
+    sinceRequest.setMethod("GET");
+    sinceRequest.setServletPath("/manifest");
+    sinceRequest.setPathInfo("/" + vehicleId);
+    sinceRequest.setParameter("since", etag);
+    MockHttpServletResponse sinceResponse = new MockHttpServletResponse();
+    servlet.service(sinceRequest, sinceResponse);
+
+    assertThat(sinceResponse.getStatus()).isEqualTo(200);
+    JsonObject responseObject =
+        gson.fromJson(sinceResponse.getContentAsString(), JsonObject.class);
+    assertThat(responseObject.has("manifest")).isFalse();
+    JsonObject changes = responseObject.getAsJsonObject("changes");
+    assertThat(changes.keySet()).containsExactly("current_stop_state");
+    assertThat(changes.get("current_stop_state").getAsString()).isEqualTo("ARRIVED");
+  }
+
+  @Test
+  public void fixedOrder_61_updateWithStaleEtagFails() throws ServletException, IOException {
+    String vehicleId = testBackendConfigServletProvider.vehicleId;
+    request.setMethod("GET");
+    request.setServletPath("/manifest");
+    request.setPathInfo("/" + vehicleId);
+    servlet.service(request, response);
+    String etag = response.getHeader("ETag");
+
+    MockHttpServletResponse updateResponse = postStopState(vehicleId, "ENROUTE", etag);
+    assertThat(updateResponse.getStatus()).isEqualTo(200);
+    assertThat(updateResponse.getHeader("ETag")).isNotEqualTo(etag);
+
+    MockHttpServletResponse staleResponse = postStopState(vehicleId, "ARRIVED", etag);
+    assertThat(staleResponse.getStatus()).isEqualTo(412);
+    BackendConfig.Manifest manifest =
+        testBackendConfigServletProvider.servletState.getManifest(vehicleId);
+    assertThat(manifest.currentStopState).isEqualTo(BackendConfig.StopState.ENROUTE);
+
+    assertThat(postStopState(vehicleId, "ARRIVED", updateResponse.getHeader("ETag")).getStatus())
+        .isEqualTo(200);
+  }
+
+  @Test
+  public void fixedOrder_62_updateDuringAnotherUpdateFails() throws ServletException, IOException {
+    String vehicleId = testBackendConfigServletProvider.vehicleId;
+    DeliveryStateStore servletState = testBackendConfigServletProvider.servletState;
+    String etag = "\"" + servletState.getManifestVersion(vehicleId) + "\"";
+
+    try (DeliveryStateStore.ManifestUpdate update =
+        servletState.beginManifestUpdate(vehicleId, null)) {
+      assertThat(postStopState(vehicleId, "ARRIVED", null).getStatus()).isEqualTo(409);
+      assertThat(postStopState(vehicleId, "ARRIVED", etag).getStatus()).isEqualTo(412);
+      assertThat(postStopState(vehicleId, "ARRIVED", "*").getStatus()).isEqualTo(412);
+
+      // Reads are not held up by the update in progress.
+      request.setMethod("GET");
+      request.setServletPath("/manifest");
+      request.setPathInfo("/" + vehicleId);
+      servlet.service(request, response);
+      assertThat(response.getStatus()).isEqualTo(200);
+    }
+
+    assertThat(postStopState(vehicleId, "ARRIVED", etag).getStatus()).isEqualTo(200);
+    assertThat(postStopState(vehicleId, "ARRIVED", "*").getStatus()).isEqualTo(200);
+  }
+
+  private MockHttpServletResponse postStopState(String vehicleId, String state, String ifMatch)
+      throws ServletException, IOException {
+    MockHttpServletRequest updateRequest = new MockHttpServletRequest();
+    updateRequest.setMethod("POST");
+    updateRequest.setServletPath("/manifest");
+    updateRequest.setPathInfo("/" + vehicleId);
+    if (ifMatch != null) {
+      updateRequest.addHeader("If-Match", ifMatch);
+    }
+    updateRequest.setContent(
+        String.format("{\"current_stop_state\":\"%s\"}", state).getBytes(UTF_8));
+    MockHttpServletResponse updateResponse = new MockHttpServletResponse();
+    servlet.service(updateRequest, updateResponse);
+    return updateResponse;
+  }
+
   @Test
   public void fixedOrder_99_verifiesStopsList() throws ServletException, IOException {
     request.setMethod("GET");
@@ -0,0 +1,97 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.utils.BackendConfigException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how long a backend config takes to provision against a Fleet Engine stand-in with a
+ * fixed per-call latency, with increasing concurrency and task batch sizes. A batch size of 1 makes
+ * one call per task, as the upload did before tasks were batched.
+ *
+ * <p>This is not run as part of the unit tests. Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... com.example.backend.ProvisioningBenchmark \
+ *       [vehicles] [tasksPerVehicle] [latencyMillis] [maxConcurrency]
+ * </pre>
+ */
+public final class ProvisioningBenchmark {
+
+  private static final int[] TASK_BATCH_SIZES = {1, 50, 500};
+
+  public static void main(String[] args) throws Exception {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int tasksPerVehicle = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 10;
+    int maxConcurrency = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+    System.out.printf(
+        "%d vehicles, %d tasks per vehicle, %d ms per call%n",
+        vehicles, tasksPerVehicle, latencyMillis);
+    System.out.printf(
+        "%12s %12s %8s %10s %12s %10s%n",
+        "concurrency", "batch size", "calls", "millis", "entities/s", "speedup");
+    try (FakeDeliveryServer server = new FakeDeliveryServer(latencyMillis)) {
+      // Warm up the channel and the JIT.
+      run(server, 1, 2, 8, 500);
+
+      long serialMillis = 0;
+      for (int concurrency = 1; concurrency <= maxConcurrency; concurrency *= 2) {
+        for (int taskBatchSize : TASK_BATCH_SIZES) {
+          int callsBefore = server.calls().size();
+          long millis = run(server, vehicles, tasksPerVehicle, concurrency, taskBatchSize);
+          if (serialMillis == 0) {
+            serialMillis = millis;
+          }
+          System.out.printf(
+              "%12d %12d %8d %10d %12d %9.1fx%n",
+              concurrency,
+              taskBatchSize,
+              server.calls().size() - callsBefore,
+              millis,
+              vehicles * (tasksPerVehicle + 1) * 1000L / Math.max(millis, 1),
+              (double) serialMillis / Math.max(millis, 1));
+        }
+      }
+    }
+  }
+
+  /** Provisions a fresh backend config, and returns how long it took in milliseconds. */
+  private static long run(
+      FakeDeliveryServer server,
+      int vehicles,
+      int tasksPerVehicle,
+      int concurrency,
+      int taskBatchSize)
+      throws BackendConfigException, IOException {
+    BackendConfig backendConfig =
+        ManifestProvisionerTest.createBackendConfig(vehicles, tasksPerVehicle);
+    AtomicInteger provisioned = new AtomicInteger();
+    long startNanos = System.nanoTime();
+    new ManifestProvisioner(server.stub(), concurrency, taskBatchSize)
+        .provision(backendConfig.manifests, (tasks, vehicle) -> provisioned.incrementAndGet());
+    long millis = (System.nanoTime() - startNanos) / 1_000_000;
+    if (provisioned.get() != vehicles) {
+      throw new IllegalStateException("Provisioned " + provisioned.get() + " of " + vehicles);
+    }
+    return millis;
+  }
+
+  private ProvisioningBenchmark() {}
+}
@@ -0,0 +1,199 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures ServletState throughput under a mixed read/write load, compared with the same state
+ * behind a single global monitor (which is how ServletState used to be synchronized).
+ *
+ * <p>This is not run as part of the unit tests. Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... com.example.backend.ServletStateContentionBenchmark \
+ *       [vehicles] [tasksPerVehicle] [maxThreads]
+ * </pre>
+ */
+public final class ServletStateContentionBenchmark {
+
+  private static final long RUN_MILLIS = 2000;
+  private static final int WRITE_PERCENT = 10;
+
+  public static void main(String[] args) throws InterruptedException {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int tasksPerVehicle = args.length > 1 ? Integer.parseInt(args[1]) : 75;
+    int maxThreads =
+        args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    System.out.printf(
+        "%d vehicles, %d tasks per vehicle, %d%% writes%n",
+        vehicles, tasksPerVehicle, WRITE_PERCENT);
+    System.out.printf("%8s %20s %20s%n", "threads", "global monitor op/s", "ServletState op/s");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      long globalLock =
+          run(new GloballySynchronizedServletState(), vehicles, tasksPerVehicle, threads);
+      long concurrent = run(new ServletState(), vehicles, tasksPerVehicle, threads);
+      System.out.printf("%8d %20d %20d%n", threads, globalLock, concurrent);
+    }
+  }
+
+  /** Loads the state, then runs the workload on the given number of threads. Returns op/s. */
+  private static long run(ServletState state, int vehicles, int tasksPerVehicle, int threads)
+      throws InterruptedException {
+    state.setBackendConfig(createBackendConfig(vehicles, tasksPerVehicle));
+    for (int v = 0; v < vehicles; v++) {
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        state.addTask(createTask(v, t));
+      }
+    }
+
+    LongAdder operations = new LongAdder();
+    AtomicBoolean stop = new AtomicBoolean();
+    CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread worker =
+          new Thread(
+              () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                while (!stop.get()) {
+                  int v = random.nextInt(vehicles);
+                  int t = random.nextInt(tasksPerVehicle);
+                  int op = random.nextInt(100);
+                  if (op < WRITE_PERCENT / 2) {
+                    state.addTask(createTask(v, t));
+                  } else if (op < WRITE_PERCENT) {
+                    state.updateManifestStopState(vehicleId(v), BackendConfig.StopState.ENROUTE);
+                  } else if (op < 40) {
+                    state.getManifest(vehicleId(v));
+                  } else if (op < 70) {
+                    state.getTaskById(taskId(v, t));
+                  } else {
+                    state.getBackendConfigTaskByTrackingId(trackingId(v, t));
+                  }
+                  operations.increment();
+                }
+              });
+      worker.start();
+      workers.add(worker);
+    }
+
+    long startNanos = System.nanoTime();
+    start.countDown();
+    Thread.sleep(RUN_MILLIS);
+    stop.set(true);
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    return operations.sum() * 1_000_000_000L / elapsedNanos;
+  }
+
+  private static BackendConfig createBackendConfig(int vehicles, int tasksPerVehicle) {
+    JsonArray manifests = new JsonArray();
+    for (int v = 0; v < vehicles; v++) {
+      JsonObject vehicle = new JsonObject();
+      vehicle.addProperty("vehicle_id", vehicleId(v));
+      JsonArray tasks = new JsonArray();
+      JsonArray stopTasks = new JsonArray();
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        JsonObject task = new JsonObject();
+        task.addProperty("task_id", taskId(v, t));
+        task.addProperty("tracking_id", trackingId(v, t));
+        tasks.add(task);
+        stopTasks.add(taskId(v, t));
+      }
+      JsonObject stop = new JsonObject();
+      stop.addProperty("stop_id", vehicleId(v) + "_stop");
+      stop.add("tasks", stopTasks);
+      JsonArray stops = new JsonArray();
+      stops.add(stop);
+      JsonObject manifest = new JsonObject();
+      manifest.add("vehicle", vehicle);
+      manifest.add("tasks", tasks);
+      manifest.add("stops", stops);
+      manifests.add(manifest);
+    }
+    JsonObject config = new JsonObject();
+    config.add("manifests", manifests);
+    return BackendConfigGsonProvider.get().fromJson(config, BackendConfig.class);
+  }
+
+  private static Task createTask(int v, int t) {
+    return Task.newBuilder()
+        .setName("providers/benchmark/tasks/" + taskId(v, t))
+        .setTrackingId(trackingId(v, t))
+        .build();
+  }
+
+  private static String vehicleId(int v) {
+    return "vehicle_" + v;
+  }
+
+  private static String taskId(int v, int t) {
+    return "vehicle_" + v + "_task_" + t;
+  }
+
+  private static String trackingId(int v, int t) {
+    return "vehicle_" + v + "_tracking_" + t;
+  }
+
+  /** The benchmarked operations behind one monitor, as ServletState was before. */
+  private static final class GloballySynchronizedServletState extends ServletState {
+    @Override
+    public synchronized void addTask(Task task) {
+      super.addTask(task);
+    }
+
+    @Override
+    public synchronized Task getTaskById(String taskId) {
+      return super.getTaskById(taskId);
+    }
+
+    @Override
+    public synchronized BackendConfig.Manifest getManifest(String vehicleId) {
+      return super.getManifest(vehicleId);
+    }
+
+    @Override
+    public synchronized BackendConfig.Task getBackendConfigTaskByTrackingId(String trackingId) {
+      return super.getBackendConfigTaskByTrackingId(trackingId);
+    }
+
+    @Override
+    public synchronized void updateManifestStopState(
+        String vehicleId, BackendConfig.StopState stopState) {
+      super.updateManifestStopState(vehicleId, stopState);
+    }
+  }
+
+  private ServletStateContentionBenchmark() {}
+}
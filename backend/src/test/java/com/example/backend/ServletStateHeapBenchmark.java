@@ -0,0 +1,217 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.LocationInfo;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import com.google.maps.fleetengine.delivery.v1.VehicleJourneySegment;
+import com.google.maps.fleetengine.delivery.v1.VehicleStop;
+import com.google.protobuf.Duration;
+import com.google.type.LatLng;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the heap retained per task by ServletState, compared with holding every task as a
+ * parsed proto next to the uninterned backend config (which is how ServletState used to store
+ * them).
+ *
+ * <p>This is not run as part of the unit tests. Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... com.example.backend.ServletStateHeapBenchmark [vehicles] [tasksPerVehicle]
+ * </pre>
+ */
+public final class ServletStateHeapBenchmark {
+
+  private static final String ID_SUFFIX = "_1665000000000";
+
+  // Keeps the measured state reachable until it has been measured.
+  private static Object retained;
+
+  public static void main(String[] args) {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 1500;
+    int tasksPerVehicle = args.length > 1 ? Integer.parseInt(args[1]) : 75;
+    int taskCount = vehicles * tasksPerVehicle;
+    String configJson = createBackendConfigJson(vehicles, tasksPerVehicle);
+
+    long before = usedHeap();
+    retained = loadParsedProtos(configJson, vehicles, tasksPerVehicle);
+    long parsedProtos = usedHeap() - before;
+    retained = null;
+
+    before = usedHeap();
+    retained = loadServletState(configJson, vehicles, tasksPerVehicle);
+    long servletState = usedHeap() - before;
+    retained = null;
+
+    System.out.printf("%d vehicles, %d tasks%n", vehicles, taskCount);
+    System.out.printf("%-40s %12s %14s%n", "storage", "heap (MB)", "bytes per task");
+    print("parsed protos, uninterned config", parsedProtos, taskCount);
+    print("ServletState", servletState, taskCount);
+  }
+
+  private static Object loadParsedProtos(String configJson, int vehicles, int tasksPerVehicle) {
+    ConcurrentHashMap<String, Task> tasks = new ConcurrentHashMap<>();
+    ConcurrentHashMap<String, DeliveryVehicle> deliveryVehicles = new ConcurrentHashMap<>();
+    for (int v = 0; v < vehicles; v++) {
+      DeliveryVehicle vehicle = createVehicle(v, tasksPerVehicle);
+      deliveryVehicles.put(ServletState.getId(vehicle.getName()), vehicle);
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        Task task = createTask(v, t);
+        tasks.put(ServletState.getId(task.getName()), task);
+      }
+    }
+    BackendConfig backendConfig =
+        BackendConfigGsonProvider.get().fromJson(configJson, BackendConfig.class);
+    return new Object[] {tasks, deliveryVehicles, backendConfig};
+  }
+
+  private static Object loadServletState(String configJson, int vehicles, int tasksPerVehicle) {
+    ServletState state = new ServletState("", 1);
+    ServletState.GenerationBuilder generation = state.newGeneration();
+    for (int v = 0; v < vehicles; v++) {
+      generation.addDeliveryVehicle(createVehicle(v, tasksPerVehicle));
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        generation.addTask(createTask(v, t));
+      }
+    }
+    generation.setBackendConfig(
+        BackendConfigGsonProvider.get().fromJson(configJson, BackendConfig.class));
+    state.publish(generation);
+    return state;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void print(String storage, long bytes, int taskCount) {
+    System.out.printf(
+        "%-40s %12.1f %14d%n", storage, bytes / (1024.0 * 1024.0), bytes / taskCount);
+  }
+
+  private static String createBackendConfigJson(int vehicles, int tasksPerVehicle) {
+    JsonArray manifests = new JsonArray();
+    for (int v = 0; v < vehicles; v++) {
+      JsonObject vehicle = new JsonObject();
+      vehicle.addProperty("vehicle_id", vehicleId(v));
+      JsonArray tasks = new JsonArray();
+      JsonArray stops = new JsonArray();
+      JsonArray remainingStopIds = new JsonArray();
+      for (int t = 0; t < tasksPerVehicle; t++) {
+        JsonObject task = new JsonObject();
+        task.addProperty("task_id", taskId(v, t));
+        task.addProperty("tracking_id", trackingId(v, t));
+        task.add("planned_waypoint", waypoint(v, t));
+        task.addProperty("task_type", "DELIVERY");
+        task.addProperty("duration_seconds", 120);
+        tasks.add(task);
+
+        // One stop per task, as in a typical parcel delivery route.
+        JsonArray stopTasks = new JsonArray();
+        stopTasks.add(taskId(v, t));
+        JsonObject stop = new JsonObject();
+        stop.addProperty("stop_id", stopId(v, t));
+        stop.add("planned_waypoint", waypoint(v, t));
+        stop.add("tasks", stopTasks);
+        stops.add(stop);
+        remainingStopIds.add(stopId(v, t));
+      }
+      JsonObject manifest = new JsonObject();
+      manifest.add("vehicle", vehicle);
+      manifest.add("tasks", tasks);
+      manifest.add("stops", stops);
+      manifest.add("remaining_stop_id_list", remainingStopIds);
+      manifests.add(manifest);
+    }
+    JsonObject config = new JsonObject();
+    config.add("manifests", manifests);
+    return config.toString();
+  }
+
+  private static JsonObject waypoint(int v, int t) {
+    JsonObject waypoint = new JsonObject();
+    waypoint.addProperty("lat", 37.4 + v * 0.001);
+    waypoint.addProperty("lng", -122.1 + t * 0.001);
+    return waypoint;
+  }
+
+  private static Task createTask(int v, int t) {
+    return Task.newBuilder()
+        .setName("providers/benchmark/tasks/" + taskId(v, t))
+        .setType(Task.Type.DELIVERY)
+        .setState(Task.State.OPEN)
+        .setTrackingId(trackingId(v, t))
+        .setDeliveryVehicleId(vehicleId(v))
+        .setPlannedLocation(
+            LocationInfo.newBuilder()
+                .setPoint(
+                    LatLng.newBuilder()
+                        .setLatitude(37.4 + v * 0.001)
+                        .setLongitude(-122.1 + t * 0.001)))
+        .setTaskDuration(Duration.newBuilder().setSeconds(120))
+        .build();
+  }
+
+  private static DeliveryVehicle createVehicle(int v, int tasksPerVehicle) {
+    DeliveryVehicle.Builder vehicle =
+        DeliveryVehicle.newBuilder()
+            .setName("providers/benchmark/deliveryVehicles/" + vehicleId(v));
+    for (int t = 0; t < tasksPerVehicle; t++) {
+      vehicle.addRemainingVehicleJourneySegments(
+          VehicleJourneySegment.newBuilder()
+              .setStop(
+                  VehicleStop.newBuilder()
+                      .setState(VehicleStop.State.NEW)
+                      .addTasks(
+                          VehicleStop.TaskInfo.newBuilder()
+                              .setTaskId(taskId(v, t))
+                              .setTaskDuration(Duration.newBuilder().setSeconds(120)))));
+    }
+    return vehicle.build();
+  }
+
+  private static String vehicleId(int v) {
+    return "vehicle_" + v + ID_SUFFIX;
+  }
+
+  private static String taskId(int v, int t) {
+    return "vehicle_" + v + "_task_" + t + ID_SUFFIX;
+  }
+
+  private static String trackingId(int v, int t) {
+    return "vehicle_" + v + "_tracking_" + t + ID_SUFFIX;
+  }
+
+  private static String stopId(int v, int t) {
+    return "vehicle_" + v + "_stop_" + t + ID_SUFFIX;
+  }
+
+  private ServletStateHeapBenchmark() {}
+}
@@ -0,0 +1,610 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the in-memory servlet state. These tests do not communicate with Fleet Engine. */
+@RunWith(JUnit4.class)
+public class ServletStateTest {
+
+  @Rule public TemporaryFolder journalFolder = new TemporaryFolder();
+
+  ServletState servletState;
+
+  @Before
+  public void setUp() throws IOException {
+    servletState = new ServletState();
+    servletState.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+  }
+
+  @Test
+  public void getManifestReturnsManifestByVehicleId() {
+    assertThat(servletState.getManifest("vehicle_2").vehicle.vehicleId).isEqualTo("vehicle_2");
+    assertThat(servletState.getManifest("invalid_vehicle_id")).isNull();
+  }
+
+  @Test
+  public void getBackendConfigTaskReturnsTaskById() {
+    BackendConfig.Task task = servletState.getBackendConfigTask("vehicle_2_task_1");
+    assertThat(task.trackingId).isEqualTo("vehicle_2_tracking_1");
+    assertThat(servletState.getBackendConfigTask("invalid_task_id")).isNull();
+  }
+
+  @Test
+  public void getBackendConfigTaskByTrackingIdReturnsTask() {
+    BackendConfig.Task task = servletState.getBackendConfigTaskByTrackingId("vehicle_1_tracking_1");
+    assertThat(task.taskId).isEqualTo("vehicle_1_task_1");
+    assertThat(servletState.getBackendConfigTaskByTrackingId("invalid_tracking_id")).isNull();
+  }
+
+  @Test
+  public void removedTaskCanStillBeLookedUp() {
+    servletState.removeBackendConfigTask("vehicle_1_task_1");
+    assertThat(servletState.getBackendConfigTask("vehicle_1_task_1")).isNotNull();
+    assertThat(servletState.getBackendConfigTaskByTrackingId("vehicle_1_tracking_1")).isNotNull();
+  }
+
+  @Test
+  public void removeBackendConfigTaskRemovesTaskFromItsStop() throws IOException {
+    servletState.setBackendConfig(readBackendConfig("test.json"));
+    BackendConfig.Manifest manifest = servletState.getManifest("vehicle_1");
+    BackendConfig.Stop stop = manifest.stops[0];
+    String[] otherStopTasks = manifest.stops[1].tasks;
+    String removedTaskId = stop.tasks[0];
+    int taskCount = stop.tasks.length;
+
+    servletState.removeBackendConfigTask(removedTaskId);
+
+    assertThat(stop.tasks).hasLength(taskCount - 1);
+    assertThat(stop.tasks).asList().doesNotContain(removedTaskId);
+    assertThat(manifest.stops[1].tasks).isSameInstanceAs(otherStopTasks);
+  }
+
+  @Test
+  public void setBackendConfigReplacesIndexes() throws IOException {
+    servletState.setBackendConfig(readBackendConfig("test.json"));
+    assertThat(servletState.getManifest("vehicle_2")).isNull();
+    assertThat(servletState.getBackendConfigTask("vehicle_1_task_1")).isNull();
+    assertThat(servletState.getManifest("vehicle_1")).isNotNull();
+    assertThat(servletState.getBackendConfigTaskByTrackingId("tracking_1").taskId)
+        .isEqualTo("task_1");
+  }
+
+  @Test
+  public void newGenerationIsNotVisibleUntilPublished() throws IOException {
+    servletState.addDeliveryVehicle(createVehicle("vehicle_1"));
+    servletState.addTask(createTask("vehicle_1_task_1"));
+    servletState.addClientToDeliveryVehicleMap("client_1", createVehicle("vehicle_1"));
+
+    ServletState.GenerationBuilder nextGeneration =
+        servletState
+            .newGeneration()
+            .addDeliveryVehicle(createVehicle("vehicle_1"))
+            .addTask(createTask("task_1"))
+            .setBackendConfig(readBackendConfig("test.json"));
+
+    // The current generation is untouched while the next one is being built.
+    assertThat(servletState.getManifest("vehicle_2")).isNotNull();
+    assertThat(servletState.getTaskById("vehicle_1_task_1")).isNotNull();
+    assertThat(servletState.getTaskById("task_1")).isNull();
+    assertThat(servletState.getDeliveryVehicleMapByClient("client_1")).isEqualTo("vehicle_1");
+
+    servletState.publish(nextGeneration);
+
+    assertThat(servletState.getManifest("vehicle_2")).isNull();
+    assertThat(servletState.getBackendConfigTask("task_1")).isNotNull();
+    assertThat(servletState.getTaskById("vehicle_1_task_1")).isNull();
+    assertThat(servletState.getTaskById("task_1")).isNotNull();
+    // Assignments belong to the previous generation, so its vehicles are available again.
+    assertThat(servletState.getDeliveryVehicleMapByClient("client_1")).isNull();
+    assertThat(servletState.claimAnyAvailableDeliveryVehicle("client_2").getName())
+        .endsWith("vehicle_1");
+  }
+
+  @Test
+  public void storedTaskIsParsedBackUnchanged() {
+    Task task =
+        createTask("task_1").toBuilder().setTaskOutcome(Task.TaskOutcome.SUCCEEDED).build();
+    servletState.addTask(task);
+
+    assertThat(servletState.getTaskById("task_1")).isEqualTo(task);
+    assertThat(servletState.hasTask("task_1")).isTrue();
+    assertThat(servletState.getTaskOutcome("task_1")).isEqualTo(Task.TaskOutcome.SUCCEEDED);
+    assertThat(servletState.hasTask("task_2")).isFalse();
+    assertThat(servletState.getTaskOutcome("task_2")).isNull();
+  }
+
+  @Test
+  public void backendConfigSharesInternedTaskIds() throws IOException {
+    servletState.setBackendConfig(readBackendConfig("test.json"));
+    BackendConfig.Manifest manifest = servletState.getManifest("vehicle_1");
+
+    String taskId = manifest.tasks[0].taskId;
+    String stopTaskId =
+        Arrays.stream(manifest.stops)
+            .flatMap(stop -> Arrays.stream(stop.tasks))
+            .filter(taskId::equals)
+            .findFirst()
+            .get();
+    assertThat(stopTaskId).isSameInstanceAs(taskId);
+  }
+
+  @Test
+  public void updateManifestStopStateUpdatesManifest() {
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ENROUTE);
+    assertThat(servletState.getManifest("vehicle_1").currentStopState)
+        .isEqualTo(BackendConfig.StopState.ENROUTE);
+    assertThat(servletState.getManifest("vehicle_2").currentStopState).isNull();
+  }
+
+  @Test
+  public void updateManifestRemainingStopIdListUpdatesManifest() {
+    servletState.updateManifestRemainingStopIdList("vehicle_1", new String[0]);
+    assertThat(servletState.getManifest("vehicle_1").remainingStopIdList).isEmpty();
+  }
+
+  @Test
+  public void manifestVersionChangesWithTheManifestOnly() {
+    servletState.addDeliveryVehicle(createVehicle("vehicle_1"));
+    String vehicle1 = servletState.getManifestVersion("vehicle_1");
+    String vehicle2 = servletState.getManifestVersion("vehicle_2");
+    assertThat(vehicle1).isNotNull();
+    assertThat(servletState.getManifestVersion("vehicle_1")).isEqualTo(vehicle1);
+    assertThat(servletState.getManifestVersion("invalid_vehicle_id")).isNull();
+
+    Set<String> versions = new HashSet<>();
+    versions.add(vehicle1);
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ENROUTE);
+    assertThat(versions.add(servletState.getManifestVersion("vehicle_1"))).isTrue();
+    servletState.updateManifestRemainingStopIdList("vehicle_1", new String[0]);
+    assertThat(versions.add(servletState.getManifestVersion("vehicle_1"))).isTrue();
+    servletState.addClientToDeliveryVehicleMap("client_1", "vehicle_1");
+    assertThat(versions.add(servletState.getManifestVersion("vehicle_1"))).isTrue();
+    servletState.removeBackendConfigTask("vehicle_1_task_1");
+    assertThat(versions.add(servletState.getManifestVersion("vehicle_1"))).isTrue();
+
+    assertThat(servletState.getManifestVersion("vehicle_2")).isEqualTo(vehicle2);
+  }
+
+  @Test
+  public void setBackendConfigChangesManifestVersions() throws IOException {
+    String version = servletState.getManifestVersion("vehicle_1");
+
+    servletState.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+
+    assertThat(servletState.getManifestVersion("vehicle_1")).isNotEqualTo(version);
+  }
+
+  @Test
+  public void getManifestChangesReturnsOnlyWhatChanged() {
+    String version = servletState.getManifestVersion("vehicle_1");
+    assertThat(servletState.getManifestChanges("vehicle_1", version).isEmpty()).isTrue();
+
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ENROUTE);
+    servletState.removeBackendConfigTask("vehicle_1_task_1");
+    ManifestChanges changes = servletState.getManifestChanges("vehicle_1", version);
+
+    assertThat(changes.version()).isEqualTo(servletState.getManifestVersion("vehicle_1"));
+    assertThat(changes.closedTaskIds()).containsExactly("vehicle_1_task_1");
+    JsonObject json =
+        changes.toJson(servletState.getManifest("vehicle_1"), BackendConfigGsonProvider.get());
+    assertThat(json.keySet()).containsExactly("current_stop_state", "stops", "closed_task_ids");
+    assertThat(json.get("current_stop_state").getAsString()).isEqualTo("ENROUTE");
+    assertThat(json.getAsJsonArray("stops").size()).isEqualTo(1);
+    assertThat(servletState.getManifestChanges("vehicle_1", changes.version()).isEmpty())
+        .isTrue();
+  }
+
+  @Test
+  public void getManifestChangesDoesNotKnowOtherVersions() throws IOException {
+    String version = servletState.getManifestVersion("vehicle_1");
+
+    assertThat(servletState.getManifestChanges("vehicle_1", "unknown")).isNull();
+    assertThat(servletState.getManifestChanges("invalid_vehicle_id", version)).isNull();
+    servletState.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+    assertThat(servletState.getManifestChanges("vehicle_1", version)).isNull();
+  }
+
+  @Test
+  public void beginManifestUpdateFailsOnConflict() {
+    String version = servletState.getManifestVersion("vehicle_1");
+    DeliveryStateStore.ManifestUpdate update =
+        servletState.beginManifestUpdate("vehicle_1", version);
+
+    assertThat(update).isNotNull();
+    assertThat(servletState.beginManifestUpdate("vehicle_1", null)).isNull();
+    assertThat(servletState.beginManifestUpdate("vehicle_1", DeliveryStateStore.ANY_VERSION))
+        .isNull();
+    assertThat(servletState.beginManifestUpdate("vehicle_2", null)).isNotNull();
+    // Updates in progress do not hold up reads.
+    assertThat(servletState.getManifest("vehicle_1")).isNotNull();
+
+    servletState.updateManifestStopState("vehicle_1", BackendConfig.StopState.ARRIVED);
+    update.close();
+
+    assertThat(servletState.beginManifestUpdate("vehicle_1", version)).isNull();
+    assertThat(servletState.beginManifestUpdate("vehicle_1", "unknown")).isNull();
+    assertThat(servletState.beginManifestUpdate("vehicle_3", DeliveryStateStore.ANY_VERSION))
+        .isNull();
+    assertThat(
+            servletState.beginManifestUpdate(
+                "vehicle_1", servletState.getManifestVersion("vehicle_1")))
+        .isNotNull();
+  }
+
+  @Test
+  public void claimAnyAvailableDeliveryVehicleAssignsEachVehicleOnce() {
+    servletState.addDeliveryVehicle(createVehicle("vehicle_1"));
+    servletState.addDeliveryVehicle(createVehicle("vehicle_2"));
+
+    DeliveryVehicle first = servletState.claimAnyAvailableDeliveryVehicle("client_1");
+    DeliveryVehicle second = servletState.claimAnyAvailableDeliveryVehicle("client_2");
+
+    assertThat(first.getName()).isNotEqualTo(second.getName());
+    assertThat(servletState.claimAnyAvailableDeliveryVehicle("client_3")).isNull();
+    assertThat(servletState.getDeliveryVehicleMapByClient("client_1"))
+        .isEqualTo(ServletState.getId(first.getName()));
+    assertThat(servletState.getManifest(ServletState.getId(second.getName())).clientId)
+        .isEqualTo("client_2");
+  }
+
+  @Test
+  public void claimAnyAvailableDeliveryVehicleSkipsVehiclesAssignedById() {
+    DeliveryVehicle vehicle1 = createVehicle("vehicle_1");
+    servletState.addDeliveryVehicle(vehicle1);
+    servletState.addDeliveryVehicle(createVehicle("vehicle_2"));
+
+    assertThat(servletState.addClientToDeliveryVehicleMap("client_1", vehicle1)).isTrue();
+
+    assertThat(servletState.isDeliveryVehicleAssigned("vehicle_1")).isTrue();
+    assertThat(servletState.claimAnyAvailableDeliveryVehicle("client_2").getName())
+        .endsWith("vehicle_2");
+  }
+
+  @Test
+  public void addClientToDeliveryVehicleMapRejectsAssignedVehicle() {
+    DeliveryVehicle vehicle1 = createVehicle("vehicle_1");
+    servletState.addDeliveryVehicle(vehicle1);
+
+    assertThat(servletState.addClientToDeliveryVehicleMap("client_1", vehicle1)).isTrue();
+    assertThat(servletState.addClientToDeliveryVehicleMap("client_1", vehicle1)).isTrue();
+    assertThat(servletState.addClientToDeliveryVehicleMap("client_2", vehicle1)).isFalse();
+    assertThat(servletState.getDeliveryVehicleMapByClient("client_2")).isNull();
+  }
+
+  @Test
+  public void concurrentClaimsAssignEachVehicleToOneClient() throws InterruptedException {
+    int vehicleCount = 200;
+    for (int i = 0; i < vehicleCount; i++) {
+      servletState.addDeliveryVehicle(createVehicle("vehicle_" + i));
+    }
+
+    Set<String> claimedVehicleIds = ConcurrentHashMap.newKeySet();
+    AtomicInteger claims = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < vehicleCount * 2; i++) {
+      String clientId = "client_" + i;
+      executor.execute(
+          () -> {
+            DeliveryVehicle vehicle = servletState.claimAnyAvailableDeliveryVehicle(clientId);
+            if (vehicle != null) {
+              claims.incrementAndGet();
+              claimedVehicleIds.add(vehicle.getName());
+            }
+          });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+
+    assertThat(claims.get()).isEqualTo(vehicleCount);
+    assertThat(claimedVehicleIds).hasSize(vehicleCount);
+  }
+
+  @Test
+  public void claimNearestAvailableDeliveryVehicleAssignsNearestUnassignedVehicle() {
+    servletState.setBackendConfig(
+        locatedBackendConfig(
+            ManifestLocationIndexTest.manifest("vehicle_1", 37.39, -122.08),
+            ManifestLocationIndexTest.manifest("vehicle_2", 37.77, -122.42),
+            ManifestLocationIndexTest.manifest("vehicle_3", 40.71, -74.01)));
+    servletState.addDeliveryVehicle(createVehicle("vehicle_1"));
+    servletState.addDeliveryVehicle(createVehicle("vehicle_2"));
+    servletState.addDeliveryVehicle(createVehicle("vehicle_3"));
+    assertThat(servletState.addClientToDeliveryVehicleMap("client_1", "vehicle_2")).isTrue();
+
+    assertThat(servletState.claimNearestAvailableDeliveryVehicle("client_2", 37.80, -122.27))
+        .isEqualTo(createVehicle("vehicle_1"));
+    assertThat(servletState.claimNearestAvailableDeliveryVehicle("client_3", 37.80, -122.27))
+        .isEqualTo(createVehicle("vehicle_3"));
+    assertThat(servletState.claimNearestAvailableDeliveryVehicle("client_4", 37.80, -122.27))
+        .isNull();
+  }
+
+  @Test
+  public void concurrentNearestClaimsAssignEachVehicleToOneClient() throws InterruptedException {
+    int vehicleCount = 200;
+    BackendConfig.Manifest[] manifests = new BackendConfig.Manifest[vehicleCount];
+    for (int i = 0; i < vehicleCount; i++) {
+      manifests[i] = ManifestLocationIndexTest.manifest("vehicle_" + i, i % 10, i / 10);
+    }
+    servletState.setBackendConfig(locatedBackendConfig(manifests));
+    for (int i = 0; i < vehicleCount; i++) {
+      servletState.addDeliveryVehicle(createVehicle("vehicle_" + i));
+    }
+
+    Set<String> claimedVehicleIds = ConcurrentHashMap.newKeySet();
+    AtomicInteger claims = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < vehicleCount * 2; i++) {
+      String clientId = "client_" + i;
+      // Every client is at the same place, so the claims all race for the same vehicles.
+      executor.execute(
+          () -> {
+            DeliveryVehicle vehicle =
+                servletState.claimNearestAvailableDeliveryVehicle(clientId, 5, 10);
+            if (vehicle != null) {
+              claims.incrementAndGet();
+              claimedVehicleIds.add(vehicle.getName());
+            }
+          });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+
+    assertThat(claims.get()).isEqualTo(vehicleCount);
+    assertThat(claimedVehicleIds).hasSize(vehicleCount);
+  }
+
+  @Test
+  public void removedVehicleAndItsAssignmentStayRemovedOnRestart() throws IOException {
+    String journalDirectory = journalFolder.getRoot().getPath();
+    ServletState journaled = new ServletState(journalDirectory, 100);
+    journaled.publish(
+        journaled
+            .newGeneration()
+            .addDeliveryVehicle(createVehicle("vehicle_1"))
+            .addDeliveryVehicle(createVehicle("vehicle_2"))
+            .setBackendConfig(readBackendConfig("test-two-vehicles.json")));
+    journaled.addClientToDeliveryVehicleMap("client_1", "vehicle_1");
+    journaled.removeDeliveryVehicle("vehicle_1");
+    journaled.close();
+
+    ServletState recovered = new ServletState(journalDirectory, 100);
+
+    assertThat(recovered.hasDeliveryVehicle("vehicle_1")).isFalse();
+    assertThat(recovered.getDeliveryVehicleMapByClient("client_1")).isNull();
+    assertThat(recovered.claimAnyAvailableDeliveryVehicle("client_1").getName())
+        .endsWith("vehicle_2");
+    assertThat(recovered.claimAnyAvailableDeliveryVehicle("client_2")).isNull();
+  }
+
+  @Test
+  public void journaledStateIsRecoveredOnRestart() throws IOException {
+    String journalDirectory = journalFolder.getRoot().getPath();
+    ServletState journaled = new ServletState(journalDirectory, 1000);
+    populateJournaledState(journaled);
+    journaled.close();
+
+    assertRecoveredState(new ServletState(journalDirectory, 1000));
+  }
+
+  @Test
+  public void snapshottedStateIsRecoveredOnRestart() throws IOException {
+    String journalDirectory = journalFolder.getRoot().getPath();
+    // Snapshot every few entries, so the state is rebuilt from a snapshot and a journal.
+    ServletState journaled = new ServletState(journalDirectory, 3);
+    populateJournaledState(journaled);
+    journaled.close();
+
+    assertThat(journalFolder.getRoot().list((dir, name) -> name.startsWith("snapshot-")))
+        .isNotEmpty();
+    assertRecoveredState(new ServletState(journalDirectory, 3));
+  }
+
+  private static void populateJournaledState(ServletState state) throws IOException {
+    state.setBackendConfig(readBackendConfig("test.json"));
+    state.addDeliveryVehicle(createVehicle("vehicle_1"));
+    state.publish(
+        state
+            .newGeneration()
+            .addDeliveryVehicle(createVehicle("vehicle_1"))
+            .addTask(createTask("vehicle_1_task_1"))
+            .setBackendConfig(readBackendConfig("test-two-vehicles.json")));
+    state.addDeliveryVehicle(createVehicle("vehicle_2"));
+    state.addClientToDeliveryVehicleMap("client_1", createVehicle("vehicle_1"));
+    state.updateManifestStopState("vehicle_1", BackendConfig.StopState.ARRIVED);
+    state.updateManifestRemainingStopIdList("vehicle_2", new String[0]);
+    state.removeBackendConfigTask("vehicle_2_task_1");
+  }
+
+  private static void assertRecoveredState(ServletState recovered) {
+    assertThat(recovered.getTaskById("vehicle_1_task_1")).isNotNull();
+    assertThat(recovered.getDeliveryVehicleById("vehicle_2")).isNotNull();
+    assertThat(recovered.getDeliveryVehicleMapByClient("client_1")).isEqualTo("vehicle_1");
+    assertThat(recovered.getManifest("vehicle_1").clientId).isEqualTo("client_1");
+    assertThat(recovered.getManifest("vehicle_1").currentStopState)
+        .isEqualTo(BackendConfig.StopState.ARRIVED);
+    assertThat(recovered.getManifest("vehicle_2").remainingStopIdList).isEmpty();
+    assertThat(recovered.getManifest("vehicle_2").stops[0].tasks).isEmpty();
+    // The vehicle that was assigned before the restart is not handed out again.
+    assertThat(recovered.claimAnyAvailableDeliveryVehicle("client_2").getName())
+        .endsWith("vehicle_2");
+    assertThat(recovered.claimAnyAvailableDeliveryVehicle("client_3")).isNull();
+  }
+
+  @Test
+  public void closedTasksAreEvictedAfterRetentionPeriod() {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    ServletState state =
+        new ServletState("", 1, new ServletState.Retention(60_000, 0, 0, 0), clock::get);
+    state.addTask(createTask("open_task"));
+    state.addTask(createClosedTask("closed_task"));
+
+    clock.addAndGet(59_000);
+    state.addTask(createClosedTask("recently_closed_task"));
+    assertThat(state.hasTask("closed_task")).isTrue();
+
+    clock.addAndGet(2_000);
+    state.addTask(createTask("another_open_task"));
+    assertThat(state.hasTask("closed_task")).isFalse();
+    assertThat(state.getTaskOutcome("closed_task")).isNull();
+    assertThat(state.hasTask("recently_closed_task")).isTrue();
+    assertThat(state.hasTask("open_task")).isTrue();
+    assertThat(state.getEvictedTaskCount()).isEqualTo(1);
+    assertThat(state.getTaskCount()).isEqualTo(3);
+    assertThat(state.getClosedTaskCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void evictedTasksAreRememberedAndNotReplaced() {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    ServletState state =
+        new ServletState("", 1, new ServletState.Retention(60_000, 0, 0, 0), clock::get);
+    state.addTask(createClosedTask("closed_task"));
+    clock.addAndGet(61_000);
+    state.addTask(createTask("open_task"));
+
+    assertThat(state.wasTaskEvicted("closed_task")).isTrue();
+    assertThat(state.wasTaskEvicted("open_task")).isFalse();
+    assertThat(state.wasTaskEvicted("unknown_task")).isFalse();
+    assertThat(state.replaceTask(createClosedTask("closed_task"))).isFalse();
+    assertThat(state.hasTask("closed_task")).isFalse();
+    assertThat(state.replaceTask(createClosedTask("open_task"))).isTrue();
+    assertThat(state.getTaskById("open_task")).isEqualTo(createClosedTask("open_task"));
+
+    // A task added again is no longer evicted.
+    state.addTask(createTask("closed_task"));
+    assertThat(state.wasTaskEvicted("closed_task")).isFalse();
+  }
+
+  @Test
+  public void oldestClosedTasksAreEvictedAboveLimit() {
+    ServletState state =
+        new ServletState("", 1, new ServletState.Retention(0, 100, 0, 0), () -> 1);
+    for (int i = 0; i < 1000; i++) {
+      state.addTask(createClosedTask("closed_task_" + i));
+      state.addTask(createTask("open_task_" + i));
+    }
+
+    assertThat(state.getClosedTaskCount()).isEqualTo(100);
+    assertThat(state.getEvictedTaskCount()).isEqualTo(900);
+    assertThat(state.hasTask("closed_task_899")).isFalse();
+    assertThat(state.getTaskById("closed_task_900")).isEqualTo(createClosedTask("closed_task_900"));
+    assertThat(state.getTaskById("open_task_0")).isEqualTo(createTask("open_task_0"));
+    assertThat(state.getTaskCount()).isEqualTo(1100);
+  }
+
+  @Test
+  public void finishedManifestsAreEvictedAfterRetentionPeriod() throws IOException {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    ServletState state =
+        new ServletState("", 1, new ServletState.Retention(0, 0, 60_000, 0), clock::get);
+    state.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+    state.updateManifestRemainingStopIdList("vehicle_1", new String[0]);
+    assertThat(state.getFinishedManifestCount()).isEqualTo(1);
+
+    clock.addAndGet(61_000);
+    state.updateManifestStopState("vehicle_2", BackendConfig.StopState.ENROUTE);
+
+    assertThat(state.getManifest("vehicle_1")).isNull();
+    assertThat(state.getBackendConfigTask("vehicle_1_task_1")).isNull();
+    assertThat(state.getBackendConfigTaskByTrackingId("vehicle_1_tracking_1")).isNull();
+    assertThat(state.getManifest("vehicle_2")).isNotNull();
+    assertThat(state.getBackendConfigTask("vehicle_2_task_1")).isNotNull();
+    assertThat(state.getEvictedManifestCount()).isEqualTo(1);
+    assertThat(state.getManifestCount()).isEqualTo(1);
+    assertThat(state.getFinishedManifestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void manifestWithNewStopsIsNotEvicted() throws IOException {
+    AtomicLong clock = new AtomicLong(1_000_000);
+    ServletState state =
+        new ServletState("", 1, new ServletState.Retention(0, 0, 60_000, 0), clock::get);
+    state.setBackendConfig(readBackendConfig("test-two-vehicles.json"));
+    state.updateManifestRemainingStopIdList("vehicle_1", new String[0]);
+    state.updateManifestRemainingStopIdList("vehicle_1", new String[] {"vehicle_1_stop_1"});
+
+    clock.addAndGet(61_000);
+    state.updateManifestStopState("vehicle_2", BackendConfig.StopState.ENROUTE);
+
+    assertThat(state.getManifest("vehicle_1")).isNotNull();
+    assertThat(state.getEvictedManifestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void getIdReturnsLastSegmentOfResourceName() {
+    assertThat(ServletState.getId("providers/test/tasks/task_1")).isEqualTo("task_1");
+    assertThat(ServletState.getId("providers/test/deliveryVehicles/")).isEmpty();
+    assertThat(ServletState.getId("vehicle_1")).isEqualTo("vehicle_1");
+  }
+
+  static BackendConfig locatedBackendConfig(BackendConfig.Manifest... manifests) {
+    BackendConfig backendConfig =
+        BackendConfigGsonProvider.get().fromJson("{\"manifests\": []}", BackendConfig.class);
+    backendConfig.manifests = manifests;
+    return backendConfig;
+  }
+
+  static DeliveryVehicle createVehicle(String vehicleId) {
+    return DeliveryVehicle.newBuilder()
+        .setName("providers/test/deliveryVehicles/" + vehicleId)
+        .build();
+  }
+
+  static Task createTask(String taskId) {
+    return Task.newBuilder().setName("providers/test/tasks/" + taskId).build();
+  }
+
+  static Task createClosedTask(String taskId) {
+    return createTask(taskId).toBuilder()
+        .setState(Task.State.CLOSED)
+        .setTaskOutcome(Task.TaskOutcome.SUCCEEDED)
+        .build();
+  }
+
+  static BackendConfig readBackendConfig(String path) throws IOException {
+    try (InputStream stream = ServletStateTest.class.getClassLoader().getResourceAsStream(path)) {
+      return BackendConfigGsonProvider.get()
+          .fromJson(new InputStreamReader(stream, UTF_8), BackendConfig.class);
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.example.backend.ServletStateTest.createClosedTask;
+import static com.example.backend.ServletStateTest.createTask;
+import static com.example.backend.ServletStateTest.createVehicle;
+import static com.example.backend.ServletStateTest.readBackendConfig;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.example.backend.json.BackendConfig;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for the shared delivery state store. Each test runs two stores, standing for two backend
+ * instances, against one in-process key-value store.
+ */
+@RunWith(JUnit4.class)
+public class SharedDeliveryStateStoreTest {
+
+  InProcessKeyValueStore keyValueStore;
+  SharedDeliveryStateStore instance1;
+  SharedDeliveryStateStore instance2;
+
+  @Before
+  public void setUp() throws IOException {
+    keyValueStore = new InProcessKeyValueStore();
+    instance1 = new SharedDeliveryStateStore(keyValueStore);
+    instance2 = new SharedDeliveryStateStore(keyValueStore);
+    instance1.publish(
+        instance1
+            .newGeneration()
+            .addDeliveryVehicle(createVehicle("vehicle_1"))
+            .addDeliveryVehicle(createVehicle("vehicle_2"))
+            .addTask(createTask("vehicle_1_task_1"))
+            .setBackendConfig(readBackendConfig("test-two-vehicles.json")));
+  }
+
+  @Test
+  public void publishedGenerationIsVisibleToEveryInstance() {
+    assertThat(instance2.getDeliveryVehicleById("vehicle_1")).isEqualTo(createVehicle("vehicle_1"));
+    assertThat(instance2.getTaskById("vehicle_1_task_1")).isEqualTo(createTask("vehicle_1_task_1"));
+    assertThat(instance2.getManifest("vehicle_2").vehicle.vehicleId).isEqualTo("vehicle_2");
+    assertThat(instance2.getBackendConfigTaskByTrackingId("vehicle_1_tracking_1").taskId)
+        .isEqualTo("vehicle_1_task_1");
+    assertThat(instance2.getManifest("invalid_vehicle_id")).isNull();
+  }
+
+  @Test
+  public void newGenerationIsNotVisibleUntilPublished() throws IOException {
+    DeliveryStateStore.GenerationBuilder next =
+        instance1
+            .newGeneration()
+            .addDeliveryVehicle(createVehicle("vehicle_3"))
+            .setBackendConfig(readBackendConfig("test.json"));
+    assertThat(instance2.hasDeliveryVehicle("vehicle_3")).isFalse();
+    assertThat(instance2.hasDeliveryVehicle("vehicle_1")).isTrue();
+
+    instance1.publish(next);
+
+    assertThat(instance2.hasDeliveryVehicle("vehicle_3")).isTrue();
+    assertThat(instance2.hasDeliveryVehicle("vehicle_1")).isFalse();
+  }
+
+  @Test
+  public void olderGenerationsAreDeleted() {
+    String firstGenerationId = new String(keyValueStore.get("generation"), UTF_8);
+    assertThat(keyValueStore.keys(firstGenerationId + "/")).isNotEmpty();
+
+    instance1.publish(instance1.newGeneration().addDeliveryVehicle(createVehicle("vehicle_3")));
+    instance2.publish(instance2.newGeneration().addDeliveryVehicle(createVehicle("vehicle_4")));
+
+    assertThat(keyValueStore.keys(firstGenerationId + "/")).isEmpty();
+    // The current generation and the previous one are kept.
+    for (String generationId : new String(keyValueStore.get("generation"), UTF_8).split(" ")) {
+      assertThat(keyValueStore.keys(generationId + "/")).isNotEmpty();
+    }
+  }
+
+  @Test
+  public void concurrentPublishesKeepTheCurrentAndPreviousGenerations() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 40; i++) {
+      DeliveryStateStore instance = i % 2 == 0 ? instance1 : instance2;
+      String vehicleId = "vehicle_" + (i + 3);
+      executor.execute(
+          () ->
+              instance.publish(
+                  instance.newGeneration().addDeliveryVehicle(createVehicle(vehicleId))));
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+
+    String[] generationIds = new String(keyValueStore.get("generation"), UTF_8).split(" ");
+    assertThat(generationIds).hasLength(2);
+    Set<String> storedGenerationIds = new HashSet<>();
+    for (String key : keyValueStore.keys("")) {
+      if (!key.equals("generation")) {
+        storedGenerationIds.add(key.substring(0, key.indexOf('/')));
+      }
+    }
+    assertThat(storedGenerationIds).containsExactly(generationIds[0], generationIds[1]);
+  }
+
+  @Test
+  public void nearCacheIsInvalidatedByUpdatesFromAnotherInstance() {
+    assertThat(instance2.getTaskOutcome("vehicle_1_task_1"))
+        .isEqualTo(Task.TaskOutcome.TASK_OUTCOME_UNSPECIFIED);
+    assertThat(instance2.getManifest("vehicle_1").currentStopState).isNull();
+
+    instance1.addTask(createClosedTask("vehicle_1_task_1"));
+    instance1.updateManifestStopState("vehicle_1", BackendConfig.StopState.ARRIVED);
+    instance1.updateManifestRemainingStopIdList("vehicle_1", new String[0]);
+
+    assertThat(instance2.getTaskOutcome("vehicle_1_task_1")).isEqualTo(Task.TaskOutcome.SUCCEEDED);
+    assertThat(instance2.getManifest("vehicle_1").currentStopState)
+        .isEqualTo(BackendConfig.StopState.ARRIVED);
+    assertThat(instance2.getManifest("vehicle_1").remainingStopIdList).isEmpty();
+    assertThat(instance2.getFinishedManifestCount()).isEqualTo(1);
+    assertThat(instance2.getClosedTaskCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void countsAreKeptUpToDateAsTasksAndManifestsAreWritten() throws IOException {
+    assertThat(instance2.getTaskCount()).isEqualTo(1);
+    assertThat(instance2.getClosedTaskCount()).isEqualTo(0);
+    assertThat(instance2.getManifestCount()).isEqualTo(2);
+    assertThat(instance2.getFinishedManifestCount()).isEqualTo(0);
+
+    instance1.addTask(createTask("vehicle_1_task_2"));
+    assertThat(instance1.replaceTask(createClosedTask("vehicle_1_task_2"))).isTrue();
+    assertThat(instance1.replaceTask(createClosedTask("invalid_task_id"))).isFalse();
+    instance2.updateManifestRemainingStopIdList("vehicle_2", new String[0]);
+    instance2.updateManifestRemainingStopIdList("vehicle_2", new String[0]);
+
+    assertThat(instance1.getTaskCount()).isEqualTo(2);
+    assertThat(instance1.getClosedTaskCount()).isEqualTo(1);
+    assertThat(instance1.getFinishedManifestCount()).isEqualTo(1);
+
+    instance1.setBackendConfig(readBackendConfig("test.json"));
+
+    assertThat(instance2.getManifestCount()).isEqualTo(1);
+    assertThat(instance2.getFinishedManifestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void vehicleAddedAfterThePublishIsQueuedOnceForEveryInstance() {
+    assertThat(instance1.claimAnyAvailableDeliveryVehicle("client_1")).isNotNull();
+    assertThat(instance2.claimAnyAvailableDeliveryVehicle("client_2")).isNotNull();
+    assertThat(instance1.claimAnyAvailableDeliveryVehicle("client_3")).isNull();
+
+    instance2.addDeliveryVehicle(createVehicle("vehicle_3"));
+    instance2.addDeliveryVehicle(createVehicle("vehicle_3"));
+
+    assertThat(instance1.claimAnyAvailableDeliveryVehicle("client_3"))
+        .isEqualTo(createVehicle("vehicle_3"));
+    assertThat(instance1.claimAnyAvailableDeliveryVehicle("client_4")).isNull();
+  }
+
+  @Test
+  public void removeBackendConfigTaskRemovesTaskFromItsStop() {
+    instance1.removeBackendConfigTask("vehicle_1_task_1");
+
+    assertThat(instance2.getManifest("vehicle_1").stops[0].tasks).isEmpty();
+    assertThat(instance2.getBackendConfigTask("vehicle_1_task_1")).isNotNull();
+  }
+
+  @Test
+  public void manifestVersionIsTheSameOnEveryInstance() {
+    String version = instance1.getManifestVersion("vehicle_1");
+    assertThat(instance2.getManifestVersion("vehicle_1")).isEqualTo(version);
+    assertThat(instance2.getManifestVersion("invalid_vehicle_id")).isNull();
+
+    instance1.updateManifestStopState("vehicle_1", BackendConfig.StopState.ARRIVED);
+
+    assertThat(instance2.getManifestVersion("vehicle_1")).isNotEqualTo(version);
+    assertThat(instance2.getManifestVersion("vehicle_1"))
+        .isEqualTo(instance1.getManifestVersion("vehicle_1"));
+  }
+
+  @Test
+  public void manifestUpdatesExcludeEachOtherAcrossInstances() {
+    String version = instance1.getManifestVersion("vehicle_1");
+    DeliveryStateStore.ManifestUpdate update = instance1.beginManifestUpdate("vehicle_1", version);
+
+    assertThat(update).isNotNull();
+    assertThat(instance2.beginManifestUpdate("vehicle_1", null)).isNull();
+    assertThat(instance2.beginManifestUpdate("vehicle_1", DeliveryStateStore.ANY_VERSION))
+        .isNull();
+    assertThat(instance2.beginManifestUpdate("vehicle_3", DeliveryStateStore.ANY_VERSION))
+        .isNull();
+    assertThat(instance2.beginManifestUpdate("vehicle_2", null)).isNotNull();
+
+    instance1.updateManifestStopState("vehicle_1", BackendConfig.StopState.ARRIVED);
+    update.close();
+
+    String newVersion = instance2.getManifestVersion("vehicle_1");
+    assertThat(instance2.beginManifestUpdate("vehicle_1", version)).isNull();
+    assertThat(instance2.beginManifestUpdate("vehicle_1", newVersion)).isNotNull();
+  }
+
+  @Test
+  public void nearestVehicleIsAssignedOnceAcrossInstances() {
+    instance1.setBackendConfig(
+        ServletStateTest.locatedBackendConfig(
+            ManifestLocationIndexTest.manifest("vehicle_1", 37.39, -122.08),
+            ManifestLocationIndexTest.manifest("vehicle_2", 40.71, -74.01)));
+
+    assertThat(instance1.claimNearestAvailableDeliveryVehicle("client_1", 37.80, -122.27))
+        .isEqualTo(createVehicle("vehicle_1"));
+    assertThat(instance2.claimNearestAvailableDeliveryVehicle("client_2", 37.80, -122.27))
+        .isEqualTo(createVehicle("vehicle_2"));
+    assertThat(instance2.claimNearestAvailableDeliveryVehicle("client_3", 37.80, -122.27))
+        .isNull();
+  }
+
+  @Test
+  public void setBackendConfigReplacesManifestsAndKeepsAssignments() throws IOException {
+    instance1.addClientToDeliveryVehicleMap("client_1", "vehicle_1");
+
+    instance1.setBackendConfig(readBackendConfig("test.json"));
+
+    assertThat(instance2.getManifest("vehicle_1").tasks).hasLength(9);
+    assertThat(instance2.getManifest("vehicle_2")).isNull();
+    assertThat(instance2.getManifests()).hasSize(1);
+    assertThat(instance2.getBackendConfigTaskByTrackingId("vehicle_1_tracking_1")).isNull();
+    assertThat(instance2.getDeliveryVehicleMapByClient("client_1")).isEqualTo("vehicle_1");
+  }
+
+  @Test
+  public void removeDeliveryVehicleReleasesItsClient() {
+    instance1.addClientToDeliveryVehicleMap("client_1", "vehicle_1");
+
+    instance2.removeDeliveryVehicle("vehicle_1");
+
+    assertThat(instance1.hasDeliveryVehicle("vehicle_1")).isFalse();
+    assertThat(instance1.getDeliveryVehicleMapByClient("client_1")).isNull();
+    assertThat(instance1.claimAnyAvailableDeliveryVehicle("client_1").getName())
+        .endsWith("vehicle_2");
+  }
+
+  @Test
+  public void vehicleIsAssignedToOneClientAcrossInstances() {
+    assertThat(instance1.addClientToDeliveryVehicleMap("client_1", "vehicle_1")).isTrue();
+    assertThat(instance2.addClientToDeliveryVehicleMap("client_2", "vehicle_1")).isFalse();
+    assertThat(instance2.addClientToDeliveryVehicleMap("client_1", "vehicle_1")).isTrue();
+
+    assertThat(instance2.getDeliveryVehicleMapByClient("client_1")).isEqualTo("vehicle_1");
+    assertThat(instance2.getManifest("vehicle_1").clientId).isEqualTo("client_1");
+    assertThat(instance2.getDeliveryVehicleMapByClient("client_2")).isNull();
+  }
+
+  @Test
+  public void concurrentClaimsOnTwoInstancesAssignEachVehicleOnce() throws InterruptedException {
+    Set<String> claimedVehicles = ConcurrentHashMap.newKeySet();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < 20; i++) {
+      DeliveryStateStore instance = i % 2 == 0 ? instance1 : instance2;
+      String clientId = "client_" + i;
+      executor.execute(
+          () -> {
+            DeliveryVehicle vehicle = instance.claimAnyAvailableDeliveryVehicle(clientId);
+            if (vehicle != null) {
+              assertThat(claimedVehicles.add(vehicle.getName())).isTrue();
+            }
+          });
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+
+    assertThat(claimedVehicles).hasSize(2);
+  }
+}
@@ -17,11 +17,20 @@ package com.example.backend;
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.example.backend.json.BackendConfig;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.maps.fleetengine.delivery.v1.CreateTaskRequest;
+import com.google.maps.fleetengine.delivery.v1.Task;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,6 +45,7 @@ public class TaskServletTest {
 
   static TestBackendConfigServletProvider testBackendConfigServletProvider;
   static TaskServlet servlet;
+  static ChangeEvents changeEvents;
   static Logger logger = Logger.getLogger(DeliveryVehicleServletTest.class.getName());
   static MockHttpServletRequest request;
   static MockHttpServletResponse response;
@@ -45,10 +55,17 @@ public class TaskServletTest {
 
     // Set up the BackendConfig and pre-load it with vehicles and tasks.
     testBackendConfigServletProvider = TestBackendConfigServletProvider.get();
+    changeEvents = new ChangeEvents(testBackendConfigServletProvider.servletState);
     servlet =
         new TaskServlet(
             testBackendConfigServletProvider.servletState,
-            testBackendConfigServletProvider.grpcServiceProvider);
+            testBackendConfigServletProvider.grpcServiceProvider,
+            changeEvents);
+  }
+
+  @AfterClass
+  public static void closeChangeEvents() {
+    changeEvents.close();
   }
 
   @Before
@@ -98,4 +115,122 @@ public class TaskServletTest {
     servlet.service(request, response);
     assertThat(response.getStatus()).isEqualTo(200);
   }
+
+  @Test
+  public void onlyFetchesEvictedTasksFromFleetEngine() throws Exception {
+    try (FakeDeliveryServer server = new FakeDeliveryServer(0)) {
+      server
+          .stub()
+          .createTask(
+              CreateTaskRequest.newBuilder()
+                  .setParent("providers/test")
+                  .setTaskId("closed_task")
+                  .setTask(ServletStateTest.createClosedTask("closed_task"))
+                  .build());
+      AtomicLong clock = new AtomicLong(1_000_000);
+      ServletState servletState =
+          new ServletState("", 1, new ServletState.Retention(60_000, 0, 0, 0), clock::get);
+      servletState.addTask(ServletStateTest.createClosedTask("closed_task"));
+      clock.addAndGet(61_000);
+      servletState.addTask(ServletStateTest.createTask("open_task"));
+      try (ChangeEvents fakeChangeEvents = new ChangeEvents(servletState)) {
+        TaskServlet fakeServlet = new TaskServlet(servletState, server::stub, fakeChangeEvents);
+
+        // An ID the servlet state never held is rejected without asking Fleet Engine.
+        request.setMethod("GET");
+        request.setServletPath("/task");
+        request.setPathInfo("/unknown_task");
+        fakeServlet.service(request, response);
+        assertThat(response.getStatus()).isEqualTo(400);
+        assertThat(server.calls()).containsExactly("create_task:closed_task");
+
+        // An evicted task is fetched from Fleet Engine, but not stored again.
+        request = new MockHttpServletRequest();
+        response = new MockHttpServletResponse();
+        request.setMethod("GET");
+        request.setServletPath("/task");
+        request.setPathInfo("/closed_task");
+        fakeServlet.service(request, response);
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(server.calls())
+            .containsExactly("create_task:closed_task", "get_task:closed_task");
+        assertThat(servletState.hasTask("closed_task")).isFalse();
+      }
+    }
+  }
+
+  @Test
+  public void completingAProvisionedTaskConflictsWithAnUpdateOfItsManifest() throws Exception {
+    try (FakeDeliveryServer server = new FakeDeliveryServer(0)) {
+      ServletState servletState = new ServletState();
+      upload(servletState, server);
+      BackendConfig.Manifest manifest = servletState.getManifests().get(0);
+      String vehicleId = manifest.vehicle.vehicleId;
+      String taskId = manifest.stops[0].tasks[0];
+      // Fleet Engine only sets the vehicle of a task once it is on the vehicle's journey.
+      assertThat(servletState.getTaskById(taskId).getDeliveryVehicleId()).isEmpty();
+      try (ChangeEvents fakeChangeEvents = new ChangeEvents(servletState)) {
+        TaskServlet fakeServlet = new TaskServlet(servletState, server::stub, fakeChangeEvents);
+
+        try (DeliveryStateStore.ManifestUpdate update =
+            servletState.beginManifestUpdate(vehicleId, null)) {
+          assertThat(completeTask(fakeServlet, taskId).getStatus()).isEqualTo(409);
+        }
+        assertThat(server.calls()).doesNotContain("update_task:" + taskId);
+        assertThat(servletState.getManifest(vehicleId).stops[0].tasks).asList().contains(taskId);
+
+        assertThat(completeTask(fakeServlet, taskId).getStatus()).isEqualTo(200);
+        assertThat(servletState.getManifest(vehicleId).stops[0].tasks)
+            .asList()
+            .doesNotContain(taskId);
+      }
+    }
+  }
+
+  @Test
+  public void completingAProvisionedTaskPublishesTheChangeOfItsManifest() throws Exception {
+    try (FakeDeliveryServer server = new FakeDeliveryServer(0)) {
+      ServletState servletState = new ServletState();
+      upload(servletState, server);
+      BackendConfig.Manifest manifest = servletState.getManifests().get(0);
+      String vehicleId = manifest.vehicle.vehicleId;
+      String taskId = manifest.stops[0].tasks[0];
+      try (ChangeEvents fakeChangeEvents = new ChangeEvents(servletState)) {
+        TaskServlet fakeServlet = new TaskServlet(servletState, server::stub, fakeChangeEvents);
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        fakeChangeEvents.subscribe(
+            vehicleId, null, event -> events.add(new String(event, UTF_8)));
+
+        assertThat(completeTask(fakeServlet, taskId).getStatus()).isEqualTo(200);
+
+        assertThat(events).hasSize(2);
+        assertThat(events.get(0)).contains("event: task\n");
+        assertThat(events.get(0)).contains("\"vehicle_id\":\"" + vehicleId + "\"");
+        assertThat(events.get(1)).contains("event: manifest\n");
+        assertThat(events.get(1)).contains("\"closed_task_ids\":[\"" + taskId + "\"]");
+      }
+    }
+  }
+
+  /** Uploads the two vehicle backend config to the servlet state, through the fake server. */
+  private static void upload(ServletState servletState, FakeDeliveryServer server)
+      throws IOException {
+    try (InputStream testStream =
+        TaskServletTest.class.getClassLoader().getResourceAsStream("test-two-vehicles.json")) {
+      new BackendConfigServlet(servletState, server::stub)
+          .serveUpload(testStream, new MockHttpServletResponse());
+    }
+  }
+
+  private static MockHttpServletResponse completeTask(TaskServlet servlet, String taskId)
+      throws ServletException, IOException {
+    MockHttpServletRequest completeRequest = new MockHttpServletRequest();
+    completeRequest.setMethod("POST");
+    completeRequest.setServletPath("/task");
+    completeRequest.setPathInfo("/" + taskId);
+    completeRequest.setContent("{\"task_outcome\": \"SUCCEEDED\"}".getBytes(UTF_8));
+    MockHttpServletResponse completeResponse = new MockHttpServletResponse();
+    servlet.service(completeRequest, completeResponse);
+    return completeResponse;
+  }
 }
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.servlet.ServletException;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -36,6 +37,7 @@ public class TwoVehicleManifestServletTest {
 
   static TestBackendConfigServletProvider testBackendConfigServletProvider;
   static ManifestServlet servlet;
+  static ChangeEvents changeEvents;
 
   @BeforeClass
   public static void setUpInjectionAndProvideConfig() throws ServletException, IOException {
@@ -43,10 +45,17 @@ public class TwoVehicleManifestServletTest {
     // Set up the BackendConfig and pre-load it with two vehicles and tasks.
     testBackendConfigServletProvider =
         TestBackendConfigServletProvider.get("test-two-vehicles.json");
+    changeEvents = new ChangeEvents(testBackendConfigServletProvider.servletState);
     servlet =
         new ManifestServlet(
             testBackendConfigServletProvider.servletState,
-            testBackendConfigServletProvider.grpcServiceProvider);
+            testBackendConfigServletProvider.grpcServiceProvider,
+            changeEvents);
+  }
+
+  @AfterClass
+  public static void closeChangeEvents() {
+    changeEvents.close();
   }
 
   @Test
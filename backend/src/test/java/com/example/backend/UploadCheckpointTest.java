@@ -0,0 +1,161 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the checkpoints of resumable backend config uploads. */
+@RunWith(JUnit4.class)
+public class UploadCheckpointTest {
+
+  @Rule public TemporaryFolder checkpointFolder = new TemporaryFolder();
+
+  @Test
+  public void open_returnsWhatWasRecorded() throws Exception {
+    Path directory = checkpointFolder.getRoot().toPath().resolve("job_1");
+    UploadCheckpoint checkpoint = UploadCheckpoint.create(directory, "full", config("{}"));
+    assertThat(checkpoint.startTimestamp(1_000)).isEqualTo(1_000);
+    checkpoint.record(0, Arrays.asList(task("task_1"), task("task_2")), vehicle("vehicle_1"));
+    checkpoint.record(2, Collections.emptyList(), vehicle("vehicle_3"));
+    checkpoint.close();
+
+    UploadCheckpoint reopened = UploadCheckpoint.open(directory);
+
+    assertThat(reopened.mode()).isEqualTo("full");
+    assertThat(reopened.startTimestamp(2_000)).isEqualTo(1_000);
+    assertThat(reopened.provisionedCount()).isEqualTo(2);
+    assertThat(reopened.get(0).tasks()).containsExactly(task("task_1"), task("task_2")).inOrder();
+    assertThat(reopened.get(0).deliveryVehicle()).isEqualTo(vehicle("vehicle_1"));
+    assertThat(reopened.get(1)).isNull();
+    assertThat(reopened.get(2).tasks()).isEmpty();
+    assertThat(readConfig(reopened)).isEqualTo("{}");
+  }
+
+  @Test
+  public void open_dropsATornRecord_andAppendsAfterTheLastWholeOne() throws Exception {
+    Path directory = checkpointFolder.getRoot().toPath().resolve("job_1");
+    UploadCheckpoint checkpoint = UploadCheckpoint.create(directory, "incremental", config("{}"));
+    checkpoint.startTimestamp(1_000);
+    checkpoint.record(0, Collections.singletonList(task("task_1")), vehicle("vehicle_1"));
+    checkpoint.close();
+    Path log = directory.resolve("checkpoint.bin");
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+
+    UploadCheckpoint reopened = UploadCheckpoint.open(directory);
+    assertThat(reopened.get(0)).isNull();
+    reopened.record(1, Collections.emptyList(), vehicle("vehicle_2"));
+    reopened.close();
+    UploadCheckpoint resumedAgain = UploadCheckpoint.open(directory);
+
+    assertThat(resumedAgain.mode()).isEqualTo("incremental");
+    assertThat(resumedAgain.startTimestamp(2_000)).isEqualTo(1_000);
+    assertThat(resumedAgain.get(0)).isNull();
+    assertThat(resumedAgain.get(1).deliveryVehicle()).isEqualTo(vehicle("vehicle_2"));
+    resumedAgain.close();
+  }
+
+  @Test
+  public void compressedConfig_isKeptCompressed_andDecompressedWhenRead() throws Exception {
+    Path directory = checkpointFolder.getRoot().toPath().resolve("job_1");
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write("{\"manifests\": []}".getBytes(UTF_8));
+    }
+
+    UploadCheckpoint checkpoint =
+        UploadCheckpoint.create(
+            directory, "full", new ByteArrayInputStream(compressed.toByteArray()));
+    checkpoint.close();
+
+    assertThat(Files.exists(directory.resolve("config.json.gz"))).isTrue();
+    assertThat(readConfig(UploadCheckpoint.open(directory))).isEqualTo("{\"manifests\": []}");
+  }
+
+  @Test
+  public void protobufConfig_isReopenedAsProtobuf() throws Exception {
+    Path directory = checkpointFolder.getRoot().toPath().resolve("job_1");
+    UploadCheckpoint checkpoint =
+        UploadCheckpoint.create(
+            directory, "full", true, new ByteArrayInputStream(new byte[] {0x0a, 0x00}));
+    assertThat(checkpoint.isProtobuf()).isTrue();
+    checkpoint.close();
+
+    UploadCheckpoint reopened = UploadCheckpoint.open(directory);
+
+    assertThat(Files.exists(directory.resolve("config.pb"))).isTrue();
+    assertThat(reopened.isProtobuf()).isTrue();
+    try (InputStream config = reopened.openConfig()) {
+      assertThat(config.readAllBytes()).isEqualTo(new byte[] {0x0a, 0x00});
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void delete_removesTheCheckpoint() throws Exception {
+    Path directory = checkpointFolder.getRoot().toPath().resolve("job_1");
+    UploadCheckpoint checkpoint = UploadCheckpoint.create(directory, "full", config("{}"));
+
+    checkpoint.delete();
+
+    assertThat(Files.exists(directory)).isFalse();
+    assertThrows(NoSuchFileException.class, () -> UploadCheckpoint.open(directory));
+  }
+
+  private static String readConfig(UploadCheckpoint checkpoint) throws IOException {
+    try (InputStream config = checkpoint.openConfig()) {
+      return new String(config.readAllBytes(), UTF_8);
+    } finally {
+      checkpoint.close();
+    }
+  }
+
+  private static ByteArrayInputStream config(String json) {
+    return new ByteArrayInputStream(json.getBytes(UTF_8));
+  }
+
+  private static Task task(String taskId) {
+    return Task.newBuilder().setName("providers/p/tasks/" + taskId).build();
+  }
+
+  private static DeliveryVehicle vehicle(String vehicleId) {
+    return DeliveryVehicle.newBuilder()
+        .setName("providers/p/deliveryVehicles/" + vehicleId)
+        .build();
+  }
+}
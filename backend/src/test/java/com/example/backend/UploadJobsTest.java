@@ -0,0 +1,147 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.example.backend.utils.BackendConfigException;
+import com.google.gson.JsonObject;
+import com.google.maps.fleetengine.delivery.v1.DeliveryVehicle;
+import com.google.maps.fleetengine.delivery.v1.Task;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the background backend config uploads. */
+@RunWith(JUnit4.class)
+public class UploadJobsTest {
+
+  private final AtomicLong now = new AtomicLong(1_000);
+  private final UploadJobs uploadJobs = new UploadJobs(now::get);
+
+  @Test
+  public void submit_reportsTheProgressOfTheJob() throws Exception {
+    CountDownLatch provisioned = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+
+    UploadJob job =
+        uploadJobs.submit(
+            "full",
+            uploadJob -> {
+              uploadJob.onVehicleCount(3);
+              uploadJob.onTaskCreated(Task.getDefaultInstance());
+              uploadJob.onTaskCreated(Task.getDefaultInstance());
+              uploadJob.onVehicleProvisioned(DeliveryVehicle.getDefaultInstance(), true);
+              now.addAndGet(2_000);
+              provisioned.countDown();
+              resume.await();
+              uploadJob.onPublishing();
+            });
+    assertThat(provisioned.await(10, TimeUnit.SECONDS)).isTrue();
+    JsonObject status = job.toJson();
+    resume.countDown();
+    awaitDone(job);
+
+    assertThat(uploadJobs.get(job.id())).isSameInstanceAs(job);
+    assertThat(status.get("phase").getAsString()).isEqualTo("PROVISIONING");
+    assertThat(status.get("mode").getAsString()).isEqualTo("full");
+    assertThat(status.get("vehicles_created").getAsInt()).isEqualTo(1);
+    assertThat(status.get("vehicles_remaining").getAsInt()).isEqualTo(2);
+    assertThat(status.get("tasks_created").getAsInt()).isEqualTo(2);
+    assertThat(status.get("elapsed_seconds").getAsDouble()).isEqualTo(2.0);
+    assertThat(status.get("tasks_per_second").getAsDouble()).isEqualTo(1.0);
+    assertThat(job.phase()).isEqualTo(UploadJob.Phase.SUCCEEDED);
+    assertThat(job.toJson().getAsJsonArray("errors")).isEmpty();
+  }
+
+  @Test
+  public void failedJob_reportsItsError() throws Exception {
+    UploadJob job =
+        uploadJobs.submit(
+            "incremental",
+            uploadJob -> {
+              uploadJob.onVehicleProvisioned(DeliveryVehicle.getDefaultInstance(), false);
+              throw new IllegalStateException("Fleet Engine is unavailable");
+            });
+    awaitDone(job);
+
+    JsonObject status = job.toJson();
+    assertThat(status.get("phase").getAsString()).isEqualTo("FAILED");
+    assertThat(status.get("vehicles_updated").getAsInt()).isEqualTo(1);
+    assertThat(status.has("vehicles_remaining")).isFalse();
+    assertThat(status.getAsJsonArray("errors").get(0).getAsString())
+        .isEqualTo("Fleet Engine is unavailable");
+  }
+
+  @Test
+  public void failedJob_withInvalidConfig_isReportedAsSuch() throws Exception {
+    UploadJob invalid =
+        uploadJobs.submit(
+            "incremental",
+            uploadJob -> {
+              throw new BackendConfigException("Stop ID stop_9 cannot be found.");
+            });
+    UploadJob unavailable =
+        uploadJobs.submit(
+            "incremental",
+            uploadJob -> {
+              throw new IllegalStateException("Fleet Engine is unavailable");
+            });
+    awaitDone(invalid);
+    awaitDone(unavailable);
+
+    assertThat(invalid.failedOnInvalidConfig()).isTrue();
+    assertThat(invalid.toJson().getAsJsonArray("errors").get(0).getAsString())
+        .isEqualTo("Stop ID stop_9 cannot be found.");
+    assertThat(unavailable.failedOnInvalidConfig()).isFalse();
+  }
+
+  @Test
+  public void jobs_runOneAtATime_andTooManyAreRejected() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    UploadJob running = uploadJobs.submit("full", uploadJob -> release.await());
+    UploadJob[] queued = new UploadJob[UploadJobs.MAX_QUEUED_JOBS];
+    for (int i = 0; i < queued.length; i++) {
+      queued[i] = uploadJobs.submit("full", uploadJob -> {});
+    }
+
+    assertThrows(
+        RejectedExecutionException.class, () -> uploadJobs.submit("full", uploadJob -> {}));
+    assertThat(queued[0].phase()).isEqualTo(UploadJob.Phase.QUEUED);
+    release.countDown();
+    for (UploadJob job : queued) {
+      awaitDone(job);
+      assertThat(job.phase()).isEqualTo(UploadJob.Phase.SUCCEEDED);
+    }
+    assertThat(running.phase()).isEqualTo(UploadJob.Phase.SUCCEEDED);
+  }
+
+  @Test
+  public void get_unknownJob_returnsNull() {
+    assertThat(uploadJobs.get("unknown")).isNull();
+  }
+
+  private static void awaitDone(UploadJob job) throws InterruptedException {
+    for (int i = 0; i < 1000 && !job.isDone(); i++) {
+      Thread.sleep(10);
+    }
+    assertThat(job.isDone()).isTrue();
+  }
+}
@@ -0,0 +1,175 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.example.backend.json.BackendConfig;
+import com.example.backend.json.BackendConfigGsonProvider;
+import com.example.backend.json.BackendConfigProto;
+import com.example.backend.json.BackendConfigProtoReader;
+import com.example.backend.json.BackendConfigReader;
+import com.example.backend.json.BackendConfigStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the JSON and protobuf formats of the backend config: the size of a whole config and of
+ * a single manifest, raw and gzip-compressed, and the time it takes to write and to read them.
+ *
+ * <p>This is not run as part of the unit tests. Run it with the test classpath:
+ *
+ * <pre>
+ *   java -cp ... com.example.backend.WireFormatBenchmark [vehicles] [tasksPerVehicle]
+ * </pre>
+ */
+public final class WireFormatBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURED_ROUNDS = 10;
+  private static final int MANIFEST_REPETITIONS = 1000;
+
+  // Keeps the results reachable, so the work is not optimized away.
+  private static Object retained;
+
+  /** Writes or reads once. */
+  private interface Operation {
+    void run() throws IOException;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int vehicles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int tasksPerVehicle = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    BackendConfig config = ManifestProvisionerTest.createBackendConfig(vehicles, tasksPerVehicle);
+    BackendConfig.Manifest manifest = config.manifests[0];
+    byte[] configJson = writeJson(config);
+    byte[] configProto = writeProto(config);
+    byte[] manifestJson = BackendConfigGsonProvider.get().toJson(manifest).getBytes(UTF_8);
+    byte[] manifestProto = BackendConfigProto.toByteArray(manifest);
+
+    System.out.printf("%d vehicles, %d tasks per vehicle%n", vehicles, tasksPerVehicle);
+    System.out.printf(
+        "%-28s %14s %14s %12s %12s%n", "", "bytes", "gzip bytes", "write (ms)", "read (ms)");
+    print(
+        "config, JSON",
+        configJson,
+        time(() -> retained = writeJson(config)),
+        time(() -> retained = readConfig(jsonReader(configJson))));
+    print(
+        "config, protobuf",
+        configProto,
+        time(() -> retained = writeProto(config)),
+        time(() -> retained = readConfig(protoReader(configProto))));
+    print(
+        String.format("manifest x%d, JSON", MANIFEST_REPETITIONS),
+        manifestJson,
+        time(() -> repeat(() -> retained = BackendConfigGsonProvider.get().toJson(manifest))),
+        time(() -> repeat(() -> retained = readJsonManifest(manifestJson))));
+    print(
+        String.format("manifest x%d, protobuf", MANIFEST_REPETITIONS),
+        manifestProto,
+        time(() -> repeat(() -> retained = BackendConfigProto.toByteArray(manifest))),
+        time(() -> repeat(() -> retained = readProtoManifest(manifestProto))));
+  }
+
+  private static byte[] writeJson(BackendConfig config) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (Writer writer = new OutputStreamWriter(bytes, UTF_8)) {
+      BackendConfigGsonProvider.get().toJson(config, writer);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] writeProto(BackendConfig config) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BackendConfigProto.writeBackendConfig(config, bytes);
+    return bytes.toByteArray();
+  }
+
+  private static BackendConfigReader jsonReader(byte[] config) throws IOException {
+    return new BackendConfigStreamReader(
+        new InputStreamReader(new ByteArrayInputStream(config), UTF_8));
+  }
+
+  private static BackendConfigReader protoReader(byte[] config) {
+    return new BackendConfigProtoReader(new ByteArrayInputStream(config));
+  }
+
+  private static BackendConfig.Manifest readJsonManifest(byte[] manifest) {
+    return BackendConfigGsonProvider.get()
+        .fromJson(new String(manifest, UTF_8), BackendConfig.Manifest.class);
+  }
+
+  private static BackendConfig.Manifest readProtoManifest(byte[] manifest) throws IOException {
+    return BackendConfigProto.readManifest(new ByteArrayInputStream(manifest));
+  }
+
+  /** Reads a whole config the way an upload does, one manifest at a time. */
+  private static int readConfig(BackendConfigReader reader) throws IOException {
+    int manifestCount = 0;
+    try (reader) {
+      while (reader.hasNextManifest()) {
+        reader.nextManifest();
+        manifestCount++;
+      }
+      reader.finish();
+    }
+    return manifestCount;
+  }
+
+  private static void repeat(Operation operation) throws IOException {
+    for (int i = 0; i < MANIFEST_REPETITIONS; i++) {
+      operation.run();
+    }
+  }
+
+  /** Returns the median time of the operation, in milliseconds, once warmed up. */
+  private static double time(Operation operation) throws IOException {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      operation.run();
+    }
+    long[] nanos = new long[MEASURED_ROUNDS];
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      long start = System.nanoTime();
+      operation.run();
+      nanos[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(nanos);
+    return nanos[MEASURED_ROUNDS / 2] / 1e6;
+  }
+
+  private static int gzipSize(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(bytes);
+    }
+    return compressed.size();
+  }
+
+  private static void print(String format, byte[] bytes, double writeMillis, double readMillis)
+      throws IOException {
+    System.out.printf(
+        "%-28s %14d %14d %12.2f %12.2f%n",
+        format, bytes.length, gzipSize(bytes), writeMillis, readMillis);
+  }
+
+  private WireFormatBenchmark() {}
+}
@@ -0,0 +1,112 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class BackendConfigProtoTest {
+
+  @Test
+  public void readsBackWhatWasWritten() throws Exception {
+    for (String resource : new String[] {"/test.json", "/test-two-vehicles.json"}) {
+      BackendConfig expected;
+      try (InputStreamReader reader =
+          new InputStreamReader(getClass().getResourceAsStream(resource), UTF_8)) {
+        expected = BackendConfigGsonProvider.get().fromJson(reader, BackendConfig.class);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      BackendConfigProto.writeBackendConfig(expected, bytes);
+
+      BackendConfig config =
+          BackendConfigProto.readBackendConfig(new ByteArrayInputStream(bytes.toByteArray()));
+
+      assertThat(BackendConfigGsonProvider.get().toJson(config))
+          .isEqualTo(BackendConfigGsonProvider.get().toJson(expected));
+    }
+  }
+
+  @Test
+  public void keepsAnEmptyListOfRemainingStopsApartFromAMissingOne() throws Exception {
+    BackendConfig.Manifest empty = new BackendConfig.Manifest();
+    empty.remainingStopIdList = new String[0];
+    BackendConfig.Manifest missing = new BackendConfig.Manifest();
+
+    assertThat(readBack(empty).remainingStopIdList).isEmpty();
+    assertThat(readBack(missing).remainingStopIdList).isNull();
+    assertThat(readBack(missing).currentStopState).isNull();
+  }
+
+  @Test
+  public void reader_readsFieldsOnEitherSideOfTheManifests() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeByteArray(
+        BackendConfigProto.CONFIG_MANIFESTS, BackendConfigProto.toByteArray(manifest("a")));
+    output.writeString(99, "unknown");
+    output.writeByteArray(
+        BackendConfigProto.CONFIG_MANIFESTS, BackendConfigProto.toByteArray(manifest("b")));
+    output.writeByteArray(
+        BackendConfigProto.CONFIG_MANIFESTS, BackendConfigProto.toByteArray(manifest("c")));
+    output.writeString(BackendConfigProto.CONFIG_DESCRIPTION, "after");
+    output.flush();
+
+    BackendConfigProtoReader reader =
+        new BackendConfigProtoReader(new ByteArrayInputStream(bytes.toByteArray()));
+
+    assertThat(reader.nextManifest().clientId).isEqualTo("a");
+    assertThat(reader.nextManifest().clientId).isEqualTo("b");
+    assertThat(reader.finish().description).isEqualTo("after");
+    assertThat(reader.hasNextManifest()).isFalse();
+  }
+
+  @Test
+  public void reader_throwsOnATruncatedConfig() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BackendConfig config = new BackendConfig();
+    config.manifests = new BackendConfig.Manifest[] {manifest("a")};
+    BackendConfigProto.writeBackendConfig(config, bytes);
+    byte[] truncated = new byte[bytes.size() - 1];
+    System.arraycopy(bytes.toByteArray(), 0, truncated, 0, truncated.length);
+
+    BackendConfigProtoReader reader =
+        new BackendConfigProtoReader(new ByteArrayInputStream(truncated));
+
+    assertThrows(InvalidProtocolBufferException.class, reader::nextManifest);
+  }
+
+  private static BackendConfig.Manifest readBack(BackendConfig.Manifest manifest)
+      throws Exception {
+    return BackendConfigProto.readManifest(
+        new ByteArrayInputStream(BackendConfigProto.toByteArray(manifest)));
+  }
+
+  private static BackendConfig.Manifest manifest(String clientId) {
+    BackendConfig.Manifest manifest = new BackendConfig.Manifest();
+    manifest.clientId = clientId;
+    return manifest;
+  }
+}
@@ -0,0 +1,117 @@
+/* Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.backend.json;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.gson.JsonParseException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class BackendConfigStreamReaderTest {
+
+  @Test
+  public void readsTheSameConfigAsGson() throws Exception {
+    BackendConfig expected;
+    try (InputStreamReader reader =
+        new InputStreamReader(getClass().getResourceAsStream("/test-two-vehicles.json"), UTF_8)) {
+      expected = BackendConfigGsonProvider.get().fromJson(reader, BackendConfig.class);
+    }
+
+    List<BackendConfig.Manifest> manifests = new ArrayList<>();
+    BackendConfig config;
+    try (BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(
+            new InputStreamReader(
+                getClass().getResourceAsStream("/test-two-vehicles.json"), UTF_8))) {
+      while (reader.hasNextManifest()) {
+        manifests.add(reader.nextManifest());
+      }
+      config = reader.finish();
+    }
+    config.manifests = manifests.toArray(new BackendConfig.Manifest[0]);
+
+    assertThat(BackendConfigGsonProvider.get().toJson(config))
+        .isEqualTo(BackendConfigGsonProvider.get().toJson(expected));
+  }
+
+  @Test
+  public void readsFieldsOnEitherSideOfTheManifests() throws Exception {
+    BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(
+            new StringReader(
+                "{\"manifests\": [{\"client_id\": \"a\"}, {\"client_id\": \"b\"}],"
+                    + " \"description\": \"after\"}"));
+
+    assertThat(reader.nextManifest().clientId).isEqualTo("a");
+    assertThat(reader.nextManifest().clientId).isEqualTo("b");
+    assertThat(reader.hasNextManifest()).isFalse();
+    assertThat(reader.finish().description).isEqualTo("after");
+  }
+
+  @Test
+  public void finish_skipsTheManifestsNotRead() throws Exception {
+    BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(
+            new StringReader(
+                "{\"description\": \"before\", \"manifests\": [{}, {}], \"unknown\": [1, 2]}"));
+
+    reader.nextManifest();
+    BackendConfig config = reader.finish();
+
+    assertThat(config.description).isEqualTo("before");
+    assertThat(config.manifests).isNull();
+    assertThrows(NoSuchElementException.class, reader::nextManifest);
+  }
+
+  @Test
+  public void skipManifest_skipsOneManifest() throws Exception {
+    BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(
+            new StringReader("{\"manifests\": [{\"tasks\": 3}, {\"client_id\": \"b\"}]}"));
+
+    reader.skipManifest();
+
+    assertThat(reader.nextManifest().clientId).isEqualTo("b");
+    assertThrows(NoSuchElementException.class, reader::skipManifest);
+  }
+
+  @Test
+  public void nextManifest_invalidManifest_throws() throws Exception {
+    BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(new StringReader("{\"manifests\": [{\"tasks\": 3}]}"));
+
+    assertThrows(JsonParseException.class, reader::nextManifest);
+  }
+
+  @Test
+  public void hasNextManifest_truncatedConfig_throwsJsonParseException() throws Exception {
+    BackendConfigStreamReader reader =
+        new BackendConfigStreamReader(new StringReader("{\"manifests\": [{}, "));
+
+    reader.nextManifest();
+
+    assertThrows(JsonParseException.class, reader::hasNextManifest);
+  }
+}